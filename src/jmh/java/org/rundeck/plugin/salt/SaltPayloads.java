@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt;
+
+/**
+ * Generates salt-api payloads shaped like the ones salt-api returns for cmd.run_all, sized for
+ * benchmarking.
+ */
+public final class SaltPayloads {
+
+    public static final String JID = "20130903200912838566";
+
+    protected static final String OUTPUT_LINE = "2013-09-03 20:09:12,838 [INFO    ] Executing command 'yum -y update' "
+            + "in directory '/root', line ";
+
+    private SaltPayloads() {
+    }
+
+    public static String minionId(int index) {
+        return String.format("minion-%05d.example.com", index);
+    }
+
+    /**
+     * @return a /jobs/&lt;jid&gt; response of the given number of minions, adding up to roughly the
+     *         given number of bytes. Every minion returns at least some output, so responses of
+     *         many minions may be larger.
+     */
+    public static String jobReturn(int minions, int payloadBytes) {
+        int outputBytes = Math.max(1, payloadBytes / minions - 80);
+        StringBuilder json = new StringBuilder(payloadBytes + minions * 120);
+        json.append("{\"return\": [{");
+        for (int i = 0; i < minions; i++) {
+            if (i > 0) {
+                json.append(", ");
+            }
+            json.append('"').append(minionId(i)).append("\": ");
+            appendMinionReturn(json, i, outputBytes);
+        }
+        json.append("}]}");
+        return json.toString();
+    }
+
+    /**
+     * @return a single minion's cmd.run_all return with roughly the given number of bytes of
+     *         standard output.
+     */
+    public static String minionReturn(int payloadBytes) {
+        StringBuilder json = new StringBuilder(payloadBytes + 120);
+        appendMinionReturn(json, 0, payloadBytes);
+        return json.toString();
+    }
+
+    /**
+     * @return a POST /minions response for a job targeting the given number of minions.
+     */
+    public static String jobSubmission(int minions) {
+        StringBuilder json = new StringBuilder(minions * 30 + 120);
+        json.append("{\"_links\": {\"jobs\": [{\"href\": \"/jobs/").append(JID).append("\"}]}, ");
+        json.append("\"return\": [{\"jid\": \"").append(JID).append("\", \"minions\": [");
+        for (int i = 0; i < minions; i++) {
+            if (i > 0) {
+                json.append(", ");
+            }
+            json.append('"').append(minionId(i)).append('"');
+        }
+        json.append("]}]}");
+        return json.toString();
+    }
+
+    protected static void appendMinionReturn(StringBuilder json, int index, int outputBytes) {
+        json.append("{\"pid\": ").append(18347 + index).append(", \"retcode\": 0, \"stdout\": \"");
+        appendOutput(json, outputBytes);
+        json.append("\", \"stderr\": \"\"}");
+    }
+
+    protected static void appendOutput(StringBuilder json, int bytes) {
+        int start = json.length();
+        for (int line = 0; json.length() - start < bytes; line++) {
+            json.append(OUTPUT_LINE).append(line).append("\\n");
+        }
+        json.setLength(start + bytes);
+        // Don't leave a dangling escape behind.
+        if (json.charAt(json.length() - 1) == '\\') {
+            json.setCharAt(json.length() - 1, '.');
+        }
+    }
+}
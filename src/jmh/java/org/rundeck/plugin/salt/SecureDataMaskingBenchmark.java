@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.rundeck.plugin.salt.util.SecureDataMasker;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+/**
+ * Masks the arguments of a job submission the way they are masked before being logged.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SecureDataMaskingBenchmark {
+
+    @Param({ "1", "10", "100" })
+    public int arguments;
+
+    @Param({ "1", "10", "100" })
+    public int secureValues;
+
+    protected List<String> args;
+    protected SecureDataMasker masker;
+
+    @Setup
+    public void setup() {
+        Set<String> secureData = Sets.newLinkedHashSet();
+        for (int i = 0; i < secureValues; i++) {
+            secureData.add(String.format("s3cr3t-%d-Pa55w0rd", i));
+        }
+        masker = new SecureDataMasker(secureData);
+        args = Lists.newArrayList();
+        for (int i = 0; i < arguments; i++) {
+            // Every other argument carries one of the secure values.
+            String secret = i % 2 == 0 ? String.format("s3cr3t-%d-Pa55w0rd", i % secureValues) : "plain";
+            args.add(String.format("mysql -u admin -p%s -e 'select %d from dual' --host=db%d.example.com", secret,
+                    i, i));
+        }
+    }
+
+    @Benchmark
+    public void maskSecureData(Blackhole blackhole) {
+        for (String arg : args) {
+            blackhole.consume(masker.mask(arg));
+        }
+    }
+}
@@ -29,12 +29,27 @@ package org.rundeck.plugin.salt;
 import static org.rundeck.plugin.salt.validation.Validators.checkNotEmpty;
 
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
-import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.validator.routines.UrlValidator;
@@ -48,21 +63,36 @@ import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.http.util.EntityUtils;
+import org.rundeck.plugin.salt.auth.SaltApiToken;
+import org.rundeck.plugin.salt.auth.SaltApiTokenCache;
+import org.rundeck.plugin.salt.job.SaltEventListener;
+import org.rundeck.plugin.salt.job.SaltEventStream;
+import org.rundeck.plugin.salt.job.SaltJobBatchDispatcher;
+import org.rundeck.plugin.salt.job.SaltJobPoller;
+import org.rundeck.plugin.salt.job.SaltJobRegistry;
+import org.rundeck.plugin.salt.job.SaltMinionPresence;
+import org.rundeck.plugin.salt.output.JsonSaltReturnHandler;
 import org.rundeck.plugin.salt.output.SaltApiResponseOutput;
+import org.rundeck.plugin.salt.output.SaltJobReturnsReader;
+import org.rundeck.plugin.salt.output.SaltOutputLogger;
 import org.rundeck.plugin.salt.output.SaltReturnHandler;
 import org.rundeck.plugin.salt.output.SaltReturnHandlerRegistry;
 import org.rundeck.plugin.salt.output.SaltReturnResponse;
 import org.rundeck.plugin.salt.output.SaltReturnResponseParseException;
 import org.rundeck.plugin.salt.util.ArgumentParser;
 import org.rundeck.plugin.salt.util.DependencyInjectionUtil;
-import org.rundeck.plugin.salt.util.ExponentialBackoffTimer;
 import org.rundeck.plugin.salt.util.HttpFactory;
 import org.rundeck.plugin.salt.util.LogWrapper;
 import org.rundeck.plugin.salt.util.RetryingHttpClientExecutor;
+import org.rundeck.plugin.salt.util.SecureDataMasker;
 import org.rundeck.plugin.salt.validation.SaltStepValidationException;
 import org.rundeck.plugin.salt.version.SaltApiCapability;
+import org.rundeck.plugin.salt.version.SaltApiCapabilityDetector;
 import org.rundeck.plugin.salt.version.SaltApiVersionCapabilityRegistry;
 import org.rundeck.plugin.salt.version.SaltInteractionHandler;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -81,10 +111,17 @@ import com.dtolabs.rundeck.plugins.step.NodeStepPlugin;
 import com.dtolabs.rundeck.plugins.step.PluginStepContext;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
 
 /**
  * This plugin allows salt execution on a specific minion using the salt-api
@@ -97,13 +134,16 @@ import com.google.gson.reflect.TypeToken;
  * master.</li>
  * <li>SALT_USER and SALT_PASSWORD options must be configured and provided on the job.</li>
  * </ul>
+ * 
+ * The same instance may execute several node steps at once. State that differs between node steps
+ * is kept in the {@link SaltStepExecution} bound to the executing thread.
  */
-@NotThreadSafe
+@ThreadSafe
 @Plugin(name = SaltApiNodeStepPlugin.SERVICE_PROVIDER_NAME, service = ServiceNameConstants.WorkflowNodeStep)
 @PluginDescription(title = "Remote Salt Execution", description = "Run a command on a remote salt master through salt-api.")
 public class SaltApiNodeStepPlugin implements NodeStepPlugin {
     public enum SaltApiNodeStepFailureReason implements FailureReason {
-        EXIT_CODE, ARGUMENTS_MISSING, ARGUMENTS_INVALID, AUTHENTICATION_FAILURE, COMMUNICATION_FAILURE, SALT_API_FAILURE, SALT_TARGET_MISMATCH, INTERRUPTED;
+        EXIT_CODE, ARGUMENTS_MISSING, ARGUMENTS_INVALID, AUTHENTICATION_FAILURE, COMMUNICATION_FAILURE, SALT_API_FAILURE, SALT_TARGET_MISMATCH, INTERRUPTED, TIMEOUT, MINION_ABSENT;
     }
 
     public static final String SERVICE_PROVIDER_NAME = "salt-api-exec";
@@ -114,20 +154,32 @@ public class SaltApiNodeStepPlugin implements NodeStepPlugin {
     protected static final String MINION_RESOURCE = "/minions";
     protected static final String JOBS_RESOURCE = "/jobs";
     protected static final String LOGOUT_RESOURCE = "/logout";
+    protected static final String EVENTS_RESOURCE = "/events";
+    protected static final String ROOT_RESOURCE = "/";
     protected static final String SALT_AUTH_TOKEN_HEADER = "X-Auth-Token";
     protected static final String CHAR_SET_ENCODING = "UTF-8";
     protected static final String REQUEST_CONTENT_TYPE = "application/x-www-form-urlencoded";
+    protected static final String JSON_REQUEST_CONTENT_TYPE = "application/json";
     protected static final String REQUEST_ACCEPT_HEADER_NAME = "Accept";
     protected static final String JSON_RESPONSE_ACCEPT_TYPE = "application/json";
     protected static final String YAML_RESPONSE_ACCEPT_TYPE = "application/x-yaml";
-
-    protected static final String SALT_OUTPUT_RETURN_KEY = "return";
-    protected static final Type JOB_RESPONSE_TYPE = new TypeToken<Map<String, List<Object>>>() {}.getType();
+    protected static final String EVENT_STREAM_ACCEPT_TYPE = "text/event-stream";
 
     // -- Parameter names for REST calls to salt-api --
     protected static final String SALT_API_FUNCTION_PARAM_NAME = "fun";
     protected static final String SALT_API_ARGUMENTS_PARAM_NAME = "arg";
     protected static final String SALT_API_TARGET_PARAM_NAME = "tgt";
+    protected static final String SALT_API_TARGET_TYPE_PARAM_NAME = "tgt_type";
+    protected static final String SALT_API_LIST_TARGET_TYPE = "list";
+    protected static final String SALT_API_KILL_JOB_FUNCTION = "saltutil.kill_job";
+    protected static final String SALT_API_FIND_JOB_FUNCTION = "saltutil.find_job";
+    protected static final String SALT_API_CLIENT_PARAM_NAME = "client";
+    protected static final String SALT_API_RUNNER_CLIENT = "runner";
+    protected static final String SALT_API_LOCAL_CLIENT = "local";
+    protected static final JsonPrimitive SYNC_TIMEOUT_RETURN = new JsonPrimitive(false);
+    protected static final String SALT_API_TIMEOUT_PARAM_NAME = "timeout";
+    protected static final String SALT_API_JID_PARAM_NAME = "jid";
+    protected static final String SALT_API_RETURN_KEY = "return";
     protected static final String SALT_API_USERNAME_PARAM_NAME = "username";
     protected static final String SALT_API_PASSWORD_PARAM_NAME = "password";
     protected static final String SALT_API_EAUTH_PARAM_NAME = "eauth";
@@ -135,33 +187,66 @@ public class SaltApiNodeStepPlugin implements NodeStepPlugin {
     // -- Option names expected to be passed in from rundeck --
     protected static final String RUNDECK_DATA_CONTEXT_OPTION_KEY = "option";
     protected static final String RUNDECK_SECURE_DATA_CONTEXT_OPTION_KEY = "secureOption";
+    protected static final String RUNDECK_DATA_CONTEXT_JOB_KEY = "job";
+    protected static final String RUNDECK_DATA_CONTEXT_EXECUTION_ID_KEY = "execid";
+    protected static final String RUNDECK_DATA_CONTEXT_RETRY_INITIAL_EXECUTION_ID_KEY = "retryInitialExecId";
     protected static final String SALT_API_END_POINT_OPTION_NAME = "SALT_API_END_POINT";
     protected static final String SALT_API_VERSION_OPTION_NAME = "SALT_API_VERSION";
     protected static final String SALT_API_FUNCTION_OPTION_NAME = "Function";
     protected static final String SALT_API_EAUTH_OPTION_NAME = "SALT_API_EAUTH";
     protected static final String SALT_USER_OPTION_NAME = "SALT_USER";
     protected static final String SALT_PASSWORD_OPTION_NAME = "SALT_PASSWORD";
+    protected static final String SALT_API_BATCH_DISPATCH_OPTION_NAME = "Batch dispatch";
+    protected static final String SALT_API_EVENT_COMPLETION_OPTION_NAME = "Event completion";
+    protected static final String SALT_API_TIMEOUT_OPTION_NAME = "Timeout";
+    protected static final String SALT_API_PRESENCE_CHECK_OPTION_NAME = "Presence check";
+    protected static final String SALT_API_SYNC_TIMEOUT_OPTION_NAME = "Synchronous timeout";
+
+    // Format of the jids salt generates, see salt.utils.jid.gen_jid.
+    protected static final DateTimeFormatter JID_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmssSSSSSS");
+
+    // Last jid generated in this JVM, jids are kept unique across concurrent node steps.
+    protected static final AtomicLong LAST_JID = new AtomicLong();
     
     @PluginProperty(title = SALT_API_END_POINT_OPTION_NAME, description = "Salt Api end point", required = true, defaultValue = "${option."
             + SALT_API_END_POINT_OPTION_NAME + "}")
     protected String saltEndpoint;
 
-    @PluginProperty(title = SALT_API_VERSION_OPTION_NAME, description = "Salt Api version", required = false)
+    @PluginProperty(title = SALT_API_VERSION_OPTION_NAME, description = "Salt Api version, detected from the endpoint if left blank", required = false)
     protected String saltApiVersion;
 
     @TextArea
-    @PluginProperty(title = SALT_API_FUNCTION_OPTION_NAME, description = "Function (including args) to invoke on salt minions", required = true)
+    @PluginProperty(title = SALT_API_FUNCTION_OPTION_NAME, description = "Function (including args) to invoke on salt minions, one per line to invoke several in a single request", required = true)
     protected String function;
 
     @PluginProperty(title = SALT_API_EAUTH_OPTION_NAME, description = "Salt Master's external authentication system", required = true, defaultValue = "${option."
             + SALT_API_EAUTH_OPTION_NAME + "}")
     protected String eAuth;
 
-    protected LogWrapper logWrapper;
+    @PluginProperty(title = SALT_API_BATCH_DISPATCH_OPTION_NAME, description = "Submit a single list targeted salt job for all nodes of this step", required = false, defaultValue = "false")
+    protected boolean batchDispatch;
+
+    @PluginProperty(title = SALT_API_EVENT_COMPLETION_OPTION_NAME, description = "Wait for job returns on salt-api's event stream, polling only if the stream is unavailable", required = false, defaultValue = "false")
+    protected boolean eventCompletion;
+
+    @PluginProperty(title = SALT_API_TIMEOUT_OPTION_NAME, description = "Seconds to wait for the minion to return before its job is killed, 0 for no limit other than the global one", required = false, defaultValue = "0")
+    protected int timeout;
+
+    @PluginProperty(title = SALT_API_PRESENCE_CHECK_OPTION_NAME, description = "Fail right away if the minion isn't connected to the salt master, as listed by a periodically refreshed runner call", required = false, defaultValue = "false")
+    protected boolean presenceCheck;
+
+    @PluginProperty(title = SALT_API_SYNC_TIMEOUT_OPTION_NAME, description = "Seconds to wait for the minion to return within the submitting request, polling for the job's return once they've passed. 0 to always poll. Ignored with batch dispatch", required = false, defaultValue = "0")
+    protected int syncTimeout;
+
+    // Logs through the execution bound to the calling thread.
+    protected LogWrapper logWrapper = SaltStepExecution.CURRENT_LOG_WRAPPER;
 
     @Autowired
     protected SaltApiVersionCapabilityRegistry capabilityRegistry;
 
+    @Autowired
+    protected SaltApiCapabilityDetector capabilityDetector;
+
     @Autowired
     protected SaltReturnHandler defaultReturnHandler;
 
@@ -171,29 +256,62 @@ public class SaltApiNodeStepPlugin implements NodeStepPlugin {
     @Autowired
     protected SaltReturnHandlerRegistry returnHandlerRegistry;
 
+    @Autowired
+    protected SaltJobReturnsReader jobReturnsReader;
+
     @Autowired
     protected RetryingHttpClientExecutor retryExecutor;
 
-    // Maximum delay in ms for polling salt minion response
     @Autowired
-    @Value("${saltJobPolling.maximumRetryDelay}")
-    protected long maximumRetryDelay;
+    protected SaltJobBatchDispatcher batchDispatcher;
+
+    @Autowired
+    protected SaltApiTokenCache tokenCache;
+
+    @Autowired
+    protected SaltJobPoller jobPoller;
+
+    @Autowired
+    protected SaltEventListener eventListener;
+
+    @Autowired
+    protected SaltMinionPresence minionPresence;
 
-    // Delay step in ms for polling salt minion response
     @Autowired
-    @Value("${saltJobPolling.delayStep}")
-    protected long delayStep;
+    protected SaltJobRegistry jobRegistry;
 
     // Default number of retries for all http requests
     @Autowired
     @Value("${saltApi.http.numRetries}")
     protected int numRetries;
 
-    // Supported API protocols
-    protected String[] endPointSchemes;
+    // Characters logged per line of minion output, longer lines are logged in chunks.
+    @Autowired
+    @Value("${saltStep.output.chunkSize}")
+    protected int outputChunkSize;
 
+    // Characters of minion output logged per node step before the output is truncated.
     @Autowired
-    protected ExponentialBackoffTimer.Factory timerFactory;
+    @Value("${saltStep.output.maximum}")
+    protected long maximumOutput;
+
+    // Time in ms any node step waits for its job to return before the job is killed, 0 for no limit.
+    @Autowired
+    @Value("${saltStep.timeout.maximum}")
+    protected long maximumTimeout;
+
+    // Time in ms between checks of the job resource while waiting on the event stream, in case the stream stalled.
+    @Autowired
+    @Value("${saltApi.events.checkInterval}")
+    protected long eventCheckInterval;
+
+    // Runner function listing the minions connected to a salt master.
+    @Autowired
+    @Value("${saltApi.presence.function}")
+    protected String presenceFunction;
+
+    // Supported API protocols
+    protected String[] endPointSchemes;
 
     public SaltApiNodeStepPlugin() {
         new DependencyInjectionUtil().inject(this);
@@ -207,8 +325,21 @@ public class SaltApiNodeStepPlugin implements NodeStepPlugin {
     @Override
     public void executeNodeStep(PluginStepContext context, Map<String, Object> configuration, INodeEntry entry)
             throws NodeStepException {
-        // Initialize logger for all actions
-        setLogWrapper(context.getLogger());
+        SaltStepExecution previous = SaltStepExecution.current();
+        try {
+            executeBoundNodeStep(context, entry);
+        } finally {
+            SaltStepExecution.bind(previous);
+        }
+    }
+
+    /**
+     * Executes the node step with its own {@link SaltStepExecution} bound to the calling thread.
+     */
+    protected void executeBoundNodeStep(PluginStepContext context, INodeEntry entry) throws NodeStepException {
+        // Initialize logger for all actions, masking secure options in everything it logs.
+        SecureDataMasker masker = createSecureDataMasker(extractSecureDataFromDataContext(context.getDataContext()));
+        setLogWrapper(context.getLogger(), masker);
         
         // Extract options from context.
         Map<String, String> optionData = context.getDataContext().get(RUNDECK_DATA_CONTEXT_OPTION_KEY);
@@ -226,42 +357,103 @@ public class SaltApiNodeStepPlugin implements NodeStepPlugin {
             logWrapper.debug("Using salt-api version: [%s]", capability);
             
             HttpClient client = httpFactory.createHttpClient();
-            String authToken = authenticate(capability, client, user, password);
+            String authToken = authenticateOrFail(capability, client, user, password, entry);
+            checkPresence(client, authToken, entry);
 
-            if (authToken == null) {
-                throw new NodeStepException("Authentication failure",
-                        SaltApiNodeStepFailureReason.AUTHENTICATION_FAILURE, entry.getNodename());
-            }
+            // Opened before submitting so that no return can be missed.
+            SaltEventStream events = openEventStream(capability, client, authToken, user, password);
 
-            Set<String> secureData = extractSecureDataFromDataContext(context.getDataContext());
-            String dispatchedJid = submitJob(capability, client, authToken, entry.getNodename(), secureData);
-            logWrapper.info("Received jid [%s] for submitted job", dispatchedJid);
-            String jobOutput = waitForJidResponse(client, authToken, dispatchedJid, entry.getNodename());
-            SaltReturnHandler handler = returnHandlerRegistry.getHandlerFor(function.split(" ", 2)[0],
-                    defaultReturnHandler);
-            logWrapper.debug("Using [%s] as salt's response handler", handler);
-            SaltReturnResponse response = handler.extractResponse(jobOutput);
+            List<String> functions = parseFunctionLines();
+            if (functions.size() > 1) {
+                if (getRegistryKey(context, entry) != null) {
+                    logWrapper.warn("Steps with several functions aren't recorded in the job registry, "
+                            + "a retry of this step runs every function again");
+                }
+                executeFunctions(capability, client, authToken, user, password, events, functions, entry, masker);
+                return;
+            }
 
-            for (String out : response.getStandardOutput()) {
-                logWrapper.info(out);
+            String registryKey = getRegistryKey(context, entry);
+            String dispatchedJid = registryKey == null ? null : jobRegistry.lookup(registryKey);
+            JsonElement jobOutput = null;
+            if (dispatchedJid != null) {
+                logWrapper.info("Reattaching to jid [%s] submitted by a previous execution of this step",
+                        dispatchedJid);
+                jobOutput = extractOutputForJid(client, authToken, dispatchedJid, entry.getNodename());
+                if (jobOutput == null
+                        && !isJobRunning(client, authToken, dispatchedJid, entry.getNodename())) {
+                    // The minion may have returned between both calls.
+                    jobOutput = extractOutputForJid(client, authToken, dispatchedJid, entry.getNodename());
+                    if (jobOutput == null) {
+                        logWrapper.info("Job [%s] is unknown to the salt master or no longer running, "
+                                + "submitting it again", dispatchedJid);
+                        dispatchedJid = null;
+                    }
+                }
             }
-            for (String err : response.getStandardError()) {
-                logWrapper.error(err);
+            if (dispatchedJid == null) {
+                if (syncTimeout > 0 && !batchDispatch) {
+                    dispatchedJid = generateJid();
+                    try {
+                        jobOutput = executeJob(client, authToken, dispatchedJid, entry.getNodename(), masker);
+                    } catch (SaltApiTokenRejectedException e) {
+                        logWrapper.debug("Auth token rejected while executing job, authenticating again");
+                        authToken = authenticateOrFail(capability, client, user, password, entry);
+                        jobOutput = executeJob(client, authToken, dispatchedJid, entry.getNodename(), masker);
+                    }
+                    if (jobOutput == null) {
+                        // Only now is the jid known to have reached the salt master.
+                        recordJob(registryKey, dispatchedJid);
+                        logWrapper.info("Minion didn't return within %d seconds, waiting for jid [%s]",
+                                syncTimeout, dispatchedJid);
+                    }
+                } else {
+                    try {
+                        dispatchedJid = submitJob(capability, client, authToken, context, entry, masker);
+                    } catch (SaltApiTokenRejectedException e) {
+                        logWrapper.debug("Auth token rejected while submitting job, authenticating again");
+                        authToken = authenticateOrFail(capability, client, user, password, entry);
+                        dispatchedJid = submitJob(capability, client, authToken, context, entry, masker);
+                    }
+                    logWrapper.info("Received jid [%s] for submitted job", dispatchedJid);
+                    recordJob(registryKey, dispatchedJid);
+                }
+            }
+            startDeadline();
+            if (jobOutput == null) {
+                try {
+                    try {
+                        jobOutput = waitForJidResponse(client, authToken, events, dispatchedJid,
+                                entry.getNodename());
+                    } catch (SaltApiTokenRejectedException e) {
+                        logWrapper.debug("Auth token rejected while polling for job status, authenticating again");
+                        authToken = authenticateOrFail(capability, client, user, password, entry);
+                        jobOutput = waitForJidResponse(client, authToken, events, dispatchedJid,
+                                entry.getNodename());
+                    }
+                } catch (SaltJobTimeoutException e) {
+                    killJobQuietly(client, authToken, dispatchedJid, entry.getNodename());
+                    completeJob(registryKey);
+                    throw new NodeStepException(e, SaltApiNodeStepFailureReason.TIMEOUT, entry.getNodename());
+                }
             }
+            completeJob(registryKey);
+            JsonSaltReturnHandler handler = returnHandlerRegistry.getJsonHandlerFor(parseFunction().get(0),
+                    defaultReturnHandler);
+            logWrapper.debug("Using [%s] as salt's response handler", handler);
+            SaltReturnResponse response = extractResponse(handler, jobOutput);
             if (!response.isSuccessful()) {
                 throw new NodeStepException(String.format("Execution failed on minion with exit code %d",
                         response.getExitCode()), SaltApiNodeStepFailureReason.EXIT_CODE, entry.getNodename());
             }
-            
-            if (capability.getSupportsLogout()) {
-                logoutQuietly(client, authToken);
-            }
         } catch (SaltReturnResponseParseException e) {
             throw new NodeStepException(e, SaltApiNodeStepFailureReason.SALT_API_FAILURE, entry.getNodename());
         } catch (InterruptedException e) {
             throw new NodeStepException(e, SaltApiNodeStepFailureReason.INTERRUPTED, entry.getNodename());
         } catch (SaltTargettingMismatchException e) {
             throw new NodeStepException(e, SaltApiNodeStepFailureReason.SALT_TARGET_MISMATCH, entry.getNodename());
+        } catch (SaltApiTokenRejectedException e) {
+            throw new NodeStepException(e, SaltApiNodeStepFailureReason.AUTHENTICATION_FAILURE, entry.getNodename());
         } catch (SaltApiException e) {
             throw new NodeStepException(e, SaltApiNodeStepFailureReason.SALT_API_FAILURE, entry.getNodename());
         } catch (HttpException e) {
@@ -272,238 +464,1332 @@ public class SaltApiNodeStepPlugin implements NodeStepPlugin {
     }
     
     /**
-     * @return collection of secure data values from data context.
+     * Authenticates against salt-api, failing the node step if the credentials are rejected.
+     * 
+     * @return X-Auth-Token for use in subsequent requests
      */
-    @SuppressWarnings({ "unchecked", "rawtypes" })
-    protected Set<String> extractSecureDataFromDataContext(Map dataContext) {
-        Map<String, String> secureContext = (Map<String, String>) dataContext.get(RUNDECK_SECURE_DATA_CONTEXT_OPTION_KEY);
-        if (secureContext != null) {
-            return ImmutableSet.copyOf(secureContext.values());
+    protected String authenticateOrFail(SaltApiCapability capability, HttpClient client, String user,
+            String password, INodeEntry entry) throws IOException, HttpException, InterruptedException,
+            NodeStepException {
+        String authToken = authenticate(capability, client, user, password);
+        if (authToken == null) {
+            throw new NodeStepException("Authentication failure",
+                    SaltApiNodeStepFailureReason.AUTHENTICATION_FAILURE, entry.getNodename());
         }
-        else {
-            return ImmutableSet.of();
+        return authToken;
+    }
+
+    /**
+     * Fails the node step if presence checks are enabled and its minion is known not to be
+     * connected to the salt master. Minions whose presence can't be determined are run against.
+     */
+    protected void checkPresence(final HttpClient client, final String authToken, INodeEntry entry)
+            throws NodeStepException {
+        if (!presenceCheck) {
+            return;
+        }
+        final LogWrapper log = logWrapper;
+        Boolean present = minionPresence.isPresent(log, saltEndpoint, entry.getNodename(),
+                new SaltMinionPresence.PresenceFetcher() {
+                    @Override
+                    public Set<String> fetch() throws Exception {
+                        return fetchPresentMinions(log, client, authToken);
+                    }
+                });
+        if (present == null) {
+            logWrapper.debug("Unable to determine whether minion [%s] is connected, submitting job anyway.",
+                    entry.getNodename());
+        } else if (!present) {
+            throw new NodeStepException(String.format("Minion [%s] is not connected to the salt master.",
+                    entry.getNodename()), SaltApiNodeStepFailureReason.MINION_ABSENT, entry.getNodename());
         }
     }
-    
+
     /**
-     * Submits the job to salt-api using the class function and args.
+     * Runs the presence runner function through salt-api.
      * 
-     * @return the jid of the submitted job
-     * @throws HttpException
-     *             if there was a communication failure with salt-api
-     * @throws InterruptedException
+     * @return the ids of the minions connected to the salt master
      */
-    protected String submitJob(SaltApiCapability capability, HttpClient client, String authToken, String minionId, Set<String> secureData) throws HttpException, IOException,
-            SaltApiException, SaltTargettingMismatchException, InterruptedException {
+    protected Set<String> fetchPresentMinions(LogWrapper log, HttpClient client, String authToken)
+            throws IOException, HttpException, SaltApiException, InterruptedException {
         List<NameValuePair> params = Lists.newArrayList();
-        List<String> args = ArgumentParser.DEFAULT_ARGUMENT_SPLITTER.parse(function);
-        params.add(new BasicNameValuePair(SALT_API_FUNCTION_PARAM_NAME, args.get(0)));
-        params.add(new BasicNameValuePair(SALT_API_TARGET_PARAM_NAME, minionId));
-        
-        List<NameValuePair> printableParams = Lists.newArrayList();
-        printableParams.addAll(params);
-        for (int i = 1; i < args.size(); i++) {
-            String value = args.get(i);
-            params.add(new BasicNameValuePair(SALT_API_ARGUMENTS_PARAM_NAME, value));
-            for (String s : secureData) {
-                value = StringUtils.replace(value, s, SECURE_OPTION_VALUE);
-            }
-            printableParams.add(new BasicNameValuePair(SALT_API_ARGUMENTS_PARAM_NAME, value));
-        }
+        params.add(new BasicNameValuePair(SALT_API_CLIENT_PARAM_NAME, SALT_API_RUNNER_CLIENT));
+        params.add(new BasicNameValuePair(SALT_API_FUNCTION_PARAM_NAME, presenceFunction));
         UrlEncodedFormEntity postEntity = new UrlEncodedFormEntity(params, CHAR_SET_ENCODING);
         postEntity.setContentEncoding(CHAR_SET_ENCODING);
         postEntity.setContentType(REQUEST_CONTENT_TYPE);
 
-        HttpPost post = httpFactory.createHttpPost(saltEndpoint + MINION_RESOURCE);
+        HttpPost post = httpFactory.createHttpPost(saltEndpoint + ROOT_RESOURCE);
         post.setHeader(SALT_AUTH_TOKEN_HEADER, authToken);
         post.setHeader(REQUEST_ACCEPT_HEADER_NAME, JSON_RESPONSE_ACCEPT_TYPE);
         post.setEntity(postEntity);
-        
-        logWrapper.debug("Submitting job with arguments [%s]", printableParams);
-        logWrapper.info("Submitting job with salt-api endpoint: [%s]", post.getURI());
-        HttpResponse response = retryExecutor.execute(logWrapper, client, post, numRetries, Predicates.<Integer>alwaysFalse());
-        
-        int statusCode = response.getStatusLine().getStatusCode();
-        HttpEntity entity = response.getEntity();
+        log.debug("Fetching minion presence with salt-api endpoint: [%s]", post.getURI());
         try {
-            String entityResponse = extractBodyFromEntity(entity);
-            if (statusCode != HttpStatus.SC_ACCEPTED) {
-                throw new HttpException(String.format("Expected response code %d, received %d. %s",
-                        HttpStatus.SC_ACCEPTED, statusCode, entityResponse));
-            } else {
-                logWrapper.debug("Received response for job submission = %s", response);
-                SaltInteractionHandler interactionHandler = capability.getSaltInteractionHandler();
-                SaltApiResponseOutput saltOutput = interactionHandler.extractOutputForJobSubmissionResponse(entityResponse);
-                if (saltOutput.getMinions().size() != 1) {
-                    throw new SaltTargettingMismatchException(String.format(
-                            "Expected minion delegation count of 1, was %d. Full minion string: (%s)", saltOutput
-                                    .getMinions().size(), saltOutput.getMinions()));
-                } else if (!saltOutput.getMinions().contains(minionId)) {
-                    throw new SaltTargettingMismatchException(String.format(
-                            "Minion dispatch mis-match. Expected:%s,  was:%s", minionId, saltOutput.getMinions()
-                                    .toString()));
+            HttpResponse response = retryExecutor.execute(log, client, post, numRetries,
+                    Predicates.<Integer>alwaysFalse());
+            int statusCode = response.getStatusLine().getStatusCode();
+            HttpEntity entity = response.getEntity();
+            try {
+                String entityResponse = extractBodyFromEntity(entity);
+                if (statusCode != HttpStatus.SC_OK) {
+                    throw new HttpException(String.format("Expected response code %d, received %d. %s",
+                            HttpStatus.SC_OK, statusCode, entityResponse));
                 }
-                return saltOutput.getJid();
+                return parsePresentMinions(entityResponse);
+            } finally {
+                closeResource(entity);
             }
         } finally {
-            closeResource(entity);
             post.releaseConnection();
         }
     }
 
-    protected void validate(String user, String password, INodeEntry entry) throws SaltStepValidationException {
-        checkNotEmpty(SALT_API_END_POINT_OPTION_NAME, saltEndpoint, SaltApiNodeStepFailureReason.ARGUMENTS_MISSING,
-                entry);
-        checkNotEmpty(SALT_API_FUNCTION_OPTION_NAME, function, SaltApiNodeStepFailureReason.ARGUMENTS_MISSING, entry);
-        checkNotEmpty(SALT_API_EAUTH_OPTION_NAME, eAuth, SaltApiNodeStepFailureReason.ARGUMENTS_MISSING, entry);
-        checkNotEmpty(SALT_USER_OPTION_NAME, user, SaltApiNodeStepFailureReason.ARGUMENTS_MISSING, entry);
-        checkNotEmpty(SALT_PASSWORD_OPTION_NAME, password, SaltApiNodeStepFailureReason.ARGUMENTS_MISSING, entry);
+    /**
+     * @return the minion ids returned by the presence runner function, either as a list or as
+     *         the keys of an object (e.g. with show_ip).
+     */
+    protected Set<String> parsePresentMinions(String entityResponse) throws SaltApiException {
+        try {
+            JsonElement returns = JsonParser.parseString(entityResponse).getAsJsonObject().get(SALT_API_RETURN_KEY);
+            JsonElement minions = returns.getAsJsonArray().get(0);
+            Set<String> ids = Sets.newHashSet();
+            if (minions.isJsonObject()) {
+                ids.addAll(minions.getAsJsonObject().keySet());
+            } else {
+                for (JsonElement minion : minions.getAsJsonArray()) {
+                    ids.add(minion.getAsString());
+                }
+            }
+            return ids;
+        } catch (RuntimeException e) {
+            throw new SaltApiException(String.format("Unexpected presence response: %s", entityResponse));
+        }
+    }
 
-        UrlValidator urlValidator = new UrlValidator(endPointSchemes, UrlValidator.ALLOW_LOCAL_URLS);
-        if (!urlValidator.isValid(saltEndpoint)) {
-            throw new SaltStepValidationException(SALT_API_END_POINT_OPTION_NAME, String.format(
-                    "%s is not a valid endpoint.", saltEndpoint), SaltApiNodeStepFailureReason.ARGUMENTS_INVALID,
-                    entry.getNodename());
+    /**
+     * Submits the job for the given node, either on its own or as part of the step's batch.
+     * 
+     * @return the jid of the submitted job
+     */
+    protected String submitJob(SaltApiCapability capability, HttpClient client, String authToken,
+            PluginStepContext context, INodeEntry entry, SecureDataMasker masker) throws HttpException,
+            IOException, SaltApiException, SaltTargettingMismatchException, InterruptedException {
+        if (batchDispatch) {
+            return submitBatchJob(capability, client, authToken, context, entry.getNodename(), masker);
+        } else {
+            return submitJob(capability, client, authToken, entry.getNodename(), masker);
         }
     }
 
-    protected String waitForJidResponse(HttpClient client, String authToken, String jid, String minionId)
-            throws IOException, InterruptedException, SaltApiException {
-        ExponentialBackoffTimer timer = timerFactory.newTimer(delayStep, maximumRetryDelay);
-        String jidResource = String.format("%s%s/%s", saltEndpoint, JOBS_RESOURCE, jid);
-        logWrapper.info("Polling for job status with salt-api endpoint: [%s]", jidResource);
-        do {
-            String response = extractOutputForJid(client, authToken, jid, minionId);
-            if (response != null) {
-                return response;
+    /**
+     * Runs each of the given function lines on the node's minion through a single lowstate
+     * request, then extracts each function's return with its own handler. Functions the minion
+     * didn't return within the request are waited for by jid.
+     */
+    protected void executeFunctions(SaltApiCapability capability, HttpClient client, String authToken,
+            String user, String password, SaltEventStream events, List<String> functions, INodeEntry entry,
+            SecureDataMasker masker) throws HttpException, IOException, SaltApiException, InterruptedException,
+            NodeStepException, SaltReturnResponseParseException {
+        List<String> jids = Lists.newArrayList();
+        for (int i = 0; i < functions.size(); i++) {
+            jids.add(generateJid());
+        }
+        List<JsonElement> outputs;
+        try {
+            outputs = executeLowstate(client, authToken, functions, jids, entry.getNodename(), masker);
+        } catch (SaltApiTokenRejectedException e) {
+            logWrapper.debug("Auth token rejected while executing functions, authenticating again");
+            authToken = authenticateOrFail(capability, client, user, password, entry);
+            outputs = executeLowstate(client, authToken, functions, jids, entry.getNodename(), masker);
+        }
+        startDeadline();
+
+        String failedFunction = null;
+        int failedExitCode = 0;
+        for (int i = 0; i < functions.size(); i++) {
+            String functionName = ArgumentParser.DEFAULT_ARGUMENT_SPLITTER.parseCached(functions.get(i)).get(0);
+            String jid = jids.get(i);
+            JsonElement jobOutput = outputs.get(i);
+            if (jobOutput == null) {
+                logWrapper.info("Minion didn't return [%s] within the request, waiting for jid [%s]", functionName, jid);
+                try {
+                    try {
+                        jobOutput = waitForJidResponse(client, authToken, events, jid, entry.getNodename(),
+                                functionName);
+                    } catch (SaltApiTokenRejectedException e) {
+                        logWrapper.debug("Auth token rejected while polling for job status, authenticating again");
+                        authToken = authenticateOrFail(capability, client, user, password, entry);
+                        jobOutput = waitForJidResponse(client, authToken, events, jid, entry.getNodename(),
+                                functionName);
+                    }
+                } catch (SaltJobTimeoutException e) {
+                    // Later functions that didn't return within the request may still be running too.
+                    for (int j = i; j < functions.size(); j++) {
+                        if (outputs.get(j) == null) {
+                            killJobQuietly(client, authToken, jids.get(j), entry.getNodename());
+                        }
+                    }
+                    throw new NodeStepException(e, SaltApiNodeStepFailureReason.TIMEOUT, entry.getNodename());
+                }
+            }
+            JsonSaltReturnHandler handler = returnHandlerRegistry.getJsonHandlerFor(functionName, defaultReturnHandler);
+            logWrapper.info("Return of [%s] with jid [%s]:", functionName, jid);
+            logWrapper.debug("Using [%s] as salt's response handler", handler);
+            SaltReturnResponse response = extractResponse(handler, jobOutput);
+            if (!response.isSuccessful() && failedFunction == null) {
+                failedFunction = functionName;
+                failedExitCode = response.getExitCode();
             }
-            timer.waitForNext();
-        } while (true);
+        }
+        if (failedFunction != null) {
+            throw new NodeStepException(String.format("Execution of [%s] failed on minion with exit code %d",
+                    failedFunction, failedExitCode), SaltApiNodeStepFailureReason.EXIT_CODE, entry.getNodename());
+        }
     }
 
     /**
-     * Extracts the minion job response by calling the job resource.
+     * Runs the given function lines on the given minion through salt-api's synchronous local
+     * client, sending them as the chunks of a single lowstate request. salt-api runs the chunks
+     * one after the other.
      * 
-     * @return the host response or null if none is available encoded in json.
-     * @throws SaltApiException
-     *             if the salt-api response does not conform to the expected
-     *             format.
-     * @throws InterruptedException
+     * @param jids
+     *            the jid of each function's job
+     * @return the parsed host response of each function, null for those the minion didn't return.
      */
-    protected String extractOutputForJid(HttpClient client, String authToken, String jid, String minionId)
-            throws IOException, SaltApiException, InterruptedException {
-        String jidResource = String.format("%s%s/%s", saltEndpoint, JOBS_RESOURCE, jid);
-        HttpGet get = httpFactory.createHttpGet(jidResource);
-        get.setHeader(SALT_AUTH_TOKEN_HEADER, authToken);
-        get.setHeader(REQUEST_ACCEPT_HEADER_NAME, JSON_RESPONSE_ACCEPT_TYPE);
-        
-        HttpResponse response = retryExecutor.execute(logWrapper, client, get, numRetries);
-        
+    protected List<JsonElement> executeLowstate(HttpClient client, String authToken, List<String> functions,
+            List<String> jids, String minionId, SecureDataMasker masker) throws HttpException, IOException,
+            SaltApiException, InterruptedException {
+        HttpPost post = createLowstatePost(authToken, functions, jids, minionId, masker);
+        HttpResponse response = retryExecutor.execute(logWrapper, client, post, numRetries,
+                Predicates.<Integer>alwaysFalse());
+        HttpEntity entity = response.getEntity();
         try {
-            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
-                HttpEntity entity = response.getEntity();
-                String entityResponse = extractBodyFromEntity(entity);
-                Gson gson = new Gson();
-                Map<String, List<Map<String, Object>>> result = gson.fromJson(entityResponse, JOB_RESPONSE_TYPE);
-                List<Map<String, Object>> responses = result.get(SALT_OUTPUT_RETURN_KEY);
-                if (responses.size() > 1) {
-                    throw new SaltApiException("Too many responses received: " + response);
-                } else if (responses.size() == 1) {
-                    Map<String, Object> minionResponse = responses.get(0);
-                    if (minionResponse.containsKey(minionId)) {
-                        logWrapper.debug("Received response for jobs/%s = %s", jid, response);
-                        Object responseObj = minionResponse.get(minionId);
-                        return gson.toJson(responseObj);
-                    }
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
+                throw rejectAuthToken(authToken);
+            } else if (statusCode != HttpStatus.SC_OK) {
+                throw new HttpException(String.format("Expected response code %d, received %d. %s",
+                        HttpStatus.SC_OK, statusCode, extractBodyFromEntity(entity)));
+            }
+            JsonReader reader = new JsonReader(openEntityContent(entity));
+            List<Map<String, JsonElement>> returns = jobReturnsReader.readChunkReturns(reader,
+                    ImmutableSet.of(minionId));
+            if (returns.size() != functions.size()) {
+                throw new SaltApiException(String.format("Expected %d returns, received %d", functions.size(),
+                        returns.size()));
+            }
+            List<JsonElement> outputs = Lists.newArrayList();
+            for (int i = 0; i < returns.size(); i++) {
+                JsonElement output = returns.get(i).get(minionId);
+                if (output != null) {
+                    logWrapper.debug("Received output for job %s", jids.get(i));
                 }
-                return null;
-            } else {
-                return null;
+                outputs.add(output);
             }
+            return outputs;
         } finally {
-            closeResource(response.getEntity());
-            get.releaseConnection();
+            closeResource(entity);
+            post.releaseConnection();
         }
     }
 
     /**
-     * Authenticates the given username/password with the given eauth system
-     * against the salt-api endpoint
-     * 
-     * @param capability
-     *            The {@link SaltApiCapability} that describes the supported features of the saltEndpoint 
-     * @param user
-     *            The user to auth with
-     * @param password
-     *            The password for the given user
-     * @return X-Auth-Token for use in subsequent requests
+     * @return the lowstate request running each function line and its args on the given minion
+     *         with the local client
      */
-    protected String authenticate(final SaltApiCapability capability, HttpClient client, String user, String password) throws IOException, HttpException,
-            InterruptedException {
-        List<NameValuePair> params = Lists.newArrayListWithCapacity(3);
-        params.add(new BasicNameValuePair(SALT_API_USERNAME_PARAM_NAME, user));
-        params.add(new BasicNameValuePair(SALT_API_PASSWORD_PARAM_NAME, password));
-        params.add(new BasicNameValuePair(SALT_API_EAUTH_PARAM_NAME, eAuth));
-        UrlEncodedFormEntity postEntity = new UrlEncodedFormEntity(params, CHAR_SET_ENCODING);
+    protected HttpPost createLowstatePost(String authToken, List<String> functions, List<String> jids,
+            String minionId, SecureDataMasker masker) {
+        JsonArray lowstate = new JsonArray();
+        JsonArray printableLowstate = new JsonArray();
+        for (int i = 0; i < functions.size(); i++) {
+            List<String> args = ArgumentParser.DEFAULT_ARGUMENT_SPLITTER.parseCached(functions.get(i));
+            JsonObject chunk = new JsonObject();
+            chunk.addProperty(SALT_API_CLIENT_PARAM_NAME, SALT_API_LOCAL_CLIENT);
+            chunk.addProperty(SALT_API_FUNCTION_PARAM_NAME, args.get(0));
+            chunk.addProperty(SALT_API_TARGET_PARAM_NAME, minionId);
+            if (syncTimeout > 0) {
+                chunk.addProperty(SALT_API_TIMEOUT_PARAM_NAME, syncTimeout);
+            }
+            chunk.addProperty(SALT_API_JID_PARAM_NAME, jids.get(i));
+
+            JsonObject printableChunk = chunk.deepCopy();
+            JsonArray chunkArgs = new JsonArray();
+            JsonArray printableArgs = new JsonArray();
+            for (int j = 1; j < args.size(); j++) {
+                chunkArgs.add(args.get(j));
+                printableArgs.add(masker.mask(args.get(j)));
+            }
+            chunk.add(SALT_API_ARGUMENTS_PARAM_NAME, chunkArgs);
+            printableChunk.add(SALT_API_ARGUMENTS_PARAM_NAME, printableArgs);
+            lowstate.add(chunk);
+            printableLowstate.add(printableChunk);
+        }
+        StringEntity postEntity = new StringEntity(lowstate.toString(), StandardCharsets.UTF_8);
         postEntity.setContentEncoding(CHAR_SET_ENCODING);
-        postEntity.setContentType(REQUEST_CONTENT_TYPE);
+        postEntity.setContentType(JSON_REQUEST_CONTENT_TYPE);
 
-        HttpPost post = httpFactory.createHttpPost(saltEndpoint + LOGIN_RESOURCE);
+        HttpPost post = httpFactory.createHttpPost(saltEndpoint + ROOT_RESOURCE);
+        post.setHeader(SALT_AUTH_TOKEN_HEADER, authToken);
+        post.setHeader(REQUEST_ACCEPT_HEADER_NAME, JSON_RESPONSE_ACCEPT_TYPE);
         post.setEntity(postEntity);
-        
-        logWrapper.info("Authenticating with salt-api endpoint: [%s]", post.getURI());
-        HttpResponse response = retryExecutor.execute(logWrapper, client, post, numRetries, new Predicate<Integer>() {
-            @Override
-            public boolean apply(Integer input) {
-                return input != capability.getLoginFailureResponseCode();
-            }
-        });
 
+        logWrapper.debug("Executing functions with lowstate [%s]", printableLowstate);
+        logWrapper.info("Executing %d functions in a single request with salt-api endpoint: [%s]",
+                functions.size(), post.getURI());
+        return post;
+    }
+
+    /**
+     * Runs the job on the given minion through salt-api's synchronous local client, which waits
+     * up to the step's synchronous timeout for the minion to return. The job is given the jid to
+     * poll for if it doesn't.
+     * 
+     * @return the parsed host response, null if the minion didn't return in time.
+     * @throws SaltTargettingMismatchException
+     *             if salt targeted anything but the given minion
+     */
+    protected JsonElement executeJob(HttpClient client, String authToken, String jid, String minionId,
+            SecureDataMasker masker) throws HttpException, IOException, SaltApiException,
+            SaltTargettingMismatchException, InterruptedException {
+        HttpPost post = createExecutePost(authToken, jid, minionId, masker);
+        HttpResponse response = retryExecutor.execute(logWrapper, client, post, numRetries,
+                Predicates.<Integer>alwaysFalse());
+        HttpEntity entity = response.getEntity();
         try {
-            int responseCode = response.getStatusLine().getStatusCode();
-            if (responseCode == capability.getLoginSuccessResponseCode()) {
-                return response.getHeaders(SALT_AUTH_TOKEN_HEADER)[0].getValue();
-            } else if (responseCode == capability.getLoginFailureResponseCode()) {
-                return null;
-            } else {
-                throw new HttpException(String.format("Unexpected failure interacting with salt-api %s", response
-                        .getStatusLine().toString()));
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
+                throw rejectAuthToken(authToken);
+            } else if (statusCode != HttpStatus.SC_OK) {
+                throw new HttpException(String.format("Expected response code %d, received %d. %s",
+                        HttpStatus.SC_OK, statusCode, extractBodyFromEntity(entity)));
+            }
+            JsonReader reader = new JsonReader(openEntityContent(entity));
+            Set<String> returnedMinionIds = Sets.newTreeSet();
+            JsonElement output = jobReturnsReader.readReturns(reader, ImmutableSet.of(minionId), returnedMinionIds)
+                    .get(minionId);
+            if (!returnedMinionIds.equals(ImmutableSet.of(minionId))) {
+                // The local client leaves out minions that weren't targeted altogether.
+                throw new SaltTargettingMismatchException(String.format(
+                        "Minion dispatch mis-match. Expected:%s,  was:%s", minionId, returnedMinionIds));
+            }
+            if (SYNC_TIMEOUT_RETURN.equals(output)) {
+                // Also what the local client reports for minions that didn't return in time.
+                output = extractOutputForJid(client, authToken, jid, minionId);
             }
+            if (output != null) {
+                logWrapper.debug("Received output for job %s", jid);
+            }
+            return output;
         } finally {
-            closeResource(response.getEntity());
+            closeResource(entity);
             post.releaseConnection();
         }
     }
 
-    protected void logoutQuietly(HttpClient client, String authToken) {
-        String logoutResource = String.format("%s%s", saltEndpoint, LOGOUT_RESOURCE);
-        HttpGet get = httpFactory.createHttpGet(logoutResource);
-        get.setHeader(SALT_AUTH_TOKEN_HEADER, authToken);
-        
-        logWrapper.info("Logging out with salt-api endpoint: [%s]", get.getURI());
-        
+    /**
+     * Asks the minion through saltutil.find_job whether it is still running the given job.
+     * 
+     * @return true if the minion reports the job as running.
+     * @throws SaltApiTokenRejectedException
+     *             if salt-api rejected the auth token.
+     */
+    protected boolean isJobRunning(HttpClient client, String authToken, String jid, String minionId)
+            throws HttpException, IOException, SaltApiException, InterruptedException {
+        HttpPost post = createFindJobPost(authToken, jid, minionId);
+        HttpResponse response = retryExecutor.execute(logWrapper, client, post, numRetries,
+                Predicates.<Integer>alwaysFalse());
+        HttpEntity entity = response.getEntity();
         try {
-            retryExecutor.execute(logWrapper, client, get, numRetries);
-        } catch (IOException e) {
-            logWrapper.warn("Encountered exception (%s) while trying to logout. Ignoring...", e.getMessage());
-        } catch (InterruptedException e) {
-            logWrapper.warn("Interrupted while trying to logout.");
-            Thread.currentThread().interrupt();
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
+                throw rejectAuthToken(authToken);
+            } else if (statusCode != HttpStatus.SC_OK) {
+                throw new HttpException(String.format("Expected response code %d, received %d. %s",
+                        HttpStatus.SC_OK, statusCode, extractBodyFromEntity(entity)));
+            }
+            JsonReader reader = new JsonReader(openEntityContent(entity));
+            JsonElement found = jobReturnsReader.readReturns(reader, ImmutableSet.of(minionId)).get(minionId);
+            return found != null && found.isJsonObject() && found.getAsJsonObject().size() > 0;
+        } finally {
+            closeResource(entity);
+            post.releaseConnection();
         }
     }
 
-    protected SaltApiCapability getSaltApiCapability() {
-        return StringUtils.isBlank(saltApiVersion) ? capabilityRegistry.getLatest() : capabilityRegistry
-                .getCapability(saltApiVersion);
-    }
+    /**
+     * @return the request running saltutil.find_job for the given job on the given minion with the local client
+     */
+    protected HttpPost createFindJobPost(String authToken, String jid, String minionId) throws IOException {
+        List<NameValuePair> params = Lists.newArrayList();
+        params.add(new BasicNameValuePair(SALT_API_CLIENT_PARAM_NAME, SALT_API_LOCAL_CLIENT));
+        params.add(new BasicNameValuePair(SALT_API_FUNCTION_PARAM_NAME, SALT_API_FIND_JOB_FUNCTION));
+        params.add(new BasicNameValuePair(SALT_API_TARGET_PARAM_NAME, minionId));
+        params.add(new BasicNameValuePair(SALT_API_ARGUMENTS_PARAM_NAME, jid));
+        UrlEncodedFormEntity postEntity = new UrlEncodedFormEntity(params, CHAR_SET_ENCODING);
+        postEntity.setContentEncoding(CHAR_SET_ENCODING);
+        postEntity.setContentType(REQUEST_CONTENT_TYPE);
 
-    protected void setLogWrapper(PluginLogger logger) {
-        logWrapper = new LogWrapper(logger);
+        HttpPost post = httpFactory.createHttpPost(saltEndpoint + ROOT_RESOURCE);
+        post.setHeader(SALT_AUTH_TOKEN_HEADER, authToken);
+        post.setHeader(REQUEST_ACCEPT_HEADER_NAME, JSON_RESPONSE_ACCEPT_TYPE);
+        post.setEntity(postEntity);
+        return post;
     }
 
-    // -- Isolating so powermock doesn't kill permgen --
-    protected String extractBodyFromEntity(HttpEntity entity) throws ParseException, IOException {
-        return EntityUtils.toString(entity);
+    /**
+     * @return the request running the function and args on the given minion with the local client
+     */
+    protected HttpPost createExecutePost(String authToken, String jid, String minionId, SecureDataMasker masker)
+            throws IOException {
+        List<NameValuePair> params = Lists.newArrayList();
+        List<String> args = parseFunction();
+        params.add(new BasicNameValuePair(SALT_API_CLIENT_PARAM_NAME, SALT_API_LOCAL_CLIENT));
+        params.add(new BasicNameValuePair(SALT_API_FUNCTION_PARAM_NAME, args.get(0)));
+        params.add(new BasicNameValuePair(SALT_API_TARGET_PARAM_NAME, minionId));
+        params.add(new BasicNameValuePair(SALT_API_TIMEOUT_PARAM_NAME, String.valueOf(syncTimeout)));
+        params.add(new BasicNameValuePair(SALT_API_JID_PARAM_NAME, jid));
+
+        List<NameValuePair> printableParams = Lists.newArrayList();
+        printableParams.addAll(params);
+        for (int i = 1; i < args.size(); i++) {
+            String value = args.get(i);
+            params.add(new BasicNameValuePair(SALT_API_ARGUMENTS_PARAM_NAME, value));
+            printableParams.add(new BasicNameValuePair(SALT_API_ARGUMENTS_PARAM_NAME, masker.mask(value)));
+        }
+        UrlEncodedFormEntity postEntity = new UrlEncodedFormEntity(params, CHAR_SET_ENCODING);
+        postEntity.setContentEncoding(CHAR_SET_ENCODING);
+        postEntity.setContentType(REQUEST_CONTENT_TYPE);
+
+        HttpPost post = httpFactory.createHttpPost(saltEndpoint + ROOT_RESOURCE);
+        post.setHeader(SALT_AUTH_TOKEN_HEADER, authToken);
+        post.setHeader(REQUEST_ACCEPT_HEADER_NAME, JSON_RESPONSE_ACCEPT_TYPE);
+        post.setEntity(postEntity);
+
+        logWrapper.debug("Executing job with arguments [%s]", printableParams);
+        logWrapper.info("Executing job [%s] with salt-api endpoint: [%s]", jid, post.getURI());
+        return post;
+    }
+
+    /**
+     * @return a new jid in salt's format, unique among the jids generated by this JVM
+     */
+    protected String generateJid() {
+        long now = Long.parseLong(LocalDateTime.now().format(JID_FORMAT));
+        while (true) {
+            long last = LAST_JID.get();
+            long jid = Math.max(now, last + 1);
+            if (LAST_JID.compareAndSet(last, jid)) {
+                return String.valueOf(jid);
+            }
+        }
+    }
+
+    /**
+     * @return collection of secure data values from data context.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    protected Set<String> extractSecureDataFromDataContext(Map dataContext) {
+        Map<String, String> secureContext = (Map<String, String>) dataContext.get(RUNDECK_SECURE_DATA_CONTEXT_OPTION_KEY);
+        if (secureContext != null) {
+            return ImmutableSet.copyOf(secureContext.values());
+        }
+        else {
+            return ImmutableSet.of();
+        }
+    }
+    
+    /**
+     * Submits the job to salt-api using the class function and args.
+     * 
+     * @return the jid of the submitted job
+     * @throws HttpException
+     *             if there was a communication failure with salt-api
+     * @throws InterruptedException
+     */
+    protected String submitJob(SaltApiCapability capability, HttpClient client, String authToken, String minionId, SecureDataMasker masker) throws HttpException, IOException,
+            SaltApiException, SaltTargettingMismatchException, InterruptedException {
+        return getDispatchedJid(dispatchJob(capability, client, authToken, minionId, null, masker), minionId);
+    }
+
+    /**
+     * @return the jid of a job submitted for the given minion alone
+     * @throws SaltTargettingMismatchException
+     *             if salt matched anything but the given minion
+     */
+    protected String getDispatchedJid(SaltApiResponseOutput saltOutput, String minionId)
+            throws SaltTargettingMismatchException {
+        if (saltOutput.getMinions().size() != 1) {
+            throw new SaltTargettingMismatchException(String.format(
+                    "Expected minion delegation count of 1, was %d. Full minion string: (%s)", saltOutput
+                            .getMinions().size(), saltOutput.getMinions()));
+        } else if (!saltOutput.getMinions().contains(minionId)) {
+            throw new SaltTargettingMismatchException(String.format(
+                    "Minion dispatch mis-match. Expected:%s,  was:%s", minionId, saltOutput.getMinions()
+                            .toString()));
+        }
+        return saltOutput.getJid();
+    }
+
+    /**
+     * Submits the job for every node targeted by the current workflow step as a single list
+     * targeted salt job, shared by all node steps of the batch.
+     * 
+     * Falls back to {@link #submitJob(SaltApiCapability, HttpClient, String, String, Set)} if the
+     * step cannot be identified or the minion was already dispatched as part of the batch (e.g. on a
+     * step retry).
+     * 
+     * @return the jid of the shared job
+     * @throws SaltTargettingMismatchException
+     *             if salt did not match the given minion
+     */
+    protected String submitBatchJob(final SaltApiCapability capability, final HttpClient client,
+            final String authToken, PluginStepContext context, String minionId, final SecureDataMasker masker)
+            throws HttpException, IOException, SaltApiException, SaltTargettingMismatchException,
+            InterruptedException {
+        String batchKey = getBatchKey(context);
+        if (batchKey == null) {
+            logWrapper.debug("Unable to identify workflow step, dispatching minion [%s] on its own", minionId);
+            return submitJob(capability, client, authToken, minionId, masker);
+        }
+
+        Set<String> targets = Sets.newTreeSet();
+        if (context.getNodes() != null) {
+            targets.addAll(context.getNodes().getNodeNames());
+        }
+        targets.add(minionId);
+        final String target = StringUtils.join(targets, ",");
+
+        SaltApiResponseOutput saltOutput;
+        try {
+            saltOutput = batchDispatcher.dispatch(batchKey, minionId, targets, new Callable<SaltApiResponseOutput>() {
+                @Override
+                public SaltApiResponseOutput call() throws Exception {
+                    return dispatchJob(capability, client, authToken, target, SALT_API_LIST_TARGET_TYPE, masker);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw propagateBatchFailure(e.getCause());
+        }
+
+        if (saltOutput == null) {
+            logWrapper.debug("Minion [%s] already dispatched as part of batch %s, dispatching on its own", minionId,
+                    batchKey);
+            return submitJob(capability, client, authToken, minionId, masker);
+        } else if (!saltOutput.getMinions().contains(minionId)) {
+            throw new SaltTargettingMismatchException(String.format(
+                    "Minion dispatch mis-match. Expected %s to be one of: %s", minionId, saltOutput.getMinions()));
+        }
+        logWrapper.debug("Minion [%s] dispatched as part of batch %s", minionId, batchKey);
+        return saltOutput.getJid();
+    }
+
+    /**
+     * @return a key identifying the workflow step within its execution or null if the execution is
+     *         unknown.
+     */
+    protected String getBatchKey(PluginStepContext context) {
+        Map<String, String> jobContext = context.getDataContext().get(RUNDECK_DATA_CONTEXT_JOB_KEY);
+        String executionId = jobContext == null ? null : jobContext.get(RUNDECK_DATA_CONTEXT_EXECUTION_ID_KEY);
+        if (StringUtils.isBlank(executionId)) {
+            return null;
+        }
+        return String.format("%s:%s:%s:%s", executionId, context.getStepContext(), saltEndpoint, function);
+    }
+
+    /**
+     * @return the key the node step's job is recorded under in the {@link SaltJobRegistry}, null if
+     *         the registry is disabled or the execution can't be identified. Retries of a job
+     *         execution share the key of the execution they retry.
+     */
+    protected String getRegistryKey(PluginStepContext context, INodeEntry entry) {
+        if (!jobRegistry.isEnabled()) {
+            return null;
+        }
+        Map<String, String> jobContext = context.getDataContext().get(RUNDECK_DATA_CONTEXT_JOB_KEY);
+        if (jobContext == null) {
+            return null;
+        }
+        String executionId = jobContext.get(RUNDECK_DATA_CONTEXT_RETRY_INITIAL_EXECUTION_ID_KEY);
+        if (StringUtils.isBlank(executionId) || "0".equals(executionId)) {
+            executionId = jobContext.get(RUNDECK_DATA_CONTEXT_EXECUTION_ID_KEY);
+        }
+        if (StringUtils.isBlank(executionId)) {
+            return null;
+        }
+        return SaltJobRegistry.key(executionId, String.valueOf(context.getStepContext()), entry.getNodename(),
+                saltEndpoint, function);
+    }
+
+    protected void recordJob(String registryKey, String jid) {
+        if (registryKey == null) {
+            return;
+        }
+        try {
+            jobRegistry.record(registryKey, jid);
+        } catch (IOException e) {
+            logWrapper.warn("Unable to record jid [%s] (%s), the job will be submitted again if the step is retried.",
+                    jid, e.getMessage());
+        }
+    }
+
+    protected void completeJob(String registryKey) {
+        if (registryKey == null) {
+            return;
+        }
+        try {
+            jobRegistry.complete(registryKey);
+        } catch (IOException e) {
+            logWrapper.warn("Unable to remove completed job from the job registry (%s).", e.getMessage());
+        }
+    }
+
+    /**
+     * Rethrows a failure of a shared batch submission as it would have been thrown by
+     * {@link #submitJob(SaltApiCapability, HttpClient, String, String, Set)}.
+     */
+    protected SaltApiException propagateBatchFailure(Throwable cause) throws HttpException, IOException,
+            SaltTargettingMismatchException, InterruptedException {
+        if (cause instanceof HttpException) {
+            throw (HttpException) cause;
+        } else if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof SaltTargettingMismatchException) {
+            throw (SaltTargettingMismatchException) cause;
+        } else if (cause instanceof InterruptedException) {
+            throw (InterruptedException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof SaltApiException) {
+            return (SaltApiException) cause;
+        } else {
+            return new SaltApiException(String.format("Batch submission failed: %s", cause));
+        }
+    }
+
+    /**
+     * Posts the class function and args to salt-api for the given target.
+     * 
+     * @param target
+     *            the salt target expression
+     * @param targetType
+     *            the salt target type or null for salt's default (glob)
+     * @return the submission output as returned by salt-api
+     * @throws HttpException
+     *             if there was a communication failure with salt-api
+     */
+    protected SaltApiResponseOutput dispatchJob(SaltApiCapability capability, HttpClient client, String authToken,
+            String target, String targetType, SecureDataMasker masker) throws HttpException, IOException,
+            SaltApiException, InterruptedException {
+        HttpPost post = createDispatchPost(logWrapper, authToken, target, targetType, masker);
+        HttpResponse response = retryExecutor.execute(logWrapper, client, post, numRetries, Predicates.<Integer>alwaysFalse());
+        return readDispatchResponse(logWrapper, capability, authToken, post, response);
+    }
+
+    /**
+     * @return the request posting the class function and args for the given target
+     */
+    protected HttpPost createDispatchPost(LogWrapper log, String authToken, String target, String targetType,
+            SecureDataMasker masker) throws IOException {
+        List<NameValuePair> params = Lists.newArrayList();
+        List<String> args = parseFunction();
+        params.add(new BasicNameValuePair(SALT_API_FUNCTION_PARAM_NAME, args.get(0)));
+        params.add(new BasicNameValuePair(SALT_API_TARGET_PARAM_NAME, target));
+        if (targetType != null) {
+            params.add(new BasicNameValuePair(SALT_API_TARGET_TYPE_PARAM_NAME, targetType));
+        }
+        
+        List<NameValuePair> printableParams = Lists.newArrayList();
+        printableParams.addAll(params);
+        for (int i = 1; i < args.size(); i++) {
+            String value = args.get(i);
+            params.add(new BasicNameValuePair(SALT_API_ARGUMENTS_PARAM_NAME, value));
+            printableParams.add(new BasicNameValuePair(SALT_API_ARGUMENTS_PARAM_NAME, masker.mask(value)));
+        }
+        UrlEncodedFormEntity postEntity = new UrlEncodedFormEntity(params, CHAR_SET_ENCODING);
+        postEntity.setContentEncoding(CHAR_SET_ENCODING);
+        postEntity.setContentType(REQUEST_CONTENT_TYPE);
+
+        HttpPost post = httpFactory.createHttpPost(saltEndpoint + MINION_RESOURCE);
+        post.setHeader(SALT_AUTH_TOKEN_HEADER, authToken);
+        post.setHeader(REQUEST_ACCEPT_HEADER_NAME, JSON_RESPONSE_ACCEPT_TYPE);
+        post.setEntity(postEntity);
+        
+        log.debug("Submitting job with arguments [%s]", printableParams);
+        log.info("Submitting job with salt-api endpoint: [%s]", post.getURI());
+        return post;
+    }
+
+    protected SaltApiResponseOutput readDispatchResponse(LogWrapper log, SaltApiCapability capability,
+            String authToken, HttpPost post, HttpResponse response) throws HttpException, IOException,
+            SaltApiException {
+        int statusCode = response.getStatusLine().getStatusCode();
+        HttpEntity entity = response.getEntity();
+        try {
+            String entityResponse = extractBodyFromEntity(entity);
+            if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
+                throw rejectAuthToken(authToken);
+            } else if (statusCode != HttpStatus.SC_ACCEPTED) {
+                throw new HttpException(String.format("Expected response code %d, received %d. %s",
+                        HttpStatus.SC_ACCEPTED, statusCode, entityResponse));
+            } else {
+                log.debug("Received response for job submission = %s", response);
+                SaltInteractionHandler interactionHandler = capability.getSaltInteractionHandler();
+                return interactionHandler.extractOutputForJobSubmissionResponse(entityResponse);
+            }
+        } finally {
+            closeResource(entity);
+            post.releaseConnection();
+        }
+    }
+
+    /**
+     * @return a masker replacing every occurrence of the given secure data, built once per execution.
+     */
+    protected SecureDataMasker createSecureDataMasker(Set<String> secureData) {
+        return new SecureDataMasker(secureData, SECURE_OPTION_VALUE);
+    }
+
+    protected void validate(String user, String password, INodeEntry entry) throws SaltStepValidationException {
+        checkNotEmpty(SALT_API_END_POINT_OPTION_NAME, saltEndpoint, SaltApiNodeStepFailureReason.ARGUMENTS_MISSING,
+                entry);
+        checkNotEmpty(SALT_API_FUNCTION_OPTION_NAME, function, SaltApiNodeStepFailureReason.ARGUMENTS_MISSING, entry);
+        checkNotEmpty(SALT_API_EAUTH_OPTION_NAME, eAuth, SaltApiNodeStepFailureReason.ARGUMENTS_MISSING, entry);
+        checkNotEmpty(SALT_USER_OPTION_NAME, user, SaltApiNodeStepFailureReason.ARGUMENTS_MISSING, entry);
+        checkNotEmpty(SALT_PASSWORD_OPTION_NAME, password, SaltApiNodeStepFailureReason.ARGUMENTS_MISSING, entry);
+
+        UrlValidator urlValidator = new UrlValidator(endPointSchemes, UrlValidator.ALLOW_LOCAL_URLS);
+        if (!urlValidator.isValid(saltEndpoint)) {
+            throw new SaltStepValidationException(SALT_API_END_POINT_OPTION_NAME, String.format(
+                    "%s is not a valid endpoint.", saltEndpoint), SaltApiNodeStepFailureReason.ARGUMENTS_INVALID,
+                    entry.getNodename());
+        }
+        if (batchDispatch && parseFunctionLines().size() > 1) {
+            throw new SaltStepValidationException(SALT_API_BATCH_DISPATCH_OPTION_NAME,
+                    "Batch dispatch can't run several functions in a single step.",
+                    SaltApiNodeStepFailureReason.ARGUMENTS_INVALID, entry.getNodename());
+        }
+    }
+
+    /**
+     * Interprets the minion's response, logging its output as it is extracted.
+     */
+    protected SaltReturnResponse extractResponse(JsonSaltReturnHandler handler, JsonElement jobOutput) {
+        SaltStepExecution execution = SaltStepExecution.current();
+        SaltOutputLogger output = new SaltOutputLogger(logWrapper, execution == null ? SecureDataMasker.NONE
+                : execution.getMasker(), outputChunkSize, maximumOutput);
+        try {
+            SaltReturnResponse response = handler.extractResponse(jobOutput, output);
+            // Handlers that can't log output themselves collect it in the response.
+            for (String out : response.getStandardOutput()) {
+                output.logOutput(out);
+            }
+            for (String err : response.getStandardError()) {
+                output.logError(err);
+            }
+            return response;
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Opens (or reuses) the event stream for the endpoint and credentials if event completion is
+     * enabled and supported.
+     * 
+     * @return the event stream or null if job returns should be polled for.
+     */
+    protected SaltEventStream openEventStream(SaltApiCapability capability, final HttpClient client,
+            final String authToken, String user, String password) {
+        if (!eventCompletion) {
+            return null;
+        }
+        if (!capability.getSupportsEvents()) {
+            logWrapper.warn("salt-api version [%s] doesn't support events, polling for job status instead.",
+                    capability.getId());
+            return null;
+        }
+        final String eventsResource = String.format("%s%s", saltEndpoint, EVENTS_RESOURCE);
+        try {
+            return eventListener.getStream(SaltApiTokenCache.key(saltEndpoint, user, eAuth, password), client,
+                    new Supplier<HttpUriRequest>() {
+                        @Override
+                        public HttpUriRequest get() {
+                            HttpGet get = httpFactory.createHttpGet(eventsResource);
+                            get.setHeader(SALT_AUTH_TOKEN_HEADER, authToken);
+                            get.setHeader(REQUEST_ACCEPT_HEADER_NAME, EVENT_STREAM_ACCEPT_TYPE);
+                            return get;
+                        }
+                    });
+        } catch (IOException e) {
+            logWrapper.warn("Unable to open event stream with salt-api endpoint [%s] (%s), polling for job status instead.",
+                    eventsResource, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the given minion's return of the given job on the given event stream, falling back
+     * to polling if there is no stream or it drops.
+     * 
+     * @return the parsed host response.
+     */
+    protected JsonElement waitForJidResponse(HttpClient client, String authToken, SaltEventStream events, String jid,
+            String minionId) throws IOException, InterruptedException, SaltApiException {
+        JsonElement output = waitForReturnEvent(client, authToken, events, jid, minionId);
+        return output != null ? output : waitForJidResponse(client, authToken, jid, minionId);
+    }
+
+    /**
+     * Waits for the given minion's return of the given job running the given function, see
+     * {@link #waitForJidResponse(HttpClient, String, SaltEventStream, String, String)}.
+     * 
+     * @return the parsed host response.
+     */
+    protected JsonElement waitForJidResponse(HttpClient client, String authToken, SaltEventStream events, String jid,
+            String minionId, String function) throws IOException, InterruptedException, SaltApiException {
+        JsonElement output = waitForReturnEvent(client, authToken, events, jid, minionId);
+        return output != null ? output : waitForJidResponse(client, authToken, jid, minionId, function);
+    }
+
+    /**
+     * Waits on the event stream for at most {@link #eventCheckInterval} ms at a time, checking the
+     * job resource in between so that a stalled stream doesn't hold the step until its deadline.
+     * 
+     * @return the parsed host response received on the given event stream, null if there is no
+     *         stream, it dropped or the return arrived before waiting, and the job should be polled
+     *         for.
+     */
+    protected JsonElement waitForReturnEvent(HttpClient client, String authToken, SaltEventStream events,
+            String jid, String minionId) throws IOException, InterruptedException, SaltApiException {
+        if (events == null) {
+            return null;
+        }
+        logWrapper.info("Waiting for job return event of jid [%s]", jid);
+        Future<JsonElement> output = events.register(jid, minionId);
+        try {
+            while (true) {
+                try {
+                    JsonElement returned = getBeforeDeadline(output, jid, eventCheckInterval);
+                    if (returned == null) {
+                        logWrapper.debug("Job [%s] returned before waiting for its event, reading its return", jid);
+                    }
+                    return returned;
+                } catch (TimeoutException e) {
+                    JsonElement returned = extractOutputForJid(client, authToken, jid, minionId);
+                    if (returned != null) {
+                        logWrapper.debug("Job [%s] returned without an event, read its return", jid);
+                        output.cancel(true);
+                        return returned;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            output.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            logWrapper.warn("Event stream closed (%s), polling for job status instead.", e.getCause()
+                    .getMessage());
+            return null;
+        } catch (IOException e) {
+            output.cancel(true);
+            throw e;
+        } catch (SaltApiException e) {
+            output.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the given minion's return of the given job. Polling is left to the shared
+     * {@link SaltJobPoller} so that node steps waiting on the same job share requests.
+     * 
+     * @return the parsed host response.
+     */
+    protected JsonElement waitForJidResponse(HttpClient client, String authToken, String jid, String minionId)
+            throws IOException, InterruptedException, SaltApiException {
+        return waitForJidResponse(client, authToken, jid, minionId, parseFunction().get(0));
+    }
+
+    /**
+     * Waits for the given minion's return of the given job running the given function, whose
+     * past durations pace the polls.
+     * 
+     * @return the parsed host response.
+     */
+    protected JsonElement waitForJidResponse(final HttpClient client, final String authToken, final String jid,
+            String minionId, String function) throws IOException, InterruptedException, SaltApiException {
+        String jidResource = String.format("%s%s/%s", saltEndpoint, JOBS_RESOURCE, jid);
+        final SaltStepExecution execution = SaltStepExecution.current();
+        logWrapper.info("Polling for job status with salt-api endpoint: [%s]", jidResource);
+        String jobKey = String.format("%s|%s", jidResource, authToken);
+        Future<JsonElement> output;
+        if (httpFactory.isAsync()) {
+            final LogWrapper log = execution == null ? LogWrapper.DISCARDING : execution.getLogWrapper();
+            output = jobPoller.register(saltEndpoint, function, jobKey, minionId, new SaltJobPoller.AsyncJobFetcher() {
+                @Override
+                public CompletableFuture<Map<String, JsonElement>> fetch(Set<String> minionIds) {
+                    return extractOutputsForJidAsync(log, authToken, jid, minionIds);
+                }
+            });
+        } else {
+            output = jobPoller.register(saltEndpoint, function, jobKey, minionId, new SaltJobPoller.JobFetcher() {
+                    @Override
+                    public Map<String, JsonElement> fetch(Set<String> minionIds) throws Exception {
+                        // Polls run on the poller's threads, log to the step this fetcher belongs to.
+                        SaltStepExecution previous = SaltStepExecution.bind(execution);
+                        try {
+                            return extractOutputsForJid(client, authToken, jid, minionIds);
+                        } finally {
+                            SaltStepExecution.bind(previous);
+                        }
+                    }
+                });
+        }
+        try {
+            return getBeforeDeadline(output, jid);
+        } catch (InterruptedException e) {
+            output.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof SaltApiException) {
+                throw (SaltApiException) cause;
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new SaltApiException(String.format("Polling for job status failed: %s", cause));
+            }
+        }
+    }
+
+    /**
+     * Starts the deadline of the node step's job, if it has a timeout.
+     */
+    protected void startDeadline() {
+        SaltStepExecution execution = SaltStepExecution.current();
+        long jobTimeout = getJobTimeout();
+        if (execution != null && jobTimeout > 0) {
+            execution.setDeadline(currentTimeMillis() + jobTimeout);
+        }
+    }
+
+    /**
+     * @return the time in ms the node step waits for its job to return, the lower of the step's
+     *         timeout and the global maximum, 0 if neither is set.
+     */
+    protected long getJobTimeout() {
+        long stepTimeout = timeout > 0 ? TimeUnit.SECONDS.toMillis(timeout) : 0;
+        if (maximumTimeout <= 0) {
+            return stepTimeout;
+        } else if (stepTimeout <= 0) {
+            return maximumTimeout;
+        }
+        return Math.min(stepTimeout, maximumTimeout);
+    }
+
+    /**
+     * Same as {@link #getBeforeDeadline(Future, String)}, waiting at most the given time.
+     * 
+     * @throws TimeoutException
+     *             if the given time passed without output, the deadline being further.
+     */
+    protected <T> T getBeforeDeadline(Future<T> output, String jid, long maximumWait) throws InterruptedException,
+            ExecutionException, TimeoutException, SaltJobTimeoutException {
+        SaltStepExecution execution = SaltStepExecution.current();
+        long deadline = execution == null ? 0 : execution.getDeadline();
+        if (deadline <= 0 || deadline - currentTimeMillis() > maximumWait) {
+            return output.get(maximumWait, TimeUnit.MILLISECONDS);
+        }
+        return getBeforeDeadline(output, jid);
+    }
+
+    /**
+     * Waits for the given job output until the deadline of the node step bound to the calling
+     * thread, if any.
+     * 
+     * @throws SaltJobTimeoutException
+     *             if the deadline passed, the output is cancelled.
+     */
+    protected <T> T getBeforeDeadline(Future<T> output, String jid) throws InterruptedException,
+            ExecutionException, SaltJobTimeoutException {
+        SaltStepExecution execution = SaltStepExecution.current();
+        long deadline = execution == null ? 0 : execution.getDeadline();
+        if (deadline <= 0) {
+            return output.get();
+        }
+        try {
+            return output.get(Math.max(0, deadline - currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            output.cancel(true);
+            throw new SaltJobTimeoutException(String.format("Job [%s] didn't return within %d ms.", jid,
+                    getJobTimeout()));
+        }
+    }
+
+    /**
+     * Asks the given minion to kill its process running the given job, so that a job that
+     * timed out stops using the minion. Failures are logged and otherwise ignored.
+     */
+    protected void killJobQuietly(HttpClient client, String authToken, String jid, String minionId) {
+        HttpPost post = null;
+        try {
+            post = createKillJobPost(authToken, jid, minionId);
+            logWrapper.warn("Killing job [%s] on minion [%s]", jid, minionId);
+            HttpResponse response = retryExecutor.execute(logWrapper, client, post, numRetries,
+                    Predicates.<Integer>alwaysFalse());
+            int statusCode = response.getStatusLine().getStatusCode();
+            closeResource(response.getEntity());
+            if (statusCode != HttpStatus.SC_ACCEPTED) {
+                logWrapper.warn("Unable to kill job [%s] on minion [%s], received response code %d.", jid,
+                        minionId, statusCode);
+            }
+        } catch (IOException e) {
+            logWrapper.warn("Encountered exception (%s) while trying to kill job [%s]. Ignoring...", e.getMessage(),
+                    jid);
+        } catch (InterruptedException e) {
+            logWrapper.warn("Interrupted while trying to kill job [%s].", jid);
+            Thread.currentThread().interrupt();
+        } finally {
+            if (post != null) {
+                post.releaseConnection();
+            }
+        }
+    }
+
+    /**
+     * @return the request submitting saltutil.kill_job for the given job to the given minion
+     */
+    protected HttpPost createKillJobPost(String authToken, String jid, String minionId) throws IOException {
+        List<NameValuePair> params = Lists.newArrayList();
+        params.add(new BasicNameValuePair(SALT_API_FUNCTION_PARAM_NAME, SALT_API_KILL_JOB_FUNCTION));
+        params.add(new BasicNameValuePair(SALT_API_TARGET_PARAM_NAME, minionId));
+        params.add(new BasicNameValuePair(SALT_API_ARGUMENTS_PARAM_NAME, jid));
+        UrlEncodedFormEntity postEntity = new UrlEncodedFormEntity(params, CHAR_SET_ENCODING);
+        postEntity.setContentEncoding(CHAR_SET_ENCODING);
+        postEntity.setContentType(REQUEST_CONTENT_TYPE);
+
+        HttpPost post = httpFactory.createHttpPost(saltEndpoint + MINION_RESOURCE);
+        post.setHeader(SALT_AUTH_TOKEN_HEADER, authToken);
+        post.setHeader(REQUEST_ACCEPT_HEADER_NAME, JSON_RESPONSE_ACCEPT_TYPE);
+        post.setEntity(postEntity);
+        return post;
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Extracts the minion job response by calling the job resource.
+     * 
+     * @return the parsed host response or null if none is available.
+     * @throws SaltApiException
+     *             if the salt-api response does not conform to the expected
+     *             format.
+     * @throws InterruptedException
+     */
+    protected JsonElement extractOutputForJid(HttpClient client, String authToken, String jid, String minionId)
+            throws IOException, SaltApiException, InterruptedException {
+        return extractOutputsForJid(client, authToken, jid, ImmutableSet.of(minionId)).get(minionId);
+    }
+
+    /**
+     * Extracts the job responses of the given minions by calling the job resource.
+     * 
+     * @return the parsed host responses that are available, keyed by minion id.
+     * @throws SaltApiException
+     *             if the salt-api response does not conform to the expected
+     *             format.
+     */
+    protected Map<String, JsonElement> extractOutputsForJid(HttpClient client, String authToken, String jid,
+            Set<String> minionIds) throws IOException, SaltApiException, InterruptedException {
+        HttpGet get = createJobGet(authToken, jid);
+        HttpResponse response = retryExecutor.execute(logWrapper, client, get, numRetries, newJobPredicate());
+        return readJobReturns(logWrapper, authToken, jid, minionIds, get, response);
+    }
+
+    /**
+     * Same as {@link #extractOutputsForJid(HttpClient, String, String, Set)} without blocking.
+     * 
+     * @param log
+     *            logs the node step's progress from whichever thread completes the request
+     * @return a future completed with the parsed host responses that are available, keyed by
+     *         minion id.
+     */
+    protected CompletableFuture<Map<String, JsonElement>> extractOutputsForJidAsync(final LogWrapper log,
+            final String authToken, final String jid, final Set<String> minionIds) {
+        final HttpGet get = createJobGet(authToken, jid);
+        return retryExecutor.executeAsync(log, httpFactory, get, numRetries, newJobPredicate()).thenApply(
+                new Function<HttpResponse, Map<String, JsonElement>>() {
+                    @Override
+                    public Map<String, JsonElement> apply(HttpResponse response) {
+                        try {
+                            return readJobReturns(log, authToken, jid, minionIds, get, response);
+                        } catch (Exception e) {
+                            throw new CompletionException(e);
+                        }
+                    }
+                });
+    }
+
+    protected HttpGet createJobGet(String authToken, String jid) {
+        String jidResource = String.format("%s%s/%s", saltEndpoint, JOBS_RESOURCE, jid);
+        HttpGet get = httpFactory.createHttpGet(jidResource);
+        get.setHeader(SALT_AUTH_TOKEN_HEADER, authToken);
+        get.setHeader(REQUEST_ACCEPT_HEADER_NAME, JSON_RESPONSE_ACCEPT_TYPE);
+        return get;
+    }
+
+    protected Predicate<Integer> newJobPredicate() {
+        return new Predicate<Integer>() {
+            @Override
+            public boolean apply(Integer input) {
+                return input != HttpStatus.SC_UNAUTHORIZED;
+            }
+        };
+    }
+
+    protected Map<String, JsonElement> readJobReturns(LogWrapper log, String authToken, String jid,
+            Set<String> minionIds, HttpGet get, HttpResponse response) throws IOException, SaltApiException {
+        try {
+            if (response.getStatusLine().getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
+                throw rejectAuthToken(authToken);
+            } else if (response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                // Streamed so that the (possibly huge) returns of other minions are never held in memory.
+                JsonReader reader = new JsonReader(openEntityContent(response.getEntity()));
+                Map<String, JsonElement> outputs = jobReturnsReader.readReturns(reader, minionIds);
+                if (!outputs.isEmpty()) {
+                    log.debug("Received response for jobs/%s = %s", jid, response);
+                }
+                return outputs;
+            } else {
+                return ImmutableMap.of();
+            }
+        } finally {
+            closeResource(response.getEntity());
+            get.releaseConnection();
+        }
+    }
+
+    /**
+     * Authenticates the given username/password with the given eauth system
+     * against the salt-api endpoint, reusing a cached auth token for the same
+     * endpoint and credentials while it's valid.
+     * 
+     * @param capability
+     *            The {@link SaltApiCapability} that describes the supported features of the saltEndpoint 
+     * @param user
+     *            The user to auth with
+     * @param password
+     *            The password for the given user
+     * @return X-Auth-Token for use in subsequent requests
+     */
+    protected String authenticate(final SaltApiCapability capability, final HttpClient client, final String user,
+            final String password) throws IOException, HttpException, InterruptedException {
+        String key = SaltApiTokenCache.key(saltEndpoint, user, eAuth, password);
+        return tokenCache.getToken(key, new SaltApiTokenCache.Login() {
+            @Override
+            public SaltApiToken login() throws IOException, HttpException, InterruptedException {
+                return SaltApiNodeStepPlugin.this.login(capability, client, user, password);
+            }
+        }, newTokenLogout(capability, client));
+    }
+
+    /**
+     * Logs the given username/password in with the given eauth system
+     * against the salt-api endpoint
+     * 
+     * @param capability
+     *            The {@link SaltApiCapability} that describes the supported features of the saltEndpoint 
+     * @param user
+     *            The user to auth with
+     * @param password
+     *            The password for the given user
+     * @return the issued token or null if the credentials were rejected
+     */
+    protected SaltApiToken login(final SaltApiCapability capability, HttpClient client, String user, String password) throws IOException, HttpException,
+            InterruptedException {
+        HttpPost post = createLoginPost(logWrapper, user, password);
+        HttpResponse response = retryExecutor.execute(logWrapper, client, post, numRetries, newLoginPredicate(capability));
+        return readLoginResponse(logWrapper, capability, post, response);
+    }
+
+    protected HttpPost createLoginPost(LogWrapper log, String user, String password) throws IOException {
+        List<NameValuePair> params = Lists.newArrayListWithCapacity(3);
+        params.add(new BasicNameValuePair(SALT_API_USERNAME_PARAM_NAME, user));
+        params.add(new BasicNameValuePair(SALT_API_PASSWORD_PARAM_NAME, password));
+        params.add(new BasicNameValuePair(SALT_API_EAUTH_PARAM_NAME, eAuth));
+        UrlEncodedFormEntity postEntity = new UrlEncodedFormEntity(params, CHAR_SET_ENCODING);
+        postEntity.setContentEncoding(CHAR_SET_ENCODING);
+        postEntity.setContentType(REQUEST_CONTENT_TYPE);
+
+        HttpPost post = httpFactory.createHttpPost(saltEndpoint + LOGIN_RESOURCE);
+        post.setEntity(postEntity);
+        
+        log.info("Authenticating with salt-api endpoint: [%s]", post.getURI());
+        return post;
+    }
+
+    protected Predicate<Integer> newLoginPredicate(final SaltApiCapability capability) {
+        return new Predicate<Integer>() {
+            @Override
+            public boolean apply(Integer input) {
+                return input != capability.getLoginFailureResponseCode();
+            }
+        };
+    }
+
+    protected SaltApiToken readLoginResponse(LogWrapper log, SaltApiCapability capability, HttpPost post,
+            HttpResponse response) throws IOException, HttpException {
+        try {
+            int responseCode = response.getStatusLine().getStatusCode();
+            if (responseCode == capability.getLoginSuccessResponseCode()) {
+                String token = response.getHeaders(SALT_AUTH_TOKEN_HEADER)[0].getValue();
+                Long lifetime = capability.getSaltInteractionHandler().extractTokenLifetimeForLoginResponse(
+                        extractBodyFromEntity(response.getEntity()));
+                log.debug("Authenticated with token lifetime of %s ms", lifetime);
+                return new SaltApiToken(token, lifetime);
+            } else if (responseCode == capability.getLoginFailureResponseCode()) {
+                return null;
+            } else {
+                throw new HttpException(String.format("Unexpected failure interacting with salt-api %s", response
+                        .getStatusLine().toString()));
+            }
+        } finally {
+            closeResource(response.getEntity());
+            post.releaseConnection();
+        }
+    }
+
+    /**
+     * Evicts the given auth token from the token cache.
+     * 
+     * @return the exception to throw
+     */
+    protected SaltApiTokenRejectedException rejectAuthToken(String authToken) {
+        tokenCache.evict(authToken);
+        return new SaltApiTokenRejectedException("salt-api rejected the auth token");
+    }
+
+    /**
+     * @return the callback used to logout cached auth tokens or null if the capability doesn't
+     *         support logging out.
+     */
+    protected SaltApiTokenCache.Logout newTokenLogout(SaltApiCapability capability, final HttpClient client) {
+        if (!capability.getSupportsLogout()) {
+            return null;
+        }
+        final String endpoint = saltEndpoint;
+        return new SaltApiTokenCache.Logout() {
+            @Override
+            public void logout(String token) {
+                // Tokens are logged out long after the step that cached them is done.
+                if (httpFactory.isAsync()) {
+                    logoutQuietlyAsync(LogWrapper.DISCARDING, endpoint, token);
+                } else {
+                    logoutQuietly(LogWrapper.DISCARDING, client, endpoint, token);
+                }
+            }
+        };
+    }
+
+    protected void logoutQuietly(HttpClient client, String authToken) {
+        logoutQuietly(logWrapper, client, saltEndpoint, authToken);
+    }
+
+    protected void logoutQuietly(LogWrapper log, HttpClient client, String endpoint, String authToken) {
+        HttpGet get = createLogoutGet(log, endpoint, authToken);
+        try {
+            retryExecutor.execute(log, client, get, numRetries);
+        } catch (IOException e) {
+            log.warn("Encountered exception (%s) while trying to logout. Ignoring...", e.getMessage());
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while trying to logout.");
+            Thread.currentThread().interrupt();
+        } finally {
+            get.releaseConnection();
+        }
+    }
+
+    /**
+     * Same as {@link #logoutQuietly(LogWrapper, HttpClient, String, String)} without blocking, for
+     * use with an asynchronous {@link HttpFactory}.
+     * 
+     * @return a future completed once the logout is done, whether it succeeded or not
+     */
+    protected CompletableFuture<Void> logoutQuietlyAsync(final LogWrapper log, String endpoint, String authToken) {
+        final HttpGet get = createLogoutGet(log, endpoint, authToken);
+        return retryExecutor.executeAsync(log, httpFactory, get, numRetries, Predicates.<Integer> alwaysTrue())
+                .handle(new BiFunction<HttpResponse, Throwable, Void>() {
+                    @Override
+                    public Void apply(HttpResponse response, Throwable failure) {
+                        if (failure == null) {
+                            closeResource(response.getEntity());
+                        } else {
+                            Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+                            log.warn("Encountered exception (%s) while trying to logout. Ignoring...",
+                                    cause.getMessage());
+                        }
+                        get.releaseConnection();
+                        return null;
+                    }
+                });
+    }
+
+    protected HttpGet createLogoutGet(LogWrapper log, String endpoint, String authToken) {
+        String logoutResource = String.format("%s%s", endpoint, LOGOUT_RESOURCE);
+        HttpGet get = httpFactory.createHttpGet(logoutResource);
+        get.setHeader(SALT_AUTH_TOKEN_HEADER, authToken);
+        
+        log.info("Logging out with salt-api endpoint: [%s]", get.getURI());
+        return get;
+    }
+
+    /**
+     * @return the capability of the configured version, else the one detected for the endpoint,
+     *         else the latest
+     */
+    protected SaltApiCapability getSaltApiCapability() {
+        if (StringUtils.isNotBlank(saltApiVersion)) {
+            return capabilityRegistry.getCapability(saltApiVersion);
+        }
+        SaltApiCapability detected = capabilityDetector.detect(logWrapper, saltEndpoint);
+        return detected == null ? capabilityRegistry.getLatest() : detected;
+    }
+
+    /**
+     * @return the salt function followed by its arguments, parsed once per distinct function line
+     */
+    protected List<String> parseFunction() {
+        return ArgumentParser.DEFAULT_ARGUMENT_SPLITTER.parseCached(function);
+    }
+
+    /**
+     * @return the function lines of the step, each to be invoked on its own
+     */
+    protected List<String> parseFunctionLines() {
+        return ArgumentParser.DEFAULT_ARGUMENT_SPLITTER.splitLines(function);
+    }
+
+    /**
+     * Binds a new {@link SaltStepExecution} logging to the given logger to the calling thread.
+     */
+    protected void setLogWrapper(PluginLogger logger, SecureDataMasker masker) {
+        SaltStepExecution.bind(new SaltStepExecution(logger, masker));
+    }
+
+    // -- Isolating so powermock doesn't kill permgen --
+    protected String extractBodyFromEntity(HttpEntity entity) throws ParseException, IOException {
+        return EntityUtils.toString(entity);
+    }
+
+    protected Reader openEntityContent(HttpEntity entity) throws IOException {
+        Charset charset = ContentType.getOrDefault(entity).getCharset();
+        return new InputStreamReader(entity.getContent(), charset == null ? StandardCharsets.UTF_8 : charset);
     }
 
     protected void closeResource(HttpEntity entity) {
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt;
+
+import org.rundeck.plugin.salt.util.LogWrapper;
+import org.rundeck.plugin.salt.util.SecureDataMasker;
+
+import com.dtolabs.rundeck.plugins.PluginLogger;
+
+/**
+ * The state of a single node step execution.
+ *
+ * Rundeck may execute the same plugin instance for several nodes at once, so nothing that differs
+ * between node steps is kept in the plugin's fields. Instead the execution is bound to the thread
+ * running the node step and to any thread doing work on its behalf, see {@link #bind(SaltStepExecution)}.
+ */
+public class SaltStepExecution {
+
+    protected static final ThreadLocal<SaltStepExecution> CURRENT = new ThreadLocal<SaltStepExecution>();
+
+    /**
+     * Logs through the execution bound to the calling thread, discarding everything if there is
+     * none.
+     */
+    public static final LogWrapper CURRENT_LOG_WRAPPER = new LogWrapper(null) {
+        @Override
+        public void info(String string, Object... args) {
+            currentLogWrapper().info(string, args);
+        }
+
+        @Override
+        public void debug(String string, Object... args) {
+            currentLogWrapper().debug(string, args);
+        }
+
+        @Override
+        public void warn(String string, Object... args) {
+            currentLogWrapper().warn(string, args);
+        }
+
+        @Override
+        public void error(String string, Object... args) {
+            currentLogWrapper().error(string, args);
+        }
+
+        @Override
+        public PluginLogger getUnderlyingLogger() {
+            return currentLogWrapper().getUnderlyingLogger();
+        }
+    };
+
+    protected final LogWrapper logWrapper;
+    protected final SecureDataMasker masker;
+    protected long deadline;
+
+    /**
+     * @param logger
+     *            the node step's logger
+     * @param masker
+     *            masks secure data in everything the node step logs
+     */
+    public SaltStepExecution(PluginLogger logger, SecureDataMasker masker) {
+        this.masker = masker;
+        this.logWrapper = new LogWrapper(logger, masker);
+    }
+
+    public LogWrapper getLogWrapper() {
+        return logWrapper;
+    }
+
+    public SecureDataMasker getMasker() {
+        return masker;
+    }
+
+    /**
+     * @return the time (in ms since the epoch) by which the node step's job must have returned,
+     *         0 if there is none.
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return the execution bound to the calling thread, null if there is none.
+     */
+    public static SaltStepExecution current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds the given execution to the calling thread.
+     *
+     * @param execution
+     *            the execution to bind, null to unbind the current one.
+     * @return the previously bound execution, to be restored by passing it to this method once
+     *         done.
+     */
+    public static SaltStepExecution bind(SaltStepExecution execution) {
+        SaltStepExecution previous = CURRENT.get();
+        if (execution == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(execution);
+        }
+        return previous;
+    }
+
+    protected static LogWrapper currentLogWrapper() {
+        SaltStepExecution execution = CURRENT.get();
+        return execution == null ? LogWrapper.DISCARDING : execution.logWrapper;
+    }
+}
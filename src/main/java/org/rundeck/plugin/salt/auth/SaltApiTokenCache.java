@@ -0,0 +1,247 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.auth;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.http.HttpException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+/**
+ * Process wide cache of salt-api auth tokens so that node steps sharing an endpoint and
+ * credentials share a login.
+ * 
+ * Tokens are reused until shortly (the refresh margin) before they expire. Ahead of that, the first
+ * caller past the refresh ahead time logs in again while the others keep using the current token,
+ * so that a busy key is refreshed before anyone has to wait for a login. Replaced tokens aren't
+ * logged out, since node steps may still be using them, and are left to expire. Cached tokens are
+ * logged out when the cache is shut down. Tokens that salt-api rejected are evicted without
+ * logging out.
+ */
+@Component
+public class SaltApiTokenCache {
+
+    /**
+     * Performs a login against salt-api.
+     */
+    public interface Login {
+        /**
+         * @return the issued token or null if the credentials were rejected.
+         */
+        SaltApiToken login() throws IOException, HttpException, InterruptedException;
+    }
+
+    /**
+     * Performs a logout against salt-api.
+     */
+    public interface Logout {
+        void logout(String token);
+    }
+
+    // Lifetime in ms of tokens for which salt-api didn't report an expiry.
+    protected final long defaultLifetime;
+
+    // Time in ms before expiry at which a token is no longer handed out.
+    protected final long refreshMargin;
+
+    // Time in ms before expiry at which a token is refreshed while still being handed out.
+    protected final long refreshAhead;
+
+    protected final ConcurrentMap<String, Entry> tokens = Maps.newConcurrentMap();
+    protected final ConcurrentMap<String, Object> locks = Maps.newConcurrentMap();
+
+    @Autowired
+    public SaltApiTokenCache(@Value("${saltApi.authToken.defaultLifetime}") long defaultLifetime,
+            @Value("${saltApi.authToken.refreshMargin}") long refreshMargin,
+            @Value("${saltApi.authToken.refreshAhead}") long refreshAhead) {
+        this.defaultLifetime = defaultLifetime;
+        this.refreshMargin = refreshMargin;
+        this.refreshAhead = refreshAhead;
+    }
+
+    /**
+     * @return the cache key for the given endpoint and credentials.
+     */
+    public static String key(String endpoint, String user, String eAuth, String password) {
+        String passwordHash = Hashing.sha256().hashString(password, StandardCharsets.UTF_8).toString();
+        return String.format("%s|%s|%s|%s", endpoint, eAuth, user, passwordHash);
+    }
+
+    /**
+     * Returns a usable token for the given key, invoking login if none is cached. Concurrent callers
+     * for the same key wait for a single login.
+     * 
+     * @param logout
+     *            invoked with the token when the cache is shut down, may be null if salt-api
+     *            doesn't support logging out.
+     * @return the token or null if the login was rejected.
+     */
+    public String getToken(String key, Login login, Logout logout) throws IOException, HttpException,
+            InterruptedException {
+        Entry entry = tokens.get(key);
+        if (isUsable(entry)) {
+            if (isDueForRefresh(entry) && entry.refreshing.compareAndSet(false, true)) {
+                return refresh(key, entry, login, logout);
+            }
+            return entry.token;
+        }
+        synchronized (lockFor(key)) {
+            entry = tokens.get(key);
+            if (isUsable(entry)) {
+                return entry.token;
+            }
+            SaltApiToken token = login.login();
+            if (token == null) {
+                return null;
+            }
+            put(key, token, logout);
+            return token.getValue();
+        }
+    }
+
+    /**
+     * Evicts the given token after salt-api rejected it. The token isn't logged out since salt-api
+     * no longer knows about it.
+     */
+    public void evict(String token) {
+        for (Iterator<Entry> it = tokens.values().iterator(); it.hasNext();) {
+            if (it.next().token.equals(token)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Logs out all cached tokens.
+     */
+    @PreDestroy
+    public void shutdown() {
+        for (Iterator<Entry> it = tokens.values().iterator(); it.hasNext();) {
+            Entry entry = it.next();
+            it.remove();
+            logout(entry);
+        }
+    }
+
+    /**
+     * Caches the given token.
+     * 
+     * @return the entry it replaced, if any
+     */
+    protected Entry put(String key, SaltApiToken token, Logout logout) {
+        long lifetime = token.getLifetime() == null ? defaultLifetime : token.getLifetime();
+        return tokens.put(key, new Entry(token.getValue(), currentTimeMillis() + lifetime, logout));
+    }
+
+    protected boolean isUsable(Entry entry) {
+        return entry != null && currentTimeMillis() < entry.expiresAt - refreshMargin;
+    }
+
+    protected boolean isDueForRefresh(Entry entry) {
+        return currentTimeMillis() >= entry.expiresAt - refreshAhead;
+    }
+
+    /**
+     * Logs in again ahead of the given entry's expiry. The entry's token is returned if the login
+     * fails, since it is still usable, and the next caller tries again.
+     * 
+     * @return the new token
+     */
+    protected String refresh(String key, Entry entry, Login login, Logout logout) throws InterruptedException {
+        synchronized (lockFor(key)) {
+            if (tokens.get(key) != entry) {
+                // Replaced or evicted meanwhile.
+                entry.refreshing.set(false);
+                Entry current = tokens.get(key);
+                return isUsable(current) ? current.token : entry.token;
+            }
+            try {
+                SaltApiToken token = login.login();
+                if (token != null) {
+                    put(key, token, logout);
+                    return token.getValue();
+                }
+            } catch (IOException e) {
+                // Still usable, the next caller tries again.
+            } catch (HttpException e) {
+                // Still usable, the next caller tries again.
+            } finally {
+                entry.refreshing.set(false);
+            }
+            return entry.token;
+        }
+    }
+
+    protected Object lockFor(String key) {
+        Object lock = locks.get(key);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = locks.putIfAbsent(key, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    protected void logout(Entry entry) {
+        if (entry.logout != null) {
+            entry.logout.logout(entry.token);
+        }
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * A cached token.
+     */
+    protected static class Entry {
+        protected final String token;
+        protected final long expiresAt;
+        protected final Logout logout;
+        protected final AtomicBoolean refreshing = new AtomicBoolean();
+
+        protected Entry(String token, long expiresAt, Logout logout) {
+            this.token = token;
+            this.expiresAt = expiresAt;
+            this.logout = logout;
+        }
+    }
+}
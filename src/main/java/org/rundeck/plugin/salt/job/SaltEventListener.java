@@ -0,0 +1,138 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.job;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.rundeck.plugin.salt.util.SaltTaskExecutor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.base.Supplier;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+
+/**
+ * Keeps one {@link SaltEventStream} per salt-api endpoint and credential set open for node steps
+ * waiting on job returns.
+ */
+@Component
+public class SaltEventListener {
+
+    // Time in ms received returns are remembered for node steps registering late.
+    @Autowired
+    @Value("${saltApi.events.retention}")
+    protected long retention;
+
+    @Autowired
+    @Value("${saltApi.events.maximumRecentReturns}")
+    protected long maximumRecentReturns;
+
+    // Time in ms without any data, keepalives included, after which a stream is considered stalled and closed.
+    @Autowired
+    @Value("${saltApi.events.idleTimeout}")
+    protected int idleTimeout;
+
+    protected final ConcurrentMap<String, SaltEventStream> streams = Maps.newConcurrentMap();
+    protected final ConcurrentMap<String, Object> locks = Maps.newConcurrentMap();
+
+    @Autowired
+    protected SaltTaskExecutor taskExecutor;
+
+    @PreDestroy
+    public void stop() {
+        for (SaltEventStream stream : streams.values()) {
+            stream.close();
+        }
+        streams.clear();
+    }
+
+    /**
+     * Returns the open event stream for the given key, connecting a new one if there is none.
+     * 
+     * @param key
+     *            identifies the endpoint and credentials
+     * @param request
+     *            supplies the /events request if a new stream needs to be connected.
+     * @throws IOException
+     *             if a new stream couldn't be connected.
+     */
+    public SaltEventStream getStream(String key, HttpClient client, Supplier<HttpUriRequest> request)
+            throws IOException {
+        SaltEventStream stream = streams.get(key);
+        if (stream != null && stream.isOpen()) {
+            return stream;
+        }
+        synchronized (lockFor(key)) {
+            stream = streams.get(key);
+            if (stream != null && stream.isOpen()) {
+                return stream;
+            }
+            stream = newStream(client, request.get());
+            stream.connect();
+            streams.put(key, stream);
+            // Readers block for the stream's lifetime so they don't count against the endpoint's limit.
+            taskExecutor.execute(stream);
+            return stream;
+        }
+    }
+
+    protected Object lockFor(String key) {
+        Object lock = locks.get(key);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = locks.putIfAbsent(key, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    protected SaltEventStream newStream(HttpClient client, HttpUriRequest request) {
+        Cache<String, Boolean> recentReturns = CacheBuilder.newBuilder()
+                .expireAfterWrite(retention, TimeUnit.MILLISECONDS)
+                .maximumSize(maximumRecentReturns)
+                .build();
+        if (request instanceof HttpRequestBase) {
+            HttpRequestBase base = (HttpRequestBase) request;
+            RequestConfig config = base.getConfig() == null ? RequestConfig.DEFAULT : base.getConfig();
+            base.setConfig(RequestConfig.copy(config).setSocketTimeout(idleTimeout).build());
+        }
+        return new SaltEventStream(client, request, recentReturns);
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.job;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.util.EntityUtils;
+
+import com.google.common.cache.Cache;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * A single server-sent-events connection to salt-api's /events resource.
+ * 
+ * Job return events (salt/job/&lt;jid&gt;/ret/&lt;minion&gt;) complete the future of the node step
+ * waiting on that minion's return. Which minions returned is also remembered for a while, without
+ * the returns themselves, so that node steps registering after the return arrived know to read it
+ * from the job cache. Once the stream is closed, every waiting future fails and callers are
+ * expected to fall back to polling.
+ */
+public class SaltEventStream implements Runnable {
+
+    protected static final String JOB_EVENT_TAG_PREFIX = "salt/job/";
+    protected static final String JOB_RETURN_EVENT_TAG_INFIX = "/ret/";
+    protected static final String EVENT_DATA_FIELD = "data:";
+    protected static final String EVENT_TAG_KEY = "tag";
+    protected static final String EVENT_DATA_KEY = "data";
+    protected static final String EVENT_JID_KEY = "jid";
+    protected static final String EVENT_MINION_KEY = "id";
+    protected static final String EVENT_RETURN_KEY = "return";
+
+    protected final HttpClient client;
+    protected final HttpUriRequest request;
+    protected final Cache<String, Boolean> recentReturns;
+    protected final ConcurrentMap<String, SettableFuture<JsonElement>> waiting = Maps.newConcurrentMap();
+
+    protected BufferedReader reader;
+    protected volatile boolean closed;
+
+    /**
+     * @param request
+     *            the request for the /events resource
+     * @param recentReturns
+     *            marks the minions that returned, for node steps that register after the return
+     *            arrived.
+     */
+    public SaltEventStream(HttpClient client, HttpUriRequest request, Cache<String, Boolean> recentReturns) {
+        this.client = client;
+        this.request = request;
+        this.recentReturns = recentReturns;
+    }
+
+    /**
+     * Opens the stream. Events are only read once the stream is {@link #run() run}.
+     * 
+     * @throws IOException
+     *             if salt-api didn't accept the request.
+     */
+    public void connect() throws IOException {
+        HttpResponse response = client.execute(request);
+        if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+            EntityUtils.consumeQuietly(response.getEntity());
+            closed = true;
+            throw new IOException(String.format("Unable to open event stream: %s", response.getStatusLine()));
+        }
+        reader = new BufferedReader(new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads events until the stream is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            StringBuilder data = new StringBuilder();
+            String line;
+            while (!closed && (line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    if (data.length() > 0) {
+                        handleEvent(data.toString());
+                        data.setLength(0);
+                    }
+                } else if (line.startsWith(EVENT_DATA_FIELD)) {
+                    if (data.length() > 0) {
+                        data.append('\n');
+                    }
+                    data.append(line.substring(EVENT_DATA_FIELD.length()).trim());
+                }
+                // Other fields (tag:, retry:, comments) aren't needed, the tag is repeated in the data.
+            }
+        } catch (IOException e) {
+            // Stream dropped, waiting node steps fall back to polling.
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * @return a future completed with the minion's parsed return once it arrives, with null if
+     *         it arrived before registering (it should then be read from the job cache), or failed
+     *         once the stream is closed. Cancelling the future unregisters the minion.
+     */
+    public Future<JsonElement> register(String jid, String minionId) {
+        final String key = returnKey(jid, minionId);
+        final SettableFuture<JsonElement> output = SettableFuture.create();
+        SettableFuture<JsonElement> existing;
+        while ((existing = waiting.putIfAbsent(key, output)) != null) {
+            if (!existing.isDone()) {
+                return existing;
+            }
+            // Cancelled by a node step that stopped waiting, e.g. before being retried.
+            waiting.remove(key, existing);
+        }
+        output.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (output.isCancelled()) {
+                    waiting.remove(key, output);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        // Checked after registering so that a return arriving concurrently isn't missed.
+        if (recentReturns.getIfPresent(key) != null) {
+            complete(key, null);
+        } else if (closed) {
+            failWaiting();
+        }
+        return output;
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    public void close() {
+        closed = true;
+        request.abort();
+        failWaiting();
+    }
+
+    protected void handleEvent(String data) {
+        try {
+            JsonElement event = JsonParser.parseString(data);
+            if (!event.isJsonObject()) {
+                return;
+            }
+            JsonElement tag = event.getAsJsonObject().get(EVENT_TAG_KEY);
+            JsonElement body = event.getAsJsonObject().get(EVENT_DATA_KEY);
+            if (tag == null || !tag.isJsonPrimitive() || body == null || !body.isJsonObject()) {
+                return;
+            }
+            String tagValue = tag.getAsString();
+            if (!tagValue.startsWith(JOB_EVENT_TAG_PREFIX) || !tagValue.contains(JOB_RETURN_EVENT_TAG_INFIX)) {
+                return;
+            }
+            JsonObject jobReturn = body.getAsJsonObject();
+            JsonElement jid = jobReturn.get(EVENT_JID_KEY);
+            JsonElement minionId = jobReturn.get(EVENT_MINION_KEY);
+            JsonElement output = jobReturn.get(EVENT_RETURN_KEY);
+            if (jid == null || minionId == null || output == null) {
+                return;
+            }
+            String key = returnKey(jid.getAsString(), minionId.getAsString());
+            // Events carry every job's return, only whether it arrived is kept for late registrations.
+            recentReturns.put(key, Boolean.TRUE);
+            complete(key, output);
+        } catch (JsonParseException e) {
+            // Not an event we understand, ignore it.
+        } catch (UnsupportedOperationException e) {
+            // jid or id weren't primitives, ignore it.
+        }
+    }
+
+    protected void complete(String key, JsonElement output) {
+        SettableFuture<JsonElement> future = waiting.remove(key);
+        if (future != null) {
+            future.set(output);
+        }
+    }
+
+    protected void failWaiting() {
+        for (String key : waiting.keySet()) {
+            SettableFuture<JsonElement> future = waiting.remove(key);
+            if (future != null) {
+                future.setException(new IOException("salt-api event stream closed"));
+            }
+        }
+    }
+
+    protected static String returnKey(String jid, String minionId) {
+        return jid + JOB_RETURN_EVENT_TAG_INFIX + minionId;
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.job;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.rundeck.plugin.salt.output.SaltApiResponseOutput;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Coalesces the node step executions of a single workflow step into one list-targeted salt job.
+ *
+ * The first node step to arrive for a given batch key performs the submission on behalf of every
+ * targeted minion. Every other node step of the batch blocks until that submission completes and
+ * then shares its result (and therefore its jid).
+ *
+ * Batches are remembered until they have been idle for a while. Idle batches that still have
+ * unclaimed minions are kept aside, so that those minions still share the batch's job when they
+ * eventually arrive instead of submitting the whole batch (or their own job) again, since the
+ * batch's job already targeted them.
+ */
+@Component
+public class SaltJobBatchDispatcher {
+
+    // Number of idle batches with unclaimed minions that are kept aside.
+    protected static final int MAXIMUM_ABANDONED_BATCHES = 1000;
+
+    // Time in ms a batch is remembered after it was last claimed.
+    @Autowired
+    @Value("${saltApi.batch.retention}")
+    protected long retention;
+
+    protected final ConcurrentMap<String, Batch> batches = Maps.newConcurrentMap();
+
+    // Batches with minions that hadn't claimed them when they were evicted, keyed by batch key.
+    protected final Cache<String, Batch> abandoned = CacheBuilder.newBuilder()
+            .maximumSize(MAXIMUM_ABANDONED_BATCHES).build();
+
+    /**
+     * Claims the given minion's slot in the batch identified by batchKey and returns the shared
+     * submission result, submitting the job with the given submitter if nobody has done so yet.
+     *
+     * @param batchKey
+     *            identifies the workflow step being coalesced
+     * @param minionId
+     *            the minion the calling node step is executing against
+     * @param targets
+     *            every minion targeted by the workflow step
+     * @param submitter
+     *            submits a single job targeting all of the given targets
+     * @return the shared submission result or null if the minion is not (or no longer) part of the
+     *         batch, in which case the caller should submit on its own.
+     * @throws ExecutionException
+     *             if the shared submission failed
+     * @throws InterruptedException
+     *             if interrupted while waiting for the shared submission
+     */
+    public SaltApiResponseOutput dispatch(String batchKey, String minionId, Collection<String> targets,
+            Callable<SaltApiResponseOutput> submitter) throws ExecutionException, InterruptedException {
+        long now = currentTimeMillis();
+        evictExpired(now);
+        Batch batch = batches.get(batchKey);
+        if (batch == null) {
+            Batch idle = abandoned.getIfPresent(batchKey);
+            if (idle != null) {
+                // The batch's job already targeted the unclaimed minions too.
+                boolean claimed = idle.pending.remove(minionId);
+                if (idle.pending.isEmpty()) {
+                    abandoned.invalidate(batchKey);
+                }
+                return claimed ? idle.submission.get() : null;
+            }
+            Batch newBatch = new Batch(targets, submitter, now);
+            batch = batches.putIfAbsent(batchKey, newBatch);
+            if (batch == null) {
+                batch = newBatch;
+            }
+        }
+
+        if (!batch.pending.remove(minionId)) {
+            return null;
+        }
+        batch.lastClaimed = now;
+
+        if (batch.started.compareAndSet(false, true)) {
+            batch.submission.run();
+        }
+        return batch.submission.get();
+    }
+
+    protected void evictExpired(long now) {
+        for (Iterator<Map.Entry<String, Batch>> it = batches.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Batch> entry = it.next();
+            Batch batch = entry.getValue();
+            if (now - batch.lastClaimed > retention && batches.remove(entry.getKey(), batch)
+                    && !batch.pending.isEmpty()) {
+                abandoned.put(entry.getKey(), batch);
+            }
+        }
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * A single coalesced submission and the minions that have yet to claim it.
+     */
+    protected static class Batch {
+        protected volatile long lastClaimed;
+        protected final Set<String> pending = Sets.newConcurrentHashSet();
+        protected final AtomicBoolean started = new AtomicBoolean();
+        protected final FutureTask<SaltApiResponseOutput> submission;
+
+        protected Batch(Collection<String> targets, Callable<SaltApiResponseOutput> submitter, long created) {
+            this.pending.addAll(targets);
+            this.submission = new FutureTask<SaltApiResponseOutput>(submitter);
+            this.lastClaimed = created;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.job;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Keeps a rolling window of observed job durations per salt function.
+ *
+ * Durations are recorded under the function (module.function) and its module, and looked up the
+ * same way {@link org.rundeck.plugin.salt.output.SaltReturnHandlerRegistry} looks up handlers: by
+ * function first, falling back to the module for functions without enough samples of their own.
+ */
+@Component
+public class SaltJobDurations {
+
+    // Percentiles of the observed durations a job is expected to complete between.
+    protected static final double EARLIEST_PERCENTILE = 0.1;
+    protected static final double LATEST_PERCENTILE = 0.9;
+
+    // Number of distinct functions and modules durations are kept for.
+    protected static final int MAXIMUM_FUNCTIONS = 1000;
+
+    // Number of most recent durations kept per function.
+    @Autowired
+    @Value("${saltJobPolling.adaptive.samples}")
+    protected int samples;
+
+    // Number of durations needed before a function's estimate is used.
+    @Autowired
+    @Value("${saltJobPolling.adaptive.minimumSamples}")
+    protected int minimumSamples;
+
+    protected Cache<String, Window> windows;
+
+    @PostConstruct
+    public void initialize() {
+        windows = CacheBuilder.newBuilder().maximumSize(MAXIMUM_FUNCTIONS).build();
+    }
+
+    /**
+     * Records the duration of a completed job.
+     *
+     * @param function
+     *            the job's salt function (module.function)
+     * @param duration
+     *            the time (in ms) from submission to completion
+     */
+    public void record(String function, long duration) {
+        windowFor(function).add(duration);
+        String module = moduleOf(function);
+        if (!module.equals(function)) {
+            windowFor(module).add(duration);
+        }
+    }
+
+    /**
+     * @param function
+     *            the salt function (module.function)
+     * @return the expected duration of jobs of the given function, null if too few have been
+     *         observed for it or its module.
+     */
+    public Estimate estimate(String function) {
+        Estimate estimate = estimateFor(function);
+        if (estimate == null) {
+            estimate = estimateFor(moduleOf(function));
+        }
+        return estimate;
+    }
+
+    protected Estimate estimateFor(String key) {
+        Window window = windows.getIfPresent(key);
+        if (window == null) {
+            return null;
+        }
+        long[] durations = window.snapshot();
+        if (durations.length == 0 || durations.length < minimumSamples) {
+            return null;
+        }
+        Arrays.sort(durations);
+        return new Estimate(percentile(durations, EARLIEST_PERCENTILE), percentile(durations, LATEST_PERCENTILE));
+    }
+
+    protected Window windowFor(String key) {
+        try {
+            return windows.get(key, new Callable<Window>() {
+                @Override
+                public Window call() {
+                    return new Window(samples);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    protected static String moduleOf(String function) {
+        return function.split("\\.", 2)[0];
+    }
+
+    /**
+     * @param sorted
+     *            durations in ascending order
+     * @return the nearest rank percentile of the given durations
+     */
+    protected static long percentile(long[] sorted, double percentile) {
+        int rank = (int) Math.ceil(percentile * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    /**
+     * The time range (in ms after submission) jobs of a function usually complete in.
+     */
+    public static class Estimate {
+        protected final long earliest;
+        protected final long latest;
+
+        public Estimate(long earliest, long latest) {
+            this.earliest = earliest;
+            this.latest = latest;
+        }
+
+        public long getEarliest() {
+            return earliest;
+        }
+
+        public long getLatest() {
+            return latest;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Estimate[%d-%d ms]", earliest, latest);
+        }
+    }
+
+    /**
+     * A fixed size ring of the most recent durations.
+     */
+    protected static class Window {
+        protected final long[] durations;
+        protected int count;
+        protected int next;
+
+        protected Window(int size) {
+            this.durations = new long[size];
+        }
+
+        protected synchronized void add(long duration) {
+            durations[next] = duration;
+            next = (next + 1) % durations.length;
+            count = Math.min(count + 1, durations.length);
+        }
+
+        protected synchronized long[] snapshot() {
+            return Arrays.copyOf(durations, count);
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.job;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.rundeck.plugin.salt.util.AdaptivePollingTimer;
+import org.rundeck.plugin.salt.util.CircuitOpenException;
+import org.rundeck.plugin.salt.util.ExponentialBackoffTimer;
+import org.rundeck.plugin.salt.util.SaltTaskExecutor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonElement;
+
+/**
+ * Polls salt-api for the returns of all outstanding jobs on behalf of the node steps waiting on
+ * them.
+ * 
+ * Node steps register the jid/minion pair they're waiting on and block on the returned future. A
+ * single scheduler thread decides which jobs are due and the {@link SaltTaskExecutor} issues one
+ * request per job per poll, completing the future of every minion that has returned. Polls against
+ * the same salt-api endpoint are bounded by the executor. Each job backs off exponentially between
+ * polls. Jobs registered with an {@link AsyncJobFetcher} are polled without taking up a thread
+ * while waiting on salt-api, they're bounded by the fetcher instead. Each poll uses the fetcher of
+ * the earliest registered node step that is still waiting, since fetchers log to the node step
+ * that registered them. A failed fetch only fails the wait of the node step whose fetcher it was,
+ * the other node steps keep polling with their own. Fetches refused by an open circuit fail no
+ * one, the job is polled again after backing off.
+ * 
+ * With adaptive polling, the durations of completed jobs are recorded per salt function. Jobs of
+ * functions with enough recorded durations are first polled around their expected completion, see
+ * {@link AdaptivePollingTimer}.
+ */
+@Component
+public class SaltJobPoller {
+
+    /**
+     * Fetches the returns of a single job.
+     */
+    public interface JobFetcher {
+        /**
+         * @param minionIds
+         *            the minions that are still being waited on
+         * @return the parsed returns of the given minions that are available, keyed by
+         *         minion id.
+         */
+        Map<String, JsonElement> fetch(Set<String> minionIds) throws Exception;
+    }
+
+    /**
+     * Fetches the returns of a single job without blocking.
+     */
+    public interface AsyncJobFetcher {
+        /**
+         * @param minionIds
+         *            the minions that are still being waited on
+         * @return a future completed with the parsed returns of the given minions that are
+         *         available, keyed by minion id.
+         */
+        CompletableFuture<Map<String, JsonElement>> fetch(Set<String> minionIds);
+    }
+
+    @Autowired
+    @Value("${saltJobPolling.delayStep}")
+    protected long delayStep;
+
+    @Autowired
+    @Value("${saltJobPolling.maximumRetryDelay}")
+    protected long maximumRetryDelay;
+
+    // Time in ms between checks for jobs that are due to be polled.
+    @Autowired
+    @Value("${saltJobPolling.tick}")
+    protected long tick;
+
+    @Autowired
+    @Value("${saltJobPolling.adaptive}")
+    protected boolean adaptive;
+
+    @Autowired
+    protected ExponentialBackoffTimer.Factory timerFactory;
+
+    @Autowired
+    protected SaltJobDurations durations;
+
+    @Autowired
+    protected SaltTaskExecutor taskExecutor;
+
+    protected final ConcurrentMap<String, Job> jobs = Maps.newConcurrentMap();
+
+    protected ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("salt-job-poller").build());
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * Registers the given minion as waiting on the job identified by jobKey.
+     * 
+     * @param endpoint
+     *            the salt-api endpoint the job is polled from, limits concurrent polls
+     * @param function
+     *            the job's salt function (module.function), used to estimate its duration
+     * @param jobKey
+     *            identifies the job, node steps registering the same key share polls.
+     * @param minionId
+     *            the minion whose return is waited on
+     * @param fetcher
+     *            fetches the job's returns, used while the minion is waited on.
+     * @return a future completed with the minion's parsed return, or failed with whatever
+     *         the given fetcher threw. Cancelling the future unregisters the minion.
+     */
+    public Future<JsonElement> register(String endpoint, String function, String jobKey, String minionId,
+            JobFetcher fetcher) {
+        return register(endpoint, function, jobKey, minionId, fetcher, null);
+    }
+
+    /**
+     * Same as {@link #register(String, String, String, String, JobFetcher)} for fetchers that don't
+     * block, the job's polls are started right from the scheduler thread.
+     */
+    public Future<JsonElement> register(String endpoint, String function, String jobKey, String minionId,
+            AsyncJobFetcher fetcher) {
+        return register(endpoint, function, jobKey, minionId, null, fetcher);
+    }
+
+    protected Future<JsonElement> register(String endpoint, String function, String jobKey, String minionId,
+            JobFetcher fetcher, AsyncJobFetcher asyncFetcher) {
+        while (true) {
+            Job job = jobs.get(jobKey);
+            if (job == null) {
+                Job newJob = new Job(endpoint, function, newTimer(function), currentTimeMillis());
+                job = jobs.putIfAbsent(jobKey, newJob);
+                if (job == null) {
+                    job = newJob;
+                }
+            }
+            synchronized (job) {
+                if (job.closed) {
+                    // Lost a race with the job completing, start over with a new one.
+                    continue;
+                }
+                Waiter waiter = job.waiting.get(minionId);
+                if (waiter == null || waiter.output.isDone()) {
+                    waiter = new Waiter(SettableFuture.<JsonElement> create(), fetcher, asyncFetcher,
+                            job.registrations++);
+                    job.waiting.put(minionId, waiter);
+                }
+                return waiter.output;
+            }
+        }
+    }
+
+    /**
+     * @return a timer polling around the function's expected completion if it's known, else the
+     *         regular exponential backoff.
+     */
+    protected ExponentialBackoffTimer newTimer(String function) {
+        SaltJobDurations.Estimate estimate = adaptive ? durations.estimate(function) : null;
+        if (estimate == null) {
+            return timerFactory.newTimer(delayStep, maximumRetryDelay);
+        }
+        return new AdaptivePollingTimer(estimate.getEarliest(), estimate.getLatest(), delayStep, maximumRetryDelay);
+    }
+
+    /**
+     * Starts a poll of every job that is due and not already being polled.
+     */
+    protected void tick() {
+        long now = currentTimeMillis();
+        for (Map.Entry<String, Job> entry : jobs.entrySet()) {
+            final String jobKey = entry.getKey();
+            final Job job = entry.getValue();
+            if (now >= job.nextPoll && job.polling.compareAndSet(false, true)) {
+                Waiter waiter = pendingWaiter(job);
+                if (waiter != null && waiter.asyncFetcher != null) {
+                    pollAsync(jobKey, job);
+                    continue;
+                }
+                taskExecutor.execute(job.endpoint, new Runnable() {
+                    @Override
+                    public void run() {
+                        poll(jobKey, job);
+                    }
+                });
+            }
+        }
+    }
+
+    protected void poll(String jobKey, Job job) {
+        long started = currentTimeMillis();
+        // Picked as the poll runs, the waiter picked by the tick may have stopped waiting since.
+        Waiter waiter = pendingWaiter(job);
+        try {
+            Set<String> minionIds = pendingMinions(job);
+            if (!minionIds.isEmpty() && waiter != null && waiter.fetcher != null) {
+                returned(job, started, waiter.fetcher.fetch(minionIds));
+            }
+        } catch (Exception e) {
+            failed(waiter, e);
+        } finally {
+            polled(job, started);
+        }
+        closeIfDone(jobKey, job);
+    }
+
+    protected void pollAsync(final String jobKey, final Job job) {
+        final long started = currentTimeMillis();
+        Set<String> minionIds = pendingMinions(job);
+        final Waiter waiter = pendingWaiter(job);
+        if (minionIds.isEmpty() || waiter == null || waiter.asyncFetcher == null) {
+            polled(job, started);
+            closeIfDone(jobKey, job);
+            return;
+        }
+        CompletableFuture<Map<String, JsonElement>> outputs;
+        try {
+            outputs = waiter.asyncFetcher.fetch(minionIds);
+        } catch (RuntimeException e) {
+            outputs = CompletableFuture.failedFuture(e);
+        }
+        outputs.whenComplete(new BiConsumer<Map<String, JsonElement>, Throwable>() {
+            @Override
+            public void accept(Map<String, JsonElement> returns, Throwable failure) {
+                try {
+                    if (failure == null) {
+                        returned(job, started, returns);
+                    } else {
+                        failed(waiter, failure instanceof CompletionException ? failure.getCause() : failure);
+                    }
+                } finally {
+                    polled(job, started);
+                }
+                closeIfDone(jobKey, job);
+            }
+        });
+    }
+
+    /**
+     * Completes the futures of the minions whose returns were fetched by the poll started at the
+     * given time.
+     */
+    protected void returned(Job job, long started, Map<String, JsonElement> outputs) {
+        boolean returned = false;
+        for (Map.Entry<String, JsonElement> output : outputs.entrySet()) {
+            Waiter waiter = job.waiting.get(output.getKey());
+            if (waiter != null) {
+                returned |= waiter.output.set(output.getValue());
+            }
+        }
+        if (adaptive && returned && pendingMinions(job).isEmpty()) {
+            // The job completed some time between the previous poll and this one.
+            durations.record(job.function, (job.lastPoll + started) / 2 - job.registered);
+        }
+    }
+
+    /**
+     * Fails the wait of the node step whose fetcher failed, unless the failure is transient.
+     */
+    protected void failed(Waiter waiter, Throwable failure) {
+        if (failure instanceof CircuitOpenException) {
+            // The circuit closes again on its own, keep polling.
+            return;
+        }
+        waiter.output.setException(failure);
+    }
+
+    /**
+     * Schedules the next poll of a job once the poll started at the given time is done.
+     */
+    protected void polled(Job job, long started) {
+        job.lastPoll = started;
+        job.nextPoll = currentTimeMillis() + job.timer.nextDelay();
+        job.polling.set(false);
+    }
+
+    protected Set<String> pendingMinions(Job job) {
+        ImmutableSet.Builder<String> minionIds = ImmutableSet.builder();
+        for (Map.Entry<String, Waiter> entry : job.waiting.entrySet()) {
+            if (!entry.getValue().output.isDone()) {
+                minionIds.add(entry.getKey());
+            }
+        }
+        return minionIds.build();
+    }
+
+    /**
+     * @return the earliest registered waiter still waiting on the job, null if there is none.
+     */
+    protected Waiter pendingWaiter(Job job) {
+        Waiter pending = null;
+        for (Waiter waiter : job.waiting.values()) {
+            if (!waiter.output.isDone() && (pending == null || waiter.registration < pending.registration)) {
+                pending = waiter;
+            }
+        }
+        return pending;
+    }
+
+    protected void closeIfDone(String jobKey, Job job) {
+        synchronized (job) {
+            for (Iterator<Waiter> it = job.waiting.values().iterator(); it.hasNext();) {
+                if (it.next().output.isDone()) {
+                    it.remove();
+                }
+            }
+            if (job.waiting.isEmpty()) {
+                job.closed = true;
+                jobs.remove(jobKey, job);
+            }
+        }
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * A job being polled and the minions waiting on it.
+     */
+    protected static class Job {
+        protected final String endpoint;
+        protected final String function;
+        protected final ExponentialBackoffTimer timer;
+        protected final long registered;
+        protected final ConcurrentMap<String, Waiter> waiting = Maps.newConcurrentMap();
+        protected final AtomicBoolean polling = new AtomicBoolean();
+        protected volatile long nextPoll;
+        protected volatile long lastPoll;
+        protected boolean closed;
+        // Guarded by the job's lock.
+        protected long registrations;
+
+        protected Job(String endpoint, String function, ExponentialBackoffTimer timer, long registered) {
+            this.endpoint = endpoint;
+            this.function = function;
+            this.timer = timer;
+            this.registered = registered;
+            this.lastPoll = registered;
+            this.nextPoll = registered + timer.firstDelay();
+        }
+    }
+
+    /**
+     * A minion waiting on a job, with the fetcher of the node step that registered it.
+     */
+    protected static class Waiter {
+        protected final SettableFuture<JsonElement> output;
+        protected final JobFetcher fetcher;
+        protected final AsyncJobFetcher asyncFetcher;
+        protected final long registration;
+
+        protected Waiter(SettableFuture<JsonElement> output, JobFetcher fetcher, AsyncJobFetcher asyncFetcher,
+                long registration) {
+            this.output = output;
+            this.fetcher = fetcher;
+            this.asyncFetcher = asyncFetcher;
+            this.registration = registration;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.job;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+
+/**
+ * Remembers the jids of submitted jobs whose node steps haven't received the job's return yet,
+ * so that a node step executed again (e.g. a retried job or a step resumed after Rundeck
+ * restarted) can reattach to its job instead of submitting it again.
+ * 
+ * Jobs are kept in memory and in an append-only file, one line per submitted or completed job.
+ * The file is compacted when it's loaded, dropping completed jobs and jobs older than the
+ * configured retention. The registry is disabled if no file is configured.
+ */
+@Component
+public class SaltJobRegistry {
+
+    protected static final String SEPARATOR = "\t";
+    protected static final String COMPLETED = "-";
+
+    // File jobs are recorded in, blank to disable the registry.
+    @Autowired
+    @Value("${saltStep.jobRegistry.file}")
+    protected String file;
+
+    // Time in ms after submission a job can be reattached to.
+    @Autowired
+    @Value("${saltStep.jobRegistry.retention}")
+    protected long retention;
+
+    protected final ConcurrentMap<String, Entry> jobs = Maps.newConcurrentMap();
+    protected Writer writer;
+
+    @PostConstruct
+    public void initialize() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        File registry = new File(file);
+        if (registry.getParentFile() != null) {
+            Files.createDirectories(registry.getParentFile().toPath());
+        }
+        load(registry);
+        compact(registry);
+        writer = Files.newBufferedWriter(registry.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    public boolean isEnabled() {
+        return StringUtils.isNotBlank(file);
+    }
+
+    /**
+     * @param executionId
+     *            the Rundeck execution the node step belongs to
+     * @param step
+     *            the node step's position in the workflow
+     * @param minionId
+     *            the minion the job targets
+     * @param endpoint
+     *            the salt-api endpoint the job is submitted to
+     * @param function
+     *            the function and args of the job, hashed so that no secure argument is written
+     * @return the key jobs of the given node step are recorded under
+     */
+    public static String key(String executionId, String step, String minionId, String endpoint, String function) {
+        String functionHash = Hashing.sha256().hashString(endpoint + SEPARATOR + function, StandardCharsets.UTF_8)
+                .toString();
+        return String.format("%s:%s:%s:%s", executionId, step, minionId, functionHash);
+    }
+
+    /**
+     * @return the jid of the job recorded under the given key, null if there is none or it's
+     *         older than the retention.
+     */
+    public String lookup(String key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Entry entry = jobs.get(key);
+        if (entry == null || currentTimeMillis() - entry.submitted >= retention) {
+            return null;
+        }
+        return entry.jid;
+    }
+
+    /**
+     * Records the jid of a job that was just submitted.
+     */
+    public void record(String key, String jid) throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        long now = currentTimeMillis();
+        jobs.put(key, new Entry(jid, now));
+        append(now, key, jid);
+    }
+
+    /**
+     * Forgets the job recorded under the given key once its return was received.
+     */
+    public void complete(String key) throws IOException {
+        if (!isEnabled() || jobs.remove(key) == null) {
+            return;
+        }
+        append(currentTimeMillis(), key, COMPLETED);
+    }
+
+    protected synchronized void append(long timestamp, String key, String jid) throws IOException {
+        if (writer == null) {
+            throw new IOException(String.format("Job registry [%s] is closed", file));
+        }
+        writer.write(StringUtils.join(new Object[] { timestamp, key, jid }, SEPARATOR));
+        writer.write('\n');
+        writer.flush();
+    }
+
+    protected void load(File registry) throws IOException {
+        if (!registry.exists()) {
+            return;
+        }
+        long now = currentTimeMillis();
+        BufferedReader reader = Files.newBufferedReader(registry.toPath(), StandardCharsets.UTF_8);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR);
+                if (fields.length != 3 || !StringUtils.isNumeric(fields[0])) {
+                    // Torn by a crash while it was written.
+                    continue;
+                }
+                long timestamp = Long.parseLong(fields[0]);
+                if (COMPLETED.equals(fields[2])) {
+                    jobs.remove(fields[1]);
+                } else if (now - timestamp < retention) {
+                    jobs.put(fields[1], new Entry(fields[2], timestamp));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Rewrites the given file with the jobs that are still in flight.
+     */
+    protected void compact(File registry) throws IOException {
+        File compacted = new File(registry.getPath() + ".tmp");
+        Writer out = Files.newBufferedWriter(compacted.toPath(), StandardCharsets.UTF_8);
+        try {
+            for (Map.Entry<String, Entry> job : jobs.entrySet()) {
+                out.write(StringUtils.join(new Object[] { job.getValue().submitted, job.getKey(), job.getValue().jid },
+                        SEPARATOR));
+                out.write('\n');
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(compacted.toPath(), registry.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * A job in flight.
+     */
+    protected static class Entry {
+        protected final String jid;
+        protected final long submitted;
+
+        protected Entry(String jid, long submitted) {
+            this.jid = jid;
+            this.submitted = submitted;
+        }
+    }
+}
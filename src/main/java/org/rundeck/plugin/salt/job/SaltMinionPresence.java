@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.job;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.rundeck.plugin.salt.util.LogWrapper;
+import org.rundeck.plugin.salt.util.SaltTaskExecutor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ * Keeps an index of the minions connected to each salt master, so that node steps targeting a
+ * minion that is down can fail before submitting a job that would never return.
+ * 
+ * The index of an endpoint is fetched in bulk by the first node step checking a minion against
+ * it, and refreshed in the background once it's older than the configured TTL. A minion missing
+ * from the index triggers a refresh (at most once per recheck interval) in case it connected
+ * since. Whenever presence can't be determined, e.g. because the index couldn't be fetched or is
+ * too old, minions are reported as unknown rather than absent.
+ */
+@Component
+public class SaltMinionPresence {
+
+    /**
+     * Fetches the ids of the minions connected to a salt master.
+     */
+    public interface PresenceFetcher {
+        Set<String> fetch() throws Exception;
+    }
+
+    // Time in ms an index is used for before it's refreshed in the background.
+    @Autowired
+    @Value("${saltApi.presence.ttl}")
+    protected long ttl;
+
+    // Time in ms after which an index that couldn't be refreshed is no longer used.
+    @Autowired
+    @Value("${saltApi.presence.maximumAge}")
+    protected long maximumAge;
+
+    // Minimum time in ms between two attempts at fetching an endpoint's index.
+    @Autowired
+    @Value("${saltApi.presence.recheckInterval}")
+    protected long recheckInterval;
+
+    @Autowired
+    protected SaltTaskExecutor taskExecutor;
+
+    protected final ConcurrentMap<String, Index> indexes = Maps.newConcurrentMap();
+
+    /**
+     * Checks whether the given minion is connected to the salt master behind the given endpoint.
+     * 
+     * @param fetcher
+     *            fetches the endpoint's index if it needs to be
+     * @return true if the minion is present, false if it's absent, null if that couldn't be
+     *         determined.
+     */
+    public Boolean isPresent(LogWrapper log, String endpoint, String minionId, PresenceFetcher fetcher) {
+        Index index = indexFor(endpoint);
+        long now = currentTimeMillis();
+        Set<String> minions = index.current(now, maximumAge);
+        if (minions == null) {
+            minions = refresh(log, endpoint, index, fetcher);
+        } else if (now - index.fetched >= ttl) {
+            refreshInBackground(endpoint, index, fetcher);
+        }
+        if (minions == null) {
+            return null;
+        } else if (minions.contains(minionId)) {
+            return Boolean.TRUE;
+        }
+        // The minion may have connected since the index was fetched.
+        minions = refresh(log, endpoint, index, fetcher);
+        return minions == null ? null : Boolean.valueOf(minions.contains(minionId));
+    }
+
+    /**
+     * Forgets the index of the given endpoint.
+     */
+    public void invalidate(String endpoint) {
+        indexes.remove(endpoint);
+    }
+
+    /**
+     * Fetches the given index unless that was attempted within the recheck interval. Concurrent
+     * callers wait for a single fetch.
+     * 
+     * @return the minions in the index, null if it's unusable.
+     */
+    protected Set<String> refresh(LogWrapper log, String endpoint, Index index, PresenceFetcher fetcher) {
+        synchronized (index) {
+            long now = currentTimeMillis();
+            if (index.attempted >= 0 && now - index.attempted < recheckInterval) {
+                return index.current(now, maximumAge);
+            }
+            index.attempted = now;
+            try {
+                Set<String> minions = ImmutableSet.copyOf(fetcher.fetch());
+                index.minions = minions;
+                index.fetched = currentTimeMillis();
+                log.debug("Fetched presence of %d minions from [%s]", minions.size(), endpoint);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.debug("Unable to fetch minion presence from [%s]: %s", endpoint, e);
+            }
+            return index.current(currentTimeMillis(), maximumAge);
+        }
+    }
+
+    protected void refreshInBackground(final String endpoint, final Index index, final PresenceFetcher fetcher) {
+        if (!index.refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        taskExecutor.execute(endpoint, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    refresh(LogWrapper.DISCARDING, endpoint, index, fetcher);
+                } finally {
+                    index.refreshing.set(false);
+                }
+            }
+        });
+    }
+
+    protected Index indexFor(String endpoint) {
+        Index index = indexes.get(endpoint);
+        if (index == null) {
+            Index newIndex = new Index();
+            index = indexes.putIfAbsent(endpoint, newIndex);
+            if (index == null) {
+                index = newIndex;
+            }
+        }
+        return index;
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * The minions last known to be connected to a salt master.
+     */
+    protected static class Index {
+        protected final AtomicBoolean refreshing = new AtomicBoolean();
+        protected volatile Set<String> minions;
+        protected volatile long fetched;
+        protected long attempted = -1;
+
+        /**
+         * @return the minions in the index, null if it was never fetched or is older than the
+         *         given age.
+         */
+        protected Set<String> current(long now, long maximumAge) {
+            Set<String> current = minions;
+            return current == null || now - fetched >= maximumAge ? null : current;
+        }
+    }
+}
@@ -26,16 +26,25 @@
 
 package org.rundeck.plugin.salt.output;
 
+import java.io.IOException;
+
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonWriter;
+
 /**
  * An implementation of SaltReturnHandler that returns an always successful exit code and
  * the raw response in standard out.
  */
 @Component
-public class DefaultSaltReturnHandler implements SaltReturnHandler {
+public class DefaultSaltReturnHandler implements JsonSaltReturnHandler {
+
+    protected static final TypeAdapter<JsonElement> JSON_ELEMENT_ADAPTER = new Gson().getAdapter(JsonElement.class);
     
     protected Integer exitCode;
     
@@ -61,4 +70,32 @@ public class DefaultSaltReturnHandler implements SaltReturnHandler {
         }
         return response;
     }
+
+    @Override
+    public SaltReturnResponse extractResponse(JsonElement response) throws SaltReturnResponseParseException {
+        return extractResponse(response == null ? null : response.toString());
+    }
+
+    /**
+     * Writes the json response straight to the given output, so the response is never encoded as
+     * a whole.
+     */
+    @Override
+    public SaltReturnResponse extractResponse(JsonElement response, SaltOutputLogger output)
+            throws SaltReturnResponseParseException {
+        if (output == null) {
+            return extractResponse(response);
+        }
+        SaltReturnResponse saltResponse = new SaltReturnResponse();
+        saltResponse.setExitCode(exitCode);
+        if (response != null) {
+            try {
+                JSON_ELEMENT_ADAPTER.write(new JsonWriter(output.getOutput()), response);
+                output.getOutput().flush();
+            } catch (IOException e) {
+                throw new SaltReturnResponseParseException(e);
+            }
+        }
+        return saltResponse;
+    }
 }
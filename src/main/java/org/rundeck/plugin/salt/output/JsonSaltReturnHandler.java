@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.output;
+
+import com.google.gson.JsonElement;
+
+/**
+ * A {@link SaltReturnHandler} that interprets already parsed minion responses, sparing the round trip
+ * through a json string.
+ */
+public interface JsonSaltReturnHandler extends SaltReturnHandler {
+    /**
+     * Deserializes a {@link SaltReturnResponse} from a salt minion response.
+     * 
+     * @param response
+     *            a minion's parsed json response.
+     * 
+     * @throws SaltReturnResponseParseException
+     *             if there was an error interpreting the response
+     */
+    SaltReturnResponse extractResponse(JsonElement response) throws SaltReturnResponseParseException;
+
+    /**
+     * Same as {@link #extractResponse(JsonElement)}, except that standard output and standard error
+     * may be logged to the given output as they are extracted instead of being collected in the
+     * returned response.
+     * 
+     * @param response
+     *            a minion's parsed json response.
+     * @param output
+     *            logs the step's output, if null output is collected in the returned response.
+     * 
+     * @throws SaltReturnResponseParseException
+     *             if there was an error interpreting the response
+     */
+    SaltReturnResponse extractResponse(JsonElement response, SaltOutputLogger output)
+            throws SaltReturnResponseParseException;
+}
@@ -0,0 +1,234 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.output;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.rundeck.plugin.salt.SaltApiException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.Strictness;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.MalformedJsonException;
+
+/**
+ * Streams minion returns out of a salt-api job response (i.e. {"return": [{"minion": ...}]})
+ * without materializing the response.
+ * 
+ * Returns of minions that weren't asked for are skipped token by token, so only the requested
+ * minions' subtrees are ever held in memory. Those are bounded by the output a node step logs: once
+ * a return's strings add up to more than saltStep.output.maximum characters, further strings are
+ * cut and values nested below the return's top level are skipped. Top level keys are kept so
+ * return handlers still find the keys they expect, the step logs a truncation marker either way.
+ */
+@Component
+public class SaltJobReturnsReader {
+
+    protected static final String SALT_OUTPUT_RETURN_KEY = "return";
+
+    // Characters of minion output logged per node step, anything past them is dropped anyway.
+    @Autowired
+    @Value("${saltStep.output.maximum}")
+    protected long maximumOutput = Long.MAX_VALUE;
+
+    /**
+     * @param reader
+     *            positioned before the job response
+     * @param minionIds
+     *            the minions whose returns should be extracted
+     * @return the parsed returns of the given minions that are present, keyed by minion id.
+     * @throws SaltApiException
+     *             if the response does not conform to the expected format.
+     */
+    public Map<String, JsonElement> readReturns(JsonReader reader, Set<String> minionIds) throws IOException,
+            SaltApiException {
+        return readReturns(reader, minionIds, Sets.<String> newHashSet());
+    }
+
+    /**
+     * @param reader
+     *            positioned before the job response
+     * @param minionIds
+     *            the minions whose returns should be extracted
+     * @param returnedMinionIds
+     *            receives the id of every minion present in the response, including the ones
+     *            whose returns were skipped
+     * @return the parsed returns of the given minions that are present, keyed by minion id.
+     * @throws SaltApiException
+     *             if the response does not conform to the expected format.
+     */
+    public Map<String, JsonElement> readReturns(JsonReader reader, Set<String> minionIds,
+            Set<String> returnedMinionIds) throws IOException, SaltApiException {
+        List<Map<String, JsonElement>> returns = readResponse(reader, minionIds, 1, returnedMinionIds);
+        return returns.isEmpty() ? Maps.<String, JsonElement> newHashMap() : returns.get(0);
+    }
+
+    /**
+     * Reads the response to a lowstate request, which holds one return per chunk (i.e.
+     * {"return": [{"minion": ...}, {"minion": ...}]}).
+     * 
+     * @param reader
+     *            positioned before the response
+     * @param minionIds
+     *            the minions whose returns should be extracted
+     * @return the parsed returns of the given minions that are present in each chunk's return, in
+     *         the order of the chunks.
+     * @throws SaltApiException
+     *             if the response does not conform to the expected format.
+     */
+    public List<Map<String, JsonElement>> readChunkReturns(JsonReader reader, Set<String> minionIds)
+            throws IOException, SaltApiException {
+        return readResponse(reader, minionIds, Integer.MAX_VALUE, Sets.<String> newHashSet());
+    }
+
+    protected List<Map<String, JsonElement>> readResponse(JsonReader reader, Set<String> minionIds,
+            int maximumResponses, Set<String> returnedMinionIds) throws IOException, SaltApiException {
+        List<Map<String, JsonElement>> returns = Lists.newArrayList();
+        // Same leniency Gson.fromJson applies to whole responses.
+        reader.setStrictness(Strictness.LENIENT);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (SALT_OUTPUT_RETURN_KEY.equals(reader.nextName())) {
+                    readReturnList(reader, minionIds, maximumResponses, returns, returnedMinionIds);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException e) {
+            throw new SaltApiException(String.format("Malformed job response: %s", e.getMessage()));
+        } catch (JsonParseException e) {
+            throw new SaltApiException(String.format("Malformed job response: %s", e.getMessage()));
+        } catch (IllegalStateException e) {
+            throw new SaltApiException(String.format("Unexpected job response: %s", e.getMessage()));
+        }
+        return returns;
+    }
+
+    protected void readReturnList(JsonReader reader, Set<String> minionIds, int maximumResponses,
+            List<Map<String, JsonElement>> returns, Set<String> returnedMinionIds) throws IOException,
+            SaltApiException {
+        reader.beginArray();
+        int responses = 0;
+        while (reader.hasNext()) {
+            if (++responses > maximumResponses) {
+                throw new SaltApiException("Too many responses received");
+            }
+            Map<String, JsonElement> outputs = Maps.newHashMap();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String minionId = reader.nextName();
+                returnedMinionIds.add(minionId);
+                if (minionIds.contains(minionId)) {
+                    try {
+                        outputs.put(minionId, readValue(reader, new Budget(maximumOutput), 0));
+                    } catch (EOFException e) {
+                        // Cut off within the return, same as a parse error of the whole return.
+                        throw new SaltApiException(String.format("Malformed job response: %s", e));
+                    }
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            returns.add(outputs);
+        }
+        reader.endArray();
+    }
+
+    /**
+     * Parses the value the reader is positioned at, at the given depth below the return's top
+     * level, spending the given budget of characters on its strings and nested names.
+     */
+    protected JsonElement readValue(JsonReader reader, Budget budget, int depth) throws IOException {
+        switch (reader.peek()) {
+        case BEGIN_OBJECT:
+            JsonObject object = new JsonObject();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (depth == 0) {
+                    object.add(name, readValue(reader, budget, depth + 1));
+                } else if (budget.remaining > 0) {
+                    budget.remaining -= name.length();
+                    object.add(name, readValue(reader, budget, depth + 1));
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return object;
+        case BEGIN_ARRAY:
+            JsonArray array = new JsonArray();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                if (depth > 0 && budget.remaining <= 0) {
+                    reader.skipValue();
+                } else {
+                    array.add(readValue(reader, budget, depth + 1));
+                }
+            }
+            reader.endArray();
+            return array;
+        case STRING:
+            String value = reader.nextString();
+            long kept = Math.max(0, Math.min(value.length(), budget.remaining));
+            budget.remaining -= value.length();
+            return new JsonPrimitive(kept < value.length() ? value.substring(0, (int) kept) : value);
+        default:
+            return JsonParser.parseReader(reader);
+        }
+    }
+
+    /**
+     * Characters of strings left to keep of a return, one more than the step logs so that it
+     * notices the output was truncated.
+     */
+    protected static class Budget {
+        protected long remaining;
+
+        protected Budget(long maximumOutput) {
+            this.remaining = maximumOutput < Long.MAX_VALUE ? maximumOutput + 1 : maximumOutput;
+        }
+    }
+}
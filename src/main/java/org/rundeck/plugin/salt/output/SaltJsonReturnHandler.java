@@ -26,19 +26,15 @@
 
 package org.rundeck.plugin.salt.output;
 
-import java.lang.reflect.Type;
-import java.util.Map;
-
-import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 
 /**
  * Handler for generating {@link SaltReturnResponse} from minion json responses.
  */
-public class SaltJsonReturnHandler implements SaltReturnHandler {
-
-    protected static final Type RETURN_RESPONSE_TYPE = new TypeToken<Map<String, String>>() {}.getType();
+public class SaltJsonReturnHandler implements JsonSaltReturnHandler {
 
     protected String exitCodeKey;
     protected String standardOutputKey;
@@ -74,38 +70,73 @@ public class SaltJsonReturnHandler implements SaltReturnHandler {
      */
     @Override
     public SaltReturnResponse extractResponse(String rawResponse) throws SaltReturnResponseParseException {
+        if (rawResponse == null) {
+            return extractResponse((JsonElement) null);
+        }
         try {
-            Gson gson = new Gson();
-            Map<String, String> result = gson.fromJson(rawResponse, RETURN_RESPONSE_TYPE);
-            SaltReturnResponse response = new SaltReturnResponse();
-
-            if (exitCodeKey != null) {
-                String exitCodeStringValue = extractOrDie(exitCodeKey, result);
-                Integer exitCode = Double.valueOf(exitCodeStringValue).intValue();
-                response.setExitCode(exitCode);
-            }
+            return extractResponse(JsonParser.parseString(rawResponse));
+        } catch (JsonParseException e) {
+            throw new SaltReturnResponseParseException(e);
+        }
+    }
+
+    /**
+     * Same as {@link #extractResponse(String)} for an already parsed minion response, only the
+     * configured keys are looked at.
+     */
+    @Override
+    public SaltReturnResponse extractResponse(JsonElement rawResponse) throws SaltReturnResponseParseException {
+        return extractResponse(rawResponse, null);
+    }
+
+    @Override
+    public SaltReturnResponse extractResponse(JsonElement rawResponse, SaltOutputLogger output)
+            throws SaltReturnResponseParseException {
+        if (rawResponse == null || !rawResponse.isJsonObject()) {
+            throw new SaltReturnResponseParseException(String.format("Expected json object, found %s.",
+                    rawResponse));
+        }
+        JsonObject result = rawResponse.getAsJsonObject();
+        SaltReturnResponse response = new SaltReturnResponse();
+
+        if (exitCodeKey != null) {
+            String exitCodeStringValue = extractOrDie(exitCodeKey, result);
+            Integer exitCode = Double.valueOf(exitCodeStringValue).intValue();
+            response.setExitCode(exitCode);
+        }
 
-            if (standardOutputKey != null) {
-                String output = extractOrDie(standardOutputKey, result);
-                response.addOutput(output);
+        if (standardOutputKey != null) {
+            String out = extractOrDie(standardOutputKey, result);
+            if (output != null) {
+                output.logOutput(out);
+            } else {
+                response.addOutput(out);
             }
+        }
 
-            if (standardErrorKey != null) {
-                String error = extractOrDie(standardErrorKey, result);
+        if (standardErrorKey != null) {
+            String error = extractOrDie(standardErrorKey, result);
+            if (output != null) {
+                output.logError(error);
+            } else {
                 response.addError(error);
             }
-
-            return response;
-        } catch (JsonSyntaxException e) {
-            throw new SaltReturnResponseParseException(e);
         }
+
+        return response;
     }
 
-    protected String extractOrDie(String key, Map<String, String> data) throws SaltReturnResponseParseException {
-        if (!data.containsKey(key)) {
+    protected String extractOrDie(String key, JsonObject data) throws SaltReturnResponseParseException {
+        if (!data.has(key)) {
             throw new SaltReturnResponseParseException(String.format("Expected key %s in %s, found none.", key, data));
-        } else {
-            return data.get(key);
         }
+        JsonElement value = data.get(key);
+        if (value.isJsonNull()) {
+            return null;
+        } else if (!value.isJsonPrimitive()) {
+            throw new SaltReturnResponseParseException(String.format("Expected value of key %s in %s to be a primitive.",
+                    key, data));
+        }
+        return value.getAsString();
     }
 }
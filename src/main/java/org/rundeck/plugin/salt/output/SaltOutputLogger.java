@@ -0,0 +1,273 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.output;
+
+import java.io.Writer;
+
+import org.rundeck.plugin.salt.util.LogWrapper;
+import org.rundeck.plugin.salt.util.SecureDataMasker;
+
+/**
+ * Logs a node step's standard output and standard error as they are extracted from a minion's
+ * return, line by line.
+ * 
+ * Lines longer than the chunk size are logged in chunks, so no more than a chunk of output is
+ * buffered per stream. Once the step's output cap is reached the remaining output is dropped and a
+ * truncation marker is logged instead.
+ * 
+ * Each logged chunk is masked on its own, so chunks are never cut within secure data: a stream
+ * buffers as many more characters as the longest secure value to find where to cut. Secure data
+ * that doesn't fit the output cap whole isn't logged at all.
+ */
+public class SaltOutputLogger {
+
+    protected static final String TRUNCATION_MARKER = "[Output truncated, step output exceeded %d characters]";
+    protected static final String TRUNCATION_SUMMARY = "[%d characters of output were not logged]";
+
+    protected final LogWrapper logWrapper;
+    protected final SecureDataMasker masker;
+    protected final int chunkSize;
+    protected final long maximumOutput;
+    protected final ChunkWriter output;
+    protected final ChunkWriter error;
+    protected long logged;
+    protected long dropped;
+    protected boolean truncated;
+
+    /**
+     * @param chunkSize
+     *            the maximum number of characters logged per line
+     * @param maximumOutput
+     *            the maximum number of characters logged for the step
+     */
+    public SaltOutputLogger(LogWrapper logWrapper, int chunkSize, long maximumOutput) {
+        this(logWrapper, SecureDataMasker.NONE, chunkSize, maximumOutput);
+    }
+
+    /**
+     * @param masker
+     *            the secure data the given log wrapper masks, which output isn't split within.
+     * @param chunkSize
+     *            the maximum number of characters logged per line, unless secure data is longer
+     * @param maximumOutput
+     *            the maximum number of characters logged for the step
+     */
+    public SaltOutputLogger(LogWrapper logWrapper, SecureDataMasker masker, int chunkSize, long maximumOutput) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException(String.format("Chunk size must be positive, was %d", chunkSize));
+        }
+        this.logWrapper = logWrapper;
+        this.masker = masker;
+        this.chunkSize = chunkSize;
+        this.maximumOutput = maximumOutput;
+        this.output = new ChunkWriter(false);
+        this.error = new ChunkWriter(true);
+    }
+
+    /**
+     * Logs the given standard output, same as {@link SaltReturnResponse#addOutput(String)} blank
+     * output is ignored.
+     */
+    public void logOutput(String out) {
+        output.writeLines(out);
+    }
+
+    /**
+     * Logs the given standard error, same as {@link SaltReturnResponse#addError(String)} blank
+     * output is ignored.
+     */
+    public void logError(String err) {
+        error.writeLines(err);
+    }
+
+    /**
+     * @return a writer logging everything written to it as standard output. Lines are completed by
+     *         flushing the writer.
+     */
+    public Writer getOutput() {
+        return output;
+    }
+
+    /**
+     * @return a writer logging everything written to it as standard error. Lines are completed by
+     *         flushing the writer.
+     */
+    public Writer getError() {
+        return error;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Logs any partial lines and, if output was truncated, how much output was dropped.
+     */
+    public void close() {
+        output.flush();
+        error.flush();
+        if (dropped > 0) {
+            logWrapper.warn(TRUNCATION_SUMMARY, dropped);
+        }
+    }
+
+    protected void log(boolean isError, CharSequence chunk) {
+        long remaining = maximumOutput - logged;
+        if (remaining > 0 && chunk.length() <= remaining) {
+            emit(isError, chunk.toString());
+            logged += chunk.length();
+            return;
+        }
+        int cut = 0;
+        if (remaining > 0) {
+            cut = masker.splitPosition(chunk, (int) remaining);
+            if (cut > remaining) {
+                // Secure data spans the whole rest of the cap.
+                cut = 0;
+            }
+            if (cut > 0) {
+                emit(isError, chunk.subSequence(0, cut).toString());
+            }
+            logged += remaining;
+        }
+        if (!truncated) {
+            truncated = true;
+            logWrapper.warn(TRUNCATION_MARKER, maximumOutput);
+        }
+        dropped += chunk.length() - cut;
+    }
+
+    protected void emit(boolean isError, String chunk) {
+        if (isError) {
+            logWrapper.error(chunk);
+        } else {
+            logWrapper.info(chunk);
+        }
+    }
+
+    /**
+     * Buffers a single line, logging it when it's complete or the chunk size is reached.
+     */
+    protected class ChunkWriter extends Writer {
+        protected final boolean isError;
+        // Characters buffered past the chunk size, so that a chunk isn't cut within secure data.
+        protected final int overlap;
+        protected final StringBuilder line;
+        // Whether the current line was already partially logged because it exceeded the chunk size.
+        protected boolean chunked;
+
+        protected ChunkWriter(boolean isError) {
+            this.isError = isError;
+            this.overlap = Math.max(0, masker.getMaximumLength() - 1);
+            this.line = new StringBuilder(Math.min(chunkSize + overlap, 1024));
+        }
+
+        protected void writeLines(String text) {
+            if (text == null || text.trim().isEmpty()) {
+                return;
+            }
+            write(text, 0, text.length());
+            flush();
+        }
+
+        @Override
+        public void write(int c) {
+            if (c == '\n') {
+                endLine();
+            } else {
+                line.append((char) c);
+                if (line.length() >= chunkSize + overlap) {
+                    logChunk();
+                    chunked = true;
+                }
+            }
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) {
+            for (int i = offset; i < offset + length; i++) {
+                write(buffer[i]);
+            }
+        }
+
+        @Override
+        public void write(String text, int offset, int length) {
+            // Overridden so that large strings aren't copied into a temporary buffer.
+            for (int i = offset; i < offset + length; i++) {
+                write(text.charAt(i));
+            }
+        }
+
+        /**
+         * Logs the pending partial line, if any.
+         */
+        @Override
+        public void flush() {
+            if (line.length() > 0) {
+                logLine();
+            }
+            chunked = false;
+        }
+
+        @Override
+        public void close() {
+            flush();
+        }
+
+        protected void endLine() {
+            if (line.length() > 0 && line.charAt(line.length() - 1) == '\r') {
+                line.setLength(line.length() - 1);
+            }
+            if (line.length() > 0 || !chunked) {
+                logLine();
+            }
+            chunked = false;
+        }
+
+        protected void logLine() {
+            while (line.length() > chunkSize) {
+                logChunk();
+                if (line.length() == 0) {
+                    // The line ended with secure data longer than a chunk.
+                    return;
+                }
+            }
+            log(isError, line);
+            line.setLength(0);
+        }
+
+        /**
+         * Logs the first chunk of the buffered line, cut before or after any secure data at the
+         * chunk size.
+         */
+        protected void logChunk() {
+            int cut = masker.splitPosition(line, chunkSize);
+            log(isError, line.subSequence(0, cut));
+            line.delete(0, cut);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.output;
+
+import com.google.gson.JsonElement;
+
+/**
+ * Adapts a {@link SaltReturnHandler} that only understands json strings (e.g. a custom handler
+ * configured through yaml) to {@link JsonSaltReturnHandler}.
+ */
+public class SaltReturnHandlerAdapter implements JsonSaltReturnHandler {
+
+    protected final SaltReturnHandler delegate;
+
+    protected SaltReturnHandlerAdapter(SaltReturnHandler delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return the given handler if it already accepts parsed responses, otherwise an adapter for it.
+     */
+    public static JsonSaltReturnHandler adapt(SaltReturnHandler handler) {
+        if (handler instanceof JsonSaltReturnHandler) {
+            return (JsonSaltReturnHandler) handler;
+        }
+        return new SaltReturnHandlerAdapter(handler);
+    }
+
+    @Override
+    public SaltReturnResponse extractResponse(String rawResponse) throws SaltReturnResponseParseException {
+        return delegate.extractResponse(rawResponse);
+    }
+
+    @Override
+    public SaltReturnResponse extractResponse(JsonElement response) throws SaltReturnResponseParseException {
+        return delegate.extractResponse(response == null ? null : response.toString());
+    }
+
+    /**
+     * The delegate can't log output itself, so output is always collected in the returned response.
+     */
+    @Override
+    public SaltReturnResponse extractResponse(JsonElement response, SaltOutputLogger output)
+            throws SaltReturnResponseParseException {
+        return extractResponse(response);
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
@@ -127,6 +127,19 @@ public class SaltReturnHandlerRegistry {
         }
     }
 
+    /**
+     * Same lookup as {@link #getHandlerFor(String, SaltReturnHandler)}, returning a handler that
+     * accepts parsed minion responses. Handlers that only understand json strings are adapted.
+     * 
+     * @param fullyQualifiedFunctionName
+     *            (i.e. module.function)
+     * @param defaultHandler
+     *            the default handler if no matching handler is found.
+     */
+    public JsonSaltReturnHandler getJsonHandlerFor(String fullyQualifiedFunctionName, SaltReturnHandler defaultHandler) {
+        return SaltReturnHandlerAdapter.adapt(getHandlerFor(fullyQualifiedFunctionName, defaultHandler));
+    }
+
     protected void configureFromResource(String resource) throws IOException {
         InputStream is = getClass().getResourceAsStream(resource);
         try {
@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+/**
+ * Polling timer for jobs whose usual duration is known.
+ * 
+ * Waits until the job's earliest expected completion for the first poll, then polls at a tight,
+ * fixed interval until its latest expected completion. Jobs still running after that are polled
+ * with the regular exponential backoff.
+ */
+public class AdaptivePollingTimer extends ExponentialBackoffTimer {
+
+    // Number of polls spread between the earliest and latest expected completion.
+    protected static final int POLLS_WHILE_EXPECTED = 4;
+
+    protected final long earliest;
+    protected final long latest;
+    protected final long interval;
+
+    // Time (in ms) from the timer's creation to the poll currently scheduled.
+    protected long elapsed;
+
+    /**
+     * @param earliest
+     *            time (in ms) after which the job is expected to complete
+     * @param latest
+     *            time (in ms) by which the job is expected to have completed
+     * @param delayStep
+     *            the shortest interval (in ms) between polls, also used as the backoff's multiplier
+     * @param maximumDelay
+     *            the maximum interval (in ms) once backing off
+     */
+    public AdaptivePollingTimer(long earliest, long latest, long delayStep, long maximumDelay) {
+        super(delayStep, maximumDelay);
+        this.earliest = earliest;
+        this.latest = Math.max(earliest, latest);
+        this.interval = Math.min(maximumDelay,
+                Math.max(delayStep, (this.latest - earliest) / POLLS_WHILE_EXPECTED));
+    }
+
+    /**
+     * Skips polling until the earliest expected completion.
+     */
+    @Override
+    public long firstDelay() {
+        long delay = Math.max(0, earliest - elapsed);
+        elapsed += delay;
+        return delay;
+    }
+
+    @Override
+    public long nextDelay() {
+        long delay;
+        if (elapsed < earliest) {
+            delay = earliest - elapsed;
+        } else if (elapsed < latest) {
+            delay = interval;
+        } else {
+            delay = super.nextDelay();
+        }
+        elapsed += delay;
+        return delay;
+    }
+}
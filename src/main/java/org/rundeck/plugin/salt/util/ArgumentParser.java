@@ -27,11 +27,18 @@
 package org.rundeck.plugin.salt.util;
 
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 
 /**
@@ -45,9 +52,24 @@ public class ArgumentParser {
 
     protected static final char DEFAULT_ESCAPE_CHARACTER = '\\';
 
+    // Separators are looked up in a precomputed table below this character, the regex is only
+    // evaluated for characters above it.
+    protected static final int SEPARATOR_TABLE_SIZE = 256;
+
+    // Number of distinct lines whose parse results are kept by parseCached.
+    protected static final int PARSE_CACHE_SIZE = 1000;
+
+    // Time in ms a line's parse result is kept once it is no longer parsed, lines may hold secure
+    // option values.
+    protected static final long PARSE_CACHE_EXPIRY = TimeUnit.MINUTES.toMillis(1);
+
     protected final String separatorCharSetRegex;
+    protected final Pattern separatorPattern;
+    protected final BitSet separatorTable;
     protected final char[] quoteCharacters;
+    protected final BitSet quoteTable;
     protected final char escapeCharacter;
+    protected final Cache<String, List<String>> parseCache;
 
     public ArgumentParser(String separatorCharSetRegex) {
         this(separatorCharSetRegex, null);
@@ -67,15 +89,57 @@ public class ArgumentParser {
      *            Character that allows for escaping of quotes
      */
     public ArgumentParser(String separatorCharSetRegex, char[] quoteCharacters, char escapeCharacter) {
+        this(separatorCharSetRegex, quoteCharacters, escapeCharacter, Ticker.systemTicker());
+    }
+
+    /**
+     * @param ticker
+     *            the time source expiring the results of {@link #parseCached(String)}
+     */
+    protected ArgumentParser(String separatorCharSetRegex, char[] quoteCharacters, char escapeCharacter,
+            Ticker ticker) {
         Preconditions.checkArgument(StringUtils.isNotEmpty(separatorCharSetRegex));
         if (quoteCharacters == null) {
             quoteCharacters = new char[0];
         }
         Arrays.sort(quoteCharacters);
         this.separatorCharSetRegex = separatorCharSetRegex;
+        this.separatorPattern = Pattern.compile(separatorCharSetRegex);
+        this.separatorTable = new BitSet(SEPARATOR_TABLE_SIZE);
+        for (char c = 0; c < SEPARATOR_TABLE_SIZE; c++) {
+            if (separatorPattern.matcher(String.valueOf(c)).matches()) {
+                separatorTable.set(c);
+            }
+        }
         this.quoteCharacters = quoteCharacters;
+        this.quoteTable = new BitSet();
+        for (char c : quoteCharacters) {
+            quoteTable.set(c);
+        }
         this.escapeCharacter = escapeCharacter;
+        this.parseCache = CacheBuilder.newBuilder()
+                .maximumSize(PARSE_CACHE_SIZE)
+                .expireAfterAccess(PARSE_CACHE_EXPIRY, TimeUnit.MILLISECONDS)
+                .ticker(ticker)
+                .build();
+    }
 
+    /**
+     * Same as {@link #parse(String)}, but remembers the segments of recently parsed lines so that
+     * the same line (e.g. the function of a step dispatched to many nodes) is only parsed once.
+     * Lines are forgotten once they haven't been parsed for a minute.
+     * 
+     * @return an immutable list of the non-empty segments
+     * @throws IllegalArgumentException
+     *             if the quotes are unbalanced.
+     */
+    public List<String> parseCached(String line) {
+        List<String> results = parseCache.getIfPresent(line);
+        if (results == null) {
+            results = ImmutableList.copyOf(parse(line));
+            parseCache.put(line, results);
+        }
+        return results;
     }
 
     /**
@@ -88,8 +152,8 @@ public class ArgumentParser {
         boolean inQuote = false;
         Character lastQuote = null;
 
-        List<String> results = Lists.newLinkedList();
-        StringBuilder currentSegment = new StringBuilder();
+        List<String> results = Lists.newArrayList();
+        StringBuilder currentSegment = new StringBuilder(line.length());
 
         for (int i = 0; i < line.length(); i++) {
             char currentChar = line.charAt(i);
@@ -104,7 +168,7 @@ public class ArgumentParser {
                         inQuote = false;
                         if (currentSegment.length() > 0) {
                             results.add(currentSegment.toString());
-                            currentSegment = new StringBuilder();
+                            currentSegment.setLength(0);
                         }
                     } else {
                         // Otherwise, this is a quote character that wasn't used to open this segment so just add it.
@@ -114,19 +178,19 @@ public class ArgumentParser {
                     // If not currently in a quote, open a new segment
                     if (currentSegment.length() > 0) {
                         results.add(currentSegment.toString());
-                        currentSegment = new StringBuilder();
+                        currentSegment.setLength(0);
                     }
                     lastQuote = currentChar;
                     inQuote = true;
                 }
-            } else if (String.valueOf(currentChar).matches(separatorCharSetRegex)) {
+            } else if (isSeparator(currentChar)) {
                 // If this is a separator, separate the segment if not in quotes
                 if (inQuote) {
                     currentSegment.append(currentChar);
                 } else {
                     if (currentSegment.length() > 0) {
                         results.add(currentSegment.toString());
-                        currentSegment = new StringBuilder();
+                        currentSegment.setLength(0);
                     }
                 }
             } else {
@@ -146,7 +210,60 @@ public class ArgumentParser {
         return results;
     }
 
+    /**
+     * Splits the given text into its lines, leaving line breaks within quotes (e.g. in a quoted
+     * multi-line argument) and the lines' quotes and escapes as they are, so that each line can be
+     * parsed on its own.
+     * 
+     * @return the non-blank lines, trimmed
+     * @throws IllegalArgumentException
+     *             if the quotes are unbalanced.
+     */
+    public List<String> splitLines(String text) {
+        Character lastQuote = null;
+
+        List<String> lines = Lists.newArrayList();
+        int lineStart = 0;
+
+        for (int i = 0; i < text.length(); i++) {
+            char currentChar = text.charAt(i);
+            if (currentChar == escapeCharacter && i + 1 < text.length() && isQuote(text.charAt(i + 1))) {
+                i++;
+            } else if (isQuote(currentChar)) {
+                if (lastQuote == null) {
+                    lastQuote = currentChar;
+                } else if (lastQuote == currentChar) {
+                    lastQuote = null;
+                }
+            } else if (currentChar == '\n' && lastQuote == null) {
+                addLine(lines, text.substring(lineStart, i));
+                lineStart = i + 1;
+            }
+        }
+        addLine(lines, text.substring(lineStart));
+
+        if (lastQuote != null) {
+            throw new IllegalArgumentException("Quotes are unbalanced.");
+        }
+
+        return lines;
+    }
+
+    protected static void addLine(List<String> lines, String line) {
+        String trimmed = line.trim();
+        if (!trimmed.isEmpty()) {
+            lines.add(trimmed);
+        }
+    }
+
     protected boolean isQuote(char c) {
-        return Arrays.binarySearch(quoteCharacters, c) >= 0;
+        return quoteTable.get(c);
+    }
+
+    protected boolean isSeparator(char c) {
+        if (c < SEPARATOR_TABLE_SIZE) {
+            return separatorTable.get(c);
+        }
+        return separatorPattern.matcher(String.valueOf(c)).matches();
     }
 }
@@ -0,0 +1,406 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DecompressingEntity;
+import org.apache.http.client.entity.InputStreamFactory;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.Configurable;
+import org.apache.http.client.methods.HttpExecutionAware;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.BasicClientConnectionManager;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * A {@link HttpFactory} sending requests with the JDK's non-blocking
+ * {@link java.net.http.HttpClient}.
+ *
+ * Requests are sent and responses received by a handful of I/O threads, so callers of
+ * {@link #executeAsync(HttpUriRequest)} don't hold a thread while salt-api works on their
+ * request. Callers of {@link #createHttpClient()} are served by the same client and block until
+ * the response arrives.
+ *
+ * The JDK client can't time out individual connection attempts or reads, so a request's
+ * {@link RequestConfig} connect and socket timeouts add up to the time its response headers are
+ * waited for, saltApi.http.async.requestTimeout if it sets neither. Connection attempts of all
+ * requests time out after saltApi.http.async.connectTimeout.
+ *
+ * Unlike the default factory, HTTP/2 can be used (saltApi.http.version), in which case concurrent
+ * requests to an endpoint are multiplexed over a single connection.
+ */
+public class AsyncHttpFactory extends HttpFactory {
+
+    // Headers the JDK client sets itself and refuses to be given.
+    protected static final Set<String> RESTRICTED_HEADERS = ImmutableSet.of("connection", "content-length",
+            "expect", "host", "upgrade");
+
+    protected static final ProtocolVersion HTTP_2 = new ProtocolVersion("HTTP", 2, 0);
+
+    // Number of threads sending requests and receiving responses.
+    @Autowired
+    @Value("${saltApi.http.async.threads}")
+    protected int threads;
+
+    // HTTP version to use, HTTP_2 falls back to HTTP/1.1 if salt-api (or its proxy) doesn't speak it.
+    @Autowired
+    @Value("${saltApi.http.version}")
+    protected String version;
+
+    // Time in ms after which any connection attempt fails, 0 for no limit.
+    @Autowired
+    @Value("${saltApi.http.async.connectTimeout}")
+    protected long connectTimeout;
+
+    // Time in ms the response headers of a request configuring no timeout are waited for, 0 for no limit.
+    @Autowired
+    @Value("${saltApi.http.async.requestTimeout}")
+    protected long requestTimeout;
+
+    protected ExecutorService ioThreads;
+    protected java.net.http.HttpClient asyncClient;
+    protected CloseableHttpClient blockingClient;
+
+    @Override
+    @PostConstruct
+    public void initialize() {
+        contentDecoders = createContentDecoders();
+        ioThreads = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("salt-api-http-%d").build());
+        java.net.http.HttpClient.Builder builder = java.net.http.HttpClient.newBuilder()
+                .executor(ioThreads)
+                .version(java.net.http.HttpClient.Version.valueOf(version))
+                .followRedirects(java.net.http.HttpClient.Redirect.NEVER);
+        if (connectTimeout > 0) {
+            builder.connectTimeout(Duration.ofMillis(connectTimeout));
+        }
+        asyncClient = builder.build();
+        blockingClient = new BlockingClient();
+    }
+
+    @Override
+    @PreDestroy
+    public void close() throws IOException {
+        if (ioThreads != null) {
+            ioThreads.shutdownNow();
+        }
+    }
+
+    @Override
+    public HttpClient createHttpClient() {
+        return blockingClient;
+    }
+
+    @Override
+    public boolean isAsync() {
+        return true;
+    }
+
+    /**
+     * Sends the given request without waiting for the response. The returned future fails with
+     * a {@link java.util.concurrent.CompletionException} wrapping the cause if the request
+     * couldn't be sent.
+     */
+    @Override
+    public CompletableFuture<HttpResponse> executeAsync(HttpUriRequest request) {
+        java.net.http.HttpRequest converted;
+        try {
+            converted = toJdkRequest(request);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.failedFuture(new ClientProtocolException(e));
+        }
+        return asyncClient.sendAsync(converted, BodyHandlers.ofInputStream()).thenApply(
+                new Function<java.net.http.HttpResponse<InputStream>, HttpResponse>() {
+                    @Override
+                    public HttpResponse apply(java.net.http.HttpResponse<InputStream> response) {
+                        return toResponse(response);
+                    }
+                });
+    }
+
+    protected java.net.http.HttpRequest toJdkRequest(HttpUriRequest request) throws IOException {
+        java.net.http.HttpRequest.Builder builder = java.net.http.HttpRequest.newBuilder(request.getURI());
+        for (Header header : request.getAllHeaders()) {
+            if (!RESTRICTED_HEADERS.contains(header.getName().toLowerCase(Locale.ENGLISH))) {
+                builder.header(header.getName(), header.getValue());
+            }
+        }
+        String acceptEncoding = getAcceptEncoding();
+        if (acceptEncoding != null && !request.containsHeader(HttpHeaders.ACCEPT_ENCODING)) {
+            builder.header(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+        }
+        BodyPublisher body = BodyPublishers.noBody();
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            if (entity != null) {
+                body = BodyPublishers.ofByteArray(EntityUtils.toByteArray(entity));
+                copyEntityHeader(request, entity.getContentType(), builder);
+                copyEntityHeader(request, entity.getContentEncoding(), builder);
+            }
+        }
+        long timeout = getTimeout(request);
+        if (timeout > 0) {
+            builder.timeout(Duration.ofMillis(timeout));
+        }
+        return builder.method(request.getMethod(), body).build();
+    }
+
+    /**
+     * @return the time in ms the response headers of the given request are waited for, 0 for no
+     *         limit.
+     */
+    protected long getTimeout(HttpUriRequest request) {
+        RequestConfig config = request instanceof Configurable ? ((Configurable) request).getConfig() : null;
+        if (config == null) {
+            return requestTimeout;
+        }
+        long timeout = Math.max(0, config.getConnectTimeout()) + Math.max(0, config.getSocketTimeout());
+        return timeout > 0 ? timeout : requestTimeout;
+    }
+
+    protected void copyEntityHeader(HttpUriRequest request, Header header, java.net.http.HttpRequest.Builder builder) {
+        if (header != null && !request.containsHeader(header.getName())) {
+            builder.header(header.getName(), header.getValue());
+        }
+    }
+
+    protected Response toResponse(java.net.http.HttpResponse<InputStream> response) {
+        int code = response.statusCode();
+        ProtocolVersion version = response.version() == java.net.http.HttpClient.Version.HTTP_2 ? HTTP_2
+                : HttpVersion.HTTP_1_1;
+        Response converted = new Response(new BasicStatusLine(version, code,
+                EnglishReasonPhraseCatalog.INSTANCE.getReason(code, Locale.ENGLISH)));
+        for (Map.Entry<String, List<String>> header : response.headers().map().entrySet()) {
+            for (String value : header.getValue()) {
+                converted.addHeader(header.getKey(), value);
+            }
+        }
+        InputStreamEntity entity = new InputStreamEntity(response.body(),
+                response.headers().firstValueAsLong(HttpHeaders.CONTENT_LENGTH).orElse(-1));
+        entity.setContentType(converted.getFirstHeader(HttpHeaders.CONTENT_TYPE));
+        entity.setContentEncoding(converted.getFirstHeader(HttpHeaders.CONTENT_ENCODING));
+        converted.setEntity(decode(converted, entity));
+        return converted;
+    }
+
+    /**
+     * Mirrors {@link org.apache.http.client.protocol.ResponseContentEncoding}: the body of a
+     * compressed response is decoded as it's read, and the headers describing the compressed body
+     * are removed.
+     *
+     * @throws CompletionException
+     *             wrapping a {@link ClientProtocolException} if the response is encoded in a way
+     *             that wasn't asked for.
+     */
+    protected HttpEntity decode(HttpResponse response, HttpEntity entity) {
+        Header encoding = entity.getContentEncoding();
+        if (encoding == null || contentDecoders.isEmpty()) {
+            return entity;
+        }
+        HttpEntity decoded = entity;
+        HeaderElement[] elements = encoding.getElements();
+        // Encodings are listed in the order they were applied.
+        for (int i = elements.length - 1; i >= 0; i--) {
+            HeaderElement element = elements[i];
+            String name = element.getName().toLowerCase(Locale.ROOT);
+            if (name.equals("identity")) {
+                continue;
+            }
+            InputStreamFactory decoder = contentDecoders.get(name);
+            if (decoder == null) {
+                closeQuietly(response);
+                throw new CompletionException(new ClientProtocolException(String.format(
+                        "Unsupported Content-Encoding: %s", element.getName())));
+            }
+            decoded = new DecompressingEntity(decoded, decoder);
+        }
+        if (decoded != entity) {
+            response.removeHeaders(HttpHeaders.CONTENT_LENGTH);
+            response.removeHeaders(HttpHeaders.CONTENT_ENCODING);
+            response.removeHeaders(HttpHeaders.CONTENT_MD5);
+        }
+        return decoded;
+    }
+
+    /**
+     * Closes the body of the given response without reading the rest of it.
+     */
+    protected static void closeQuietly(HttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return;
+        }
+        try {
+            entity.getContent().close();
+        } catch (IOException e) {
+            // Closing anyway.
+        }
+    }
+
+    /**
+     * A response whose body streams in from the JDK client.
+     */
+    protected static class Response extends BasicHttpResponse implements CloseableHttpResponse {
+        protected Response(BasicStatusLine statusLine) {
+            super(statusLine);
+        }
+
+        @Override
+        public void close() {
+            closeQuietly(this);
+        }
+    }
+
+    /**
+     * Blocking client for callers of {@link #createHttpClient()}, waiting on
+     * {@link #executeAsync(HttpUriRequest)}. Aborting the request abandons the response.
+     */
+    @SuppressWarnings("deprecation")
+    protected class BlockingClient extends CloseableHttpClient {
+        protected ClientConnectionManager connectionManager;
+
+        @Override
+        protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+                throws IOException {
+            if (!(request instanceof HttpUriRequest)) {
+                throw new ClientProtocolException(String.format("Unsupported request %s", request.getRequestLine()));
+            }
+            final CompletableFuture<HttpResponse> response = executeAsync((HttpUriRequest) request);
+            if (request instanceof HttpExecutionAware) {
+                ((HttpExecutionAware) request).setCancellable(new Cancellable() {
+                    @Override
+                    public boolean cancel() {
+                        response.cancel(true);
+                        response.thenAccept(new Consumer<HttpResponse>() {
+                            @Override
+                            public void accept(HttpResponse abandoned) {
+                                closeQuietly(abandoned);
+                            }
+                        });
+                        return true;
+                    }
+                });
+            }
+            try {
+                return (CloseableHttpResponse) response.get();
+            } catch (InterruptedException e) {
+                response.cancel(true);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for salt-api");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else {
+                    throw new IOException(cause);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            // The I/O threads are shut down with the factory.
+            if (connectionManager != null) {
+                connectionManager.shutdown();
+            }
+        }
+
+        /**
+         * @return empty parameters, the client isn't configured through them.
+         */
+        @Override
+        @Deprecated
+        public HttpParams getParams() {
+            return new BasicHttpParams();
+        }
+
+        /**
+         * @return an idle connection manager, connections are managed by the JDK's client.
+         */
+        @Override
+        @Deprecated
+        public synchronized ClientConnectionManager getConnectionManager() {
+            if (connectionManager == null) {
+                connectionManager = new BasicClientConnectionManager();
+            }
+            return connectionManager;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Stops sending requests to salt-api endpoints that keep failing.
+ *
+ * Each endpoint has a circuit that is closed while requests go through. Once the rate of failures
+ * among the most recent requests reaches a threshold, the circuit opens and requests are rejected
+ * without being sent. After a while the circuit is half-open: a single probe request is let
+ * through, closing the circuit if it succeeds and opening it again if it fails.
+ */
+@Component
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN;
+    }
+
+    @Autowired
+    @Value("${saltApi.circuitBreaker.enabled}")
+    protected boolean enabled;
+
+    // Number of most recent requests the failure rate is computed from.
+    @Autowired
+    @Value("${saltApi.circuitBreaker.window}")
+    protected int window;
+
+    // Number of requests needed before the failure rate is considered.
+    @Autowired
+    @Value("${saltApi.circuitBreaker.minimumRequests}")
+    protected int minimumRequests;
+
+    // Failure rate (0-1) at which the circuit opens.
+    @Autowired
+    @Value("${saltApi.circuitBreaker.failureRate}")
+    protected double failureRate;
+
+    // Time in ms the circuit stays open before a probe is let through.
+    @Autowired
+    @Value("${saltApi.circuitBreaker.openDuration}")
+    protected long openDuration;
+
+    protected final ConcurrentMap<String, Circuit> circuits = Maps.newConcurrentMap();
+
+    /**
+     * Asks to send a request to the given endpoint.
+     *
+     * @return a permit whose outcome must be passed to {@link #record(Permit, boolean)}, null if
+     *         the endpoint's circuit is open.
+     */
+    public Permit tryAcquire(String endpoint) {
+        if (!enabled) {
+            return Permit.UNTRACKED;
+        }
+        Circuit circuit = circuitFor(endpoint);
+        synchronized (circuit) {
+            switch (circuit.state) {
+            case OPEN:
+                if (currentTimeMillis() - circuit.opened < openDuration) {
+                    return null;
+                }
+                circuit.transition(State.HALF_OPEN);
+                circuit.probing = true;
+                return new Permit(endpoint, circuit.generation, true);
+            case HALF_OPEN:
+                if (circuit.probing) {
+                    return null;
+                }
+                circuit.probing = true;
+                return new Permit(endpoint, circuit.generation, true);
+            default:
+                return new Permit(endpoint, circuit.generation, false);
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of a request sent with the given permit.
+     *
+     * @param success
+     *            true if the endpoint responded, false if it failed or couldn't be reached.
+     */
+    public void record(Permit permit, boolean success) {
+        if (permit == Permit.UNTRACKED) {
+            return;
+        }
+        Circuit circuit = circuitFor(permit.endpoint);
+        synchronized (circuit) {
+            if (permit.generation != circuit.generation) {
+                // Sent before the circuit last changed state, its outcome is outdated.
+                return;
+            }
+            if (circuit.state == State.HALF_OPEN) {
+                circuit.probing = false;
+                if (success) {
+                    circuit.transition(State.CLOSED);
+                } else {
+                    open(circuit);
+                }
+            } else if (circuit.add(success) >= minimumRequests && circuit.failures >= failureRate * circuit.count) {
+                open(circuit);
+            }
+        }
+    }
+
+    /**
+     * @return the state of the given endpoint's circuit
+     */
+    public State getState(String endpoint) {
+        Circuit circuit = circuitFor(endpoint);
+        synchronized (circuit) {
+            return circuit.state;
+        }
+    }
+
+    protected void open(Circuit circuit) {
+        circuit.transition(State.OPEN);
+        circuit.opened = currentTimeMillis();
+    }
+
+    protected Circuit circuitFor(String endpoint) {
+        Circuit circuit = circuits.get(endpoint);
+        if (circuit == null) {
+            Circuit newCircuit = new Circuit(window);
+            circuit = circuits.putIfAbsent(endpoint, newCircuit);
+            if (circuit == null) {
+                circuit = newCircuit;
+            }
+        }
+        return circuit;
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Permission to send a single request.
+     */
+    public static class Permit {
+        protected static final Permit UNTRACKED = new Permit(null, 0, false);
+
+        protected final String endpoint;
+        protected final long generation;
+        protected final boolean probe;
+
+        protected Permit(String endpoint, long generation, boolean probe) {
+            this.endpoint = endpoint;
+            this.generation = generation;
+            this.probe = probe;
+        }
+
+        /**
+         * @return true if the request probes whether an open circuit can be closed again
+         */
+        public boolean isProbe() {
+            return probe;
+        }
+    }
+
+    /**
+     * The state and most recent outcomes of a single endpoint.
+     */
+    protected static class Circuit {
+        protected final boolean[] outcomes;
+        protected State state = State.CLOSED;
+        protected long generation;
+        protected long opened;
+        protected boolean probing;
+        protected int count;
+        protected int failures;
+        protected int next;
+
+        protected Circuit(int window) {
+            this.outcomes = new boolean[window];
+        }
+
+        /**
+         * @return the number of outcomes in the window
+         */
+        protected int add(boolean success) {
+            if (count == outcomes.length) {
+                if (!outcomes[next]) {
+                    failures--;
+                }
+            } else {
+                count++;
+            }
+            outcomes[next] = success;
+            if (!success) {
+                failures++;
+            }
+            next = (next + 1) % outcomes.length;
+            return count;
+        }
+
+        protected void transition(State newState) {
+            state = newState;
+            generation++;
+            count = 0;
+            failures = 0;
+            next = 0;
+        }
+    }
+}
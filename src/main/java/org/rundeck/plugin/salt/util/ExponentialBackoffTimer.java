@@ -33,11 +33,25 @@ import org.springframework.stereotype.Component;
  */
 public class ExponentialBackoffTimer {
 
+    /**
+     * Randomization applied to the delays, see {@link JitteredBackoffTimer}.
+     */
+    public enum Jitter {
+        NONE, FULL, DECORRELATED;
+    }
+
     @Component
     public static class Factory {
         public ExponentialBackoffTimer newTimer(long delayStep, long maximumDelay) {
             return new ExponentialBackoffTimer(delayStep, maximumDelay);
         }
+
+        public ExponentialBackoffTimer newTimer(long delayStep, long maximumDelay, Jitter jitter) {
+            if (jitter == Jitter.NONE) {
+                return newTimer(delayStep, maximumDelay);
+            }
+            return new JitteredBackoffTimer(delayStep, maximumDelay, jitter);
+        }
     }
 
     protected final long delayStep;
@@ -67,17 +81,44 @@ public class ExponentialBackoffTimer {
      *  @throws InterruptedException if the thread is interrupted.
      */
     public void waitForNext() throws InterruptedException {
-        sleep(nextSleepAmount);
-        if (nextSleepAmount < maximumDelay) {
-            nextSleepAmount = (long) ((Math.pow(2, ++count) - 1) / 2D * delayStep);
-        }
-        nextSleepAmount = Math.min(maximumDelay, nextSleepAmount);
+        waitFor(nextDelay());
+    }
+
+    /**
+     * Calls thread.sleep for the given length of time (in ms), for callers that were told how
+     * long to wait (e.g. by a Retry-After header).
+     * 
+     * @throws InterruptedException if the thread is interrupted.
+     */
+    public void waitFor(long delay) throws InterruptedException {
+        sleep(delay);
         if (Thread.interrupted()) {
             Thread.currentThread().interrupt();
             throw new InterruptedException();
         }
     }
 
+    /**
+     * Returns the length of time (in ms) to wait for before the first attempt, for callers that
+     * schedule the wait themselves. Attempts immediately by default.
+     */
+    public long firstDelay() {
+        return 0;
+    }
+
+    /**
+     * Returns the length of time (in ms) to wait for and advances the timer, for callers that
+     * schedule the wait themselves instead of sleeping.
+     */
+    public long nextDelay() {
+        long delay = nextSleepAmount;
+        if (nextSleepAmount < maximumDelay) {
+            nextSleepAmount = (long) ((Math.pow(2, ++count) - 1) / 2D * delayStep);
+        }
+        nextSleepAmount = Math.min(maximumDelay, nextSleepAmount);
+        return delay;
+    }
+
     protected void sleep(long l) throws InterruptedException {
         Thread.sleep(l);
     }
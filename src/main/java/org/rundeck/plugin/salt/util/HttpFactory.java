@@ -26,21 +26,173 @@
 
 package org.rundeck.plugin.salt.util;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.entity.DeflateInputStreamFactory;
+import org.apache.http.client.entity.GZIPInputStreamFactory;
+import org.apache.http.client.entity.InputStreamFactory;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
-import org.apache.http.impl.client.SystemDefaultHttpClient;
-import org.springframework.stereotype.Component;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableMap;
 
 /**
  * A factory class for http-components for testing. This factory allows for clients that require
  * a http client/methods to delegate the creation of dependencies which makes the clients testable.
+ * 
+ * All callers share a single pooled client so that connections (and TLS sessions) to a salt-api
+ * endpoint are kept alive across node steps. The client is closed when the application context is.
+ * 
+ * Unless saltApi.http.compression is disabled, requests advertise the content encodings that
+ * {@link #contentDecoders} can decode and responses are decoded transparently: gzip, deflate, and
+ * brotli if its decoder (org.brotli:dec) is on the classpath.
+ * 
+ * The factory is declared in beans.xml rather than scanned, its class is configured through
+ * saltApi.http.factory (e.g. {@link AsyncHttpFactory}).
  */
-@Component
 public class HttpFactory {
-    
+
+    protected static final String BROTLI_DECODER = "org.brotli.dec.BrotliInputStream";
+
+    @Autowired
+    @Value("${saltApi.http.pool.maxTotal}")
+    protected int maxTotal;
+
+    @Autowired
+    @Value("${saltApi.http.pool.maxPerRoute}")
+    protected int maxPerRoute;
+
+    // Time in ms after which idle pooled connections are closed.
+    @Autowired
+    @Value("${saltApi.http.pool.idleTimeout}")
+    protected long idleTimeout;
+
+    // Time in ms of inactivity after which a pooled connection is checked before it's reused.
+    @Autowired
+    @Value("${saltApi.http.pool.validateAfterInactivity}")
+    protected int validateAfterInactivity;
+
+    // Whether salt-api responses may be compressed.
+    @Autowired
+    @Value("${saltApi.http.compression}")
+    protected boolean compression;
+
+    // Decoders by content encoding, empty if compression is disabled.
+    protected Map<String, InputStreamFactory> contentDecoders;
+    protected PoolingHttpClientConnectionManager connectionManager;
+    protected CloseableHttpClient client;
+
+    @PostConstruct
+    public void initialize() {
+        // A single socket factory means a single SSLContext, whose session cache lets new
+        // connections to the same endpoint resume their TLS session.
+        Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory> create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", SSLConnectionSocketFactory.getSystemSocketFactory())
+                .build();
+        connectionManager = new PoolingHttpClientConnectionManager(socketFactories);
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setValidateAfterInactivity(validateAfterInactivity);
+
+        contentDecoders = createContentDecoders();
+        HttpClientBuilder builder = HttpClients.custom()
+                .useSystemProperties()
+                .setConnectionManager(connectionManager)
+                // Connection state would otherwise tie TLS connections to the thread that opened them.
+                .disableConnectionState()
+                .evictExpiredConnections()
+                .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+        if (contentDecoders.isEmpty()) {
+            builder.disableContentCompression();
+        } else {
+            // Sets Accept-Encoding on every request and decodes responses accordingly.
+            builder.setContentDecoderRegistry(contentDecoders);
+        }
+        client = builder.build();
+    }
+
+    /**
+     * @return the decoders of the content encodings salt-api responses may use, keyed by
+     *         encoding.
+     */
+    protected Map<String, InputStreamFactory> createContentDecoders() {
+        if (!compression) {
+            return ImmutableMap.of();
+        }
+        ImmutableMap.Builder<String, InputStreamFactory> decoders = ImmutableMap.builder();
+        decoders.put("gzip", GZIPInputStreamFactory.getInstance());
+        decoders.put("x-gzip", GZIPInputStreamFactory.getInstance());
+        decoders.put("deflate", DeflateInputStreamFactory.getInstance());
+        InputStreamFactory brotli = BrotliInputStreamFactory.load();
+        if (brotli != null) {
+            decoders.put("br", brotli);
+        }
+        return decoders.build();
+    }
+
+    /**
+     * @return the value of the Accept-Encoding header sent with requests, null if compression
+     *         is disabled.
+     */
+    protected String getAcceptEncoding() {
+        return contentDecoders.isEmpty() ? null : Joiner.on(',').join(contentDecoders.keySet());
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (client != null) {
+            client.close();
+        }
+    }
+
     public HttpClient createHttpClient() {
-        return new SystemDefaultHttpClient();
+        return client;
+    }
+
+    /**
+     * @return true if {@link #executeAsync(HttpUriRequest)} returns without waiting for the
+     *         response.
+     */
+    public boolean isAsync() {
+        return false;
+    }
+
+    /**
+     * Sends the given request, completing the returned future with the response. This factory's
+     * client blocks, so the request is sent on the calling thread and the returned future is
+     * already complete.
+     */
+    public CompletableFuture<HttpResponse> executeAsync(HttpUriRequest request) {
+        try {
+            return CompletableFuture.completedFuture(client.execute(request));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
     }
 
     public HttpPost createHttpPost(String uri) {
@@ -50,4 +202,45 @@ public class HttpFactory {
     public HttpGet createHttpGet(String uri) {
         return new HttpGet(uri);
     }
-}
\ No newline at end of file
+
+    /**
+     * Decodes brotli through org.brotli:dec, an optional dependency loaded reflectively.
+     */
+    protected static class BrotliInputStreamFactory implements InputStreamFactory {
+        protected final Constructor<? extends InputStream> constructor;
+
+        protected BrotliInputStreamFactory(Constructor<? extends InputStream> constructor) {
+            this.constructor = constructor;
+        }
+
+        /**
+         * @return a factory, null if the brotli decoder isn't on the classpath.
+         */
+        protected static BrotliInputStreamFactory load() {
+            try {
+                return new BrotliInputStreamFactory(Class.forName(BROTLI_DECODER).asSubclass(InputStream.class)
+                        .getConstructor(InputStream.class));
+            } catch (ClassNotFoundException e) {
+                return null;
+            } catch (NoSuchMethodException e) {
+                return null;
+            } catch (ClassCastException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public InputStream create(InputStream compressed) throws IOException {
+            try {
+                return constructor.newInstance(compressed);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            } catch (ReflectiveOperationException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with randomized delays, so that clients failing at the same time don't
+ * retry in lockstep.
+ * 
+ * <ul>
+ * <li>{@link ExponentialBackoffTimer.Jitter#FULL}: a random delay between 0 and the regular
+ * exponential delay.</li>
+ * <li>{@link ExponentialBackoffTimer.Jitter#DECORRELATED}: a random delay between the delay step
+ * and three times the previous delay, capped at the maximum delay.</li>
+ * </ul>
+ */
+public class JitteredBackoffTimer extends ExponentialBackoffTimer {
+
+    protected final Jitter jitter;
+    protected long previousDelay;
+
+    public JitteredBackoffTimer(long delayStep, long maximumDelay, Jitter jitter) {
+        super(delayStep, maximumDelay);
+        this.jitter = jitter;
+        this.previousDelay = delayStep;
+    }
+
+    @Override
+    public long nextDelay() {
+        switch (jitter) {
+        case FULL:
+            return random(0, super.nextDelay());
+        case DECORRELATED:
+            previousDelay = Math.min(maximumDelay, random(delayStep, previousDelay * 3));
+            return previousDelay;
+        default:
+            return super.nextDelay();
+        }
+    }
+
+    /**
+     * @return a random value between the given bounds, both inclusive
+     */
+    protected long random(long lower, long upper) {
+        if (upper <= lower) {
+            return lower;
+        }
+        return ThreadLocalRandom.current().nextLong(lower, upper + 1);
+    }
+}
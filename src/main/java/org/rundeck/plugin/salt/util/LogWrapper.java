@@ -35,10 +35,41 @@ import com.google.common.annotations.VisibleForTesting;
  */
 public class LogWrapper {
 
+    /**
+     * Discards everything, for work that outlives the step that started it.
+     */
+    public static final LogWrapper DISCARDING = new LogWrapper(null) {
+        @Override
+        public void info(String string, Object... args) {
+        }
+
+        @Override
+        public void debug(String string, Object... args) {
+        }
+
+        @Override
+        public void warn(String string, Object... args) {
+        }
+
+        @Override
+        public void error(String string, Object... args) {
+        }
+    };
+
     protected final PluginLogger logger;
+    protected final SecureDataMasker masker;
 
     public LogWrapper(PluginLogger logger) {
+        this(logger, SecureDataMasker.NONE);
+    }
+
+    /**
+     * @param masker
+     *            masks secure data in every logged line
+     */
+    public LogWrapper(PluginLogger logger, SecureDataMasker masker) {
         this.logger = logger;
+        this.masker = masker;
     }
 
     public void info(String string, Object... args) {
@@ -59,10 +90,10 @@ public class LogWrapper {
 
     protected String format(String logLine, Object... args) {
         if (args.length > 0) {
-            return String.format(logLine, args);
+            return masker.mask(String.format(logLine, args));
         }
         else {
-            return logLine;
+            return masker.mask(logLine);
         }
     }
 
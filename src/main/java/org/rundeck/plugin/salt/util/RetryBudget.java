@@ -0,0 +1,127 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Limits retries against each salt-api endpoint to a share of the requests issued against it, so
+ * that retries can't pile up on a struggling salt master.
+ * 
+ * Every endpoint has a token bucket shared by all node steps. Each request deposits a fraction of
+ * a token, each retry withdraws a whole one. Buckets also refill slowly over time so that
+ * endpoints with little traffic can still retry.
+ */
+@Component
+public class RetryBudget {
+
+    // Tokens deposited per request, i.e. the share of requests that may be retried.
+    @Autowired
+    @Value("${retryingHttpClientExecutor.budget.ratio}")
+    protected double ratio;
+
+    // Tokens deposited per second regardless of traffic.
+    @Autowired
+    @Value("${retryingHttpClientExecutor.budget.minimumPerSecond}")
+    protected double minimumPerSecond;
+
+    // Maximum number of tokens an endpoint's bucket holds, buckets start out full.
+    @Autowired
+    @Value("${retryingHttpClientExecutor.budget.capacity}")
+    protected double capacity;
+
+    protected final ConcurrentMap<String, Bucket> buckets = Maps.newConcurrentMap();
+
+    /**
+     * Records a request (not a retry) against the given endpoint.
+     */
+    public void deposit(String endpoint) {
+        Bucket bucket = bucketFor(endpoint);
+        synchronized (bucket) {
+            refill(bucket);
+            bucket.tokens = Math.min(capacity, bucket.tokens + ratio);
+        }
+    }
+
+    /**
+     * Withdraws a retry from the given endpoint's budget.
+     * 
+     * @return true if the request may be retried, false if the budget is exhausted.
+     */
+    public boolean tryWithdraw(String endpoint) {
+        Bucket bucket = bucketFor(endpoint);
+        synchronized (bucket) {
+            refill(bucket);
+            if (bucket.tokens < 1) {
+                return false;
+            }
+            bucket.tokens--;
+            return true;
+        }
+    }
+
+    protected void refill(Bucket bucket) {
+        long now = currentTimeMillis();
+        bucket.tokens = Math.min(capacity, bucket.tokens + (now - bucket.refilled) * minimumPerSecond / 1000D);
+        bucket.refilled = now;
+    }
+
+    protected Bucket bucketFor(String endpoint) {
+        Bucket bucket = buckets.get(endpoint);
+        if (bucket == null) {
+            Bucket newBucket = new Bucket(capacity, currentTimeMillis());
+            bucket = buckets.putIfAbsent(endpoint, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        return bucket;
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * The remaining retries of a single endpoint.
+     */
+    protected static class Bucket {
+        protected double tokens;
+        protected long refilled;
+
+        protected Bucket(double tokens, long refilled) {
+            this.tokens = tokens;
+            this.refilled = refilled;
+        }
+    }
+}
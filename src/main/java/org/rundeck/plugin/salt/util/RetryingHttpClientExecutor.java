@@ -28,15 +28,27 @@ package org.rundeck.plugin.salt.util;
 
 import java.io.IOException;
 import java.net.SocketException;
+import java.net.URI;
 import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import javax.net.ssl.SSLException;
 
+import org.apache.commons.lang3.StringUtils;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.util.EntityUtils;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
@@ -64,6 +76,22 @@ public class RetryingHttpClientExecutor {
     @Autowired
     protected ExponentialBackoffTimer.Factory timerFactory;
 
+    @Autowired
+    protected RetryBudget retryBudget;
+
+    @Autowired
+    protected CircuitBreaker circuitBreaker;
+
+    @Autowired
+    protected SaltApiThrottle throttle;
+
+    protected ExponentialBackoffTimer.Jitter jitter = ExponentialBackoffTimer.Jitter.NONE;
+
+    @Autowired
+    public void setJitter(@Value("${retryingHttpClientExecutor.jitter}") String jitter) {
+        this.jitter = ExponentialBackoffTimer.Jitter.valueOf(jitter.trim().toUpperCase());
+    }
+
     /**
      * Same as {@link #execute(LogWrapper, HttpClient, HttpUriRequest, int, Predicate)} but with
      * an always true predicate
@@ -80,6 +108,15 @@ public class RetryingHttpClientExecutor {
      * This method will not try to distinguish between idempotent and non-idempotent requests. If
      * a caller is using this executor, the request will be retried.
      * 
+     * Retries are delayed by a (jittered) exponential backoff, or by at least the time requested
+     * through a Retry-After header. Requests are not retried if salt-api asks to wait longer than
+     * the maximum retry delay or if the endpoint's {@link RetryBudget} is exhausted.
+     * 
+     * Every attempt goes through the endpoint's {@link CircuitBreaker}. Requests to endpoints whose
+     * circuit is open fail with a {@link CircuitOpenException} without being sent. Attempts wait
+     * for the endpoint's {@link SaltApiThrottle} until they may be sent, the time spent waiting
+     * is logged at debug level.
+     * 
      * @param log
      *            a {@link LogWrapper} instance to use for logging
      * @param client
@@ -95,41 +132,61 @@ public class RetryingHttpClientExecutor {
     public HttpResponse execute(LogWrapper log, HttpClient client, HttpUriRequest request, int retryCount,
             Predicate<Integer> statusCodePredicate) throws IOException, InterruptedException {
         Preconditions.checkArgument(retryCount > 0);
-        ExponentialBackoffTimer timer = timerFactory.newTimer(retryCount, maximumRetryDelay);
+        ExponentialBackoffTimer timer = timerFactory.newTimer(delayStep, maximumRetryDelay, jitter);
+        String endpoint = endpointOf(request);
+        retryBudget.deposit(endpoint);
         int count = 0;
         HttpResponse lastResponse = null;
         IOException lastException = null;
         while (count++ < retryCount) {
+            long waited = throttle.acquire(endpoint);
+            if (waited > 0) {
+                log.debug("Waited %d ms before sending request to salt-api endpoint [%s].", waited, endpoint);
+            }
+            CircuitBreaker.Permit permit = circuitBreaker.tryAcquire(endpoint);
+            if (permit == null) {
+                throttle.release(endpoint);
+                log.debug("Circuit for salt-api endpoint [%s] is open, failing fast.", endpoint);
+                throw new CircuitOpenException(String.format(
+                        "Too many recent requests to salt-api endpoint [%s] failed, not sending request.", endpoint));
+            } else if (permit.isProbe()) {
+                log.debug("Probing salt-api endpoint [%s] to close its circuit.", endpoint);
+            }
             lastResponse = null;
+            long retryAfter = -1;
+            boolean responded = false;
             try {
                 lastResponse = client.execute(request);
                 int code = lastResponse.getStatusLine().getStatusCode();
+                // Only server errors count against the circuit, anything else means salt-api is up.
+                responded = code / 100 != 5;
                 if (isSuccessfulStatusCode(code) || !statusCodePredicate.apply(code)) {
                     return lastResponse;
                 } else {
                     log.debug("Encountered recoverable status code: %s", lastResponse.getStatusLine());
+                    retryAfter = getRetryAfter(lastResponse);
                 }
-            } catch (ClientProtocolException e) {
-                log.debug("Client protocol exception encountered, not retrying. %s", e.getMessage());
-                throw e;
-            } catch (UnknownHostException e) {
-                log.debug("Unknown host encountered, not retrying. %s", e.getMessage());
-                throw e;
-            } catch (SSLException ssle) {
-                log.debug("SSL exception encountered, not retrying. %s", ssle.getMessage());
-                throw ssle;
-            } catch (SocketException e) {
-                log.debug("Socket exception encountered, retrying. %s", e.getMessage());
-                lastException = e;
-            } catch (ConnectTimeoutException e) {
-                log.debug("Connection timeout encountered, retrying. %s", e.getMessage());
-                lastException = e;
             } catch (IOException e) {
-                log.debug("Generic i/o exception encountered, retrying. %s", e.getMessage());
+                if (!isRetryable(log, e)) {
+                    throw e;
+                }
                 lastException = e;
+            } finally {
+                throttle.release(endpoint);
+                circuitBreaker.record(permit, responded);
+            }
+            if (count >= retryCount || !mayRetry(log, endpoint, retryAfter)) {
+                break;
+            }
+            if (lastResponse != null) {
+                // Hand the connection back to the pool before retrying.
+                EntityUtils.consumeQuietly(lastResponse.getEntity());
             }
-            if (count < retryCount) {
+            if (retryAfter < 0) {
                 timer.waitForNext();
+            } else {
+                // Jittered on top of Retry-After so that clients told the same don't retry in lockstep.
+                timer.waitFor(Math.min(maximumRetryDelay, retryAfter + timer.nextDelay()));
             }
         }
         if (lastResponse == null) {
@@ -139,8 +196,238 @@ public class RetryingHttpClientExecutor {
         }
     }
 
+    /**
+     * Same as {@link #execute(LogWrapper, HttpClient, HttpUriRequest, int, Predicate)} but sends
+     * the request through the given factory's {@link HttpFactory#executeAsync(HttpUriRequest)}.
+     * Nothing blocks the calling thread: waits for the {@link SaltApiThrottle} and between
+     * retries are scheduled instead of slept.
+     * 
+     * @param log
+     *            a {@link LogWrapper} instance to use for logging, from any thread
+     * @return a future completed with the last response, or failed with the last exception.
+     *         Cancelling it stops further retries.
+     */
+    public CompletableFuture<HttpResponse> executeAsync(LogWrapper log, HttpFactory httpFactory,
+            HttpUriRequest request, int retryCount, Predicate<Integer> statusCodePredicate) {
+        Preconditions.checkArgument(retryCount > 0);
+        AsyncExecution execution = new AsyncExecution(log, httpFactory, request, retryCount, statusCodePredicate);
+        retryBudget.deposit(execution.endpoint);
+        execution.attempt();
+        return execution.result;
+    }
+
+    /**
+     * @return true if the request may be retried after the given exception.
+     */
+    protected boolean isRetryable(LogWrapper log, IOException e) {
+        if (e instanceof ClientProtocolException) {
+            log.debug("Client protocol exception encountered, not retrying. %s", e.getMessage());
+            return false;
+        } else if (e instanceof UnknownHostException) {
+            log.debug("Unknown host encountered, not retrying. %s", e.getMessage());
+            return false;
+        } else if (e instanceof SSLException) {
+            log.debug("SSL exception encountered, not retrying. %s", e.getMessage());
+            return false;
+        } else if (e instanceof SocketException) {
+            log.debug("Socket exception encountered, retrying. %s", e.getMessage());
+        } else if (e instanceof ConnectTimeoutException) {
+            log.debug("Connection timeout encountered, retrying. %s", e.getMessage());
+        } else {
+            log.debug("Generic i/o exception encountered, retrying. %s", e.getMessage());
+        }
+        return true;
+    }
+
+    protected boolean mayRetry(LogWrapper log, String endpoint, long retryAfter) {
+        if (retryAfter > maximumRetryDelay) {
+            log.debug("Asked to retry after %d ms, longer than the maximum retry delay, not retrying.", retryAfter);
+            return false;
+        }
+        if (!retryBudget.tryWithdraw(endpoint)) {
+            log.debug("Retry budget of [%s] exhausted, not retrying.", endpoint);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the delay (in ms) requested by the response's Retry-After header, -1 if there is
+     *         none or it can't be parsed.
+     */
+    protected long getRetryAfter(HttpResponse response) {
+        Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        if (StringUtils.isNumeric(value)) {
+            // Delays beyond a few years are as good as never.
+            return value.length() > 9 ? Long.MAX_VALUE : Long.parseLong(value) * 1000;
+        }
+        Date date = DateUtils.parseDate(value);
+        if (date == null) {
+            return -1;
+        }
+        return Math.max(0, date.getTime() - currentTimeMillis());
+    }
+
+    /**
+     * @return the scheme and authority the request is sent to, retries are budgeted per endpoint.
+     */
+    protected String endpointOf(HttpUriRequest request) {
+        URI uri = request.getURI();
+        if (uri == null) {
+            return "";
+        }
+        return String.format("%s://%s", uri.getScheme(), uri.getRawAuthority());
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    protected Executor delayedExecutor(long delay) {
+        return CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS);
+    }
+
     protected boolean isSuccessfulStatusCode(int code) {
         int codeClass = code / 100;
         return codeClass != 4 && codeClass != 5;
     }
+    /**
+     * The state of a request executed by {@link RetryingHttpClientExecutor#executeAsync}, each
+     * attempt is started from the completion of the previous one.
+     */
+    protected class AsyncExecution {
+        protected final LogWrapper log;
+        protected final HttpFactory httpFactory;
+        protected final HttpUriRequest request;
+        protected final int retryCount;
+        protected final Predicate<Integer> statusCodePredicate;
+        protected final String endpoint;
+        protected final ExponentialBackoffTimer timer;
+        protected final CompletableFuture<HttpResponse> result = new CompletableFuture<HttpResponse>();
+        protected int count;
+
+        protected AsyncExecution(LogWrapper log, HttpFactory httpFactory, HttpUriRequest request, int retryCount,
+                Predicate<Integer> statusCodePredicate) {
+            this.log = log;
+            this.httpFactory = httpFactory;
+            this.request = request;
+            this.retryCount = retryCount;
+            this.statusCodePredicate = statusCodePredicate;
+            this.endpoint = endpointOf(request);
+            this.timer = timerFactory.newTimer(delayStep, maximumRetryDelay, jitter);
+        }
+
+        protected void attempt() {
+            if (result.isDone()) {
+                return;
+            }
+            count++;
+            throttle.acquireAsync(endpoint).whenComplete(new BiConsumer<Long, Throwable>() {
+                @Override
+                public void accept(Long waited, Throwable failure) {
+                    if (failure != null) {
+                        result.completeExceptionally(failure instanceof CompletionException ? failure.getCause()
+                                : failure);
+                        return;
+                    }
+                    try {
+                        if (waited > 0) {
+                            log.debug("Waited %d ms before sending request to salt-api endpoint [%s].", waited,
+                                    endpoint);
+                        }
+                        send();
+                    } catch (RuntimeException e) {
+                        // Would otherwise be swallowed by the throttle's future, leaving the result pending.
+                        result.completeExceptionally(e);
+                    }
+                }
+            });
+        }
+
+        protected void send() {
+            final CircuitBreaker.Permit permit = circuitBreaker.tryAcquire(endpoint);
+            if (permit == null) {
+                throttle.release(endpoint);
+                log.debug("Circuit for salt-api endpoint [%s] is open, failing fast.", endpoint);
+                result.completeExceptionally(new CircuitOpenException(String.format(
+                        "Too many recent requests to salt-api endpoint [%s] failed, not sending request.", endpoint)));
+                return;
+            } else if (permit.isProbe()) {
+                log.debug("Probing salt-api endpoint [%s] to close its circuit.", endpoint);
+            }
+            CompletableFuture<HttpResponse> sent;
+            try {
+                sent = httpFactory.executeAsync(request);
+            } catch (RuntimeException e) {
+                throttle.release(endpoint);
+                circuitBreaker.record(permit, false);
+                throw e;
+            }
+            sent.whenComplete(new BiConsumer<HttpResponse, Throwable>() {
+                @Override
+                public void accept(HttpResponse response, Throwable failure) {
+                    throttle.release(endpoint);
+                    try {
+                        if (failure == null) {
+                            int code = response.getStatusLine().getStatusCode();
+                            // Only server errors count against the circuit, anything else means salt-api is up.
+                            circuitBreaker.record(permit, code / 100 != 5);
+                            responded(response, code);
+                        } else {
+                            circuitBreaker.record(permit, false);
+                            failed(failure instanceof CompletionException ? failure.getCause() : failure);
+                        }
+                    } catch (RuntimeException e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            });
+        }
+
+        protected void responded(HttpResponse response, int code) {
+            if (result.isDone()) {
+                EntityUtils.consumeQuietly(response.getEntity());
+            } else if (isSuccessfulStatusCode(code) || !statusCodePredicate.apply(code)) {
+                result.complete(response);
+            } else {
+                log.debug("Encountered recoverable status code: %s", response.getStatusLine());
+                retry(response, null, getRetryAfter(response));
+            }
+        }
+
+        protected void failed(Throwable failure) {
+            if (failure instanceof IOException && isRetryable(log, (IOException) failure)) {
+                retry(null, failure, -1);
+            } else {
+                result.completeExceptionally(failure);
+            }
+        }
+
+        protected void retry(HttpResponse lastResponse, Throwable lastFailure, long retryAfter) {
+            if (count >= retryCount || !mayRetry(log, endpoint, retryAfter)) {
+                if (lastResponse == null) {
+                    result.completeExceptionally(lastFailure);
+                } else {
+                    result.complete(lastResponse);
+                }
+                return;
+            }
+            if (lastResponse != null) {
+                // Hand the connection back before retrying.
+                EntityUtils.consumeQuietly(lastResponse.getEntity());
+            }
+            long delay = retryAfter < 0 ? timer.nextDelay()
+                    : Math.min(maximumRetryDelay, retryAfter + timer.nextDelay());
+            delayedExecutor(delay).execute(new Runnable() {
+                @Override
+                public void run() {
+                    attempt();
+                }
+            });
+        }
+    }
 }
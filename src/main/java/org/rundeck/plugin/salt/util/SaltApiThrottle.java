@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Limits how hard node steps hit each salt-api endpoint, so that large parallel jobs queue up on
+ * the Rundeck side instead of exhausting salt-api's worker threads.
+ * 
+ * Every endpoint has a token bucket limiting the rate at which requests are sent and a limit on
+ * the number of requests awaiting a response. Both are shared by all node steps and either can
+ * be disabled by configuring it as 0.
+ */
+@Component
+public class SaltApiThrottle {
+
+    // Time in ms after which asynchronous callers check again for a free in flight slot.
+    protected static final long SLOT_RECHECK = 10;
+
+    // Requests sent per second to each endpoint, 0 for no limit.
+    @Autowired
+    @Value("${saltApi.throttle.requestsPerSecond}")
+    protected double requestsPerSecond;
+
+    // Number of requests that may be sent at once after a quiet period.
+    @Autowired
+    @Value("${saltApi.throttle.burst}")
+    protected double burst;
+
+    // Requests awaiting a response from each endpoint, 0 for no limit.
+    @Autowired
+    @Value("${saltApi.throttle.maxInFlight}")
+    protected int maxInFlight;
+
+    protected final ConcurrentMap<String, Limits> limits = Maps.newConcurrentMap();
+
+    /**
+     * Waits until a request may be sent to the given endpoint. Every call must be followed by a
+     * call to {@link #release(String)} once the request got a response or failed.
+     * 
+     * @return the time (in ms) spent waiting
+     * @throws InterruptedException
+     *             if interrupted while waiting, in which case nothing needs to be released.
+     */
+    public long acquire(String endpoint) throws InterruptedException {
+        Limits endpointLimits = limitsFor(endpoint);
+        long started = currentTimeMillis();
+        if (requestsPerSecond > 0) {
+            long delay = reserve(endpointLimits);
+            if (delay > 0) {
+                try {
+                    sleep(delay);
+                } catch (InterruptedException e) {
+                    synchronized (endpointLimits) {
+                        endpointLimits.tokens++;
+                    }
+                    throw e;
+                }
+            }
+        }
+        if (endpointLimits.inFlight != null) {
+            endpointLimits.inFlight.acquire();
+        }
+        return currentTimeMillis() - started;
+    }
+
+    /**
+     * Same as {@link #acquire(String)} for asynchronous callers, completing the returned future
+     * once the request may be sent instead of blocking. A caller cancelling the future doesn't
+     * need to call {@link #release(String)}.
+     * 
+     * @return a future completed with the time (in ms) spent waiting
+     */
+    public CompletableFuture<Long> acquireAsync(String endpoint) {
+        final Limits endpointLimits = limitsFor(endpoint);
+        final long started = currentTimeMillis();
+        final CompletableFuture<Long> acquired = new CompletableFuture<Long>();
+        Runnable takeSlot = new Runnable() {
+            @Override
+            public void run() {
+                if (acquired.isDone()) {
+                    return;
+                }
+                if (endpointLimits.inFlight == null) {
+                    acquired.complete(currentTimeMillis() - started);
+                } else if (endpointLimits.inFlight.tryAcquire()) {
+                    if (!acquired.complete(currentTimeMillis() - started)) {
+                        endpointLimits.inFlight.release();
+                    }
+                } else {
+                    delayedExecutor(SLOT_RECHECK).execute(this);
+                }
+            }
+        };
+        long delay = requestsPerSecond > 0 ? reserve(endpointLimits) : 0;
+        if (delay > 0) {
+            delayedExecutor(delay).execute(takeSlot);
+        } else {
+            takeSlot.run();
+        }
+        return acquired;
+    }
+
+    /**
+     * Frees the in flight slot taken by {@link #acquire(String)} or {@link #acquireAsync(String)}.
+     */
+    public void release(String endpoint) {
+        Limits endpointLimits = limitsFor(endpoint);
+        if (endpointLimits.inFlight != null) {
+            endpointLimits.inFlight.release();
+        }
+    }
+
+    /**
+     * Takes a token from the endpoint's bucket. Tokens that aren't there yet are taken all the
+     * same, which queues callers up in the order they arrived.
+     * 
+     * @return the time (in ms) until the taken token is due
+     */
+    protected long reserve(Limits endpointLimits) {
+        synchronized (endpointLimits) {
+            long now = currentTimeMillis();
+            endpointLimits.tokens = Math.min(Math.max(1, burst),
+                    endpointLimits.tokens + (now - endpointLimits.refilled) * requestsPerSecond / 1000D);
+            endpointLimits.refilled = now;
+            endpointLimits.tokens--;
+            if (endpointLimits.tokens >= 0) {
+                return 0;
+            }
+            return (long) Math.ceil(-endpointLimits.tokens * 1000D / requestsPerSecond);
+        }
+    }
+
+    protected Limits limitsFor(String endpoint) {
+        Limits endpointLimits = limits.get(endpoint);
+        if (endpointLimits == null) {
+            Limits newLimits = new Limits(Math.max(1, burst), currentTimeMillis(),
+                    maxInFlight > 0 ? new Semaphore(maxInFlight, true) : null);
+            endpointLimits = limits.putIfAbsent(endpoint, newLimits);
+            if (endpointLimits == null) {
+                endpointLimits = newLimits;
+            }
+        }
+        return endpointLimits;
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    protected void sleep(long delay) throws InterruptedException {
+        Thread.sleep(delay);
+    }
+
+    protected Executor delayedExecutor(long delay) {
+        return CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The rate and in flight limits of a single endpoint.
+     */
+    protected static class Limits {
+        protected final Semaphore inFlight;
+        protected double tokens;
+        protected long refilled;
+
+        protected Limits(double tokens, long refilled, Semaphore inFlight) {
+            this.tokens = tokens;
+            this.refilled = refilled;
+            this.inFlight = inFlight;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs the plugin's background work (job polls, event stream readers) for all node steps.
+ * 
+ * Tasks run on virtual threads when the JVM supports them (Java 21 onwards) and virtual threads
+ * are enabled, so that tasks blocked on salt-api don't each hold a platform thread. Otherwise a
+ * fixed pool of daemon threads is used. Either way, at most a configurable number of tasks per
+ * salt master run at once. The others are queued per salt master until a slot frees up, so
+ * waiting tasks don't hold a thread.
+ */
+@Component
+public class SaltTaskExecutor {
+
+    protected static final String VIRTUAL_THREAD_EXECUTOR_FACTORY = "newVirtualThreadPerTaskExecutor";
+
+    @Autowired
+    @Value("${saltApi.executor.virtualThreads}")
+    protected boolean virtualThreads;
+
+    // Maximum number of tasks running against the same salt-api endpoint at once.
+    @Autowired
+    @Value("${saltApi.executor.maxInFlightPerEndpoint}")
+    protected int maxInFlightPerEndpoint;
+
+    // Number of platform threads running tasks when virtual threads aren't used.
+    @Autowired
+    @Value("${saltApi.executor.threads}")
+    protected int threads;
+
+    protected final ConcurrentMap<String, EndpointQueue> queues = Maps.newConcurrentMap();
+
+    protected ExecutorService executor;
+    protected ExecutorService longRunningExecutor;
+    protected boolean virtual;
+
+    @PostConstruct
+    public void start() {
+        executor = virtualThreads ? newVirtualThreadExecutor() : null;
+        virtual = executor != null;
+        if (virtual) {
+            longRunningExecutor = executor;
+        } else {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("salt-task-%d").build());
+            // Long running tasks would starve the fixed pool, there are few of them.
+            longRunningExecutor = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("salt-stream-%d").build());
+        }
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (longRunningExecutor != null) {
+            longRunningExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return true if tasks run on virtual threads
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * Runs the given task once the endpoint has a free slot.
+     * 
+     * @param endpoint
+     *            the salt-api endpoint the task talks to
+     */
+    public void execute(String endpoint, Runnable task) {
+        queueFor(endpoint).offer(task);
+    }
+
+    /**
+     * Runs the given task once the endpoint has a free slot.
+     * 
+     * @param endpoint
+     *            the salt-api endpoint the task talks to
+     * @return a future completed with the task's result
+     */
+    public <T> ListenableFuture<T> submit(String endpoint, Callable<T> task) {
+        ListenableFutureTask<T> future = ListenableFutureTask.create(task);
+        queueFor(endpoint).offer(future);
+        return future;
+    }
+
+    /**
+     * Runs the given long running task without occupying a slot of any endpoint.
+     */
+    public void execute(Runnable task) {
+        longRunningExecutor.execute(task);
+    }
+
+    protected EndpointQueue queueFor(String endpoint) {
+        EndpointQueue queue = queues.get(endpoint);
+        if (queue == null) {
+            EndpointQueue newQueue = new EndpointQueue();
+            queue = queues.putIfAbsent(endpoint, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * The plugin targets Java 17, so virtual threads are looked up reflectively.
+     * 
+     * @return an executor starting a virtual thread per task, null if the JVM has no virtual threads
+     */
+    protected static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod(VIRTUAL_THREAD_EXECUTOR_FACTORY);
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            // Missing before Java 21 and a preview feature (throwing) on 19 and 20.
+            return null;
+        }
+    }
+
+    /**
+     * The tasks of a single endpoint, handed to the executor as slots free up.
+     */
+    protected class EndpointQueue {
+        protected final Queue<Runnable> waiting = new ArrayDeque<Runnable>();
+        protected int running;
+
+        protected void offer(Runnable task) {
+            synchronized (this) {
+                waiting.add(task);
+            }
+            drain();
+        }
+
+        protected synchronized int getRunning() {
+            return running;
+        }
+
+        protected void drain() {
+            while (true) {
+                final Runnable task;
+                synchronized (this) {
+                    if (running >= maxInFlightPerEndpoint || waiting.isEmpty()) {
+                        return;
+                    }
+                    task = waiting.poll();
+                    running++;
+                }
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                task.run();
+                            } finally {
+                                completed();
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    synchronized (this) {
+                        running--;
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        protected void completed() {
+            synchronized (this) {
+                running--;
+            }
+            drain();
+        }
+    }
+}
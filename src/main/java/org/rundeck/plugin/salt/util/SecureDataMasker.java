@@ -0,0 +1,245 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Chars;
+
+/**
+ * Masks every occurrence of a set of secure values in a single pass over the text.
+ * 
+ * The secure values are compiled into an Aho-Corasick automaton once, so masking is linear in the
+ * length of the text regardless of the number of secure values. Occurrences that overlap are
+ * masked as one.
+ */
+public class SecureDataMasker {
+
+    public static final String DEFAULT_MASK = "****";
+
+    /**
+     * Masks nothing.
+     */
+    public static final SecureDataMasker NONE = new SecureDataMasker(Sets.<String> newHashSet());
+
+    protected final String mask;
+
+    // Input symbols of the first 256 characters are looked up in a table, the alphabet is searched above that.
+    protected static final int SYMBOL_TABLE_SIZE = 256;
+
+    // Sorted characters that appear in secure values, a character's index is its input symbol.
+    protected final char[] alphabet;
+
+    protected final int[] symbolTable = new int[SYMBOL_TABLE_SIZE];
+
+    // State transitions by input symbol, the last symbol stands for characters outside of the alphabet.
+    protected final int[][] transitions;
+
+    // Length of the longest secure value that ends when entering a state, 0 if none.
+    protected final int[] matchLengths;
+
+    // Length of the longest secure value, 0 if none.
+    protected final int maximumLength;
+
+    public SecureDataMasker(Collection<String> secureData) {
+        this(secureData, DEFAULT_MASK);
+    }
+
+    /**
+     * @param secureData
+     *            values to mask, null and empty values are ignored
+     * @param mask
+     *            what every (run of overlapping) occurrence is replaced with
+     */
+    public SecureDataMasker(Collection<String> secureData, String mask) {
+        this.mask = mask;
+        SortedSet<Character> characters = Sets.newTreeSet();
+        List<String> patterns = Lists.newArrayList();
+        int longest = 0;
+        for (String value : secureData) {
+            if (StringUtils.isNotEmpty(value)) {
+                patterns.add(value);
+                longest = Math.max(longest, value.length());
+                for (int i = 0; i < value.length(); i++) {
+                    characters.add(value.charAt(i));
+                }
+            }
+        }
+        this.maximumLength = longest;
+        this.alphabet = Chars.toArray(characters);
+        for (char c = 0; c < SYMBOL_TABLE_SIZE; c++) {
+            int index = Arrays.binarySearch(alphabet, c);
+            symbolTable[c] = index < 0 ? alphabet.length : index;
+        }
+
+        // Build the trie.
+        List<Map<Integer, Integer>> trie = Lists.newArrayList();
+        List<Integer> lengths = Lists.newArrayList();
+        trie.add(Maps.<Integer, Integer> newHashMap());
+        lengths.add(0);
+        for (String pattern : patterns) {
+            int state = 0;
+            for (int i = 0; i < pattern.length(); i++) {
+                int symbol = symbolOf(pattern.charAt(i));
+                Integer next = trie.get(state).get(symbol);
+                if (next == null) {
+                    next = trie.size();
+                    trie.add(Maps.<Integer, Integer> newHashMap());
+                    lengths.add(0);
+                    trie.get(state).put(symbol, next);
+                }
+                state = next;
+            }
+            lengths.set(state, Math.max(lengths.get(state), pattern.length()));
+        }
+
+        // Turn it into a DFA breadth first, following failure links for missing transitions.
+        int symbols = alphabet.length + 1;
+        this.transitions = new int[trie.size()][symbols];
+        this.matchLengths = new int[trie.size()];
+        int[] failures = new int[trie.size()];
+        int[] queue = new int[trie.size()];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = 0;
+        while (head < tail) {
+            int state = queue[head++];
+            matchLengths[state] = Math.max(lengths.get(state), state == 0 ? 0 : matchLengths[failures[state]]);
+            for (int symbol = 0; symbol < symbols; symbol++) {
+                Integer next = trie.get(state).get(symbol);
+                if (next == null) {
+                    transitions[state][symbol] = state == 0 ? 0 : transitions[failures[state]][symbol];
+                } else {
+                    failures[next] = state == 0 ? 0 : transitions[failures[state]][symbol];
+                    transitions[state][symbol] = next;
+                    queue[tail++] = next;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the given value with every occurrence of the secure data masked, the value itself if
+     *         it contains none
+     */
+    public String mask(String value) {
+        if (value == null || alphabet.length == 0) {
+            return value;
+        }
+        int[] ranges = findRanges(value);
+        if (ranges.length == 0) {
+            return value;
+        }
+
+        StringBuilder masked = new StringBuilder(value.length());
+        int position = 0;
+        for (int range = 0; range < ranges.length; range += 2) {
+            masked.append(value, position, ranges[range]).append(mask);
+            position = ranges[range + 1];
+        }
+        return masked.append(value, position, value.length()).toString();
+    }
+
+    /**
+     * @return the length of the longest secure value, 0 if there is none. Text split in parts
+     *         that overlap by one less than it can be masked part by part.
+     */
+    public int getMaximumLength() {
+        return maximumLength;
+    }
+
+    /**
+     * Finds where the given text can be split without splitting an occurrence of the secure data,
+     * so that each part can be masked on its own. Only occurrences held whole by the text are
+     * found.
+     * 
+     * @return the given position, or the start of the (run of overlapping) occurrences spanning it,
+     *         or their end if they start the text.
+     */
+    public int splitPosition(CharSequence text, int position) {
+        if (alphabet.length == 0) {
+            return position;
+        }
+        int[] ranges = findRanges(text);
+        for (int range = 0; range < ranges.length; range += 2) {
+            if (ranges[range] < position && position < ranges[range + 1]) {
+                return ranges[range] > 0 ? ranges[range] : ranges[range + 1];
+            }
+        }
+        return position;
+    }
+
+    /**
+     * @return the start and end (exclusive) of every range of the given text to mask, overlapping
+     *         ranges merged.
+     */
+    protected int[] findRanges(CharSequence value) {
+        int[] ranges = null;
+        int rangeCount = 0;
+        int state = 0;
+        for (int i = 0; i < value.length(); i++) {
+            state = transitions[state][symbolOf(value.charAt(i))];
+            int matchLength = matchLengths[state];
+            if (matchLength == 0) {
+                continue;
+            }
+            int start = i + 1 - matchLength;
+            if (ranges == null) {
+                ranges = new int[8];
+            }
+            // A longer match may reach back over ranges found before it.
+            while (rangeCount > 0 && start < ranges[2 * rangeCount - 1]) {
+                start = Math.min(start, ranges[2 * rangeCount - 2]);
+                rangeCount--;
+            }
+            if (2 * rangeCount + 2 > ranges.length) {
+                ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            }
+            ranges[2 * rangeCount] = start;
+            ranges[2 * rangeCount + 1] = i + 1;
+            rangeCount++;
+        }
+        return ranges == null ? new int[0] : Arrays.copyOf(ranges, 2 * rangeCount);
+    }
+
+    protected int symbolOf(char c) {
+        if (c < SYMBOL_TABLE_SIZE) {
+            return symbolTable[c];
+        }
+        int index = Arrays.binarySearch(alphabet, c);
+        return index < 0 ? alphabet.length : index;
+    }
+}
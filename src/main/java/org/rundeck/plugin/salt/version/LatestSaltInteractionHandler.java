@@ -8,6 +8,10 @@ import org.rundeck.plugin.salt.SaltApiException;
 import org.rundeck.plugin.salt.output.SaltApiResponseOutput;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
 
 /**
@@ -16,6 +20,8 @@ import com.google.gson.reflect.TypeToken;
 public class LatestSaltInteractionHandler implements SaltInteractionHandler {
 
     protected static final String SALT_OUTPUT_RETURN_KEY = "return";
+    protected static final String SALT_TOKEN_START_KEY = "start";
+    protected static final String SALT_TOKEN_EXPIRE_KEY = "expire";
     protected static final Type MINION_RESPONSE_TYPE = new TypeToken<Map<String, Object>>() {}.getType();
     protected static final Type LIST_OF_SALT_API_RESPONSE_TYPE = new TypeToken<List<SaltApiResponseOutput>>() {}.getType();
 
@@ -36,4 +42,40 @@ public class LatestSaltInteractionHandler implements SaltInteractionHandler {
         
         return saltOutputs.get(0);
     }
+
+    @Override
+    public Long extractTokenLifetimeForLoginResponse(String json) {
+        /**
+         * The response currently looks like: {"return": [{"token": "6bea2de5...", "start":
+         * 1378242552.31, "expire": 1378285752.31, "user": "user", "eauth": "pam", "perms": [...]}]}
+         * 
+         * start and expire are in the salt master's clock, so only their difference is used.
+         */
+        if (json == null) {
+            return null;
+        }
+        try {
+            JsonElement response = JsonParser.parseString(json);
+            if (!response.isJsonObject()) {
+                return null;
+            }
+            JsonElement returns = response.getAsJsonObject().get(SALT_OUTPUT_RETURN_KEY);
+            if (returns == null || !returns.isJsonArray() || returns.getAsJsonArray().size() != 1
+                    || !returns.getAsJsonArray().get(0).isJsonObject()) {
+                return null;
+            }
+            JsonObject token = returns.getAsJsonArray().get(0).getAsJsonObject();
+            JsonElement start = token.get(SALT_TOKEN_START_KEY);
+            JsonElement expire = token.get(SALT_TOKEN_EXPIRE_KEY);
+            if (start == null || expire == null || !start.isJsonPrimitive() || !expire.isJsonPrimitive()) {
+                return null;
+            }
+            double lifetime = expire.getAsDouble() - start.getAsDouble();
+            return lifetime > 0 ? (long) (lifetime * 1000) : null;
+        } catch (JsonParseException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
 }
@@ -35,4 +35,10 @@ public class Pre082SaltInteractionHandler implements SaltInteractionHandler {
         Map<String, Object> responseMap = responses.get(0);
         return gson.fromJson(responseMap.get(SALT_OUTPUT_RETURN_KEY).toString(), SaltApiResponseOutput.class);
     }
+
+    @Override
+    public Long extractTokenLifetimeForLoginResponse(String json) {
+        // Login responses of these versions aren't interpreted, the default token lifetime applies.
+        return null;
+    }
 }
@@ -64,6 +64,11 @@ public class SaltApiCapability implements Cloneable {
             return this;
         }
         
+        public Builder supportsEvents() {
+            origin.supportsEvents = true;
+            return this;
+        }
+
         public Builder withSaltInteractionHandler(SaltInteractionHandler interactionHandler) {
             origin.interactionHandler = interactionHandler;
             return this;
@@ -78,6 +83,7 @@ public class SaltApiCapability implements Cloneable {
     private int loginSuccessResponseCode;
     private int loginFailureResponseCode;
     private boolean supportsLogout = false;
+    private boolean supportsEvents = false;
     private SaltInteractionHandler interactionHandler;
     
     public String getId() {
@@ -96,6 +102,10 @@ public class SaltApiCapability implements Cloneable {
         return supportsLogout;
     }
     
+    public boolean getSupportsEvents() {
+        return supportsEvents;
+    }
+
     public SaltInteractionHandler getSaltInteractionHandler() {
         return interactionHandler;
     }
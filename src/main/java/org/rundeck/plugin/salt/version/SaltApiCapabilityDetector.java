@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.version;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.PostConstruct;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.rundeck.plugin.salt.util.HttpFactory;
+import org.rundeck.plugin.salt.util.LogWrapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.base.Optional;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Detects the version of a salt-api endpoint from its root (GET /) response, once per endpoint.
+ * 
+ * Detected capabilities are cached for a configurable time, so that node steps against the same
+ * endpoint neither probe again nor have to guess. Endpoints whose version couldn't be determined
+ * are cached as such, while probes that failed to communicate are retried by the next node step.
+ * 
+ * The response is interpreted as follows:
+ * <ul>
+ * <li>A <code>salt-api/&lt;version&gt;</code> product token in the Server header names the version.</li>
+ * <li>A JSON object listing the available <code>clients</code> is served from 0.8.2 onwards.</li>
+ * <li>A JSON object with just a <code>return</code> welcome message is served by 0.8.0.</li>
+ * <li>A redirect to the login page is served by releases before 0.8.0.</li>
+ * </ul>
+ */
+@Component
+public class SaltApiCapabilityDetector {
+
+    protected static final Pattern SERVER_VERSION_PATTERN = Pattern.compile("salt-api/(\\d+(?:\\.\\d+)*)");
+    protected static final String ROOT_RESOURCE = "/";
+    protected static final String LOGIN_RESOURCE = "/login";
+    protected static final String CLIENTS_KEY = "clients";
+    protected static final String RETURN_KEY = "return";
+    protected static final String JSON_RESPONSE_ACCEPT_TYPE = "application/json";
+
+    // Time in ms a detected capability is used for before the endpoint is probed again.
+    @Autowired
+    @Value("${saltApi.capabilityDetection.ttl}")
+    protected long ttl;
+
+    // Time in ms to wait for the probe to connect and respond.
+    @Autowired
+    @Value("${saltApi.capabilityDetection.timeout}")
+    protected int timeout;
+
+    @Autowired
+    protected HttpFactory httpFactory;
+
+    @Autowired
+    protected SaltApiVersionCapabilityRegistry capabilityRegistry;
+
+    protected Cache<String, Optional<SaltApiCapability>> capabilities;
+
+    @PostConstruct
+    public void initialize() {
+        capabilities = CacheBuilder.newBuilder().expireAfterWrite(ttl, TimeUnit.MILLISECONDS).build();
+    }
+
+    /**
+     * Returns the capability of the given endpoint, probing it if it hasn't been recently.
+     * Concurrent callers for the same endpoint wait for a single probe.
+     * 
+     * @return the detected capability or null if it couldn't be determined
+     */
+    public SaltApiCapability detect(final LogWrapper log, final String endpoint) {
+        try {
+            return capabilities.get(endpoint, new Callable<Optional<SaltApiCapability>>() {
+                @Override
+                public Optional<SaltApiCapability> call() throws Exception {
+                    SaltApiCapability capability = probe(endpoint);
+                    if (capability == null) {
+                        log.debug("Unable to detect salt-api version of [%s]", endpoint);
+                    } else {
+                        log.debug("Detected salt-api version [%s] at [%s]", capability.getId(), endpoint);
+                    }
+                    return Optional.fromNullable(capability);
+                }
+            }).orNull();
+        } catch (ExecutionException e) {
+            log.debug("Unable to probe salt-api version of [%s]: %s", endpoint, e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the capability detected for the given endpoint, e.g. after it was upgraded.
+     */
+    public void invalidate(String endpoint) {
+        capabilities.invalidate(endpoint);
+    }
+
+    protected SaltApiCapability probe(String endpoint) throws IOException {
+        HttpGet get = httpFactory.createHttpGet(endpoint + ROOT_RESOURCE);
+        get.setHeader(HttpHeaders.ACCEPT, JSON_RESPONSE_ACCEPT_TYPE);
+        get.setConfig(RequestConfig.custom().setConnectTimeout(timeout).setSocketTimeout(timeout)
+                .setConnectionRequestTimeout(timeout).setRedirectsEnabled(false).build());
+        try {
+            HttpResponse response = httpFactory.createHttpClient().execute(get);
+            try {
+                String body = response.getEntity() == null ? null : EntityUtils.toString(response.getEntity());
+                return interpret(response.getStatusLine().getStatusCode(),
+                        response.getFirstHeader(HttpHeaders.SERVER), response.getFirstHeader(HttpHeaders.LOCATION),
+                        body);
+            } finally {
+                EntityUtils.consumeQuietly(response.getEntity());
+            }
+        } finally {
+            get.releaseConnection();
+        }
+    }
+
+    /**
+     * @return the capability matching the root response or null if it's not recognized
+     */
+    protected SaltApiCapability interpret(int statusCode, Header server, Header location, String body) {
+        if (server != null) {
+            Matcher matcher = SERVER_VERSION_PATTERN.matcher(server.getValue());
+            if (matcher.find()) {
+                return capabilityRegistry.getCapability(matcher.group(1));
+            }
+        }
+        if (statusCode == HttpStatus.SC_OK && body != null) {
+            JsonElement root;
+            try {
+                root = JsonParser.parseString(body);
+            } catch (JsonParseException e) {
+                return null;
+            }
+            if (!root.isJsonObject()) {
+                return null;
+            }
+            JsonObject welcome = root.getAsJsonObject();
+            if (welcome.has(CLIENTS_KEY)) {
+                return SaltApiVersionCapabilityRegistry.VERSION_0_8_2;
+            } else if (welcome.has(RETURN_KEY)) {
+                return SaltApiVersionCapabilityRegistry.VERSION_0_8_0;
+            }
+        } else if (statusCode == HttpStatus.SC_MOVED_TEMPORARILY && location != null
+                && location.getValue().endsWith(LOGIN_RESOURCE)) {
+            return SaltApiVersionCapabilityRegistry.VERSION_0_7_5;
+        }
+        return null;
+    }
+}
@@ -57,6 +57,7 @@ public class SaltApiVersionCapabilityRegistry {
     public static final SaltApiCapability VERSION_0_8_2 = Builder.from(VERSION_0_8_0)
             .withId("0.8.2")
             .withSaltInteractionHandler(new LatestSaltInteractionHandler())
+            .supportsEvents()
             .build();
 
     protected SortedMap<String, SaltApiCapability> versionRegistry;
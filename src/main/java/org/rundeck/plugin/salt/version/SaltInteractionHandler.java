@@ -16,4 +16,13 @@ public interface SaltInteractionHandler {
      * @throws SaltApiException if no response is found. 
      */
     SaltApiResponseOutput extractOutputForJobSubmissionResponse(String json) throws SaltApiException;
+
+    /**
+     * Invoked to determine the lifetime of the token issued by a successful /login.
+     * 
+     * @param json
+     *            the login response body, may be null
+     * @return the token's lifetime in ms or null if the response doesn't say.
+     */
+    Long extractTokenLifetimeForLoginResponse(String json);
 }
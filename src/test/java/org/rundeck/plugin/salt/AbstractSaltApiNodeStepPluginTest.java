@@ -31,6 +31,8 @@ import com.dtolabs.rundeck.plugins.PluginLogger;
 import com.dtolabs.rundeck.plugins.step.PluginStepContext;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Maps;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
@@ -42,22 +44,26 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHeader;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.rundeck.plugin.salt.auth.SaltApiTokenCache;
+import org.rundeck.plugin.salt.output.JsonSaltReturnHandler;
 import org.rundeck.plugin.salt.output.SaltReturnHandler;
 import org.rundeck.plugin.salt.output.SaltReturnHandlerRegistry;
-import org.rundeck.plugin.salt.util.ExponentialBackoffTimer;
-import org.rundeck.plugin.salt.util.ExponentialBackoffTimer.Factory;
 import org.rundeck.plugin.salt.util.HttpFactory;
 import org.rundeck.plugin.salt.util.LogWrapper;
 import org.rundeck.plugin.salt.util.RetryingHttpClientExecutor;
 import org.rundeck.plugin.salt.version.SaltApiCapability;
+import org.rundeck.plugin.salt.version.SaltApiCapabilityDetector;
 
+import java.io.StringReader;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public abstract class AbstractSaltApiNodeStepPluginTest {
 
@@ -71,6 +77,7 @@ public abstract class AbstractSaltApiNodeStepPluginTest {
     protected static final String AUTH_TOKEN = "123qwe";
     protected static final String OUTPUT_JID = "20130213093536481553";
     protected static final String HOST_RESPONSE = "\"some response\"";
+    protected static final JsonElement HOST_RESPONSE_JSON = JsonParser.parseString(HOST_RESPONSE);
 
     // Plugin inputs from rundeck
     protected INodeEntry node;
@@ -94,9 +101,7 @@ public abstract class AbstractSaltApiNodeStepPluginTest {
     // Plugin dependencies
     protected SaltApiCapability latestCapability;
     protected SaltReturnHandlerRegistry returnHandlerRegistry;
-    protected SaltReturnHandler returnHandler;
-    protected ExponentialBackoffTimer timer;
-    protected Factory timerFactory;
+    protected JsonSaltReturnHandler returnHandler;
     protected LogWrapper log;
     protected RetryingHttpClientExecutor retryingExecutor;
 
@@ -146,8 +151,8 @@ public abstract class AbstractSaltApiNodeStepPluginTest {
         // Return handler dependencies
         returnHandlerRegistry = Mockito.mock(SaltReturnHandlerRegistry.class);
         plugin.returnHandlerRegistry = returnHandlerRegistry;
-        returnHandler = Mockito.mock(SaltReturnHandler.class);
-        Mockito.when(returnHandlerRegistry.getHandlerFor(Mockito.anyString(), Mockito.any(SaltReturnHandler.class)))
+        returnHandler = Mockito.mock(JsonSaltReturnHandler.class);
+        Mockito.when(returnHandlerRegistry.getJsonHandlerFor(Mockito.anyString(), Mockito.any(SaltReturnHandler.class)))
                 .thenReturn(returnHandler);
 
         // Setup execute method's arguments
@@ -167,16 +172,25 @@ public abstract class AbstractSaltApiNodeStepPluginTest {
         dataContext.put(SaltApiNodeStepPlugin.RUNDECK_SECURE_DATA_CONTEXT_OPTION_KEY, secureOptionContext);
         Mockito.when(pluginContext.getDataContext()).thenReturn(dataContext);
 
-        timerFactory = Mockito.mock(Factory.class);
-        timer = Mockito.mock(ExponentialBackoffTimer.class);
-        Mockito.when(timerFactory.newTimer(Mockito.anyLong(), Mockito.anyLong())).thenReturn(timer);
-        plugin.timerFactory = timerFactory;
-
         log = Mockito.mock(LogWrapper.class);
         plugin.logWrapper = log;
+        plugin.outputChunkSize = 8192;
+        plugin.maximumOutput = 1024 * 1024;
 
         retryingExecutor = Mockito.mock(RetryingHttpClientExecutor.class);
         plugin.retryExecutor = retryingExecutor;
+
+        // Versions are only detected where tests ask for it.
+        plugin.capabilityDetector = Mockito.mock(SaltApiCapabilityDetector.class);
+
+        // Tokens must not leak between tests through the shared cache.
+        plugin.tokenCache = new SaltApiTokenCache(TimeUnit.HOURS.toMillis(12), TimeUnit.MINUTES.toMillis(1),
+                TimeUnit.MINUTES.toMillis(10));
+    }
+
+    @After
+    public void tearDown() {
+        SaltStepExecution.bind(null);
     }
 
     protected AbstractSaltApiNodeStepPluginTest spyPlugin() {
@@ -215,6 +229,10 @@ public abstract class AbstractSaltApiNodeStepPluginTest {
             Mockito.when(response.getStatusLine()).thenReturn(statusLine);
             Mockito.when(statusLine.getStatusCode()).thenReturn(code);
             Mockito.doReturn(responseBody).when(plugin).extractBodyFromEntity(Mockito.same(responseEntity));
+            if (responseBody != null) {
+                Mockito.doReturn(new StringReader(responseBody)).when(plugin)
+                        .openEntityContent(Mockito.same(responseEntity));
+            }
             Mockito.when(
                     retryingExecutor.execute(Mockito.any(LogWrapper.class), Mockito.same(client), Mockito.same(method),
                             Mockito.anyInt())).thenReturn(response);
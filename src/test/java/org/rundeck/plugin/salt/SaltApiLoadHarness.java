@@ -0,0 +1,291 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.mockito.Mockito;
+import org.rundeck.plugin.salt.simulator.SaltApiSimulator;
+import org.rundeck.plugin.salt.version.SaltApiVersionCapabilityRegistry;
+
+import com.dtolabs.rundeck.core.common.INodeEntry;
+import com.dtolabs.rundeck.core.execution.workflow.steps.node.NodeStepException;
+import com.dtolabs.rundeck.plugins.PluginLogger;
+import com.dtolabs.rundeck.plugins.step.PluginStepContext;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Drives many concurrent node steps against a {@link SaltApiSimulator} and reports step latency
+ * percentiles and the number of salt-api requests issued per step.
+ * 
+ * Run with <code>./gradlew loadTest -PloadTestArgs="--steps 5000 --concurrency 500"</code>.
+ */
+public class SaltApiLoadHarness {
+
+    protected static final String USER = "saltdev";
+    protected static final String PASSWORD = "saltdev";
+    protected static final String EAUTH = "pam";
+
+    protected int steps = 1000;
+    protected int concurrency = 100;
+    protected int minions = 100;
+    protected String function = "cmd.run_all echo hello";
+    protected boolean eventCompletion;
+    protected SaltApiSimulator.Builder simulatorBuilder = new SaltApiSimulator.Builder();
+
+    /**
+     * The outcome of a load test run.
+     */
+    public static class Report {
+        protected final int steps;
+        protected final int failures;
+        protected final long elapsed;
+        protected final long[] latencies;
+        protected final Map<String, Long> requestCounts;
+
+        protected Report(int steps, int failures, long elapsed, long[] latencies, Map<String, Long> requestCounts) {
+            this.steps = steps;
+            this.failures = failures;
+            this.elapsed = elapsed;
+            this.latencies = latencies;
+            this.requestCounts = requestCounts;
+        }
+
+        public int getSteps() {
+            return steps;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return the step latency in ms at the given percentile (0 to 100)
+         */
+        public long getLatencyPercentile(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, Math.min(latencies.length - 1, index))];
+        }
+
+        public Map<String, Long> getRequestCounts() {
+            return requestCounts;
+        }
+
+        public double getRequestsPerStep() {
+            long total = 0;
+            for (Long count : requestCounts.values()) {
+                total += count;
+            }
+            return steps == 0 ? 0 : (double) total / steps;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(String.format("steps: %d, failures: %d, elapsed: %d ms, throughput: %.1f steps/s%n",
+                    steps, failures, elapsed, elapsed == 0 ? 0 : steps * 1000.0 / elapsed));
+            report.append(String.format("latency p50: %d ms, p99: %d ms, max: %d ms%n", getLatencyPercentile(50),
+                    getLatencyPercentile(99), getLatencyPercentile(100)));
+            report.append(String.format("requests per step: %.2f%n", getRequestsPerStep()));
+            for (Map.Entry<String, Long> entry : requestCounts.entrySet()) {
+                report.append(String.format("  %s: %.2f%n", entry.getKey(), (double) entry.getValue() / steps));
+            }
+            return report.toString();
+        }
+    }
+
+    public SaltApiLoadHarness withSteps(int steps) {
+        this.steps = steps;
+        return this;
+    }
+
+    public SaltApiLoadHarness withConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * @param minions
+     *            number of distinct minions the steps are spread across
+     */
+    public SaltApiLoadHarness withMinions(int minions) {
+        this.minions = minions;
+        return this;
+    }
+
+    public SaltApiLoadHarness withFunction(String function) {
+        this.function = function;
+        return this;
+    }
+
+    public SaltApiLoadHarness withEventCompletion(boolean eventCompletion) {
+        this.eventCompletion = eventCompletion;
+        return this;
+    }
+
+    public SaltApiLoadHarness withSimulator(SaltApiSimulator.Builder simulatorBuilder) {
+        this.simulatorBuilder = simulatorBuilder;
+        return this;
+    }
+
+    public Report run() throws Exception {
+        SaltApiSimulator simulator = simulatorBuilder.withCredentials(USER, PASSWORD).build();
+        simulator.start();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("salt-load-%d").build());
+        try {
+            // Warm up the plugin's shared state (spring context, token cache, connection pool).
+            new StepRunner(simulator, 0).call();
+            simulator.resetRequestCounts();
+
+            final CountDownLatch start = new CountDownLatch(1);
+            List<Future<Long>> results = Lists.newArrayListWithCapacity(steps);
+            for (int i = 0; i < steps; i++) {
+                final StepRunner runner = new StepRunner(simulator, i);
+                results.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        start.await();
+                        return runner.call();
+                    }
+                }));
+            }
+            long started = System.nanoTime();
+            start.countDown();
+
+            long[] latencies = new long[steps];
+            int completed = 0;
+            int failures = 0;
+            for (Future<Long> result : results) {
+                Long latency = result.get();
+                if (latency == null) {
+                    failures++;
+                } else {
+                    latencies[completed++] = latency;
+                }
+            }
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            latencies = Arrays.copyOf(latencies, completed);
+            Arrays.sort(latencies);
+            return new Report(steps, failures, elapsed, latencies, simulator.getRequestCounts());
+        } finally {
+            executor.shutdownNow();
+            simulator.stop();
+        }
+    }
+
+    /**
+     * Executes a single node step, returning its latency in ms or null if it failed.
+     */
+    protected class StepRunner implements Callable<Long> {
+        protected final SaltApiSimulator simulator;
+        protected final int step;
+
+        protected StepRunner(SaltApiSimulator simulator, int step) {
+            this.simulator = simulator;
+            this.step = step;
+        }
+
+        @Override
+        public Long call() {
+            SaltApiNodeStepPlugin plugin = new SaltApiNodeStepPlugin();
+            plugin.setEndPointSchemes("http,https");
+            plugin.saltEndpoint = simulator.getEndpoint();
+            plugin.saltApiVersion = simulator.getVersion().getId();
+            plugin.eAuth = EAUTH;
+            plugin.function = function;
+            plugin.eventCompletion = eventCompletion;
+
+            Map<String, Map<String, String>> dataContext = Maps.newHashMap();
+            dataContext.put(SaltApiNodeStepPlugin.RUNDECK_DATA_CONTEXT_OPTION_KEY, ImmutableMap.of(
+                    SaltApiNodeStepPlugin.SALT_USER_OPTION_NAME, USER, SaltApiNodeStepPlugin.SALT_PASSWORD_OPTION_NAME,
+                    PASSWORD));
+            PluginStepContext context = Mockito.mock(PluginStepContext.class);
+            Mockito.when(context.getDataContext()).thenReturn(dataContext);
+            Mockito.when(context.getLogger()).thenReturn(Mockito.mock(PluginLogger.class));
+            INodeEntry node = Mockito.mock(INodeEntry.class);
+            Mockito.when(node.getNodename()).thenReturn(String.format("minion-%05d", step % minions));
+
+            long started = System.nanoTime();
+            try {
+                plugin.executeNodeStep(context, Maps.<String, Object> newHashMap(), node);
+                return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            } catch (NodeStepException e) {
+                return null;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SaltApiLoadHarness harness = new SaltApiLoadHarness();
+        SaltApiSimulator.Builder simulator = new SaltApiSimulator.Builder();
+        SaltApiVersionCapabilityRegistry registry = new SaltApiVersionCapabilityRegistry();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            if ("--steps".equals(args[i])) {
+                harness.withSteps(Integer.parseInt(value));
+            } else if ("--concurrency".equals(args[i])) {
+                harness.withConcurrency(Integer.parseInt(value));
+            } else if ("--minions".equals(args[i])) {
+                harness.withMinions(Integer.parseInt(value));
+            } else if ("--function".equals(args[i])) {
+                harness.withFunction(value);
+            } else if ("--eventCompletion".equals(args[i])) {
+                harness.withEventCompletion(Boolean.parseBoolean(value));
+            } else if ("--version".equals(args[i])) {
+                simulator.withVersion(registry.getCapability(value));
+            } else if ("--latency".equals(args[i])) {
+                simulator.withLatency(Long.parseLong(value));
+            } else if ("--jobDuration".equals(args[i])) {
+                simulator.withJobDuration(Long.parseLong(value));
+            } else if ("--outputBytes".equals(args[i])) {
+                simulator.withOutputBytes(Integer.parseInt(value));
+            } else if ("--failureRate".equals(args[i])) {
+                simulator.withFailureRate(Double.parseDouble(value));
+            } else if ("--jobFailureRate".equals(args[i])) {
+                simulator.withJobFailureRate(Double.parseDouble(value));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        System.out.print(harness.withSimulator(simulator).run());
+    }
+}
@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.rundeck.plugin.salt.simulator.SaltApiSimulator;
+import org.rundeck.plugin.salt.version.SaltApiCapability;
+import org.rundeck.plugin.salt.version.SaltApiVersionCapabilityRegistry;
+
+public class SaltApiLoadHarnessTest {
+
+    protected SaltApiLoadHarness.Report run(SaltApiCapability version, boolean eventCompletion) throws Exception {
+        return new SaltApiLoadHarness().withSteps(20).withConcurrency(10).withMinions(5)
+                .withEventCompletion(eventCompletion)
+                .withSimulator(new SaltApiSimulator.Builder().withVersion(version).withJobDuration(10)).run();
+    }
+
+    @Test
+    public void testRunAgainstPre080() throws Exception {
+        assertSuccessful(run(SaltApiVersionCapabilityRegistry.VERSION_0_7_5, false));
+    }
+
+    @Test
+    public void testRunAgainst080() throws Exception {
+        assertSuccessful(run(SaltApiVersionCapabilityRegistry.VERSION_0_8_0, false));
+    }
+
+    @Test
+    public void testRunAgainstLatest() throws Exception {
+        assertSuccessful(run(SaltApiVersionCapabilityRegistry.VERSION_0_8_2, false));
+    }
+
+    @Test
+    public void testRunAgainstLatestWithEventCompletion() throws Exception {
+        assertSuccessful(run(SaltApiVersionCapabilityRegistry.VERSION_0_8_2, true));
+    }
+
+    @Test
+    public void testRunReportsFailedSteps() throws Exception {
+        SaltApiLoadHarness.Report report = new SaltApiLoadHarness().withSteps(5).withConcurrency(5)
+                .withSimulator(new SaltApiSimulator.Builder().withJobDuration(10).withJobFailureRate(1)).run();
+
+        Assert.assertEquals(5, report.getFailures());
+    }
+
+    protected void assertSuccessful(SaltApiLoadHarness.Report report) {
+        Assert.assertEquals("Expected every step to succeed: " + report, 0, report.getFailures());
+        Assert.assertEquals(20, report.getSteps());
+        Assert.assertTrue(report.getLatencyPercentile(99) >= report.getLatencyPercentile(50));
+        Assert.assertTrue("Expected at least a submission per step", report.getRequestsPerStep() >= 1);
+    }
+}
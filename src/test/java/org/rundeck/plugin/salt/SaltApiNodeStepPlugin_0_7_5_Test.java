@@ -32,7 +32,11 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.rundeck.plugin.salt.output.SaltOutputLogger;
 import org.rundeck.plugin.salt.output.SaltReturnResponse;
+import org.rundeck.plugin.salt.util.SecureDataMasker;
+
+import com.google.gson.JsonElement;
 
 public class SaltApiNodeStepPlugin_0_7_5_Test extends AbstractSaltApiNodeStepPlugin_BackwardsCompatabilityTest {
 
@@ -69,11 +73,12 @@ public class SaltApiNodeStepPlugin_0_7_5_Test extends AbstractSaltApiNodeStepPlu
     @Test
     public void testDoesNotAttemptToLogout() throws Exception {
         setupAuthenticate();
-        Mockito.doReturn("foo").when(plugin).submitJob(Mockito.same(legacyCapability), Mockito.any(HttpClient.class), Mockito.anyString(), Mockito.anyString(), Mockito.anySet());
+        Mockito.doReturn("foo").when(plugin).submitJob(Mockito.same(legacyCapability), Mockito.any(HttpClient.class), Mockito.anyString(), Mockito.anyString(), Mockito.any(SecureDataMasker.class));
         Mockito.doReturn("foo").when(plugin).waitForJidResponse(Mockito.any(HttpClient.class), Mockito.anyString(), Mockito.anyString(), Mockito.anyString());
         SaltReturnResponse response = new SaltReturnResponse();
         response.setExitCode(0);
-        Mockito.doReturn(response).when(returnHandler).extractResponse(Mockito.anyString());
+        Mockito.doReturn(response).when(returnHandler)
+                .extractResponse(Mockito.any(JsonElement.class), Mockito.any(SaltOutputLogger.class));
 
         plugin.executeNodeStep(pluginContext, configuration, node);
         Mockito.verify(plugin, Mockito.never()).logoutQuietly(Mockito.any(HttpClient.class), Mockito.anyString());
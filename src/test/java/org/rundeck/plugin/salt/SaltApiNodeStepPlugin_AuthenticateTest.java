@@ -31,6 +31,7 @@ import org.apache.http.HttpStatus;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.Mockito;
 
 public class SaltApiNodeStepPlugin_AuthenticateTest extends AbstractSaltApiNodeStepPluginTest {
 
@@ -49,6 +50,40 @@ public class SaltApiNodeStepPlugin_AuthenticateTest extends AbstractSaltApiNodeS
         assertThatAuthenticationAttemptedSuccessfully();
     }
 
+    @Test
+    public void testAuthenticateReusesCachedToken() throws Exception {
+        setupAuthenticationHeadersOnPost(HttpStatus.SC_OK);
+
+        plugin.authenticate(latestCapability, client, PARAM_USER, PARAM_PASSWORD);
+        Assert.assertEquals("Expected cached auth token", AUTH_TOKEN,
+                plugin.authenticate(latestCapability, client, PARAM_USER, PARAM_PASSWORD));
+
+        assertThatAuthenticationAttemptedSuccessfully();
+    }
+
+    @Test
+    public void testAuthenticateAfterTokenEvicted() throws Exception {
+        setupAuthenticationHeadersOnPost(HttpStatus.SC_OK);
+
+        plugin.authenticate(latestCapability, client, PARAM_USER, PARAM_PASSWORD);
+        plugin.tokenCache.evict(AUTH_TOKEN);
+        plugin.authenticate(latestCapability, client, PARAM_USER, PARAM_PASSWORD);
+
+        Mockito.verify(plugin, Mockito.times(2)).login(Mockito.same(latestCapability), Mockito.same(client),
+                Mockito.eq(PARAM_USER), Mockito.eq(PARAM_PASSWORD));
+    }
+
+    @Test
+    public void testAuthenticateFailureIsNotCached() throws Exception {
+        setupResponseCode(post, HttpStatus.SC_UNAUTHORIZED);
+
+        plugin.authenticate(latestCapability, client, PARAM_USER, PARAM_PASSWORD);
+        plugin.authenticate(latestCapability, client, PARAM_USER, PARAM_PASSWORD);
+
+        Mockito.verify(plugin, Mockito.times(2)).login(Mockito.same(latestCapability), Mockito.same(client),
+                Mockito.eq(PARAM_USER), Mockito.eq(PARAM_PASSWORD));
+    }
+
     @Test
     public void testAuthenticateFailure() throws Exception {
         setupResponseCode(post, HttpStatus.SC_UNAUTHORIZED);
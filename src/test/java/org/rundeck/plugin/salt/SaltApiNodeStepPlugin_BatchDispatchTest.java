@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.rundeck.plugin.salt.output.SaltApiResponseOutput;
+import org.rundeck.plugin.salt.output.SaltOutputLogger;
+import org.rundeck.plugin.salt.output.SaltReturnResponse;
+import org.rundeck.plugin.salt.util.SecureDataMasker;
+import org.rundeck.plugin.salt.version.SaltInteractionHandler;
+
+import com.dtolabs.rundeck.core.common.INodeSet;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.gson.JsonElement;
+
+public class SaltApiNodeStepPlugin_BatchDispatchTest extends AbstractSaltApiNodeStepPluginTest {
+
+    protected static final String OTHER_MINION_NAME = "other";
+
+    protected Map<String, String> jobContext;
+    protected INodeSet nodes;
+
+    @Before
+    public void setup() throws Exception {
+        spyPlugin();
+        latestCapability = Mockito.spy(latestCapability);
+        plugin.batchDispatch = true;
+        Mockito.when(plugin.getSaltApiCapability()).thenReturn(latestCapability);
+
+        jobContext = Maps.newHashMap();
+        // Batches are shared through the plugin's dispatcher, keep executions apart between tests.
+        jobContext.put(SaltApiNodeStepPlugin.RUNDECK_DATA_CONTEXT_EXECUTION_ID_KEY, UUID.randomUUID().toString());
+        dataContext.put(SaltApiNodeStepPlugin.RUNDECK_DATA_CONTEXT_JOB_KEY, jobContext);
+        nodes = Mockito.mock(INodeSet.class);
+        Mockito.when(nodes.getNodeNames()).thenReturn(ImmutableList.of(PARAM_MINION_NAME, OTHER_MINION_NAME));
+        Mockito.when(pluginContext.getNodes()).thenReturn(nodes);
+        Mockito.when(pluginContext.getStepContext()).thenReturn(ImmutableList.of(1));
+    }
+
+    @Test
+    public void testSubmitBatchJobTargetsAllNodes() throws Exception {
+        setupSaltApiResponse(ImmutableList.of(PARAM_MINION_NAME, OTHER_MINION_NAME));
+        setupResponseCode(post, HttpStatus.SC_ACCEPTED);
+
+        Assert.assertEquals("Expected mocked jid after submitting job", OUTPUT_JID, plugin.submitBatchJob(
+                latestCapability, client, AUTH_TOKEN, pluginContext, PARAM_MINION_NAME, SecureDataMasker.NONE));
+
+        assertPostBody("fun=%s&tgt=%s&tgt_type=%s", PARAM_FUNCTION, PARAM_MINION_NAME + "," + OTHER_MINION_NAME,
+                SaltApiNodeStepPlugin.SALT_API_LIST_TARGET_TYPE);
+    }
+
+    @Test
+    public void testSubmitBatchJobSharesJid() throws Exception {
+        setupSaltApiResponse(ImmutableList.of(PARAM_MINION_NAME, OTHER_MINION_NAME));
+        setupResponseCode(post, HttpStatus.SC_ACCEPTED);
+
+        Assert.assertEquals("Expected mocked jid after submitting job", OUTPUT_JID, plugin.submitBatchJob(
+                latestCapability, client, AUTH_TOKEN, pluginContext, PARAM_MINION_NAME, SecureDataMasker.NONE));
+        Assert.assertEquals("Expected shared jid for other minion", OUTPUT_JID, plugin.submitBatchJob(
+                latestCapability, client, AUTH_TOKEN, pluginContext, OTHER_MINION_NAME, SecureDataMasker.NONE));
+
+        Mockito.verify(plugin, Mockito.times(1)).dispatchJob(Mockito.same(latestCapability), Mockito.same(client),
+                Mockito.eq(AUTH_TOKEN), Mockito.anyString(), Mockito.anyString(), Mockito.any(SecureDataMasker.class));
+        Mockito.verify(plugin, Mockito.never()).submitJob(Mockito.any(), Mockito.any(HttpClient.class),
+                Mockito.anyString(), Mockito.anyString(), Mockito.any(SecureDataMasker.class));
+    }
+
+    @Test
+    public void testSubmitBatchJobUnmatchedMinion() throws Exception {
+        setupSaltApiResponse(ImmutableList.of(OTHER_MINION_NAME));
+        setupResponseCode(post, HttpStatus.SC_ACCEPTED);
+
+        try {
+            plugin.submitBatchJob(latestCapability, client, AUTH_TOKEN, pluginContext, PARAM_MINION_NAME,
+                    SecureDataMasker.NONE);
+            Assert.fail("Expected targetting mismatch exception.");
+        } catch (SaltTargettingMismatchException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSubmitBatchJobPropagatesSubmissionFailure() throws Exception {
+        setupResponseCode(post, HttpStatus.SC_TEMPORARY_REDIRECT);
+
+        try {
+            plugin.submitBatchJob(latestCapability, client, AUTH_TOKEN, pluginContext, PARAM_MINION_NAME,
+                    SecureDataMasker.NONE);
+            Assert.fail("Expected http exception due to bad response code.");
+        } catch (HttpException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSubmitBatchJobWithoutExecutionIdDispatchesSingleMinion() throws Exception {
+        dataContext.remove(SaltApiNodeStepPlugin.RUNDECK_DATA_CONTEXT_JOB_KEY);
+        Mockito.doReturn(OUTPUT_JID).when(plugin).submitJob(Mockito.same(latestCapability), Mockito.same(client),
+                Mockito.eq(AUTH_TOKEN), Mockito.eq(PARAM_MINION_NAME), Mockito.any(SecureDataMasker.class));
+
+        Assert.assertEquals("Expected mocked jid after submitting job", OUTPUT_JID, plugin.submitBatchJob(
+                latestCapability, client, AUTH_TOKEN, pluginContext, PARAM_MINION_NAME, SecureDataMasker.NONE));
+    }
+
+    @Test
+    public void testExecuteUsesBatchDispatch() throws Exception {
+        setupAuthenticate();
+        Mockito.doReturn(OUTPUT_JID).when(plugin).submitBatchJob(Mockito.same(latestCapability), Mockito.same(client),
+                Mockito.eq(AUTH_TOKEN), Mockito.same(pluginContext), Mockito.eq(PARAM_MINION_NAME), Mockito.any(SecureDataMasker.class));
+        Mockito.doReturn(HOST_RESPONSE_JSON).when(plugin).waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN),
+                Mockito.eq(OUTPUT_JID), Mockito.eq(PARAM_MINION_NAME));
+        SaltReturnResponse response = new SaltReturnResponse();
+        response.setExitCode(0);
+        Mockito.when(returnHandler.extractResponse(Mockito.any(JsonElement.class), Mockito.any(SaltOutputLogger.class)))
+                .thenReturn(response);
+
+        plugin.executeNodeStep(pluginContext, configuration, node);
+
+        Mockito.verify(plugin, Mockito.never()).submitJob(Mockito.any(), Mockito.any(HttpClient.class),
+                Mockito.anyString(), Mockito.anyString(), Mockito.any(SecureDataMasker.class));
+    }
+
+    protected void setupSaltApiResponse(List<String> minions) throws SaltApiException {
+        SaltApiResponseOutput output = Mockito.mock(SaltApiResponseOutput.class);
+        Mockito.when(output.getMinions()).thenReturn(minions);
+        Mockito.when(output.getJid()).thenReturn(OUTPUT_JID);
+        SaltInteractionHandler interactionHandler = Mockito.mock(SaltInteractionHandler.class);
+        Mockito.when(latestCapability.getSaltInteractionHandler()).thenReturn(interactionHandler);
+        Mockito.when(interactionHandler.extractOutputForJobSubmissionResponse(Mockito.anyString())).thenReturn(output);
+    }
+}
@@ -62,6 +62,17 @@ public class SaltApiNodeStepPlugin_CapabilityTest extends AbstractSaltApiNodeSte
                 plugin.getSaltApiCapability());
     }
 
+    @Test
+    public void testGetCapabilityWithNoVersionSuppliedUsesDetectedCapability() {
+        SaltApiCapability capability = new SaltApiCapability();
+        Mockito.when(plugin.capabilityDetector.detect(Mockito.same(log), Mockito.eq(PARAM_ENDPOINT))).thenReturn(
+                capability);
+
+        Assert.assertSame("Expected unset version to return detected capability", capability,
+                plugin.getSaltApiCapability());
+        Mockito.verify(registry, Mockito.never()).getLatest();
+    }
+
     @Test
     public void testGetCapabilityWithVersionSupplied() {
         String version = "someversion";
@@ -71,5 +82,6 @@ public class SaltApiNodeStepPlugin_CapabilityTest extends AbstractSaltApiNodeSte
 
         Assert.assertSame("Expected set version to return registered capability", capability,
                 plugin.getSaltApiCapability());
+        Mockito.verifyNoInteractions(plugin.capabilityDetector);
     }
 }
@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.rundeck.plugin.salt.auth.SaltApiTokenCache;
+import org.rundeck.plugin.salt.job.SaltEventListener;
+import org.rundeck.plugin.salt.job.SaltEventStream;
+import org.rundeck.plugin.salt.version.SaltApiVersionCapabilityRegistry;
+
+import com.google.common.base.Supplier;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.gson.JsonElement;
+
+public class SaltApiNodeStepPlugin_EventCompletionTest extends AbstractSaltApiNodeStepPluginTest {
+
+    protected static final String STREAM_KEY = SaltApiTokenCache.key(PARAM_ENDPOINT, PARAM_USER, PARAM_EAUTH,
+            PARAM_PASSWORD);
+
+    protected SaltEventListener eventListener;
+    protected SaltEventStream events;
+
+    @Before
+    public void setup() throws Exception {
+        spyPlugin();
+        eventListener = Mockito.mock(SaltEventListener.class);
+        events = Mockito.mock(SaltEventStream.class);
+        plugin.eventListener = eventListener;
+        plugin.eventCompletion = true;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Test
+    public void testOpenEventStream() throws Exception {
+        Mockito.when(eventListener.getStream(Mockito.eq(STREAM_KEY), Mockito.same(client), Mockito.any(Supplier.class)))
+                .thenReturn(events);
+
+        Assert.assertSame(events, plugin.openEventStream(latestCapability, client, AUTH_TOKEN, PARAM_USER,
+                PARAM_PASSWORD));
+
+        ArgumentCaptor<Supplier> captor = ArgumentCaptor.forClass(Supplier.class);
+        Mockito.verify(eventListener).getStream(Mockito.eq(STREAM_KEY), Mockito.same(client), captor.capture());
+        HttpUriRequest request = (HttpUriRequest) captor.getValue().get();
+        Assert.assertEquals("Expected events endpoint to be used", PARAM_ENDPOINT + "/events", request.getURI()
+                .toString());
+        Mockito.verify(get, Mockito.times(1)).setHeader(SaltApiNodeStepPlugin.SALT_AUTH_TOKEN_HEADER, AUTH_TOKEN);
+        Mockito.verify(get, Mockito.times(1)).setHeader(SaltApiNodeStepPlugin.REQUEST_ACCEPT_HEADER_NAME,
+                SaltApiNodeStepPlugin.EVENT_STREAM_ACCEPT_TYPE);
+    }
+
+    @Test
+    public void testOpenEventStreamDisabled() throws Exception {
+        plugin.eventCompletion = false;
+
+        Assert.assertNull(plugin.openEventStream(latestCapability, client, AUTH_TOKEN, PARAM_USER, PARAM_PASSWORD));
+        Mockito.verifyNoInteractions(eventListener);
+    }
+
+    @Test
+    public void testOpenEventStreamUnsupported() throws Exception {
+        Assert.assertNull(plugin.openEventStream(SaltApiVersionCapabilityRegistry.VERSION_0_8_0, client, AUTH_TOKEN,
+                PARAM_USER, PARAM_PASSWORD));
+        Mockito.verifyNoInteractions(eventListener);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testOpenEventStreamFailure() throws Exception {
+        Mockito.when(eventListener.getStream(Mockito.eq(STREAM_KEY), Mockito.same(client), Mockito.any(Supplier.class)))
+                .thenThrow(new IOException());
+
+        Assert.assertNull(plugin.openEventStream(latestCapability, client, AUTH_TOKEN, PARAM_USER, PARAM_PASSWORD));
+    }
+
+    @Test
+    public void testWaitForJidResponseFromEvent() throws Exception {
+        Mockito.when(events.register(OUTPUT_JID, PARAM_MINION_NAME)).thenReturn(
+                Futures.immediateFuture(HOST_RESPONSE_JSON));
+
+        Assert.assertEquals(HOST_RESPONSE_JSON,
+                plugin.waitForJidResponse(client, AUTH_TOKEN, events, OUTPUT_JID, PARAM_MINION_NAME));
+        Mockito.verify(plugin, Mockito.never()).waitForJidResponse(Mockito.any(HttpClient.class), Mockito.anyString(),
+                Mockito.anyString(), Mockito.anyString());
+    }
+
+    @Test
+    public void testWaitForJidResponseFallsBackToPolling() throws Exception {
+        Mockito.when(events.register(OUTPUT_JID, PARAM_MINION_NAME)).thenReturn(
+                Futures.<JsonElement> immediateFailedFuture(new IOException("closed")));
+        Mockito.doReturn(HOST_RESPONSE_JSON).when(plugin)
+                .waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
+                        Mockito.eq(PARAM_MINION_NAME));
+
+        Assert.assertEquals(HOST_RESPONSE_JSON,
+                plugin.waitForJidResponse(client, AUTH_TOKEN, events, OUTPUT_JID, PARAM_MINION_NAME));
+    }
+
+    @Test
+    public void testWaitForJidResponseReturnedBeforeRegistration() throws Exception {
+        Mockito.when(events.register(OUTPUT_JID, PARAM_MINION_NAME)).thenReturn(
+                Futures.<JsonElement> immediateFuture(null));
+        Mockito.doReturn(HOST_RESPONSE_JSON).when(plugin)
+                .waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
+                        Mockito.eq(PARAM_MINION_NAME));
+
+        Assert.assertEquals(HOST_RESPONSE_JSON,
+                plugin.waitForJidResponse(client, AUTH_TOKEN, events, OUTPUT_JID, PARAM_MINION_NAME));
+    }
+
+    @Test
+    public void testWaitForJidResponseOfFunctionFallsBackToPolling() throws Exception {
+        Mockito.when(events.register(OUTPUT_JID, PARAM_MINION_NAME)).thenReturn(
+                Futures.<JsonElement> immediateFailedFuture(new IOException("closed")));
+        Mockito.doReturn(HOST_RESPONSE_JSON).when(plugin)
+                .waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
+                        Mockito.eq(PARAM_MINION_NAME), Mockito.eq("test.sleep"));
+
+        Assert.assertEquals(HOST_RESPONSE_JSON,
+                plugin.waitForJidResponse(client, AUTH_TOKEN, events, OUTPUT_JID, PARAM_MINION_NAME, "test.sleep"));
+    }
+
+    @Test
+    public void testWaitForJidResponseChecksJobWhileStreamStalls() throws Exception {
+        SettableFuture<JsonElement> output = SettableFuture.create();
+        Mockito.when(events.register(OUTPUT_JID, PARAM_MINION_NAME)).thenReturn(output);
+        Mockito.doReturn(null).doReturn(HOST_RESPONSE_JSON).when(plugin)
+                .extractOutputForJid(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
+                        Mockito.eq(PARAM_MINION_NAME));
+        plugin.eventCheckInterval = 1;
+
+        Assert.assertEquals(HOST_RESPONSE_JSON,
+                plugin.waitForJidResponse(client, AUTH_TOKEN, events, OUTPUT_JID, PARAM_MINION_NAME));
+        Mockito.verify(plugin, Mockito.times(2)).extractOutputForJid(Mockito.same(client), Mockito.eq(AUTH_TOKEN),
+                Mockito.eq(OUTPUT_JID), Mockito.eq(PARAM_MINION_NAME));
+        Assert.assertTrue("Expected the event wait to be cancelled", output.isCancelled());
+    }
+
+    @Test
+    public void testWaitForJidResponseWithoutEvents() throws Exception {
+        Mockito.doReturn(HOST_RESPONSE_JSON).when(plugin)
+                .waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
+                        Mockito.eq(PARAM_MINION_NAME));
+
+        Assert.assertEquals(HOST_RESPONSE_JSON,
+                plugin.waitForJidResponse(client, AUTH_TOKEN, (SaltEventStream) null, OUTPUT_JID, PARAM_MINION_NAME));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testWaitForJidResponseInterrupted() throws Exception {
+        Future<JsonElement> output = Mockito.mock(Future.class);
+        Mockito.when(output.get(Mockito.anyLong(), Mockito.any(TimeUnit.class))).thenThrow(new InterruptedException());
+        Mockito.when(events.register(OUTPUT_JID, PARAM_MINION_NAME)).thenReturn(output);
+
+        try {
+            plugin.waitForJidResponse(client, AUTH_TOKEN, events, OUTPUT_JID, PARAM_MINION_NAME);
+            Assert.fail("Expected to be interrupted.");
+        } catch (InterruptedException e) {
+            // expected
+        }
+        Mockito.verify(output, Mockito.times(1)).cancel(true);
+    }
+}
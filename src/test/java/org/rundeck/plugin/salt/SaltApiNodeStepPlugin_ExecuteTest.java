@@ -26,8 +26,12 @@
 
 package org.rundeck.plugin.salt;
 
+import com.dtolabs.rundeck.core.Constants;
 import com.dtolabs.rundeck.core.execution.workflow.steps.node.NodeStepException;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.gson.JsonElement;
 import org.apache.http.HttpException;
 import org.apache.http.client.HttpClient;
 import org.junit.Assert;
@@ -35,11 +39,21 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.InOrder;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.rundeck.plugin.salt.SaltApiNodeStepPlugin.SaltApiNodeStepFailureReason;
+import org.rundeck.plugin.salt.job.SaltEventStream;
+import org.rundeck.plugin.salt.job.SaltJobRegistry;
+import org.rundeck.plugin.salt.output.SaltOutputLogger;
 import org.rundeck.plugin.salt.output.SaltReturnResponse;
 import org.rundeck.plugin.salt.output.SaltReturnResponseParseException;
+import org.rundeck.plugin.salt.util.CircuitOpenException;
+import org.rundeck.plugin.salt.util.SecureDataMasker;
 import org.rundeck.plugin.salt.validation.SaltStepValidationException;
+import org.rundeck.plugin.salt.version.SaltApiCapability;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class SaltApiNodeStepPlugin_ExecuteTest extends AbstractSaltApiNodeStepPluginTest {
@@ -116,24 +130,216 @@ public class SaltApiNodeStepPlugin_ExecuteTest extends AbstractSaltApiNodeStepPl
         setupDoReturnSaltResponseWhenExtractResponse(0, new String[0], new String[0]);
 
         Set<String> secureOptions = ImmutableSet.of();
+        SecureDataMasker masker = new SecureDataMasker(secureOptions);
         Mockito.doReturn(secureOptions).when(plugin).extractSecureDataFromDataContext(Mockito.same(dataContext));
+        Mockito.doReturn(masker).when(plugin).createSecureDataMasker(Mockito.same(secureOptions));
         
         plugin.executeNodeStep(pluginContext, configuration, node);
-        Mockito.verify(plugin, Mockito.times(1)).submitJob(Mockito.same(latestCapability), Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(PARAM_MINION_NAME), Mockito.same(secureOptions));
+        Mockito.verify(plugin, Mockito.times(1)).submitJob(Mockito.same(latestCapability), Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(PARAM_MINION_NAME), Mockito.same(masker));
     }
     
     @Test
-    public void testExecuteInvokesLogout() throws Exception {
+    public void testExecuteDoesNotLogoutCachedToken() throws Exception {
         setupAuthenticate();
         setupDoReturnJidWhenSubmitJob();
         setupDoReturnHostResponseWhenWaitForResponse();
         setupDoReturnSaltResponseWhenExtractResponse(0, new String[0], new String[0]);
 
         plugin.executeNodeStep(pluginContext, configuration, node);
-        Mockito.verify(plugin, Mockito.times(1)).logoutQuietly(Mockito.any(HttpClient.class),
+        Mockito.verify(plugin, Mockito.never()).logoutQuietly(Mockito.any(HttpClient.class),
                 Mockito.eq(AUTH_TOKEN));
     }
 
+    @Test
+    public void testExecuteRecordsSubmittedJob() throws Exception {
+        String registryKey = setupJobRegistry(null);
+        setupAuthenticate();
+        setupDoReturnJidWhenSubmitJob();
+        setupDoReturnHostResponseWhenWaitForResponse();
+        setupDoReturnSaltResponseWhenExtractResponse(0, new String[0], new String[0]);
+
+        plugin.executeNodeStep(pluginContext, configuration, node);
+
+        InOrder inOrder = Mockito.inOrder(plugin.jobRegistry);
+        inOrder.verify(plugin.jobRegistry).record(registryKey, OUTPUT_JID);
+        inOrder.verify(plugin.jobRegistry).complete(registryKey);
+    }
+
+    @Test
+    public void testExecuteReattachesToRecordedJob() throws Exception {
+        String registryKey = setupJobRegistry(OUTPUT_JID);
+        setupAuthenticate();
+        Mockito.doReturn(HOST_RESPONSE_JSON).when(plugin).extractOutputForJid(Mockito.same(client),
+                Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID), Mockito.eq(PARAM_MINION_NAME));
+        setupDoReturnSaltResponseWhenExtractResponse(0, new String[0], new String[0]);
+
+        plugin.executeNodeStep(pluginContext, configuration, node);
+
+        Mockito.verify(plugin, Mockito.never()).submitJob(Mockito.any(SaltApiCapability.class),
+                Mockito.any(HttpClient.class), Mockito.anyString(), Mockito.anyString(),
+                Mockito.any(SecureDataMasker.class));
+        Mockito.verify(plugin, Mockito.never()).waitForJidResponse(Mockito.any(HttpClient.class),
+                Mockito.anyString(), Mockito.anyString(), Mockito.anyString());
+        Mockito.verify(plugin.jobRegistry).complete(registryKey);
+    }
+
+    @Test
+    public void testExecuteWaitsForRecordedJobStillRunning() throws Exception {
+        String registryKey = setupJobRegistry(OUTPUT_JID);
+        setupAuthenticate();
+        Mockito.doReturn(null).when(plugin).extractOutputForJid(Mockito.same(client), Mockito.eq(AUTH_TOKEN),
+                Mockito.eq(OUTPUT_JID), Mockito.eq(PARAM_MINION_NAME));
+        Mockito.doReturn(true).when(plugin).isJobRunning(Mockito.same(client), Mockito.eq(AUTH_TOKEN),
+                Mockito.eq(OUTPUT_JID), Mockito.eq(PARAM_MINION_NAME));
+        setupDoReturnHostResponseWhenWaitForResponse();
+        setupDoReturnSaltResponseWhenExtractResponse(0, new String[0], new String[0]);
+
+        plugin.executeNodeStep(pluginContext, configuration, node);
+
+        Mockito.verify(plugin, Mockito.never()).submitJob(Mockito.any(SaltApiCapability.class),
+                Mockito.any(HttpClient.class), Mockito.anyString(), Mockito.anyString(),
+                Mockito.any(SecureDataMasker.class));
+        Mockito.verify(plugin.jobRegistry, Mockito.never()).record(Mockito.anyString(), Mockito.anyString());
+        Mockito.verify(plugin.jobRegistry).complete(registryKey);
+    }
+
+    @Test
+    public void testExecuteResubmitsRecordedJobUnknownToMaster() throws Exception {
+        String registryKey = setupJobRegistry(OUTPUT_JID + "0");
+        setupAuthenticate();
+        Mockito.doReturn(null).when(plugin).extractOutputForJid(Mockito.same(client), Mockito.eq(AUTH_TOKEN),
+                Mockito.eq(OUTPUT_JID + "0"), Mockito.eq(PARAM_MINION_NAME));
+        Mockito.doReturn(false).when(plugin).isJobRunning(Mockito.same(client), Mockito.eq(AUTH_TOKEN),
+                Mockito.eq(OUTPUT_JID + "0"), Mockito.eq(PARAM_MINION_NAME));
+        setupDoReturnJidWhenSubmitJob();
+        setupDoReturnHostResponseWhenWaitForResponse();
+        setupDoReturnSaltResponseWhenExtractResponse(0, new String[0], new String[0]);
+
+        plugin.executeNodeStep(pluginContext, configuration, node);
+
+        InOrder inOrder = Mockito.inOrder(plugin.jobRegistry, plugin);
+        inOrder.verify(plugin).submitJob(Mockito.same(latestCapability), Mockito.same(client),
+                Mockito.eq(AUTH_TOKEN), Mockito.eq(PARAM_MINION_NAME), Mockito.any(SecureDataMasker.class));
+        inOrder.verify(plugin.jobRegistry).record(registryKey, OUTPUT_JID);
+        inOrder.verify(plugin).waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN),
+                Mockito.eq(OUTPUT_JID), Mockito.eq(PARAM_MINION_NAME));
+        inOrder.verify(plugin.jobRegistry).complete(registryKey);
+    }
+
+    @Test
+    public void testExecuteKeepsRecordedJobOnCommunicationFailure() throws Exception {
+        setupJobRegistry(null);
+        setupAuthenticate();
+        setupDoReturnJidWhenSubmitJob();
+        Mockito.doThrow(new HttpException())
+                .when(plugin)
+                .waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
+                        Mockito.eq(PARAM_MINION_NAME));
+
+        try {
+            plugin.executeNodeStep(pluginContext, configuration, node);
+            Assert.fail("Expected node step failure.");
+        } catch (NodeStepException e) {
+            Assert.assertEquals(SaltApiNodeStepFailureReason.COMMUNICATION_FAILURE, e.getFailureReason());
+        }
+        Mockito.verify(plugin.jobRegistry, Mockito.never()).complete(Mockito.anyString());
+    }
+
+    @Test
+    public void testGetRegistryKeyOfRetriedExecution() {
+        setupJobRegistry(null);
+        String key = plugin.getRegistryKey(pluginContext, node);
+        dataContext.get(SaltApiNodeStepPlugin.RUNDECK_DATA_CONTEXT_JOB_KEY).put(
+                SaltApiNodeStepPlugin.RUNDECK_DATA_CONTEXT_EXECUTION_ID_KEY, "13");
+        dataContext.get(SaltApiNodeStepPlugin.RUNDECK_DATA_CONTEXT_JOB_KEY).put(
+                SaltApiNodeStepPlugin.RUNDECK_DATA_CONTEXT_RETRY_INITIAL_EXECUTION_ID_KEY, "12");
+
+        Assert.assertEquals("Expected retry to share the key of the execution it retries", key,
+                plugin.getRegistryKey(pluginContext, node));
+    }
+
+    @Test
+    public void testGetRegistryKeyWithoutExecution() {
+        setupJobRegistry(null);
+        dataContext.remove(SaltApiNodeStepPlugin.RUNDECK_DATA_CONTEXT_JOB_KEY);
+
+        Assert.assertNull(plugin.getRegistryKey(pluginContext, node));
+    }
+
+    @Test
+    public void testExecuteReauthenticatesWhenTokenRejectedOnSubmit() throws Exception {
+        Mockito.doReturn("expired", AUTH_TOKEN)
+                .when(plugin)
+                .authenticate(Mockito.any(SaltApiCapability.class), Mockito.same(client), Mockito.eq(PARAM_USER),
+                        Mockito.eq(PARAM_PASSWORD));
+        Mockito.doThrow(new SaltApiTokenRejectedException("rejected"))
+                .when(plugin)
+                .submitJob(Mockito.same(latestCapability), Mockito.same(client), Mockito.eq("expired"),
+                        Mockito.eq(PARAM_MINION_NAME), Mockito.any(SecureDataMasker.class));
+        setupDoReturnJidWhenSubmitJob();
+        setupDoReturnHostResponseWhenWaitForResponse();
+        setupDoReturnSaltResponseWhenExtractResponse(0, new String[0], new String[0]);
+
+        plugin.executeNodeStep(pluginContext, configuration, node);
+        Mockito.verify(plugin, Mockito.times(2)).authenticate(Mockito.same(latestCapability), Mockito.same(client),
+                Mockito.eq(PARAM_USER), Mockito.eq(PARAM_PASSWORD));
+        Mockito.verify(plugin, Mockito.times(1)).waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN),
+                Mockito.eq(OUTPUT_JID), Mockito.eq(PARAM_MINION_NAME));
+    }
+
+    @Test
+    public void testExecuteReauthenticatesWhenTokenRejectedOnPoll() throws Exception {
+        setupAuthenticate();
+        setupDoReturnJidWhenSubmitJob();
+        Mockito.doThrow(new SaltApiTokenRejectedException("rejected"))
+                .doReturn(HOST_RESPONSE_JSON)
+                .when(plugin)
+                .waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
+                        Mockito.eq(PARAM_MINION_NAME));
+        setupDoReturnSaltResponseWhenExtractResponse(0, new String[0], new String[0]);
+
+        plugin.executeNodeStep(pluginContext, configuration, node);
+        Mockito.verify(plugin, Mockito.times(2)).authenticate(Mockito.same(latestCapability), Mockito.same(client),
+                Mockito.eq(PARAM_USER), Mockito.eq(PARAM_PASSWORD));
+        Mockito.verify(plugin, Mockito.times(1)).submitJob(Mockito.same(latestCapability), Mockito.same(client),
+                Mockito.eq(AUTH_TOKEN), Mockito.eq(PARAM_MINION_NAME), Mockito.any(SecureDataMasker.class));
+    }
+
+    @Test
+    public void testExecuteReauthenticatesWhenTokenRejectedOnEventWait() throws Exception {
+        SaltEventStream events = Mockito.mock(SaltEventStream.class);
+        setupAuthenticate();
+        setupDoReturnJidWhenSubmitJob();
+        Mockito.doReturn(events).when(plugin).openEventStream(Mockito.same(latestCapability), Mockito.same(client),
+                Mockito.eq(AUTH_TOKEN), Mockito.eq(PARAM_USER), Mockito.eq(PARAM_PASSWORD));
+        Mockito.doThrow(new SaltApiTokenRejectedException("rejected"))
+                .doReturn(HOST_RESPONSE_JSON)
+                .when(plugin)
+                .waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.same(events),
+                        Mockito.eq(OUTPUT_JID), Mockito.eq(PARAM_MINION_NAME));
+        setupDoReturnSaltResponseWhenExtractResponse(0, new String[0], new String[0]);
+
+        plugin.executeNodeStep(pluginContext, configuration, node);
+        Mockito.verify(plugin, Mockito.times(2)).waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN),
+                Mockito.same(events), Mockito.eq(OUTPUT_JID), Mockito.eq(PARAM_MINION_NAME));
+    }
+
+    @Test
+    public void testExecuteWithTokenRejectedTwice() throws Exception {
+        setupAuthenticate();
+        Mockito.doThrow(new SaltApiTokenRejectedException("rejected"))
+                .when(plugin)
+                .submitJob(Mockito.same(latestCapability), Mockito.same(client), Mockito.eq(AUTH_TOKEN),
+                        Mockito.eq(PARAM_MINION_NAME), Mockito.any(SecureDataMasker.class));
+
+        try {
+            plugin.executeNodeStep(pluginContext, configuration, node);
+            Assert.fail("Expected authentication failure");
+        } catch (NodeStepException e) {
+            Assert.assertEquals(SaltApiNodeStepFailureReason.AUTHENTICATION_FAILURE, e.getFailureReason());
+        }
+    }
+
     @Test
     public void testExecuteMakesLogWrapperAvailable() throws Exception {
         setupAuthenticate();
@@ -143,16 +349,51 @@ public class SaltApiNodeStepPlugin_ExecuteTest extends AbstractSaltApiNodeStepPl
 
         plugin.executeNodeStep(pluginContext, configuration, node);
 
-        Mockito.verify(plugin, Mockito.times(1)).setLogWrapper(Mockito.same(pluginLogger));
+        Mockito.verify(plugin, Mockito.times(1)).setLogWrapper(Mockito.same(pluginLogger),
+                Mockito.any(SecureDataMasker.class));
     }
 
     @Test
     public void testSetLogWrapper() {
-        plugin.setLogWrapper(pluginLogger);
-        Assert.assertNotNull(plugin.logWrapper);
+        plugin.logWrapper = SaltStepExecution.CURRENT_LOG_WRAPPER;
+        plugin.setLogWrapper(pluginLogger, SecureDataMasker.NONE);
+        Assert.assertNotNull(SaltStepExecution.current());
         Assert.assertSame(pluginLogger, plugin.logWrapper.getUnderlyingLogger());
     }
 
+    @Test
+    public void testExecuteUnbindsExecution() throws Exception {
+        setupAuthenticate();
+        setupDoReturnJidWhenSubmitJob();
+        setupDoReturnHostResponseWhenWaitForResponse();
+        setupDoReturnSaltResponseWhenExtractResponse(0, new String[0], new String[0]);
+
+        plugin.executeNodeStep(pluginContext, configuration, node);
+
+        Assert.assertNull(SaltStepExecution.current());
+    }
+
+    @Test
+    public void testExecuteMasksSecureOptionsInLog() throws Exception {
+        secureOptionContext.put("foo", "s3cr3t");
+        plugin.logWrapper = SaltStepExecution.CURRENT_LOG_WRAPPER;
+        setupAuthenticate();
+        setupDoReturnJidWhenSubmitJob();
+        Mockito.doAnswer(new Answer<JsonElement>() {
+            @Override
+            public JsonElement answer(InvocationOnMock invocation) {
+                plugin.logWrapper.info("echo %s", "s3cr3t");
+                return HOST_RESPONSE_JSON;
+            }
+        }).when(plugin).waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
+                Mockito.eq(PARAM_MINION_NAME));
+        setupDoReturnSaltResponseWhenExtractResponse(0, new String[0], new String[0]);
+
+        plugin.executeNodeStep(pluginContext, configuration, node);
+
+        Mockito.verify(pluginLogger, Mockito.times(1)).log(Constants.INFO_LEVEL, "echo ****");
+    }
+
     @Test
     public void testExecuteWithSuccessfulExitCode() throws NodeStepException {
         setupAuthenticate();
@@ -169,9 +410,10 @@ public class SaltApiNodeStepPlugin_ExecuteTest extends AbstractSaltApiNodeStepPl
 
         plugin.executeNodeStep(pluginContext, configuration, node);
 
-        Mockito.verify(returnHandlerRegistry, Mockito.times(1)).getHandlerFor(Mockito.eq(PARAM_FUNCTION),
+        Mockito.verify(returnHandlerRegistry, Mockito.times(1)).getJsonHandlerFor(Mockito.eq(PARAM_FUNCTION),
                 Mockito.same(plugin.defaultReturnHandler));
-        Mockito.verify(returnHandler, Mockito.times(1)).extractResponse(Mockito.eq(HOST_RESPONSE));
+        Mockito.verify(returnHandler, Mockito.times(1)).extractResponse(Mockito.eq(HOST_RESPONSE_JSON),
+                Mockito.any(SaltOutputLogger.class));
 
         InOrder ordering = Mockito.inOrder(log);
         ordering.verify(log, Mockito.times(1)).info(Mockito.eq(output1));
@@ -180,6 +422,26 @@ public class SaltApiNodeStepPlugin_ExecuteTest extends AbstractSaltApiNodeStepPl
         ordering.verify(log, Mockito.times(1)).error(Mockito.eq(error2));
     }
 
+    @Test
+    public void testExecuteTruncatesOutput() throws NodeStepException {
+        setupAuthenticate();
+        doNothingWhenSetupLogger();
+        setupDoReturnJidWhenSubmitJob();
+        setupDoReturnHostResponseWhenWaitForResponse();
+        plugin.maximumOutput = 10;
+
+        setupDoReturnSaltResponseWhenExtractResponse(0, new String[] { "line 1 of output", "line 2 of output" },
+                new String[] { "line 1 of error" });
+
+        plugin.executeNodeStep(pluginContext, configuration, node);
+
+        InOrder ordering = Mockito.inOrder(log);
+        ordering.verify(log, Mockito.times(1)).info(Mockito.eq("line 1 of "));
+        ordering.verify(log, Mockito.times(1)).warn(Mockito.anyString(), Mockito.eq(10L));
+        ordering.verify(log, Mockito.times(1)).warn(Mockito.anyString(), Mockito.eq(37L));
+        Mockito.verify(log, Mockito.never()).error(Mockito.anyString());
+    }
+
     @Test
     public void testExecuteWithUnsuccessfulExitCode() {
         setupAuthenticate();
@@ -202,9 +464,10 @@ public class SaltApiNodeStepPlugin_ExecuteTest extends AbstractSaltApiNodeStepPl
                     SaltApiNodeStepFailureReason.EXIT_CODE, e.getFailureReason());
         }
 
-        Mockito.verify(returnHandlerRegistry, Mockito.times(1)).getHandlerFor(Mockito.eq(PARAM_FUNCTION),
+        Mockito.verify(returnHandlerRegistry, Mockito.times(1)).getJsonHandlerFor(Mockito.eq(PARAM_FUNCTION),
                 Mockito.same(plugin.defaultReturnHandler));
-        Mockito.verify(returnHandler, Mockito.times(1)).extractResponse(Mockito.eq(HOST_RESPONSE));
+        Mockito.verify(returnHandler, Mockito.times(1)).extractResponse(Mockito.eq(HOST_RESPONSE_JSON),
+                Mockito.any(SaltOutputLogger.class));
 
         InOrder ordering = Mockito.inOrder(log);
         ordering.verify(log, Mockito.times(1)).info(Mockito.eq(output1));
@@ -220,7 +483,8 @@ public class SaltApiNodeStepPlugin_ExecuteTest extends AbstractSaltApiNodeStepPl
         setupDoReturnHostResponseWhenWaitForResponse();
 
         SaltReturnResponseParseException pe = new SaltReturnResponseParseException("message");
-        Mockito.when(returnHandler.extractResponse(Mockito.anyString())).thenThrow(pe);
+        Mockito.when(returnHandler.extractResponse(Mockito.any(JsonElement.class), Mockito.any(SaltOutputLogger.class)))
+                .thenThrow(pe);
 
         try {
             plugin.executeNodeStep(pluginContext, configuration, node);
@@ -231,9 +495,10 @@ public class SaltApiNodeStepPlugin_ExecuteTest extends AbstractSaltApiNodeStepPl
             Assert.assertSame("Expected parse exception to be set as root cause", pe, e.getCause());
         }
 
-        Mockito.verify(returnHandlerRegistry, Mockito.times(1)).getHandlerFor(Mockito.eq(PARAM_FUNCTION),
+        Mockito.verify(returnHandlerRegistry, Mockito.times(1)).getJsonHandlerFor(Mockito.eq(PARAM_FUNCTION),
                 Mockito.same(plugin.defaultReturnHandler));
-        Mockito.verify(returnHandler, Mockito.times(1)).extractResponse(Mockito.eq(HOST_RESPONSE));
+        Mockito.verify(returnHandler, Mockito.times(1)).extractResponse(Mockito.eq(HOST_RESPONSE_JSON),
+                Mockito.any(SaltOutputLogger.class));
     }
 
     @Test
@@ -278,6 +543,20 @@ public class SaltApiNodeStepPlugin_ExecuteTest extends AbstractSaltApiNodeStepPl
         }
     }
 
+    @Test
+    public void testExecuteWithOpenCircuit() {
+        setupAuthenticate();
+        setupDoThrowWhenSubmitJob(new CircuitOpenException("Some message"));
+
+        try {
+            plugin.executeNodeStep(pluginContext, configuration, node);
+            Assert.fail("Expected node step failure.");
+        } catch (NodeStepException e) {
+            Assert.assertEquals("Expected failure reason to be set based on exception type",
+                    SaltApiNodeStepFailureReason.COMMUNICATION_FAILURE, e.getFailureReason());
+        }
+    }
+
     @Test
     public void testExecuteWithUnsupportedEndPointScheme() {
         setupAuthenticate();
@@ -315,6 +594,152 @@ public class SaltApiNodeStepPlugin_ExecuteTest extends AbstractSaltApiNodeStepPl
         }
     }
 
+    @Test
+    public void testExecuteWithTimeoutKillsJob() throws Exception {
+        setupAuthenticate();
+        setupDoReturnJidWhenSubmitJob();
+        Mockito.doThrow(new SaltJobTimeoutException("timed out"))
+                .when(plugin)
+                .waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
+                        Mockito.eq(PARAM_MINION_NAME));
+        Mockito.doNothing().when(plugin).killJobQuietly(Mockito.same(client), Mockito.eq(AUTH_TOKEN),
+                Mockito.eq(OUTPUT_JID), Mockito.eq(PARAM_MINION_NAME));
+
+        try {
+            plugin.executeNodeStep(pluginContext, configuration, node);
+            Assert.fail("Expected node step failure.");
+        } catch (NodeStepException e) {
+            Assert.assertEquals("Expected failure reason to be set based on exception type",
+                    SaltApiNodeStepFailureReason.TIMEOUT, e.getFailureReason());
+        }
+        Mockito.verify(plugin).killJobQuietly(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
+                Mockito.eq(PARAM_MINION_NAME));
+    }
+
+    @Test
+    public void testExecuteWithSynchronousReturn() throws Exception {
+        plugin.syncTimeout = 5;
+        setupAuthenticate();
+        Mockito.doReturn(OUTPUT_JID).when(plugin).generateJid();
+        Mockito.doReturn(HOST_RESPONSE_JSON)
+                .when(plugin)
+                .executeJob(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
+                        Mockito.eq(PARAM_MINION_NAME), Mockito.any(SecureDataMasker.class));
+        setupDoReturnSaltResponseWhenExtractResponse(0, new String[0], new String[0]);
+
+        plugin.executeNodeStep(pluginContext, configuration, node);
+
+        Mockito.verify(plugin, Mockito.never()).submitJob(Mockito.any(SaltApiCapability.class),
+                Mockito.any(HttpClient.class), Mockito.anyString(), Mockito.anyString(),
+                Mockito.any(SecureDataMasker.class));
+        Mockito.verify(plugin, Mockito.never()).waitForJidResponse(Mockito.any(HttpClient.class),
+                Mockito.anyString(), Mockito.anyString(), Mockito.anyString());
+        Mockito.verify(returnHandler, Mockito.times(1)).extractResponse(Mockito.eq(HOST_RESPONSE_JSON),
+                Mockito.any(SaltOutputLogger.class));
+    }
+
+    @Test
+    public void testExecuteWithSynchronousFailureDoesNotRecordJob() throws Exception {
+        plugin.syncTimeout = 5;
+        setupJobRegistry(null);
+        setupAuthenticate();
+        Mockito.doReturn(OUTPUT_JID).when(plugin).generateJid();
+        Mockito.doThrow(new HttpException())
+                .when(plugin)
+                .executeJob(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
+                        Mockito.eq(PARAM_MINION_NAME), Mockito.any(SecureDataMasker.class));
+
+        try {
+            plugin.executeNodeStep(pluginContext, configuration, node);
+            Assert.fail("Expected node step failure.");
+        } catch (NodeStepException e) {
+            Assert.assertEquals(SaltApiNodeStepFailureReason.COMMUNICATION_FAILURE, e.getFailureReason());
+        }
+        Mockito.verify(plugin.jobRegistry, Mockito.never()).record(Mockito.anyString(), Mockito.anyString());
+    }
+
+    @Test
+    public void testExecuteWithSynchronousTimeoutWaitsForJid() throws Exception {
+        plugin.syncTimeout = 5;
+        String registryKey = setupJobRegistry(null);
+        setupAuthenticate();
+        Mockito.doReturn(OUTPUT_JID).when(plugin).generateJid();
+        Mockito.doReturn(null)
+                .when(plugin)
+                .executeJob(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
+                        Mockito.eq(PARAM_MINION_NAME), Mockito.any(SecureDataMasker.class));
+        setupDoReturnHostResponseWhenWaitForResponse();
+        setupDoReturnSaltResponseWhenExtractResponse(0, new String[0], new String[0]);
+
+        plugin.executeNodeStep(pluginContext, configuration, node);
+
+        InOrder inOrder = Mockito.inOrder(plugin.jobRegistry, plugin);
+        inOrder.verify(plugin).executeJob(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
+                Mockito.eq(PARAM_MINION_NAME), Mockito.any(SecureDataMasker.class));
+        inOrder.verify(plugin.jobRegistry).record(registryKey, OUTPUT_JID);
+        inOrder.verify(plugin).waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN),
+                Mockito.eq(OUTPUT_JID), Mockito.eq(PARAM_MINION_NAME));
+        inOrder.verify(plugin.jobRegistry).complete(registryKey);
+        Mockito.verify(plugin, Mockito.never()).submitJob(Mockito.any(SaltApiCapability.class),
+                Mockito.any(HttpClient.class), Mockito.anyString(), Mockito.anyString(),
+                Mockito.any(SecureDataMasker.class));
+    }
+
+    @Test
+    public void testExecuteWithSynchronousTimeoutIgnoredForBatchDispatch() throws Exception {
+        plugin.syncTimeout = 5;
+        plugin.batchDispatch = true;
+        setupAuthenticate();
+        Mockito.doReturn(OUTPUT_JID).when(plugin).submitBatchJob(Mockito.same(latestCapability),
+                Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.same(pluginContext),
+                Mockito.eq(PARAM_MINION_NAME), Mockito.any(SecureDataMasker.class));
+        setupDoReturnHostResponseWhenWaitForResponse();
+        setupDoReturnSaltResponseWhenExtractResponse(0, new String[0], new String[0]);
+
+        plugin.executeNodeStep(pluginContext, configuration, node);
+
+        Mockito.verify(plugin, Mockito.never()).executeJob(Mockito.any(HttpClient.class), Mockito.anyString(),
+                Mockito.anyString(), Mockito.anyString(), Mockito.any(SecureDataMasker.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testExecuteWithSeveralFunctions() throws Exception {
+        plugin.function = "test.ping\n" + PARAM_FUNCTION;
+        setupAuthenticate();
+        Mockito.doNothing().when(plugin).executeFunctions(Mockito.same(latestCapability), Mockito.same(client),
+                Mockito.eq(AUTH_TOKEN), Mockito.eq(PARAM_USER), Mockito.eq(PARAM_PASSWORD),
+                Mockito.<SaltEventStream>any(), Mockito.any(List.class), Mockito.same(node),
+                Mockito.any(SecureDataMasker.class));
+
+        plugin.executeNodeStep(pluginContext, configuration, node);
+
+        Mockito.verify(plugin).executeFunctions(Mockito.same(latestCapability), Mockito.same(client),
+                Mockito.eq(AUTH_TOKEN), Mockito.eq(PARAM_USER), Mockito.eq(PARAM_PASSWORD),
+                Mockito.<SaltEventStream>any(), Mockito.eq(ImmutableList.of("test.ping", PARAM_FUNCTION)),
+                Mockito.same(node), Mockito.any(SecureDataMasker.class));
+        Mockito.verify(plugin, Mockito.never()).submitJob(Mockito.any(SaltApiCapability.class),
+                Mockito.any(HttpClient.class), Mockito.anyString(), Mockito.anyString(),
+                Mockito.any(SecureDataMasker.class));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testExecuteWithSeveralFunctionsIsNotRecorded() throws Exception {
+        plugin.function = "test.ping\n" + PARAM_FUNCTION;
+        setupJobRegistry(null);
+        setupAuthenticate();
+        Mockito.doNothing().when(plugin).executeFunctions(Mockito.same(latestCapability), Mockito.same(client),
+                Mockito.eq(AUTH_TOKEN), Mockito.eq(PARAM_USER), Mockito.eq(PARAM_PASSWORD),
+                Mockito.<SaltEventStream>any(), Mockito.any(List.class), Mockito.same(node),
+                Mockito.any(SecureDataMasker.class));
+
+        plugin.executeNodeStep(pluginContext, configuration, node);
+
+        Mockito.verify(plugin.jobRegistry, Mockito.never()).record(Mockito.anyString(), Mockito.anyString());
+        Mockito.verify(plugin.jobRegistry, Mockito.never()).lookup(Mockito.anyString());
+    }
+
     protected SaltApiNodeStepPlugin_ExecuteTest setupDoReturnSaltResponseWhenExtractResponse(int exitCode,
             String[] stdout, String[] stderr) {
         SaltReturnResponse response = new SaltReturnResponse();
@@ -325,13 +750,26 @@ public class SaltApiNodeStepPlugin_ExecuteTest extends AbstractSaltApiNodeStepPl
             response.addError(err);
         }
         response.setExitCode(exitCode);
-        Mockito.when(returnHandler.extractResponse(Mockito.anyString())).thenReturn(response);
+        Mockito.when(returnHandler.extractResponse(Mockito.any(JsonElement.class), Mockito.any(SaltOutputLogger.class)))
+                .thenReturn(response);
         return this;
     }
 
+    protected String setupJobRegistry(String recordedJid) {
+        Map<String, String> jobContext = Maps.newHashMap();
+        jobContext.put(SaltApiNodeStepPlugin.RUNDECK_DATA_CONTEXT_EXECUTION_ID_KEY, "12");
+        dataContext.put(SaltApiNodeStepPlugin.RUNDECK_DATA_CONTEXT_JOB_KEY, jobContext);
+        Mockito.when(pluginContext.getStepContext()).thenReturn(ImmutableList.of(1));
+        plugin.jobRegistry = Mockito.mock(SaltJobRegistry.class);
+        Mockito.when(plugin.jobRegistry.isEnabled()).thenReturn(true);
+        String registryKey = SaltJobRegistry.key("12", "[1]", PARAM_MINION_NAME, PARAM_ENDPOINT, PARAM_FUNCTION);
+        Mockito.when(plugin.jobRegistry.lookup(registryKey)).thenReturn(recordedJid);
+        return registryKey;
+    }
+
     protected SaltApiNodeStepPlugin_ExecuteTest setupDoReturnHostResponseWhenWaitForResponse() {
         try {
-            Mockito.doReturn(HOST_RESPONSE)
+            Mockito.doReturn(HOST_RESPONSE_JSON)
                     .when(plugin)
                     .waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
                             Mockito.eq(PARAM_MINION_NAME));
@@ -344,7 +782,7 @@ public class SaltApiNodeStepPlugin_ExecuteTest extends AbstractSaltApiNodeStepPl
     protected SaltApiNodeStepPlugin_ExecuteTest setupDoReturnJidWhenSubmitJob() {
         try {
             Mockito.doReturn(OUTPUT_JID).when(plugin)
-                    .submitJob(Mockito.same(latestCapability), Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(PARAM_MINION_NAME), Mockito.anySet());
+                    .submitJob(Mockito.same(latestCapability), Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(PARAM_MINION_NAME), Mockito.any(SecureDataMasker.class));
             return this;
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -354,7 +792,7 @@ public class SaltApiNodeStepPlugin_ExecuteTest extends AbstractSaltApiNodeStepPl
     protected SaltApiNodeStepPlugin_ExecuteTest setupDoThrowWhenSubmitJob(Throwable t) {
         try {
             Mockito.doThrow(t).when(plugin)
-                    .submitJob(Mockito.same(latestCapability), Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(PARAM_MINION_NAME), Mockito.anySet());
+                    .submitJob(Mockito.same(latestCapability), Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(PARAM_MINION_NAME), Mockito.any(SecureDataMasker.class));
             return this;
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -362,7 +800,8 @@ public class SaltApiNodeStepPlugin_ExecuteTest extends AbstractSaltApiNodeStepPl
     }
 
     protected SaltApiNodeStepPlugin_ExecuteTest doNothingWhenSetupLogger() {
-        Mockito.doNothing().when(plugin).setLogWrapper(Mockito.same(pluginLogger));
+        Mockito.doNothing().when(plugin).setLogWrapper(Mockito.same(pluginLogger),
+                Mockito.any(SecureDataMasker.class));
         return this;
     }
 }
\ No newline at end of file
@@ -30,7 +30,14 @@ import org.apache.http.HttpStatus;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.rundeck.plugin.salt.auth.SaltApiTokenCache;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.JsonPrimitive;
 
 public class SaltApiNodeStepPlugin_ExtractSaltResponseTest extends AbstractSaltApiNodeStepPluginTest {
 
@@ -47,7 +54,7 @@ public class SaltApiNodeStepPlugin_ExtractSaltResponseTest extends AbstractSaltA
     public void testExtractOutputForJid() throws Exception {
         setupResponse(get, HttpStatus.SC_OK, HOST_JSON_RESPONSE);
 
-        Assert.assertEquals("Expected host response to be parsed out from json response", HOST_RESPONSE,
+        Assert.assertEquals("Expected host response to be parsed out from json response", HOST_RESPONSE_JSON,
                 plugin.extractOutputForJid(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME));
 
         assertThatJobPollAttemptedSuccessfully();
@@ -100,14 +107,48 @@ public class SaltApiNodeStepPlugin_ExtractSaltResponseTest extends AbstractSaltA
         assertThatJobPollAttemptedSuccessfully();
     }
 
+    @Test
+    public void testExtractOutputsForJid() throws Exception {
+        String multipleMinionResponse = String.format("{\"return\":[{%s:%s,\"other\":\"other response\",\"third\":1}]}",
+                PARAM_MINION_NAME, HOST_RESPONSE);
+        setupResponse(get, HttpStatus.SC_OK, multipleMinionResponse);
+
+        Assert.assertEquals("Expected responses of requested minions", ImmutableMap.of(PARAM_MINION_NAME,
+                HOST_RESPONSE_JSON, "other", new JsonPrimitive("other response")), plugin.extractOutputsForJid(client, AUTH_TOKEN,
+                OUTPUT_JID, ImmutableSet.of(PARAM_MINION_NAME, "other", "missing")));
+
+        assertThatJobPollAttemptedSuccessfully();
+    }
+
+    @Test
+    public void testExtractOutputForJidTokenRejected() throws Exception {
+        setupResponseCode(get, HttpStatus.SC_UNAUTHORIZED);
+        plugin.tokenCache = Mockito.mock(SaltApiTokenCache.class);
+
+        try {
+            plugin.extractOutputForJid(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME);
+            Assert.fail("Expected exception for rejected token.");
+        } catch (SaltApiTokenRejectedException e) {
+            // expected
+        }
+
+        Mockito.verify(plugin.tokenCache, Mockito.times(1)).evict(AUTH_TOKEN);
+        assertThatJobPollAttemptedSuccessfully();
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
     protected void assertThatJobPollAttemptedSuccessfully() {
         try {
             Assert.assertEquals("Expected correct polling endpoint to be used", JOBS_ENDPOINT, get.getURI().toString());
             Mockito.verify(get, Mockito.times(1)).setHeader(SaltApiNodeStepPlugin.SALT_AUTH_TOKEN_HEADER, AUTH_TOKEN);
             Mockito.verify(get, Mockito.times(1)).setHeader(SaltApiNodeStepPlugin.REQUEST_ACCEPT_HEADER_NAME,
                     SaltApiNodeStepPlugin.JSON_RESPONSE_ACCEPT_TYPE);
+            ArgumentCaptor<Predicate> captor = ArgumentCaptor.forClass(Predicate.class);
             Mockito.verify(retryingExecutor, Mockito.times(1)).execute(Mockito.same(log), Mockito.same(client),
-                    Mockito.same(get), Mockito.eq(plugin.numRetries));
+                    Mockito.same(get), Mockito.eq(plugin.numRetries), captor.capture());
+            Predicate<Integer> pollStatusCodePredicate = captor.getValue();
+            Assert.assertFalse(pollStatusCodePredicate.apply(HttpStatus.SC_UNAUTHORIZED));
+            Assert.assertTrue(pollStatusCodePredicate.apply(HttpStatus.SC_INTERNAL_SERVER_ERROR));
             Mockito.verifyNoInteractions(client);
 
             Mockito.verify(get, Mockito.times(1)).releaseConnection();
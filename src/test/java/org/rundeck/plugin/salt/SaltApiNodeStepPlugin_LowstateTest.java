@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.rundeck.plugin.salt;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpException;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
+import org.apache.http.entity.StringEntity;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.rundeck.plugin.salt.SaltApiNodeStepPlugin.SaltApiNodeStepFailureReason;
+import org.rundeck.plugin.salt.job.SaltEventStream;
+import org.rundeck.plugin.salt.output.JsonSaltReturnHandler;
+import org.rundeck.plugin.salt.output.SaltJobReturnsReader;
+import org.rundeck.plugin.salt.output.SaltOutputLogger;
+import org.rundeck.plugin.salt.output.SaltReturnHandler;
+import org.rundeck.plugin.salt.output.SaltReturnResponse;
+import org.rundeck.plugin.salt.util.SecureDataMasker;
+
+import com.dtolabs.rundeck.core.execution.workflow.steps.node.NodeStepException;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+public class SaltApiNodeStepPlugin_LowstateTest extends AbstractSaltApiNodeStepPluginTest {
+
+    protected static final List<String> FUNCTIONS = Arrays.asList("test.ping", "cmd.run 'echo 1'");
+    protected static final List<String> JIDS = Arrays.asList("20130213093536481553", "20130213093536481554");
+
+    @Before
+    public void setup() {
+        spyPlugin();
+        plugin.jobReturnsReader = new SaltJobReturnsReader();
+        plugin.function = "test.ping\ncmd.run 'echo 1'";
+    }
+
+    @Test
+    public void testParseFunctionLines() {
+        Assert.assertEquals(FUNCTIONS, plugin.parseFunctionLines());
+
+        plugin.function = PARAM_FUNCTION;
+        Assert.assertEquals(Arrays.asList(PARAM_FUNCTION), plugin.parseFunctionLines());
+    }
+
+    @Test
+    public void testCreateLowstatePost() throws Exception {
+        plugin.createLowstatePost(AUTH_TOKEN, FUNCTIONS, JIDS, PARAM_MINION_NAME, SecureDataMasker.NONE);
+
+        Assert.assertEquals("Expected lowstate to be sent to the root resource", PARAM_ENDPOINT + "/", post.getURI()
+                .toString());
+        Mockito.verify(post, Mockito.times(1)).setHeader(Mockito.eq(SaltApiNodeStepPlugin.SALT_AUTH_TOKEN_HEADER),
+                Mockito.eq(AUTH_TOKEN));
+        assertLowstate("[{\"client\": \"local\", \"fun\": \"test.ping\", \"tgt\": \"minion\", "
+                + "\"jid\": \"20130213093536481553\", \"arg\": []}, "
+                + "{\"client\": \"local\", \"fun\": \"cmd.run\", \"tgt\": \"minion\", "
+                + "\"jid\": \"20130213093536481554\", \"arg\": [\"echo 1\"]}]");
+    }
+
+    @Test
+    public void testCreateLowstatePostWithSynchronousTimeout() throws Exception {
+        plugin.syncTimeout = 5;
+
+        plugin.createLowstatePost(AUTH_TOKEN, FUNCTIONS.subList(0, 1), JIDS.subList(0, 1), PARAM_MINION_NAME,
+                SecureDataMasker.NONE);
+
+        assertLowstate("[{\"client\": \"local\", \"fun\": \"test.ping\", \"tgt\": \"minion\", \"timeout\": 5, "
+                + "\"jid\": \"20130213093536481553\", \"arg\": []}]");
+    }
+
+    @Test
+    public void testCreateLowstatePostHidesSecureOptions() throws Exception {
+        SecureDataMasker masker = plugin.createSecureDataMasker(ImmutableSet.of("secret"));
+
+        plugin.createLowstatePost(AUTH_TOKEN, Arrays.asList("test.ping", "cmd.run 'echo secret'"), JIDS,
+                PARAM_MINION_NAME, masker);
+
+        ArgumentCaptor<Object> captor = ArgumentCaptor.forClass(Object.class);
+        Mockito.verify(log, Mockito.times(1)).debug(Mockito.eq("Executing functions with lowstate [%s]"),
+                captor.capture());
+        String printed = captor.getValue().toString();
+        Assert.assertTrue("Expected masked argument in " + printed, printed.contains("echo ****"));
+        Assert.assertFalse("Expected no secret in " + printed, printed.contains("secret"));
+    }
+
+    @Test
+    public void testExecuteLowstate() throws Exception {
+        setupResponse(post, HttpStatus.SC_OK, "{\"return\": [{\"minion\": true}, {\"minion\": \"1\"}]}");
+
+        Assert.assertEquals(Arrays.<JsonElement> asList(new JsonPrimitive(true), new JsonPrimitive("1")),
+                plugin.executeLowstate(client, AUTH_TOKEN, FUNCTIONS, JIDS, PARAM_MINION_NAME, SecureDataMasker.NONE));
+        Mockito.verify(plugin, Mockito.times(1)).closeResource(Mockito.same(responseEntity));
+        Mockito.verify(post, Mockito.times(1)).releaseConnection();
+    }
+
+    @Test
+    public void testExecuteLowstateWithMissingReturn() throws Exception {
+        setupResponse(post, HttpStatus.SC_OK, "{\"return\": [{\"minion\": true}, {}]}");
+
+        Assert.assertEquals(Arrays.<JsonElement> asList(new JsonPrimitive(true), null),
+                plugin.executeLowstate(client, AUTH_TOKEN, FUNCTIONS, JIDS, PARAM_MINION_NAME, SecureDataMasker.NONE));
+    }
+
+    @Test
+    public void testExecuteLowstateWithTooFewReturns() throws Exception {
+        setupResponse(post, HttpStatus.SC_OK, "{\"return\": [{\"minion\": true}]}");
+
+        try {
+            plugin.executeLowstate(client, AUTH_TOKEN, FUNCTIONS, JIDS, PARAM_MINION_NAME, SecureDataMasker.NONE);
+            Assert.fail("Expected exception.");
+        } catch (SaltApiException e) {
+            // expected
+        }
+        Mockito.verify(post, Mockito.times(1)).releaseConnection();
+    }
+
+    @Test
+    public void testExecuteLowstateWithRejectedToken() throws Exception {
+        setupResponse(post, HttpStatus.SC_UNAUTHORIZED, "");
+
+        try {
+            plugin.executeLowstate(client, AUTH_TOKEN, FUNCTIONS, JIDS, PARAM_MINION_NAME, SecureDataMasker.NONE);
+            Assert.fail("Expected token rejection.");
+        } catch (SaltApiTokenRejectedException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testExecuteLowstateWithErrorResponse() throws Exception {
+        setupResponse(post, HttpStatus.SC_INTERNAL_SERVER_ERROR, "");
+
+        try {
+            plugin.executeLowstate(client, AUTH_TOKEN, FUNCTIONS, JIDS, PARAM_MINION_NAME, SecureDataMasker.NONE);
+            Assert.fail("Expected exception.");
+        } catch (HttpException e) {
+            // expected
+        }
+        Mockito.verify(post, Mockito.times(1)).releaseConnection();
+    }
+
+    @Test
+    public void testExecuteFunctionsRoutesReturnsToTheirHandlers() throws Exception {
+        JsonSaltReturnHandler pingHandler = setupHandler("test.ping", 0);
+        JsonSaltReturnHandler cmdHandler = setupHandler("cmd.run", 0);
+        setupJids();
+        Mockito.doReturn(Arrays.<JsonElement> asList(new JsonPrimitive(true), new JsonPrimitive("1")))
+                .when(plugin)
+                .executeLowstate(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(FUNCTIONS),
+                        Mockito.eq(JIDS), Mockito.eq(PARAM_MINION_NAME), Mockito.same(SecureDataMasker.NONE));
+
+        plugin.executeFunctions(latestCapability, client, AUTH_TOKEN, PARAM_USER, PARAM_PASSWORD, null, FUNCTIONS,
+                node, SecureDataMasker.NONE);
+
+        Mockito.verify(pingHandler).extractResponse(Mockito.eq(new JsonPrimitive(true)),
+                Mockito.any(SaltOutputLogger.class));
+        Mockito.verify(cmdHandler).extractResponse(Mockito.eq(new JsonPrimitive("1")),
+                Mockito.any(SaltOutputLogger.class));
+        Mockito.verify(plugin, Mockito.never()).waitForJidResponse(Mockito.any(HttpClient.class),
+                Mockito.anyString(), Mockito.anyString(), Mockito.anyString(), Mockito.anyString());
+    }
+
+    @Test
+    public void testExecuteFunctionsWaitsForMissingReturns() throws Exception {
+        setupHandler("test.ping", 0);
+        JsonSaltReturnHandler cmdHandler = setupHandler("cmd.run", 0);
+        setupJids();
+        Mockito.doReturn(Arrays.<JsonElement> asList(new JsonPrimitive(true), null))
+                .when(plugin)
+                .executeLowstate(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(FUNCTIONS),
+                        Mockito.eq(JIDS), Mockito.eq(PARAM_MINION_NAME), Mockito.same(SecureDataMasker.NONE));
+        Mockito.doReturn(HOST_RESPONSE_JSON)
+                .when(plugin)
+                .waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(JIDS.get(1)),
+                        Mockito.eq(PARAM_MINION_NAME), Mockito.eq("cmd.run"));
+
+        plugin.executeFunctions(latestCapability, client, AUTH_TOKEN, PARAM_USER, PARAM_PASSWORD, null, FUNCTIONS,
+                node, SecureDataMasker.NONE);
+
+        Mockito.verify(cmdHandler).extractResponse(Mockito.eq(HOST_RESPONSE_JSON),
+                Mockito.any(SaltOutputLogger.class));
+    }
+
+    @Test
+    public void testExecuteFunctionsWithTimeoutKillsUnreturnedJobs() throws Exception {
+        List<String> functions = Arrays.asList("test.ping", "test.version", "cmd.run 'echo 1'");
+        List<String> jids = Arrays.asList(JIDS.get(0), JIDS.get(1), "20130213093536481555");
+        Mockito.doReturn(jids.get(0), jids.get(1), jids.get(2)).when(plugin).generateJid();
+        Mockito.doReturn(Arrays.<JsonElement> asList(null, new JsonPrimitive("3006"), null))
+                .when(plugin)
+                .executeLowstate(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(functions),
+                        Mockito.eq(jids), Mockito.eq(PARAM_MINION_NAME), Mockito.same(SecureDataMasker.NONE));
+        Mockito.doThrow(new SaltJobTimeoutException("timed out"))
+                .when(plugin)
+                .waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(jids.get(0)),
+                        Mockito.eq(PARAM_MINION_NAME), Mockito.eq("test.ping"));
+        Mockito.doNothing().when(plugin).killJobQuietly(Mockito.same(client), Mockito.eq(AUTH_TOKEN),
+                Mockito.anyString(), Mockito.eq(PARAM_MINION_NAME));
+
+        try {
+            plugin.executeFunctions(latestCapability, client, AUTH_TOKEN, PARAM_USER, PARAM_PASSWORD, null,
+                    functions, node, SecureDataMasker.NONE);
+            Assert.fail("Expected node step failure.");
+        } catch (NodeStepException e) {
+            Assert.assertEquals(SaltApiNodeStepFailureReason.TIMEOUT, e.getFailureReason());
+        }
+        Mockito.verify(plugin).killJobQuietly(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(jids.get(0)),
+                Mockito.eq(PARAM_MINION_NAME));
+        Mockito.verify(plugin).killJobQuietly(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(jids.get(2)),
+                Mockito.eq(PARAM_MINION_NAME));
+        Mockito.verify(plugin, Mockito.never()).killJobQuietly(Mockito.any(HttpClient.class), Mockito.anyString(),
+                Mockito.eq(jids.get(1)), Mockito.anyString());
+    }
+
+    @Test
+    public void testExecuteFunctionsWithUnsuccessfulExitCode() throws Exception {
+        JsonSaltReturnHandler pingHandler = setupHandler("test.ping", 1);
+        JsonSaltReturnHandler cmdHandler = setupHandler("cmd.run", 0);
+        setupJids();
+        Mockito.doReturn(Arrays.<JsonElement> asList(new JsonPrimitive(false), new JsonPrimitive("1")))
+                .when(plugin)
+                .executeLowstate(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(FUNCTIONS),
+                        Mockito.eq(JIDS), Mockito.eq(PARAM_MINION_NAME), Mockito.same(SecureDataMasker.NONE));
+
+        try {
+            plugin.executeFunctions(latestCapability, client, AUTH_TOKEN, PARAM_USER, PARAM_PASSWORD, null,
+                    FUNCTIONS, node, SecureDataMasker.NONE);
+            Assert.fail("Expected node step failure.");
+        } catch (NodeStepException e) {
+            Assert.assertEquals(SaltApiNodeStepFailureReason.EXIT_CODE, e.getFailureReason());
+            Assert.assertTrue(e.getMessage().contains("test.ping"));
+        }
+        Mockito.verify(pingHandler).extractResponse(Mockito.any(JsonElement.class),
+                Mockito.any(SaltOutputLogger.class));
+        Mockito.verify(cmdHandler).extractResponse(Mockito.any(JsonElement.class),
+                Mockito.any(SaltOutputLogger.class));
+    }
+
+    @Test
+    public void testExecuteFunctionsWithRejectedToken() throws Exception {
+        setupHandler("test.ping", 0);
+        setupHandler("cmd.run", 0);
+        setupJids();
+        setupAuthenticate("456rty");
+        Mockito.doThrow(new SaltApiTokenRejectedException("rejected"))
+                .when(plugin)
+                .executeLowstate(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(FUNCTIONS),
+                        Mockito.eq(JIDS), Mockito.eq(PARAM_MINION_NAME), Mockito.same(SecureDataMasker.NONE));
+        Mockito.doReturn(Arrays.<JsonElement> asList(new JsonPrimitive(true), new JsonPrimitive("1")))
+                .when(plugin)
+                .executeLowstate(Mockito.same(client), Mockito.eq("456rty"), Mockito.eq(FUNCTIONS),
+                        Mockito.eq(JIDS), Mockito.eq(PARAM_MINION_NAME), Mockito.same(SecureDataMasker.NONE));
+
+        plugin.executeFunctions(latestCapability, client, AUTH_TOKEN, PARAM_USER, PARAM_PASSWORD, null, FUNCTIONS,
+                node, SecureDataMasker.NONE);
+
+        Mockito.verify(plugin).executeLowstate(Mockito.same(client), Mockito.eq("456rty"), Mockito.eq(FUNCTIONS),
+                Mockito.eq(JIDS), Mockito.eq(PARAM_MINION_NAME), Mockito.same(SecureDataMasker.NONE));
+    }
+
+    @Test
+    public void testExecuteFunctionsReauthenticatesWhenTokenRejectedOnEventWait() throws Exception {
+        SaltEventStream events = Mockito.mock(SaltEventStream.class);
+        setupHandler("test.ping", 0);
+        JsonSaltReturnHandler cmdHandler = setupHandler("cmd.run", 0);
+        setupJids();
+        setupAuthenticate("456rty");
+        Mockito.doReturn(Arrays.<JsonElement> asList(new JsonPrimitive(true), null))
+                .when(plugin)
+                .executeLowstate(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(FUNCTIONS),
+                        Mockito.eq(JIDS), Mockito.eq(PARAM_MINION_NAME), Mockito.same(SecureDataMasker.NONE));
+        Mockito.doThrow(new SaltApiTokenRejectedException("rejected"))
+                .when(plugin)
+                .waitForJidResponse(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.same(events),
+                        Mockito.eq(JIDS.get(1)), Mockito.eq(PARAM_MINION_NAME), Mockito.eq("cmd.run"));
+        Mockito.doReturn(HOST_RESPONSE_JSON)
+                .when(plugin)
+                .waitForJidResponse(Mockito.same(client), Mockito.eq("456rty"), Mockito.same(events),
+                        Mockito.eq(JIDS.get(1)), Mockito.eq(PARAM_MINION_NAME), Mockito.eq("cmd.run"));
+
+        plugin.executeFunctions(latestCapability, client, AUTH_TOKEN, PARAM_USER, PARAM_PASSWORD, events,
+                FUNCTIONS, node, SecureDataMasker.NONE);
+
+        Mockito.verify(cmdHandler).extractResponse(Mockito.eq(HOST_RESPONSE_JSON),
+                Mockito.any(SaltOutputLogger.class));
+    }
+
+    protected void setupJids() {
+        Mockito.doReturn(JIDS.get(0), JIDS.get(1)).when(plugin).generateJid();
+    }
+
+    protected JsonSaltReturnHandler setupHandler(String function, int exitCode) {
+        JsonSaltReturnHandler handler = Mockito.mock(JsonSaltReturnHandler.class);
+        SaltReturnResponse response = new SaltReturnResponse();
+        response.setExitCode(exitCode);
+        Mockito.when(handler.extractResponse(Mockito.any(JsonElement.class), Mockito.any(SaltOutputLogger.class)))
+                .thenReturn(response);
+        Mockito.when(returnHandlerRegistry.getJsonHandlerFor(Mockito.eq(function), Mockito.any(SaltReturnHandler.class)))
+                .thenReturn(handler);
+        return handler;
+    }
+
+    protected void assertLowstate(String expected) throws Exception {
+        ArgumentCaptor<StringEntity> captor = ArgumentCaptor.forClass(StringEntity.class);
+        Mockito.verify(post, Mockito.times(1)).setEntity(captor.capture());
+        Assert.assertEquals("Expected lowstate post body", JsonParser.parseString(expected),
+                JsonParser.parseString(IOUtils.toString(captor.getValue().getContent(), "UTF-8")));
+        Assert.assertEquals("Expected correct content type on request",
+                SaltApiNodeStepPlugin.JSON_REQUEST_CONTENT_TYPE, captor.getValue().getContentType().getValue());
+    }
+}
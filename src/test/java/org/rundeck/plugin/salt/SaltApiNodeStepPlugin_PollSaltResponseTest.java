@@ -26,64 +26,195 @@
 
 package org.rundeck.plugin.salt;
 
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
+import org.rundeck.plugin.salt.job.SaltJobPoller;
+import org.rundeck.plugin.salt.util.HttpFactory;
+import org.rundeck.plugin.salt.util.LogWrapper;
+import org.rundeck.plugin.salt.util.SecureDataMasker;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Futures;
+import com.google.gson.JsonElement;
 
 public class SaltApiNodeStepPlugin_PollSaltResponseTest extends AbstractSaltApiNodeStepPluginTest {
 
+    protected static final String JOB_KEY = String.format("%s/jobs/%s|%s", PARAM_ENDPOINT, OUTPUT_JID, AUTH_TOKEN);
+
+    protected SaltJobPoller jobPoller;
+
     @Before
     public void setup() throws Exception {
         spyPlugin();
+        jobPoller = Mockito.mock(SaltJobPoller.class);
+        plugin.jobPoller = jobPoller;
     }
 
     @Test
     public void testWaitForJidResponse() throws Exception {
-        // Workaround for mockito spy stubbing and vararg returns.
-        final AtomicInteger counter = new AtomicInteger(2);
-        Mockito.doAnswer(new Answer<String>() {
+        Mockito.when(jobPoller.register(Mockito.eq(PARAM_ENDPOINT), Mockito.eq(PARAM_FUNCTION),
+                Mockito.eq(JOB_KEY), Mockito.eq(PARAM_MINION_NAME), Mockito.any(SaltJobPoller.JobFetcher.class)))
+                .thenReturn(Futures.immediateFuture(HOST_RESPONSE_JSON));
+
+        Assert.assertEquals("Expected polled host response to be returned", HOST_RESPONSE_JSON,
+                plugin.waitForJidResponse(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME));
+    }
+
+    @Test
+    public void testWaitForJidResponseOfGivenFunction() throws Exception {
+        Mockito.when(jobPoller.register(Mockito.eq(PARAM_ENDPOINT), Mockito.eq("test.sleep"),
+                Mockito.eq(JOB_KEY), Mockito.eq(PARAM_MINION_NAME), Mockito.any(SaltJobPoller.JobFetcher.class)))
+                .thenReturn(Futures.immediateFuture(HOST_RESPONSE_JSON));
+
+        Assert.assertEquals("Expected polled host response to be returned", HOST_RESPONSE_JSON,
+                plugin.waitForJidResponse(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME, "test.sleep"));
+    }
+
+    @Test
+    public void testWaitForJidResponseFetchesOutputs() throws Exception {
+        Map<String, JsonElement> outputs = ImmutableMap.of(PARAM_MINION_NAME, HOST_RESPONSE_JSON);
+        Mockito.doReturn(outputs)
+                .when(plugin)
+                .extractOutputsForJid(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
+                        Mockito.eq(ImmutableSet.of(PARAM_MINION_NAME)));
+        Mockito.when(jobPoller.register(Mockito.eq(PARAM_ENDPOINT), Mockito.eq(PARAM_FUNCTION),
+                Mockito.eq(JOB_KEY), Mockito.eq(PARAM_MINION_NAME), Mockito.any(SaltJobPoller.JobFetcher.class)))
+                .thenReturn(Futures.immediateFuture(HOST_RESPONSE_JSON));
+
+        plugin.waitForJidResponse(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME);
+
+        ArgumentCaptor<SaltJobPoller.JobFetcher> captor = ArgumentCaptor.forClass(SaltJobPoller.JobFetcher.class);
+        Mockito.verify(jobPoller).register(Mockito.eq(PARAM_ENDPOINT), Mockito.eq(PARAM_FUNCTION),
+                Mockito.eq(JOB_KEY), Mockito.eq(PARAM_MINION_NAME), captor.capture());
+        Assert.assertSame("Expected fetcher to extract outputs for jid", outputs,
+                captor.getValue().fetch(ImmutableSet.of(PARAM_MINION_NAME)));
+    }
+
+    @Test
+    public void testWaitForJidResponseFetchesInRegisteringExecution() throws Exception {
+        final SaltStepExecution execution = new SaltStepExecution(pluginLogger, SecureDataMasker.NONE);
+        Mockito.doAnswer(new Answer<Map<String, JsonElement>>() {
             @Override
-            public String answer(InvocationOnMock invocation) throws Throwable {
-                if (counter.decrementAndGet() == 0) {
-                    return HOST_RESPONSE;
-                }
-                return null;
+            public Map<String, JsonElement> answer(InvocationOnMock invocation) {
+                Assert.assertSame(execution, SaltStepExecution.current());
+                return ImmutableMap.of();
             }
-        })
+        }).when(plugin).extractOutputsForJid(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
+                Mockito.eq(ImmutableSet.of(PARAM_MINION_NAME)));
+        Mockito.when(jobPoller.register(Mockito.eq(PARAM_ENDPOINT), Mockito.eq(PARAM_FUNCTION),
+                Mockito.eq(JOB_KEY), Mockito.eq(PARAM_MINION_NAME), Mockito.any(SaltJobPoller.JobFetcher.class)))
+                .thenReturn(Futures.immediateFuture(HOST_RESPONSE_JSON));
+        SaltStepExecution.bind(execution);
+        plugin.waitForJidResponse(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME);
+        SaltStepExecution.bind(null);
+
+        ArgumentCaptor<SaltJobPoller.JobFetcher> captor = ArgumentCaptor.forClass(SaltJobPoller.JobFetcher.class);
+        Mockito.verify(jobPoller).register(Mockito.eq(PARAM_ENDPOINT), Mockito.eq(PARAM_FUNCTION),
+                Mockito.eq(JOB_KEY), Mockito.eq(PARAM_MINION_NAME), captor.capture());
+        captor.getValue().fetch(ImmutableSet.of(PARAM_MINION_NAME));
+        Assert.assertNull("Expected fetching thread's execution to be restored", SaltStepExecution.current());
+    }
+
+    @Test
+    public void testWaitForJidResponseFetchesAsynchronously() throws Exception {
+        plugin.httpFactory = Mockito.mock(HttpFactory.class);
+        Mockito.when(plugin.httpFactory.isAsync()).thenReturn(true);
+        CompletableFuture<Map<String, JsonElement>> outputs = CompletableFuture
+                .<Map<String, JsonElement>> completedFuture(ImmutableMap.of(PARAM_MINION_NAME, HOST_RESPONSE_JSON));
+        Mockito.doReturn(outputs)
                 .when(plugin)
-                .extractOutputForJid(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
-                        Mockito.eq(PARAM_MINION_NAME));
+                .extractOutputsForJidAsync(Mockito.any(LogWrapper.class), Mockito.eq(AUTH_TOKEN),
+                        Mockito.eq(OUTPUT_JID), Mockito.eq(ImmutableSet.of(PARAM_MINION_NAME)));
+        Mockito.when(jobPoller.register(Mockito.eq(PARAM_ENDPOINT), Mockito.eq(PARAM_FUNCTION),
+                Mockito.eq(JOB_KEY), Mockito.eq(PARAM_MINION_NAME), Mockito.any(SaltJobPoller.AsyncJobFetcher.class)))
+                .thenReturn(Futures.immediateFuture(HOST_RESPONSE_JSON));
 
-        Assert.assertEquals("Expected mocked host response to be returned", HOST_RESPONSE,
+        Assert.assertEquals("Expected polled host response to be returned", HOST_RESPONSE_JSON,
                 plugin.waitForJidResponse(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME));
 
-        Mockito.verify(plugin, Mockito.times(2)).extractOutputForJid(Mockito.same(client), Mockito.eq(AUTH_TOKEN),
-                Mockito.eq(OUTPUT_JID), Mockito.eq(PARAM_MINION_NAME));
-        Mockito.verify(timer, Mockito.times(1)).waitForNext();
+        ArgumentCaptor<SaltJobPoller.AsyncJobFetcher> captor = ArgumentCaptor
+                .forClass(SaltJobPoller.AsyncJobFetcher.class);
+        Mockito.verify(jobPoller).register(Mockito.eq(PARAM_ENDPOINT), Mockito.eq(PARAM_FUNCTION),
+                Mockito.eq(JOB_KEY), Mockito.eq(PARAM_MINION_NAME), captor.capture());
+        Assert.assertSame("Expected fetcher to extract outputs without blocking", outputs,
+                captor.getValue().fetch(ImmutableSet.of(PARAM_MINION_NAME)));
     }
 
+    @Test
+    public void testWaitForJidResponseFailure() throws Exception {
+        IOException failure = new IOException();
+        Mockito.when(jobPoller.register(Mockito.eq(PARAM_ENDPOINT), Mockito.eq(PARAM_FUNCTION),
+                Mockito.eq(JOB_KEY), Mockito.eq(PARAM_MINION_NAME), Mockito.any(SaltJobPoller.JobFetcher.class)))
+                .thenReturn(Futures.<JsonElement> immediateFailedFuture(failure));
+
+        try {
+            plugin.waitForJidResponse(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME);
+            Assert.fail("Expected polling failure to be rethrown.");
+        } catch (IOException e) {
+            Assert.assertSame(failure, e);
+        }
+    }
+
+    @Test
+    public void testWaitForJidResponseTokenRejected() throws Exception {
+        SaltApiTokenRejectedException failure = new SaltApiTokenRejectedException("rejected");
+        Mockito.when(jobPoller.register(Mockito.eq(PARAM_ENDPOINT), Mockito.eq(PARAM_FUNCTION),
+                Mockito.eq(JOB_KEY), Mockito.eq(PARAM_MINION_NAME), Mockito.any(SaltJobPoller.JobFetcher.class)))
+                .thenReturn(Futures.<JsonElement> immediateFailedFuture(failure));
+
+        try {
+            plugin.waitForJidResponse(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME);
+            Assert.fail("Expected polling failure to be rethrown.");
+        } catch (SaltApiTokenRejectedException e) {
+            Assert.assertSame(failure, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
     @Test
     public void testWaitForJidResponseInterrupted() throws Exception {
-        Mockito.doReturn(null)
-                .when(plugin)
-                .extractOutputForJid(Mockito.same(client), Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID),
-                        Mockito.eq(PARAM_MINION_NAME));
+        Future<JsonElement> output = Mockito.mock(Future.class);
+        Mockito.when(output.get()).thenThrow(new InterruptedException());
+        Mockito.when(jobPoller.register(Mockito.eq(PARAM_ENDPOINT), Mockito.eq(PARAM_FUNCTION),
+                Mockito.eq(JOB_KEY), Mockito.eq(PARAM_MINION_NAME), Mockito.any(SaltJobPoller.JobFetcher.class)))
+                .thenReturn(output);
 
-        Mockito.doThrow(new InterruptedException()).when(timer).waitForNext();
         try {
-            Assert.assertNull("Expected no response due to thread interruption",
-                    plugin.waitForJidResponse(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME));
+            plugin.waitForJidResponse(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME);
             Assert.fail("Expected to be interrupted.");
         } catch (InterruptedException e) {
             // expected
         }
 
-        Mockito.verify(plugin, Mockito.times(1)).extractOutputForJid(Mockito.same(client), Mockito.eq(AUTH_TOKEN),
-                Mockito.eq(OUTPUT_JID), Mockito.eq(PARAM_MINION_NAME));
+        Mockito.verify(output, Mockito.times(1)).cancel(true);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testWaitForJidResponseUnexpectedFailure() throws Exception {
+        Future<JsonElement> output = Mockito.mock(Future.class);
+        Mockito.when(output.get()).thenThrow(new ExecutionException(new Exception()));
+        Mockito.when(jobPoller.register(Mockito.eq(PARAM_ENDPOINT), Mockito.eq(PARAM_FUNCTION),
+                Mockito.eq(JOB_KEY), Mockito.eq(PARAM_MINION_NAME), Mockito.any(SaltJobPoller.JobFetcher.class)))
+                .thenReturn(output);
+
+        try {
+            plugin.waitForJidResponse(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME);
+            Assert.fail("Expected salt api exception.");
+        } catch (SaltApiException e) {
+            // expected
+        }
     }
 }
@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpStatus;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.rundeck.plugin.salt.SaltApiNodeStepPlugin.SaltApiNodeStepFailureReason;
+import org.rundeck.plugin.salt.job.SaltMinionPresence;
+import org.rundeck.plugin.salt.util.LogWrapper;
+
+import com.dtolabs.rundeck.core.execution.workflow.steps.node.NodeStepException;
+import com.google.common.collect.ImmutableSet;
+
+public class SaltApiNodeStepPlugin_PresenceTest extends AbstractSaltApiNodeStepPluginTest {
+
+    protected SaltMinionPresence minionPresence;
+
+    @Before
+    public void setup() {
+        spyPlugin();
+        minionPresence = Mockito.mock(SaltMinionPresence.class);
+        plugin.minionPresence = minionPresence;
+        plugin.presenceCheck = true;
+        plugin.presenceFunction = "manage.present";
+    }
+
+    @Test
+    public void testCheckPresenceDisabled() throws Exception {
+        plugin.presenceCheck = false;
+
+        plugin.checkPresence(client, AUTH_TOKEN, node);
+
+        Mockito.verifyNoInteractions(minionPresence);
+    }
+
+    @Test
+    public void testCheckPresenceWithPresentMinion() throws Exception {
+        setupPresence(Boolean.TRUE);
+
+        plugin.checkPresence(client, AUTH_TOKEN, node);
+    }
+
+    @Test
+    public void testCheckPresenceWithUnknownMinion() throws Exception {
+        setupPresence(null);
+
+        plugin.checkPresence(client, AUTH_TOKEN, node);
+    }
+
+    @Test
+    public void testCheckPresenceWithAbsentMinion() throws Exception {
+        setupPresence(Boolean.FALSE);
+
+        try {
+            plugin.checkPresence(client, AUTH_TOKEN, node);
+            Assert.fail("Expected node step failure.");
+        } catch (NodeStepException e) {
+            Assert.assertEquals(SaltApiNodeStepFailureReason.MINION_ABSENT, e.getFailureReason());
+        }
+    }
+
+    @Test
+    public void testFetchPresentMinions() throws Exception {
+        setupResponse(post, HttpStatus.SC_OK, "{\"return\": [[\"minion\", \"other\"]]}");
+
+        Assert.assertEquals(ImmutableSet.of("minion", "other"), plugin.fetchPresentMinions(log, client, AUTH_TOKEN));
+        Assert.assertEquals("Expected runner to be called through the root resource", PARAM_ENDPOINT + "/", post
+                .getURI().toString());
+        Mockito.verify(post, Mockito.times(1)).setHeader(Mockito.eq(SaltApiNodeStepPlugin.SALT_AUTH_TOKEN_HEADER),
+                Mockito.eq(AUTH_TOKEN));
+        assertPostBody("client=%s&fun=%s", "runner", "manage.present");
+        Mockito.verify(post).releaseConnection();
+    }
+
+    @Test
+    public void testFetchPresentMinionsWithIps() throws Exception {
+        setupResponse(post, HttpStatus.SC_OK, "{\"return\": [{\"minion\": \"10.0.0.1\"}]}");
+
+        Assert.assertEquals(ImmutableSet.of("minion"), plugin.fetchPresentMinions(log, client, AUTH_TOKEN));
+    }
+
+    @Test
+    public void testFetchPresentMinionsWithUnexpectedResponse() throws Exception {
+        setupResponse(post, HttpStatus.SC_OK, "{\"return\": \"denied\"}");
+
+        try {
+            plugin.fetchPresentMinions(log, client, AUTH_TOKEN);
+            Assert.fail("Expected exception.");
+        } catch (SaltApiException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testFetchPresentMinionsWithErrorResponse() throws Exception {
+        setupResponse(post, HttpStatus.SC_FORBIDDEN, "");
+
+        try {
+            plugin.fetchPresentMinions(log, client, AUTH_TOKEN);
+            Assert.fail("Expected exception.");
+        } catch (HttpException e) {
+            // expected
+        }
+        Mockito.verify(post).releaseConnection();
+    }
+
+    protected void setupPresence(Boolean present) {
+        Mockito.when(minionPresence.isPresent(Mockito.any(LogWrapper.class), Mockito.eq(PARAM_ENDPOINT),
+                Mockito.eq(PARAM_MINION_NAME), Mockito.any(SaltMinionPresence.PresenceFetcher.class)))
+                .thenReturn(present);
+    }
+}
@@ -37,7 +37,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.rundeck.plugin.salt.auth.SaltApiTokenCache;
 import org.rundeck.plugin.salt.output.SaltApiResponseOutput;
+import org.rundeck.plugin.salt.util.SecureDataMasker;
 import org.rundeck.plugin.salt.version.SaltInteractionHandler;
 
 import com.google.common.base.Predicate;
@@ -61,7 +63,7 @@ public class SaltApiNodeStepPlugin_SubmitSaltJobTest extends AbstractSaltApiNode
         setupResponseCode(post, HttpStatus.SC_ACCEPTED);
 
         Assert.assertEquals("Expected mocked jid after submitting job", OUTPUT_JID,
-                            plugin.submitJob(latestCapability, client, AUTH_TOKEN, PARAM_MINION_NAME, ImmutableSet.<String> of()));
+                            plugin.submitJob(latestCapability, client, AUTH_TOKEN, PARAM_MINION_NAME, SecureDataMasker.NONE));
 
         assertThatSubmitSaltJobAttemptedSuccessfully();
     }
@@ -76,7 +78,7 @@ public class SaltApiNodeStepPlugin_SubmitSaltJobTest extends AbstractSaltApiNode
         plugin.function = String.format("%s \"%s\" \"%s\"", PARAM_FUNCTION, arg1, arg2);
 
         Assert.assertEquals("Expected mocked jid after submitting job", OUTPUT_JID,
-                            plugin.submitJob(latestCapability, client, AUTH_TOKEN, PARAM_MINION_NAME, ImmutableSet.<String> of()));
+                            plugin.submitJob(latestCapability, client, AUTH_TOKEN, PARAM_MINION_NAME, SecureDataMasker.NONE));
 
         assertThatSubmitSaltJobAttemptedSuccessfully("fun=%s&tgt=%s&arg=%s&arg=%s", PARAM_FUNCTION, PARAM_MINION_NAME,
                                                      arg1, arg2);
@@ -87,7 +89,7 @@ public class SaltApiNodeStepPlugin_SubmitSaltJobTest extends AbstractSaltApiNode
         setupResponseCode(post, HttpStatus.SC_TEMPORARY_REDIRECT);
 
         try {
-            plugin.submitJob(latestCapability, client, AUTH_TOKEN, PARAM_MINION_NAME, ImmutableSet.<String> of());
+            plugin.submitJob(latestCapability, client, AUTH_TOKEN, PARAM_MINION_NAME, SecureDataMasker.NONE);
             Assert.fail("Expected http exception due to bad response code.");
         }
         catch (HttpException e) {
@@ -97,6 +99,23 @@ public class SaltApiNodeStepPlugin_SubmitSaltJobTest extends AbstractSaltApiNode
         assertThatSubmitSaltJobAttemptedSuccessfully();
     }
 
+    @Test
+    public void testSubmitJobTokenRejected() throws Exception {
+        setupResponseCode(post, HttpStatus.SC_UNAUTHORIZED);
+        plugin.tokenCache = Mockito.mock(SaltApiTokenCache.class);
+
+        try {
+            plugin.submitJob(latestCapability, client, AUTH_TOKEN, PARAM_MINION_NAME, SecureDataMasker.NONE);
+            Assert.fail("Expected exception for rejected token.");
+        }
+        catch (SaltApiTokenRejectedException e) {
+            // expected
+        }
+
+        Mockito.verify(plugin.tokenCache, Mockito.times(1)).evict(AUTH_TOKEN);
+        assertThatSubmitSaltJobAttemptedSuccessfully();
+    }
+
     @Test
     public void testSubmitJobNoMinionsMatched() throws Exception {
         SaltApiResponseOutput response = new SaltApiResponseOutput();
@@ -104,7 +123,7 @@ public class SaltApiNodeStepPlugin_SubmitSaltJobTest extends AbstractSaltApiNode
         setupResponseCode(post, HttpStatus.SC_ACCEPTED);
 
         try {
-            plugin.submitJob(latestCapability, client, AUTH_TOKEN, PARAM_MINION_NAME, ImmutableSet.<String> of());
+            plugin.submitJob(latestCapability, client, AUTH_TOKEN, PARAM_MINION_NAME, SecureDataMasker.NONE);
             Assert.fail("Expected targetting mismatch exception.");
         }
         catch (SaltTargettingMismatchException e) {
@@ -123,7 +142,7 @@ public class SaltApiNodeStepPlugin_SubmitSaltJobTest extends AbstractSaltApiNode
         setupResponseCode(post, HttpStatus.SC_ACCEPTED);
 
         try {
-            plugin.submitJob(latestCapability, client, AUTH_TOKEN, PARAM_MINION_NAME, ImmutableSet.<String> of());
+            plugin.submitJob(latestCapability, client, AUTH_TOKEN, PARAM_MINION_NAME, SecureDataMasker.NONE);
             Assert.fail("Expected targetting mismatch exception.");
         }
         catch (SaltTargettingMismatchException e) {
@@ -142,7 +161,7 @@ public class SaltApiNodeStepPlugin_SubmitSaltJobTest extends AbstractSaltApiNode
         setupResponseCode(post, HttpStatus.SC_ACCEPTED);
 
         try {
-            plugin.submitJob(latestCapability, client, AUTH_TOKEN, PARAM_MINION_NAME, ImmutableSet.<String> of());
+            plugin.submitJob(latestCapability, client, AUTH_TOKEN, PARAM_MINION_NAME, SecureDataMasker.NONE);
             Assert.fail("Expected targetting mismatch exception.");
         }
         catch (SaltTargettingMismatchException e) {
@@ -168,7 +187,8 @@ public class SaltApiNodeStepPlugin_SubmitSaltJobTest extends AbstractSaltApiNode
         
         setupGoodSaltApiResponse();
         setupResponseCode(post, HttpStatus.SC_ACCEPTED);
-        plugin.submitJob(latestCapability, client, AUTH_TOKEN, PARAM_MINION_NAME, secureOptions);
+        plugin.submitJob(latestCapability, client, AUTH_TOKEN, PARAM_MINION_NAME,
+                plugin.createSecureDataMasker(secureOptions));
         
         ArgumentCaptor<List> argCaptor = ArgumentCaptor.forClass(List.class);
         Mockito.verify(log, Mockito.times(1)).debug(Mockito.eq("Submitting job with arguments [%s]"), argCaptor.capture());
@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+
+package org.rundeck.plugin.salt;
+
+import java.util.Set;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpStatus;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.rundeck.plugin.salt.output.SaltJobReturnsReader;
+import org.rundeck.plugin.salt.util.SecureDataMasker;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonPrimitive;
+
+public class SaltApiNodeStepPlugin_SynchronousTest extends AbstractSaltApiNodeStepPluginTest {
+
+    @Before
+    public void setup() {
+        spyPlugin();
+        plugin.jobReturnsReader = new SaltJobReturnsReader();
+        plugin.syncTimeout = 5;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    @Test
+    public void testExecuteJob() throws Exception {
+        setupResponse(post, HttpStatus.SC_OK, "{\"return\": [{\"minion\": \"some response\"}]}");
+
+        Assert.assertEquals(HOST_RESPONSE_JSON,
+                plugin.executeJob(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME, SecureDataMasker.NONE));
+        Assert.assertEquals("Expected local client to be called through the root resource", PARAM_ENDPOINT + "/",
+                post.getURI().toString());
+        Mockito.verify(post, Mockito.times(1)).setHeader(Mockito.eq(SaltApiNodeStepPlugin.SALT_AUTH_TOKEN_HEADER),
+                Mockito.eq(AUTH_TOKEN));
+        assertPostBody("client=%s&fun=%s&tgt=%s&timeout=%s&jid=%s", "local", PARAM_FUNCTION, PARAM_MINION_NAME, "5",
+                OUTPUT_JID);
+        Mockito.verify(retryingExecutor, Mockito.times(1)).execute(Mockito.same(log), Mockito.same(client),
+                Mockito.same(post), Mockito.eq(plugin.numRetries), Mockito.any(Predicate.class));
+        Mockito.verify(plugin, Mockito.times(1)).closeResource(Mockito.same(responseEntity));
+        Mockito.verify(post, Mockito.times(1)).releaseConnection();
+    }
+
+    @Test
+    public void testExecuteJobWithArguments() throws Exception {
+        plugin.function = PARAM_FUNCTION + " foo \"bar baz\"";
+        setupResponse(post, HttpStatus.SC_OK, "{\"return\": [{\"minion\": true}]}");
+
+        Assert.assertEquals(new JsonPrimitive(true),
+                plugin.executeJob(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME, SecureDataMasker.NONE));
+        assertPostBody("client=%s&fun=%s&tgt=%s&timeout=%s&jid=%s&arg=%s&arg=%s", "local", PARAM_FUNCTION,
+                PARAM_MINION_NAME, "5", OUTPUT_JID, "foo", "bar baz");
+    }
+
+    @Test
+    public void testExecuteJobWithoutReturn() throws Exception {
+        setupResponse(post, HttpStatus.SC_OK, "{\"return\": [{\"minion\": false}]}");
+        Mockito.doReturn(null).when(plugin).extractOutputForJid(Mockito.same(client), Mockito.eq(AUTH_TOKEN),
+                Mockito.eq(OUTPUT_JID), Mockito.eq(PARAM_MINION_NAME));
+
+        Assert.assertNull(plugin.executeJob(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME, SecureDataMasker.NONE));
+        Mockito.verify(post, Mockito.times(1)).releaseConnection();
+    }
+
+    @Test
+    public void testExecuteJobReturningFalse() throws Exception {
+        setupResponse(post, HttpStatus.SC_OK, "{\"return\": [{\"minion\": false}]}");
+        Mockito.doReturn(new JsonPrimitive(false)).when(plugin).extractOutputForJid(Mockito.same(client),
+                Mockito.eq(AUTH_TOKEN), Mockito.eq(OUTPUT_JID), Mockito.eq(PARAM_MINION_NAME));
+
+        Assert.assertEquals(new JsonPrimitive(false),
+                plugin.executeJob(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME, SecureDataMasker.NONE));
+    }
+
+    @Test
+    public void testExecuteJobWithoutMatchingMinion() throws Exception {
+        setupResponse(post, HttpStatus.SC_OK, "{\"return\": [{}]}");
+
+        try {
+            plugin.executeJob(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME, SecureDataMasker.NONE);
+            Assert.fail("Expected targetting mismatch.");
+        } catch (SaltTargettingMismatchException e) {
+            // expected
+        }
+        Mockito.verify(post, Mockito.times(1)).releaseConnection();
+    }
+
+    @Test
+    public void testExecuteJobMatchingOtherMinions() throws Exception {
+        setupResponse(post, HttpStatus.SC_OK, "{\"return\": [{\"minion\": true, \"minion2\": true}]}");
+
+        try {
+            plugin.executeJob(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME, SecureDataMasker.NONE);
+            Assert.fail("Expected targetting mismatch.");
+        } catch (SaltTargettingMismatchException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testExecuteJobWithRejectedToken() throws Exception {
+        setupResponse(post, HttpStatus.SC_UNAUTHORIZED, "");
+
+        try {
+            plugin.executeJob(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME, SecureDataMasker.NONE);
+            Assert.fail("Expected token rejection.");
+        } catch (SaltApiTokenRejectedException e) {
+            // expected
+        }
+        Mockito.verify(post, Mockito.times(1)).releaseConnection();
+    }
+
+    @Test
+    public void testExecuteJobWithErrorResponse() throws Exception {
+        setupResponse(post, HttpStatus.SC_INTERNAL_SERVER_ERROR, "");
+
+        try {
+            plugin.executeJob(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME, SecureDataMasker.NONE);
+            Assert.fail("Expected exception.");
+        } catch (HttpException e) {
+            // expected
+        }
+        Mockito.verify(post, Mockito.times(1)).releaseConnection();
+    }
+
+    @Test
+    public void testIsJobRunning() throws Exception {
+        setupResponse(post, HttpStatus.SC_OK,
+                "{\"return\": [{\"minion\": {\"jid\": \"" + OUTPUT_JID + "\", \"fun\": \"test.ping\"}}]}");
+
+        Assert.assertTrue(plugin.isJobRunning(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME));
+        Assert.assertEquals("Expected local client to be called through the root resource", PARAM_ENDPOINT + "/",
+                post.getURI().toString());
+        assertPostBody("client=%s&fun=%s&tgt=%s&arg=%s", "local", "saltutil.find_job", PARAM_MINION_NAME,
+                OUTPUT_JID);
+        Mockito.verify(post, Mockito.times(1)).releaseConnection();
+    }
+
+    @Test
+    public void testIsJobRunningWhenMinionDoesNotKnowJob() throws Exception {
+        setupResponse(post, HttpStatus.SC_OK, "{\"return\": [{\"minion\": {}}]}");
+
+        Assert.assertFalse(plugin.isJobRunning(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME));
+    }
+
+    @Test
+    public void testIsJobRunningWhenMinionDoesNotAnswer() throws Exception {
+        setupResponse(post, HttpStatus.SC_OK, "{\"return\": [{}]}");
+
+        Assert.assertFalse(plugin.isJobRunning(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME));
+    }
+
+    @Test
+    public void testIsJobRunningWithRejectedToken() throws Exception {
+        setupResponse(post, HttpStatus.SC_UNAUTHORIZED, "");
+
+        try {
+            plugin.isJobRunning(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME);
+            Assert.fail("Expected token rejection.");
+        } catch (SaltApiTokenRejectedException e) {
+            // expected
+        }
+        Mockito.verify(post, Mockito.times(1)).releaseConnection();
+    }
+
+    @Test
+    public void testGenerateJid() {
+        String jid = plugin.generateJid();
+
+        Assert.assertTrue("Expected jid in salt's format, got " + jid, jid.matches("\\d{20}"));
+    }
+
+    @Test
+    public void testGenerateJidIsUnique() {
+        Set<String> jids = Sets.newHashSet();
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue("Expected unique jids", jids.add(plugin.generateJid()));
+        }
+    }
+}
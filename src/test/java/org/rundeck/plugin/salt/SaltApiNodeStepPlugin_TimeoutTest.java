@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpStatus;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.rundeck.plugin.salt.util.SecureDataMasker;
+
+import com.google.common.base.Predicate;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
+
+public class SaltApiNodeStepPlugin_TimeoutTest extends AbstractSaltApiNodeStepPluginTest {
+
+    protected SaltStepExecution execution;
+
+    @Before
+    public void setup() {
+        spyPlugin();
+        Mockito.doReturn(1000L).when(plugin).currentTimeMillis();
+        execution = new SaltStepExecution(pluginLogger, SecureDataMasker.NONE);
+        SaltStepExecution.bind(execution);
+    }
+
+    @Test
+    public void testGetJobTimeout() {
+        plugin.timeout = 0;
+        plugin.maximumTimeout = 0;
+        Assert.assertEquals("Expected no timeout", 0, plugin.getJobTimeout());
+
+        plugin.maximumTimeout = TimeUnit.HOURS.toMillis(1);
+        Assert.assertEquals("Expected global maximum without step timeout", TimeUnit.HOURS.toMillis(1),
+                plugin.getJobTimeout());
+
+        plugin.timeout = 60;
+        Assert.assertEquals("Expected step timeout below global maximum", TimeUnit.MINUTES.toMillis(1),
+                plugin.getJobTimeout());
+
+        plugin.timeout = 7200;
+        Assert.assertEquals("Expected step timeout capped by global maximum", TimeUnit.HOURS.toMillis(1),
+                plugin.getJobTimeout());
+
+        plugin.maximumTimeout = 0;
+        Assert.assertEquals("Expected step timeout without global maximum", TimeUnit.HOURS.toMillis(2),
+                plugin.getJobTimeout());
+    }
+
+    @Test
+    public void testStartDeadline() {
+        plugin.timeout = 5;
+        plugin.startDeadline();
+
+        Assert.assertEquals(6000, execution.getDeadline());
+    }
+
+    @Test
+    public void testStartDeadlineWithoutTimeout() {
+        plugin.timeout = 0;
+        plugin.maximumTimeout = 0;
+        plugin.startDeadline();
+
+        Assert.assertEquals(0, execution.getDeadline());
+    }
+
+    @Test
+    public void testGetBeforeDeadline() throws Exception {
+        execution.setDeadline(2000);
+
+        Assert.assertEquals(HOST_RESPONSE_JSON, plugin.getBeforeDeadline(Futures.immediateFuture(HOST_RESPONSE_JSON),
+                OUTPUT_JID));
+    }
+
+    @Test
+    public void testGetBeforeDeadlineTimesOut() throws Exception {
+        execution.setDeadline(1000);
+        SettableFuture<Object> output = SettableFuture.create();
+
+        try {
+            plugin.getBeforeDeadline(output, OUTPUT_JID);
+            Assert.fail("Expected timeout.");
+        } catch (SaltJobTimeoutException e) {
+            Assert.assertTrue("Expected output to be cancelled", output.isCancelled());
+        }
+    }
+
+    @Test
+    public void testGetBeforeDeadlineWithoutExecution() throws Exception {
+        SaltStepExecution.bind(null);
+
+        Assert.assertEquals(HOST_RESPONSE_JSON, plugin.getBeforeDeadline(Futures.immediateFuture(HOST_RESPONSE_JSON),
+                OUTPUT_JID));
+    }
+
+    @Test
+    public void testKillJob() throws Exception {
+        setupResponseCode(post, HttpStatus.SC_ACCEPTED);
+
+        plugin.killJobQuietly(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME);
+
+        Assert.assertEquals("Expected kill to be submitted to minion resource", PARAM_ENDPOINT + "/minions", post
+                .getURI().toString());
+        Mockito.verify(post, Mockito.times(1)).setHeader(Mockito.eq(SaltApiNodeStepPlugin.SALT_AUTH_TOKEN_HEADER),
+                Mockito.eq(AUTH_TOKEN));
+        assertPostBody("fun=%s&tgt=%s&arg=%s", "saltutil.kill_job", PARAM_MINION_NAME, OUTPUT_JID);
+        Mockito.verify(post).releaseConnection();
+    }
+
+    @Test
+    public void testKillJobRejectedRemainsQuiet() throws Exception {
+        setupResponseCode(post, HttpStatus.SC_UNAUTHORIZED);
+
+        plugin.killJobQuietly(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME);
+
+        Mockito.verify(post).releaseConnection();
+    }
+
+    @Test
+    public void testKillJobThrowsIOExceptionRemainsQuiet() throws Exception {
+        setupDoThrowOnRetryingExecutor(new IOException());
+
+        plugin.killJobQuietly(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME);
+
+        Mockito.verify(post).releaseConnection();
+    }
+
+    @Test
+    public void testKillJobThrowsInterruptedExceptionRemainsQuiet() throws Exception {
+        setupDoThrowOnRetryingExecutor(new InterruptedException());
+
+        plugin.killJobQuietly(client, AUTH_TOKEN, OUTPUT_JID, PARAM_MINION_NAME);
+
+        // Check needs to remain in place to clear interrupted flag.
+        Assert.assertTrue("Expected interrupted flag to be set.", Thread.interrupted());
+    }
+
+    @SuppressWarnings("unchecked")
+    protected void setupDoThrowOnRetryingExecutor(Exception e) throws Exception {
+        Mockito.doThrow(e).when(retryingExecutor).execute(Mockito.same(log), Mockito.same(client), Mockito.same(post),
+                Mockito.eq(plugin.numRetries), Mockito.any(Predicate.class));
+    }
+}
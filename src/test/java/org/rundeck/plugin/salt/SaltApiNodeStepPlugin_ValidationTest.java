@@ -94,4 +94,25 @@ public class SaltApiNodeStepPlugin_ValidationTest extends AbstractSaltApiNodeSte
                     SaltApiNodeStepPlugin.SALT_API_END_POINT_OPTION_NAME, e.getFieldName());
         }
     }
+
+    @Test
+    public void testValidateRejectsSeveralFunctionsWithBatchDispatch() throws NodeStepException {
+        plugin.batchDispatch = true;
+        plugin.function = "test.ping\n" + PARAM_FUNCTION;
+        try {
+            plugin.validate(PARAM_USER, PARAM_PASSWORD, node);
+            Assert.fail("Expected failure.");
+        } catch (SaltStepValidationException e) {
+            Assert.assertEquals("Expected correct failure type due to validation failure",
+                    SaltApiNodeStepFailureReason.ARGUMENTS_INVALID, e.getFailureReason());
+            Assert.assertEquals("Expected field name to be filled out properly",
+                    SaltApiNodeStepPlugin.SALT_API_BATCH_DISPATCH_OPTION_NAME, e.getFieldName());
+        }
+    }
+
+    @Test
+    public void testValidateAcceptsSingleFunctionWithBatchDispatch() throws NodeStepException {
+        plugin.batchDispatch = true;
+        plugin.validate(PARAM_USER, PARAM_PASSWORD, node);
+    }
 }
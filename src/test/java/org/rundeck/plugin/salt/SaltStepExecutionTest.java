@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.rundeck.plugin.salt.util.SecureDataMasker;
+
+import com.dtolabs.rundeck.core.Constants;
+import com.dtolabs.rundeck.plugins.PluginLogger;
+import com.google.common.collect.ImmutableSet;
+
+public class SaltStepExecutionTest {
+
+    protected PluginLogger logger;
+    protected SaltStepExecution execution;
+
+    @Before
+    public void setup() {
+        logger = Mockito.mock(PluginLogger.class);
+        execution = new SaltStepExecution(logger, new SecureDataMasker(ImmutableSet.of("s3cr3t")));
+    }
+
+    @After
+    public void tearDown() {
+        SaltStepExecution.bind(null);
+    }
+
+    @Test
+    public void testBindReturnsPreviousExecution() {
+        Assert.assertNull(SaltStepExecution.bind(execution));
+        Assert.assertSame(execution, SaltStepExecution.current());
+        Assert.assertSame(execution, SaltStepExecution.bind(null));
+        Assert.assertNull(SaltStepExecution.current());
+    }
+
+    @Test
+    public void testCurrentLogWrapperLogsToBoundExecution() {
+        SaltStepExecution.bind(execution);
+        SaltStepExecution.CURRENT_LOG_WRAPPER.info("password: %s", "s3cr3t");
+        SaltStepExecution.CURRENT_LOG_WRAPPER.warn("warning");
+
+        Mockito.verify(logger, Mockito.times(1)).log(Constants.INFO_LEVEL, "password: ****");
+        Mockito.verify(logger, Mockito.times(1)).log(Constants.WARN_LEVEL, "warning");
+        Assert.assertSame(logger, SaltStepExecution.CURRENT_LOG_WRAPPER.getUnderlyingLogger());
+    }
+
+    @Test
+    public void testCurrentLogWrapperDiscardsWithoutExecution() {
+        SaltStepExecution.CURRENT_LOG_WRAPPER.info("line");
+        Assert.assertNull(SaltStepExecution.CURRENT_LOG_WRAPPER.getUnderlyingLogger());
+    }
+
+    @Test
+    public void testExecutionsAreThreadConfined() throws Exception {
+        SaltStepExecution.bind(execution);
+        final PluginLogger otherLogger = Mockito.mock(PluginLogger.class);
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                SaltStepExecution.bind(new SaltStepExecution(otherLogger, SecureDataMasker.NONE));
+                SaltStepExecution.CURRENT_LOG_WRAPPER.info("other");
+            }
+        };
+        other.start();
+        other.join();
+        SaltStepExecution.CURRENT_LOG_WRAPPER.info("mine");
+
+        Mockito.verify(otherLogger, Mockito.times(1)).log(Constants.INFO_LEVEL, "other");
+        Mockito.verify(logger, Mockito.times(1)).log(Constants.INFO_LEVEL, "mine");
+        Mockito.verifyNoMoreInteractions(logger, otherLogger);
+    }
+}
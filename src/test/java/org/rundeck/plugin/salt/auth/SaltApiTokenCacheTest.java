@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.auth;
+
+import java.io.IOException;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class SaltApiTokenCacheTest {
+
+    protected static final String KEY = SaltApiTokenCache.key("https://localhost", "user", "pam", "password");
+
+    protected SaltApiTokenCache cache;
+    protected SaltApiTokenCache.Login login;
+    protected SaltApiTokenCache.Logout logout;
+
+    @Before
+    public void setup() throws Exception {
+        cache = Mockito.spy(new SaltApiTokenCache(10000, 1000, 3000));
+        Mockito.doReturn(0L).when(cache).currentTimeMillis();
+        login = Mockito.mock(SaltApiTokenCache.Login.class);
+        logout = Mockito.mock(SaltApiTokenCache.Logout.class);
+        Mockito.when(login.login()).thenReturn(new SaltApiToken("first", null), new SaltApiToken("second", null));
+    }
+
+    @Test
+    public void testGetTokenReusesToken() throws Exception {
+        Assert.assertEquals("first", cache.getToken(KEY, login, logout));
+        Assert.assertEquals("first", cache.getToken(KEY, login, logout));
+
+        Mockito.verify(login, Mockito.times(1)).login();
+        Mockito.verifyNoInteractions(logout);
+    }
+
+    @Test
+    public void testGetTokenRefreshesWithinMarginOfDefaultLifetime() throws Exception {
+        cache.getToken(KEY, login, logout);
+        Mockito.doReturn(9000L).when(cache).currentTimeMillis();
+
+        Assert.assertEquals("second", cache.getToken(KEY, login, logout));
+        Mockito.verifyNoInteractions(logout);
+    }
+
+    @Test
+    public void testGetTokenRefreshesAheadOfExpiry() throws Exception {
+        cache.getToken(KEY, login, logout);
+        Mockito.doReturn(7500L).when(cache).currentTimeMillis();
+
+        Assert.assertEquals("second", cache.getToken(KEY, login, logout));
+        Assert.assertEquals("second", cache.getToken(KEY, login, logout));
+        Mockito.verify(login, Mockito.times(2)).login();
+        Mockito.verifyNoInteractions(logout);
+    }
+
+    @Test
+    public void testGetTokenHandsOutTokenWhileRefreshing() throws Exception {
+        cache.getToken(KEY, login, logout);
+        Mockito.doReturn(7500L).when(cache).currentTimeMillis();
+        cache.tokens.get(KEY).refreshing.set(true);
+
+        Assert.assertEquals("first", cache.getToken(KEY, login, logout));
+        Mockito.verify(login, Mockito.times(1)).login();
+    }
+
+    @Test
+    public void testGetTokenKeepsTokenWhenRefreshFails() throws Exception {
+        Mockito.when(login.login()).thenReturn(new SaltApiToken("first", null)).thenThrow(new IOException())
+                .thenReturn(new SaltApiToken("second", null));
+        cache.getToken(KEY, login, logout);
+        Mockito.doReturn(7500L).when(cache).currentTimeMillis();
+
+        Assert.assertEquals("first", cache.getToken(KEY, login, logout));
+        Assert.assertEquals("second", cache.getToken(KEY, login, logout));
+    }
+
+    @Test
+    public void testGetTokenKeepsTokenWhenRefreshRejected() throws Exception {
+        Mockito.when(login.login()).thenReturn(new SaltApiToken("first", null), null);
+        cache.getToken(KEY, login, logout);
+        Mockito.doReturn(7500L).when(cache).currentTimeMillis();
+
+        Assert.assertEquals("first", cache.getToken(KEY, login, logout));
+        Assert.assertFalse(cache.tokens.get(KEY).refreshing.get());
+    }
+
+    @Test
+    public void testGetTokenUsesReportedLifetime() throws Exception {
+        Mockito.when(login.login()).thenReturn(new SaltApiToken("first", 100000L), new SaltApiToken("second", null));
+        cache.getToken(KEY, login, logout);
+        Mockito.doReturn(50000L).when(cache).currentTimeMillis();
+
+        Assert.assertEquals("first", cache.getToken(KEY, login, logout));
+        Mockito.verify(login, Mockito.times(1)).login();
+    }
+
+    @Test
+    public void testGetTokenWithRejectedLogin() throws Exception {
+        Mockito.when(login.login()).thenReturn(null, new SaltApiToken("second", null));
+
+        Assert.assertNull(cache.getToken(KEY, login, logout));
+        Assert.assertEquals("second", cache.getToken(KEY, login, logout));
+    }
+
+    @Test
+    public void testGetTokenSeparatesKeys() throws Exception {
+        String otherKey = SaltApiTokenCache.key("https://localhost", "user", "pam", "otherpassword");
+        Assert.assertNotEquals(KEY, otherKey);
+
+        Assert.assertEquals("first", cache.getToken(KEY, login, logout));
+        Assert.assertEquals("second", cache.getToken(otherKey, login, logout));
+    }
+
+    @Test
+    public void testKeyDoesNotContainPassword() {
+        Assert.assertFalse(KEY.contains("password"));
+    }
+
+    @Test
+    public void testEvictDoesNotLogout() throws Exception {
+        cache.getToken(KEY, login, logout);
+        cache.evict("first");
+
+        Assert.assertEquals("second", cache.getToken(KEY, login, logout));
+        Mockito.verifyNoInteractions(logout);
+    }
+
+    @Test
+    public void testShutdownLogsOutTokens() throws Exception {
+        cache.getToken(KEY, login, logout);
+        cache.shutdown();
+
+        Mockito.verify(logout, Mockito.times(1)).logout("first");
+        Assert.assertTrue(cache.tokens.isEmpty());
+    }
+
+    @Test
+    public void testShutdownWithoutLogout() throws Exception {
+        cache.getToken(KEY, login, null);
+        cache.shutdown();
+
+        Assert.assertTrue(cache.tokens.isEmpty());
+    }
+}
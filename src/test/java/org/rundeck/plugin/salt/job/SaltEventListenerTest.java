@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.job;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.rundeck.plugin.salt.util.SaltTaskExecutor;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
+public class SaltEventListenerTest {
+
+    protected SaltEventListener listener;
+    protected HttpClient client;
+    protected Supplier<HttpUriRequest> request;
+    protected SaltEventStream stream;
+
+    @Before
+    public void setup() {
+        listener = Mockito.spy(new SaltEventListener());
+        listener.taskExecutor = Mockito.mock(SaltTaskExecutor.class);
+        client = Mockito.mock(HttpClient.class);
+        request = Suppliers.<HttpUriRequest> ofInstance(Mockito.mock(HttpGet.class));
+        stream = Mockito.mock(SaltEventStream.class);
+        Mockito.doReturn(stream).when(listener).newStream(Mockito.same(client), Mockito.same(request.get()));
+    }
+
+    @Test
+    public void testGetStreamConnectsAndReadsNewStream() throws Exception {
+        Assert.assertSame(stream, listener.getStream("key", client, request));
+
+        Mockito.verify(stream, Mockito.times(1)).connect();
+        Mockito.verify(listener.taskExecutor, Mockito.times(1)).execute(stream);
+    }
+
+    @Test
+    public void testGetStreamReusesOpenStream() throws Exception {
+        Mockito.when(stream.isOpen()).thenReturn(true);
+        listener.getStream("key", client, request);
+
+        Assert.assertSame(stream, listener.getStream("key", client, request));
+        Mockito.verify(stream, Mockito.times(1)).connect();
+    }
+
+    @Test
+    public void testGetStreamReconnectsClosedStream() throws Exception {
+        Mockito.when(stream.isOpen()).thenReturn(false);
+        listener.getStream("key", client, request);
+        listener.getStream("key", client, request);
+
+        Mockito.verify(listener, Mockito.times(2)).newStream(Mockito.same(client), Mockito.same(request.get()));
+    }
+
+    @Test
+    public void testStopClosesStreams() throws Exception {
+        listener.getStream("key", client, request);
+        listener.stop();
+
+        Mockito.verify(stream, Mockito.times(1)).close();
+        Assert.assertTrue(listener.streams.isEmpty());
+    }
+
+    @Test
+    public void testNewStreamTimesOutIdleReads() throws Exception {
+        SaltEventListener listener = new SaltEventListener();
+        listener.retention = 60000;
+        listener.maximumRecentReturns = 10;
+        listener.idleTimeout = 60000;
+        HttpGet get = new HttpGet("http://localhost/events");
+
+        listener.newStream(client, get);
+
+        Assert.assertEquals(60000, get.getConfig().getSocketTimeout());
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.job;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+public class SaltEventStreamTest {
+
+    protected static final String JID = "20130213093536481553";
+    protected static final String RETURN_EVENT = "tag: salt/job/" + JID + "/ret/minion\n"
+            + "data: {\"tag\": \"salt/job/" + JID + "/ret/minion\", \"data\": {\"jid\": \"" + JID
+            + "\", \"id\": \"minion\", \"return\": {\"retcode\": 0}, \"fun\": \"test.ping\"}}\n\n";
+
+    protected HttpClient client;
+    protected HttpGet get;
+    protected HttpResponse response;
+    protected HttpEntity entity;
+    protected StatusLine statusLine;
+    protected SaltEventStream stream;
+
+    @Before
+    public void setup() throws Exception {
+        client = Mockito.mock(HttpClient.class);
+        get = Mockito.mock(HttpGet.class);
+        response = Mockito.mock(HttpResponse.class);
+        entity = Mockito.mock(HttpEntity.class);
+        statusLine = Mockito.mock(StatusLine.class);
+        Mockito.when(client.execute(get)).thenReturn(response);
+        Mockito.when(response.getStatusLine()).thenReturn(statusLine);
+        Mockito.when(response.getEntity()).thenReturn(entity);
+        Mockito.when(statusLine.getStatusCode()).thenReturn(HttpStatus.SC_OK);
+        stream = new SaltEventStream(client, get, CacheBuilder.newBuilder().<String, Boolean> build());
+    }
+
+    @Test
+    public void testReturnEventCompletesWaitingMinion() throws Exception {
+        setupEvents(RETURN_EVENT);
+        stream.connect();
+        Future<JsonElement> output = stream.register(JID, "minion");
+        Future<JsonElement> otherOutput = stream.register(JID, "other");
+
+        stream.run();
+
+        Assert.assertEquals("{\"retcode\":0}", output.get().toString());
+        assertFailed(otherOutput);
+    }
+
+    @Test
+    public void testReturnEventBeforeRegistration() throws Exception {
+        setupEvents(RETURN_EVENT);
+        stream.connect();
+        stream.run();
+
+        Future<JsonElement> output = stream.register(JID, "minion");
+        Assert.assertTrue(output.isDone());
+        Assert.assertNull("Expected late registrations to read the return from the job cache", output.get());
+        assertFailed(stream.register(JID, "other"));
+    }
+
+    @Test
+    public void testCancelUnregistersMinion() throws Exception {
+        stream.register(JID, "minion").cancel(true);
+
+        Assert.assertTrue("Expected cancelled registration to be removed", stream.waiting.isEmpty());
+    }
+
+    @Test
+    public void testRegisterAgainAfterCancel() throws Exception {
+        setupEvents(RETURN_EVENT);
+        stream.connect();
+        stream.register(JID, "minion").cancel(true);
+        Future<JsonElement> output = stream.register(JID, "minion");
+
+        stream.run();
+
+        Assert.assertFalse(output.isCancelled());
+        Assert.assertEquals("{\"retcode\":0}", output.get().toString());
+    }
+
+    @Test
+    public void testIgnoresOtherEvents() throws Exception {
+        setupEvents("tag: salt/job/" + JID + "/new\n" + "data: {\"tag\": \"salt/job/" + JID
+                + "/new\", \"data\": {\"jid\": \"" + JID + "\", \"minions\": [\"minion\"]}}\n\n"
+                + ": comment\n\n" + "data: not json\n\n" + "retry: 400\n\n");
+        stream.connect();
+        Future<JsonElement> output = stream.register(JID, "minion");
+
+        stream.run();
+
+        assertFailed(output);
+    }
+
+    @Test
+    public void testMultiLineData() throws Exception {
+        setupEvents("data: {\"tag\": \"salt/job/" + JID + "/ret/minion\",\n" + "data: \"data\": {\"jid\": \"" + JID
+                + "\", \"id\": \"minion\", \"return\": true}}\n\n");
+        stream.connect();
+        Future<JsonElement> output = stream.register(JID, "minion");
+
+        stream.run();
+
+        Assert.assertEquals(new JsonPrimitive(true), output.get());
+    }
+
+    @Test
+    public void testConnectFailure() throws Exception {
+        Mockito.when(statusLine.getStatusCode()).thenReturn(HttpStatus.SC_UNAUTHORIZED);
+        try {
+            stream.connect();
+            Assert.fail("Expected failure to connect");
+        } catch (IOException e) {
+            // expected
+        }
+        Assert.assertFalse(stream.isOpen());
+    }
+
+    @Test
+    public void testCloseFailsWaitingAndAbortsRequest() throws Exception {
+        Future<JsonElement> output = stream.register(JID, "minion");
+        stream.close();
+
+        assertFailed(output);
+        Assert.assertFalse(stream.isOpen());
+        Mockito.verify(get, Mockito.times(1)).abort();
+    }
+
+    @Test
+    public void testRegisterAfterClose() throws Exception {
+        stream.close();
+        assertFailed(stream.register(JID, "minion"));
+    }
+
+    protected void setupEvents(String events) throws IOException {
+        Mockito.when(entity.getContent()).thenReturn(new ByteArrayInputStream(events.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    protected void assertFailed(Future<JsonElement> output) throws InterruptedException {
+        Assert.assertTrue(output.isDone());
+        try {
+            output.get();
+            Assert.fail("Expected output to fail once the stream closed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+}
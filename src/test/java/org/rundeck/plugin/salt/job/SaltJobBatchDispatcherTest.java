@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.job;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.rundeck.plugin.salt.SaltApiException;
+import org.rundeck.plugin.salt.output.SaltApiResponseOutput;
+
+import com.google.common.collect.ImmutableList;
+
+public class SaltJobBatchDispatcherTest {
+
+    protected static final String BATCH_KEY = "1:[1]:https://localhost:test.ping";
+    protected static final List<String> TARGETS = ImmutableList.of("minion1", "minion2");
+
+    protected SaltJobBatchDispatcher dispatcher;
+    protected SaltApiResponseOutput output;
+    protected Callable<SaltApiResponseOutput> submitter;
+
+    @SuppressWarnings("unchecked")
+    @Before
+    public void setup() throws Exception {
+        dispatcher = new SaltJobBatchDispatcher();
+        dispatcher.retention = 1000;
+        output = Mockito.mock(SaltApiResponseOutput.class);
+        submitter = Mockito.mock(Callable.class);
+        Mockito.when(submitter.call()).thenReturn(output);
+    }
+
+    @Test
+    public void testDispatchSubmitsOncePerBatch() throws Exception {
+        Assert.assertSame("Expected submission output", output, dispatcher.dispatch(BATCH_KEY, "minion1", TARGETS, submitter));
+        Assert.assertSame("Expected shared submission output", output, dispatcher.dispatch(BATCH_KEY, "minion2", TARGETS, submitter));
+
+        Mockito.verify(submitter, Mockito.times(1)).call();
+    }
+
+    @Test
+    public void testDispatchReturnsNullForAlreadyDispatchedMinion() throws Exception {
+        dispatcher.dispatch(BATCH_KEY, "minion1", TARGETS, submitter);
+
+        Assert.assertNull("Expected no output for a minion that already claimed the batch",
+                dispatcher.dispatch(BATCH_KEY, "minion1", TARGETS, submitter));
+        Mockito.verify(submitter, Mockito.times(1)).call();
+    }
+
+    @Test
+    public void testDispatchReturnsNullForMinionOutsideOfBatch() throws Exception {
+        Assert.assertNull("Expected no output for a minion that isn't targeted by the batch",
+                dispatcher.dispatch(BATCH_KEY, "minion3", TARGETS, submitter));
+        Mockito.verifyNoInteractions(submitter);
+    }
+
+    @Test
+    public void testDispatchSharesFailure() throws Exception {
+        SaltApiException failure = new SaltApiException("some message");
+        Mockito.when(submitter.call()).thenThrow(failure);
+
+        for (String minion : TARGETS) {
+            try {
+                dispatcher.dispatch(BATCH_KEY, minion, TARGETS, submitter);
+                Assert.fail("Expected submission failure");
+            } catch (ExecutionException e) {
+                Assert.assertSame("Expected submission failure as cause", failure, e.getCause());
+            }
+        }
+        Mockito.verify(submitter, Mockito.times(1)).call();
+    }
+
+    @Test
+    public void testDispatchEvictsExpiredBatches() throws Exception {
+        dispatcher = Mockito.spy(dispatcher);
+        Mockito.when(dispatcher.currentTimeMillis()).thenReturn(0L, 500L, 2000L);
+
+        dispatcher.dispatch(BATCH_KEY, "minion1", TARGETS, submitter);
+        dispatcher.dispatch(BATCH_KEY, "minion2", TARGETS, submitter);
+        Assert.assertSame("Expected new batch after expiry", output, dispatcher.dispatch(BATCH_KEY, "minion1", TARGETS, submitter));
+
+        Mockito.verify(submitter, Mockito.times(2)).call();
+    }
+
+    @Test
+    public void testDispatchKeepsBatchWhileClaimed() throws Exception {
+        dispatcher = Mockito.spy(dispatcher);
+        Mockito.when(dispatcher.currentTimeMillis()).thenReturn(0L, 900L, 1800L);
+        List<String> targets = ImmutableList.of("minion1", "minion2", "minion3");
+
+        for (String minion : targets) {
+            Assert.assertSame("Expected shared submission output", output,
+                    dispatcher.dispatch(BATCH_KEY, minion, targets, submitter));
+        }
+        Mockito.verify(submitter, Mockito.times(1)).call();
+    }
+
+    @Test
+    public void testDispatchAfterRetentionSharesBatchJob() throws Exception {
+        dispatcher = Mockito.spy(dispatcher);
+        Mockito.when(dispatcher.currentTimeMillis()).thenReturn(0L, 2000L, 2500L);
+
+        dispatcher.dispatch(BATCH_KEY, "minion1", TARGETS, submitter);
+        Assert.assertSame("Expected late minion to share the batch's job", output,
+                dispatcher.dispatch(BATCH_KEY, "minion2", TARGETS, submitter));
+        Mockito.verify(submitter, Mockito.times(1)).call();
+
+        Assert.assertSame("Expected new batch once every minion was accounted for", output,
+                dispatcher.dispatch(BATCH_KEY, "minion1", TARGETS, submitter));
+        Mockito.verify(submitter, Mockito.times(2)).call();
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.job;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SaltJobDurationsTest {
+
+    protected SaltJobDurations durations;
+
+    @Before
+    public void setup() {
+        durations = new SaltJobDurations();
+        durations.samples = 10;
+        durations.minimumSamples = 3;
+        durations.initialize();
+    }
+
+    @Test
+    public void testNoEstimateWithoutEnoughSamples() {
+        durations.record("state.highstate", 1000);
+        durations.record("state.highstate", 2000);
+
+        Assert.assertNull(durations.estimate("state.highstate"));
+    }
+
+    @Test
+    public void testEstimateFromPercentiles() {
+        for (int i = 1; i <= 10; i++) {
+            durations.record("state.highstate", i * 1000);
+        }
+
+        SaltJobDurations.Estimate estimate = durations.estimate("state.highstate");
+        Assert.assertEquals(1000, estimate.getEarliest());
+        Assert.assertEquals(9000, estimate.getLatest());
+    }
+
+    @Test
+    public void testKeepsMostRecentSamples() {
+        for (int i = 1; i <= 10; i++) {
+            durations.record("state.highstate", 1000000);
+        }
+        for (int i = 1; i <= 10; i++) {
+            durations.record("state.highstate", i * 1000);
+        }
+
+        Assert.assertEquals(9000, durations.estimate("state.highstate").getLatest());
+    }
+
+    @Test
+    public void testFallsBackToModule() {
+        durations.record("state.sls", 1000);
+        durations.record("state.apply", 2000);
+        durations.record("state.highstate", 3000);
+
+        SaltJobDurations.Estimate estimate = durations.estimate("state.single");
+        Assert.assertEquals(1000, estimate.getEarliest());
+        Assert.assertEquals(3000, estimate.getLatest());
+        Assert.assertNull(durations.estimate("cmd.run"));
+    }
+
+    @Test
+    public void testPrefersFunctionOverModule() {
+        for (int i = 0; i < 3; i++) {
+            durations.record("test.ping", 100);
+            durations.record("test.sleep", 60000);
+        }
+
+        Assert.assertEquals(100, durations.estimate("test.ping").getLatest());
+    }
+}
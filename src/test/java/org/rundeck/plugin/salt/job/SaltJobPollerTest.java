@@ -0,0 +1,367 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.job;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.rundeck.plugin.salt.util.CircuitOpenException;
+import org.rundeck.plugin.salt.util.ExponentialBackoffTimer;
+import org.rundeck.plugin.salt.util.SaltTaskExecutor;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+
+public class SaltJobPollerTest {
+
+    protected static final String ENDPOINT = "https://localhost";
+    protected static final String FUNCTION = "state.highstate";
+    protected static final String JOB_KEY = "https://localhost/jobs/123";
+
+    protected SaltJobPoller poller;
+    protected SaltJobPoller.JobFetcher fetcher;
+    protected ExponentialBackoffTimer timer;
+
+    @Before
+    public void setup() {
+        poller = Mockito.spy(new SaltJobPoller());
+        poller.taskExecutor = Mockito.mock(SaltTaskExecutor.class);
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((Runnable) invocation.getArguments()[1]).run();
+                return null;
+            }
+        }).when(poller.taskExecutor).execute(Mockito.eq(ENDPOINT), Mockito.any(Runnable.class));
+        poller.timerFactory = Mockito.mock(ExponentialBackoffTimer.Factory.class);
+        timer = Mockito.mock(ExponentialBackoffTimer.class);
+        Mockito.when(poller.timerFactory.newTimer(Mockito.anyLong(), Mockito.anyLong())).thenReturn(timer);
+        Mockito.when(timer.nextDelay()).thenReturn(500L);
+        Mockito.doReturn(0L).when(poller).currentTimeMillis();
+        fetcher = Mockito.mock(SaltJobPoller.JobFetcher.class);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testSingleFetchForAllMinionsOfJob() throws Exception {
+        Mockito.when(fetcher.fetch(Mockito.anySet())).thenReturn(ImmutableMap.of("minion1", json("1"), "minion2", json("2")));
+        Future<JsonElement> output1 = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", fetcher);
+        Future<JsonElement> output2 = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion2",
+                Mockito.mock(SaltJobPoller.JobFetcher.class));
+
+        poller.tick();
+
+        Mockito.verify(fetcher, Mockito.times(1)).fetch(ImmutableSet.of("minion1", "minion2"));
+        Assert.assertEquals(json("1"), output1.get());
+        Assert.assertEquals(json("2"), output2.get());
+        Assert.assertTrue("Expected completed job to be removed", poller.jobs.isEmpty());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testAsyncFetcherPolledFromScheduler() throws Exception {
+        SaltJobPoller.AsyncJobFetcher asyncFetcher = Mockito.mock(SaltJobPoller.AsyncJobFetcher.class);
+        CompletableFuture<Map<String, JsonElement>> returns = new CompletableFuture<Map<String, JsonElement>>();
+        Mockito.when(asyncFetcher.fetch(Mockito.anySet())).thenReturn(returns);
+        Future<JsonElement> output1 = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", asyncFetcher);
+        Future<JsonElement> output2 = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion2", asyncFetcher);
+
+        poller.tick();
+        Mockito.doReturn(1000L).when(poller).currentTimeMillis();
+        poller.tick();
+        Mockito.verify(asyncFetcher, Mockito.times(1)).fetch(ImmutableSet.of("minion1", "minion2"));
+        Mockito.verifyNoInteractions(poller.taskExecutor);
+        Assert.assertFalse(output1.isDone());
+
+        returns.complete(ImmutableMap.of("minion1", json("1"), "minion2", json("2")));
+        Assert.assertEquals(json("1"), output1.get());
+        Assert.assertEquals(json("2"), output2.get());
+        Assert.assertTrue(poller.jobs.isEmpty());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testAsyncFetchFailureFailsOnlyStepOfFetcher() throws Exception {
+        SaltJobPoller.AsyncJobFetcher asyncFetcher = Mockito.mock(SaltJobPoller.AsyncJobFetcher.class);
+        SaltJobPoller.AsyncJobFetcher otherAsyncFetcher = Mockito.mock(SaltJobPoller.AsyncJobFetcher.class);
+        IOException failure = new IOException();
+        Mockito.when(asyncFetcher.fetch(Mockito.anySet())).thenReturn(
+                CompletableFuture.<Map<String, JsonElement>> failedFuture(new CompletionException(failure)));
+        Mockito.when(otherAsyncFetcher.fetch(Mockito.anySet())).thenReturn(
+                CompletableFuture.<Map<String, JsonElement>> completedFuture(ImmutableMap.of("minion2", json("2"))));
+        Future<JsonElement> output1 = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", asyncFetcher);
+        Future<JsonElement> output2 = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion2", otherAsyncFetcher);
+
+        poller.tick();
+        assertFailedWith(failure, output1);
+        Assert.assertFalse(output2.isDone());
+
+        Mockito.doReturn(500L).when(poller).currentTimeMillis();
+        poller.tick();
+        Mockito.verify(otherAsyncFetcher, Mockito.times(1)).fetch(ImmutableSet.of("minion2"));
+        Assert.assertEquals(json("2"), output2.get());
+        Assert.assertTrue(poller.jobs.isEmpty());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testAsyncFetchRefusedByOpenCircuitIsRetried() throws Exception {
+        SaltJobPoller.AsyncJobFetcher asyncFetcher = Mockito.mock(SaltJobPoller.AsyncJobFetcher.class);
+        Mockito.when(asyncFetcher.fetch(Mockito.anySet())).thenReturn(
+                CompletableFuture.<Map<String, JsonElement>> failedFuture(new CompletionException(
+                        new CircuitOpenException("open"))),
+                CompletableFuture.<Map<String, JsonElement>> completedFuture(ImmutableMap.of("minion1", json("1"))));
+        Future<JsonElement> output = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", asyncFetcher);
+
+        poller.tick();
+        Assert.assertFalse(output.isDone());
+
+        Mockito.doReturn(500L).when(poller).currentTimeMillis();
+        poller.tick();
+        Assert.assertEquals(json("1"), output.get());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testPendingMinionsPolledAfterBackoff() throws Exception {
+        Mockito.when(fetcher.fetch(Mockito.anySet())).thenReturn(ImmutableMap.of("minion1", json("1")),
+                ImmutableMap.of("minion2", json("2")));
+        Future<JsonElement> output1 = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", fetcher);
+        Future<JsonElement> output2 = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion2", fetcher);
+
+        poller.tick();
+        Assert.assertTrue(output1.isDone());
+        Assert.assertFalse(output2.isDone());
+
+        Mockito.doReturn(499L).when(poller).currentTimeMillis();
+        poller.tick();
+        Mockito.verify(fetcher, Mockito.times(1)).fetch(Mockito.anySet());
+
+        Mockito.doReturn(500L).when(poller).currentTimeMillis();
+        poller.tick();
+        Mockito.verify(fetcher, Mockito.times(1)).fetch(ImmutableSet.of("minion2"));
+        Assert.assertEquals(json("2"), output2.get());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFetchFailureFailsOnlyStepOfFetcher() throws Exception {
+        IOException failure = new IOException();
+        Mockito.when(fetcher.fetch(Mockito.anySet())).thenThrow(failure);
+        SaltJobPoller.JobFetcher otherFetcher = Mockito.mock(SaltJobPoller.JobFetcher.class);
+        Mockito.when(otherFetcher.fetch(Mockito.anySet())).thenReturn(ImmutableMap.of("minion2", json("2")));
+        Future<JsonElement> output1 = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", fetcher);
+        Future<JsonElement> output2 = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion2", otherFetcher);
+
+        poller.tick();
+        assertFailedWith(failure, output1);
+        Assert.assertFalse(output2.isDone());
+
+        Mockito.doReturn(500L).when(poller).currentTimeMillis();
+        poller.tick();
+        Mockito.verify(otherFetcher, Mockito.times(1)).fetch(ImmutableSet.of("minion2"));
+        Assert.assertEquals(json("2"), output2.get());
+        Assert.assertTrue(poller.jobs.isEmpty());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFetchRefusedByOpenCircuitIsRetried() throws Exception {
+        Mockito.when(fetcher.fetch(Mockito.anySet())).thenThrow(new CircuitOpenException("open"))
+                .thenReturn(ImmutableMap.of("minion1", json("1")));
+        Future<JsonElement> output = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", fetcher);
+
+        poller.tick();
+        Assert.assertFalse(output.isDone());
+        Assert.assertFalse(poller.jobs.isEmpty());
+
+        Mockito.doReturn(500L).when(poller).currentTimeMillis();
+        poller.tick();
+        Assert.assertEquals(json("1"), output.get());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testCancelledMinionIsNotPolled() throws Exception {
+        Mockito.when(fetcher.fetch(Mockito.anySet())).thenReturn(ImmutableMap.<String, JsonElement> of());
+        Future<JsonElement> output1 = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", fetcher);
+        poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion2", fetcher);
+        output1.cancel(true);
+
+        poller.tick();
+
+        Mockito.verify(fetcher, Mockito.times(1)).fetch(ImmutableSet.of("minion2"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testPollUsesFetcherOfStepStillWaiting() throws Exception {
+        SaltJobPoller.JobFetcher otherFetcher = Mockito.mock(SaltJobPoller.JobFetcher.class);
+        Mockito.when(otherFetcher.fetch(Mockito.anySet())).thenReturn(ImmutableMap.of("minion2", json("2")));
+        Future<JsonElement> output1 = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", fetcher);
+        Future<JsonElement> output2 = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion2", otherFetcher);
+        output1.cancel(true);
+
+        poller.tick();
+
+        Mockito.verify(fetcher, Mockito.never()).fetch(Mockito.anySet());
+        Mockito.verify(otherFetcher, Mockito.times(1)).fetch(ImmutableSet.of("minion2"));
+        Assert.assertEquals(json("2"), output2.get());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testAsyncPollUsesFetcherOfStepStillWaiting() throws Exception {
+        SaltJobPoller.AsyncJobFetcher asyncFetcher = Mockito.mock(SaltJobPoller.AsyncJobFetcher.class);
+        SaltJobPoller.AsyncJobFetcher otherAsyncFetcher = Mockito.mock(SaltJobPoller.AsyncJobFetcher.class);
+        Mockito.when(otherAsyncFetcher.fetch(Mockito.anySet())).thenReturn(
+                CompletableFuture.<Map<String, JsonElement>> completedFuture(ImmutableMap.of("minion2", json("2"))));
+        Future<JsonElement> output1 = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", asyncFetcher);
+        Future<JsonElement> output2 = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion2", otherAsyncFetcher);
+        output1.cancel(true);
+
+        poller.tick();
+
+        Mockito.verify(asyncFetcher, Mockito.never()).fetch(Mockito.anySet());
+        Assert.assertEquals(json("2"), output2.get());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testJobRemovedOnceAllMinionsCancelled() throws Exception {
+        poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", fetcher).cancel(true);
+
+        poller.tick();
+
+        Mockito.verify(fetcher, Mockito.never()).fetch(Mockito.anySet());
+        Assert.assertTrue(poller.jobs.isEmpty());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testSeparateJobsPolledSeparately() throws Exception {
+        SaltJobPoller.JobFetcher otherFetcher = Mockito.mock(SaltJobPoller.JobFetcher.class);
+        Mockito.when(fetcher.fetch(Mockito.anySet())).thenReturn(ImmutableMap.of("minion1", json("1")));
+        Mockito.when(otherFetcher.fetch(Mockito.anySet())).thenReturn(ImmutableMap.of("minion1", json("other")));
+
+        Future<JsonElement> output = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", fetcher);
+        Future<JsonElement> otherOutput = poller.register(ENDPOINT, FUNCTION, "https://localhost/jobs/456", "minion1",
+                otherFetcher);
+        poller.tick();
+
+        Assert.assertEquals(json("1"), output.get());
+        Assert.assertEquals(json("other"), otherOutput.get());
+    }
+
+    @Test
+    public void testRegisterAfterJobCompletedStartsNewJob() throws Exception {
+        Mockito.when(fetcher.fetch(Mockito.<Set<String>> any())).thenReturn(ImmutableMap.of("minion1", json("1")));
+        poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", fetcher);
+        poller.tick();
+
+        Future<JsonElement> output = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", fetcher);
+        Assert.assertFalse(output.isDone());
+        Assert.assertEquals(1, poller.jobs.size());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testAdaptivePollingWaitsForEarliestCompletion() throws Exception {
+        poller.adaptive = true;
+        poller.delayStep = 500;
+        poller.maximumRetryDelay = 15000;
+        poller.durations = Mockito.mock(SaltJobDurations.class);
+        Mockito.when(poller.durations.estimate(FUNCTION)).thenReturn(new SaltJobDurations.Estimate(10000, 20000));
+        Mockito.when(fetcher.fetch(Mockito.anySet())).thenReturn(ImmutableMap.of("minion1", json("1")));
+        Future<JsonElement> output = poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", fetcher);
+
+        poller.tick();
+        Mockito.doReturn(9999L).when(poller).currentTimeMillis();
+        poller.tick();
+        Mockito.verifyNoInteractions(fetcher);
+
+        Mockito.doReturn(10000L).when(poller).currentTimeMillis();
+        poller.tick();
+        Assert.assertEquals(json("1"), output.get());
+        Mockito.verifyNoInteractions(timer);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testAdaptivePollingRecordsDurations() throws Exception {
+        poller.adaptive = true;
+        poller.durations = Mockito.mock(SaltJobDurations.class);
+        Mockito.when(fetcher.fetch(Mockito.anySet())).thenReturn(ImmutableMap.<String, JsonElement> of(),
+                ImmutableMap.of("minion1", json("1")));
+        poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", fetcher);
+
+        poller.tick();
+        Mockito.verify(poller.durations, Mockito.never()).record(Mockito.anyString(), Mockito.anyLong());
+
+        Mockito.doReturn(500L).when(poller).currentTimeMillis();
+        poller.tick();
+        Mockito.verify(poller.durations, Mockito.times(1)).record(FUNCTION, 250L);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testDurationsNotRecordedWithoutAdaptivePolling() throws Exception {
+        poller.durations = Mockito.mock(SaltJobDurations.class);
+        Mockito.when(fetcher.fetch(Mockito.anySet())).thenReturn(ImmutableMap.of("minion1", json("1")));
+        poller.register(ENDPOINT, FUNCTION, JOB_KEY, "minion1", fetcher);
+
+        poller.tick();
+
+        Mockito.verifyNoInteractions(poller.durations);
+    }
+
+    protected void assertFailedWith(Exception expected, Future<JsonElement> output) throws InterruptedException {
+        try {
+            output.get();
+            Assert.fail("Expected failed output");
+        } catch (ExecutionException e) {
+            Assert.assertSame(expected, e.getCause());
+        }
+    }
+
+    protected static JsonElement json(String value) {
+        return new JsonPrimitive(value);
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.job;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SaltJobRegistryTest {
+
+    protected static final String KEY = SaltJobRegistry.key("12", "[1]", "minion", "https://localhost",
+            "cmd.run 'echo secret'");
+    protected static final String OTHER_KEY = SaltJobRegistry.key("12", "[1]", "other", "https://localhost",
+            "cmd.run 'echo secret'");
+
+    protected File file;
+    protected SaltJobRegistry registry;
+    protected long now;
+
+    @Before
+    public void setup() throws Exception {
+        file = File.createTempFile("salt-step-jobs", ".log");
+        now = 1000000;
+        registry = newRegistry();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        registry.close();
+        file.delete();
+    }
+
+    @Test
+    public void testRecordAndLookup() throws Exception {
+        registry.record(KEY, "20130213093536481553");
+
+        Assert.assertEquals("20130213093536481553", registry.lookup(KEY));
+        Assert.assertNull(registry.lookup(OTHER_KEY));
+    }
+
+    @Test
+    public void testComplete() throws Exception {
+        registry.record(KEY, "20130213093536481553");
+        registry.complete(KEY);
+
+        Assert.assertNull(registry.lookup(KEY));
+    }
+
+    @Test
+    public void testLookupAfterRetention() throws Exception {
+        registry.record(KEY, "20130213093536481553");
+        now += 60000;
+
+        Assert.assertNull(registry.lookup(KEY));
+    }
+
+    @Test
+    public void testReloadsInFlightJobs() throws Exception {
+        registry.record(KEY, "20130213093536481553");
+        registry.record(OTHER_KEY, "20130213093536481554");
+        registry.complete(OTHER_KEY);
+        registry.close();
+
+        registry = newRegistry();
+        Assert.assertEquals("20130213093536481553", registry.lookup(KEY));
+        Assert.assertNull(registry.lookup(OTHER_KEY));
+        Assert.assertEquals("Expected completed jobs to be compacted away", 1, lines().size());
+    }
+
+    @Test
+    public void testReloadDropsExpiredJobs() throws Exception {
+        registry.record(KEY, "20130213093536481553");
+        registry.close();
+
+        now += 60000;
+        registry = newRegistry();
+        Assert.assertNull(registry.lookup(KEY));
+        Assert.assertTrue(lines().isEmpty());
+    }
+
+    @Test
+    public void testReloadSkipsTornLines() throws Exception {
+        registry.record(KEY, "20130213093536481553");
+        registry.close();
+        Files.write(file.toPath(), "1000000\t12:[1]:oth".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        registry = newRegistry();
+        Assert.assertEquals("20130213093536481553", registry.lookup(KEY));
+        registry.record(OTHER_KEY, "20130213093536481554");
+        Assert.assertEquals(2, lines().size());
+    }
+
+    @Test
+    public void testKeyHidesFunction() {
+        Assert.assertTrue(KEY.startsWith("12:[1]:minion:"));
+        Assert.assertFalse(KEY.contains("secret"));
+        Assert.assertFalse(KEY.equals(SaltJobRegistry.key("12", "[1]", "minion", "https://localhost", "cmd.run")));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        SaltJobRegistry disabled = new SaltJobRegistry();
+        disabled.file = "";
+        disabled.initialize();
+        disabled.record(KEY, "20130213093536481553");
+
+        Assert.assertFalse(disabled.isEnabled());
+        Assert.assertNull(disabled.lookup(KEY));
+        disabled.complete(KEY);
+        disabled.close();
+    }
+
+    protected SaltJobRegistry newRegistry() throws Exception {
+        SaltJobRegistry newRegistry = new SaltJobRegistry() {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+        newRegistry.file = file.getPath();
+        newRegistry.retention = 60000;
+        newRegistry.initialize();
+        return newRegistry;
+    }
+
+    protected List<String> lines() throws Exception {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.job;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.rundeck.plugin.salt.util.LogWrapper;
+import org.rundeck.plugin.salt.util.SaltTaskExecutor;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+public class SaltMinionPresenceTest {
+
+    protected static final String ENDPOINT = "https://localhost";
+
+    protected SaltMinionPresence presence;
+    protected long now;
+    protected List<Runnable> background;
+    protected List<Set<String>> fetched;
+    protected int fetches;
+    protected Exception failure;
+
+    protected final SaltMinionPresence.PresenceFetcher fetcher = new SaltMinionPresence.PresenceFetcher() {
+        @Override
+        public Set<String> fetch() throws Exception {
+            fetches++;
+            if (failure != null) {
+                throw failure;
+            }
+            return fetched.remove(0);
+        }
+    };
+
+    @Before
+    public void setup() {
+        now = 1000;
+        background = Lists.newArrayList();
+        fetched = Lists.newArrayList();
+        presence = new SaltMinionPresence() {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+        presence.ttl = 30000;
+        presence.maximumAge = 300000;
+        presence.recheckInterval = 5000;
+        presence.taskExecutor = new SaltTaskExecutor() {
+            @Override
+            public void execute(String endpoint, Runnable task) {
+                background.add(task);
+            }
+        };
+    }
+
+    @Test
+    public void testFetchesIndexOnce() {
+        fetched.add(ImmutableSet.of("minion1", "minion2"));
+
+        Assert.assertEquals(Boolean.TRUE, isPresent("minion1"));
+        Assert.assertEquals(Boolean.TRUE, isPresent("minion2"));
+        Assert.assertEquals(1, fetches);
+    }
+
+    @Test
+    public void testAbsentMinionFailsWithoutFetchingAgain() {
+        fetched.add(ImmutableSet.of("minion1"));
+
+        Assert.assertEquals(Boolean.FALSE, isPresent("minion2"));
+        now += 4000;
+        Assert.assertEquals(Boolean.FALSE, isPresent("minion2"));
+        Assert.assertEquals(1, fetches);
+    }
+
+    @Test
+    public void testAbsentMinionRechecked() {
+        fetched.add(ImmutableSet.of("minion1"));
+        fetched.add(ImmutableSet.of("minion1", "minion2"));
+
+        Assert.assertEquals(Boolean.TRUE, isPresent("minion1"));
+        now += 5000;
+        Assert.assertEquals("Expected index to be fetched again for a minion missing from it", Boolean.TRUE,
+                isPresent("minion2"));
+        Assert.assertEquals(2, fetches);
+    }
+
+    @Test
+    public void testRefreshesInBackgroundAfterTtl() {
+        fetched.add(ImmutableSet.of("minion1"));
+        fetched.add(ImmutableSet.of("minion2"));
+
+        Assert.assertEquals(Boolean.TRUE, isPresent("minion1"));
+        now += 30000;
+        Assert.assertEquals("Expected stale index to be used while refreshing", Boolean.TRUE, isPresent("minion1"));
+        Assert.assertEquals(Boolean.TRUE, isPresent("minion1"));
+        Assert.assertEquals("Expected a single background refresh", 1, background.size());
+
+        background.remove(0).run();
+        Assert.assertEquals(Boolean.TRUE, isPresent("minion2"));
+        Assert.assertEquals(2, fetches);
+    }
+
+    @Test
+    public void testUnknownWhenFetchFails() {
+        failure = new IOException();
+
+        Assert.assertNull(isPresent("minion1"));
+        Assert.assertNull("Expected failed fetch not to be retried right away", isPresent("minion1"));
+        Assert.assertEquals(1, fetches);
+    }
+
+    @Test
+    public void testUnknownWhenIndexTooOld() {
+        fetched.add(ImmutableSet.of("minion1"));
+        Assert.assertEquals(Boolean.TRUE, isPresent("minion1"));
+
+        failure = new IOException();
+        now += 300000;
+        Assert.assertNull(isPresent("minion1"));
+    }
+
+    @Test
+    public void testFailedRefreshKeepsIndex() {
+        fetched.add(ImmutableSet.of("minion1"));
+        Assert.assertEquals(Boolean.TRUE, isPresent("minion1"));
+
+        failure = new IOException();
+        now += 30000;
+        isPresent("minion1");
+        background.remove(0).run();
+        Assert.assertEquals(Boolean.TRUE, isPresent("minion1"));
+        Assert.assertEquals(Boolean.FALSE, isPresent("minion2"));
+    }
+
+    @Test
+    public void testIndexesPerEndpoint() {
+        fetched.add(ImmutableSet.of("minion1"));
+        fetched.add(ImmutableSet.of("minion2"));
+
+        Assert.assertEquals(Boolean.TRUE, isPresent("minion1"));
+        Assert.assertEquals(Boolean.TRUE, presence.isPresent(LogWrapper.DISCARDING, "https://other", "minion2",
+                fetcher));
+        Assert.assertEquals(2, fetches);
+    }
+
+    @Test
+    public void testInvalidate() {
+        fetched.add(ImmutableSet.of("minion1"));
+        fetched.add(ImmutableSet.of("minion2"));
+
+        Assert.assertEquals(Boolean.TRUE, isPresent("minion1"));
+        presence.invalidate(ENDPOINT);
+        Assert.assertEquals(Boolean.TRUE, isPresent("minion2"));
+        Assert.assertEquals(2, fetches);
+    }
+
+    protected Boolean isPresent(String minionId) {
+        return presence.isPresent(LogWrapper.DISCARDING, ENDPOINT, minionId, fetcher);
+    }
+}
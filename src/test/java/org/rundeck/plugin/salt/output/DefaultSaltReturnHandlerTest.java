@@ -28,9 +28,15 @@ package org.rundeck.plugin.salt.output;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
 import org.rundeck.plugin.salt.output.DefaultSaltReturnHandler;
 import org.rundeck.plugin.salt.output.SaltReturnHandler;
 import org.rundeck.plugin.salt.output.SaltReturnResponse;
+import org.rundeck.plugin.salt.util.LogWrapper;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
 
 public class DefaultSaltReturnHandlerTest {
 
@@ -88,4 +94,41 @@ public class DefaultSaltReturnHandlerTest {
         Assert.assertTrue("Expected stdout to be empty", response.getStandardOutput().isEmpty());
         Assert.assertTrue("Expected stderr to be empty", response.getStandardError().isEmpty());
     }
+
+    @Test
+    public void testExtractResponseFromJson() {
+        DefaultSaltReturnHandler handler = new DefaultSaltReturnHandler();
+        SaltReturnResponse response = handler.extractResponse(JsonParser.parseString("{\"key\": [1, \"value\"]}"));
+        Assert.assertTrue("Didn't interpret default response code as success", response.isSuccessful());
+        Assert.assertEquals("Didn't get exactly one stdout line", 1, response.getStandardOutput().size());
+        Assert.assertEquals("Stdout line didn't match json input", "{\"key\":[1,\"value\"]}", response
+                .getStandardOutput().get(0));
+        Assert.assertTrue("Expected stderr to be empty", response.getStandardError().isEmpty());
+    }
+
+    @Test
+    public void testExtractResponseFromJsonWithNullInput() {
+        DefaultSaltReturnHandler handler = new DefaultSaltReturnHandler();
+        SaltReturnResponse response = handler.extractResponse((JsonElement) null);
+        Assert.assertTrue("Expected stdout to be empty", response.getStandardOutput().isEmpty());
+    }
+
+    @Test
+    public void testExtractResponseWritesJsonToOutput() {
+        DefaultSaltReturnHandler handler = new DefaultSaltReturnHandler(127);
+        LogWrapper log = Mockito.mock(LogWrapper.class);
+        SaltOutputLogger output = new SaltOutputLogger(log, 8, 1000);
+        SaltReturnResponse response = handler.extractResponse(
+                JsonParser.parseString("{\"key\": null, \"html\": \"<b>\"}"), output);
+        output.close();
+
+        Assert.assertEquals("Didn't get passed in response code", Integer.valueOf(127), response.getExitCode());
+        Assert.assertTrue("Expected stdout to be logged", response.getStandardOutput().isEmpty());
+        InOrder ordering = Mockito.inOrder(log);
+        ordering.verify(log).info("{\"key\":n");
+        ordering.verify(log).info("ull,\"htm");
+        ordering.verify(log).info("l\":\"<b>\"");
+        ordering.verify(log).info("}");
+        Mockito.verifyNoMoreInteractions(log);
+    }
 }
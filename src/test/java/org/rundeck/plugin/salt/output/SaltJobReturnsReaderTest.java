@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.output;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.rundeck.plugin.salt.SaltApiException;
+
+import com.google.common.base.Functions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.JsonReader;
+
+public class SaltJobReturnsReaderTest {
+
+    protected SaltJobReturnsReader reader = new SaltJobReturnsReader();
+
+    @Test
+    public void testReadReturns() throws Exception {
+        String response = "{\"return\": [{\"minion\": {\"retcode\": 0, \"stdout\": \"some \\\"output\\\"\"}, "
+                + "\"other\": {\"retcode\": 1}}]}";
+        Assert.assertEquals(ImmutableMap.of("minion", "{\"retcode\":0,\"stdout\":\"some \\\"output\\\"\"}"),
+                read(response, ImmutableSet.of("minion")));
+    }
+
+    @Test
+    public void testReadReturnsSkipsOtherKeysAndMissingMinions() throws Exception {
+        String response = "{\"info\": [{\"Function\": \"test.ping\"}], \"return\": [{\"minion\": true, "
+                + "\"other\": [1, 2, {\"nested\": null}]}]}";
+        Assert.assertEquals(ImmutableMap.of("minion", "true"), read(response, ImmutableSet.of("minion", "missing")));
+    }
+
+    @Test
+    public void testReadReturnsCollectsReturnedMinions() throws Exception {
+        String response = "{\"return\": [{\"minion\": true, \"other\": {\"retcode\": 1}}]}";
+        Set<String> returnedMinionIds = Sets.newHashSet();
+        Map<String, JsonElement> returns = reader.readReturns(new JsonReader(new StringReader(response)),
+                ImmutableSet.of("minion"), returnedMinionIds);
+
+        Assert.assertEquals(ImmutableSet.of("minion"), returns.keySet());
+        Assert.assertEquals(ImmutableSet.of("minion", "other"), returnedMinionIds);
+    }
+
+    @Test
+    public void testReadReturnsPreservesValues() throws Exception {
+        String response = "{\"return\": [{\"minion\": [1.50, 2, null, false, {}, []]}]}";
+        Assert.assertEquals(ImmutableMap.of("minion", "[1.50,2,null,false,{},[]]"),
+                read(response, ImmutableSet.of("minion")));
+    }
+
+    @Test
+    public void testReadReturnsCutsStringsPastMaximumOutput() throws Exception {
+        reader.maximumOutput = 10;
+        String response = "{\"return\": [{\"minion\": {\"retcode\": 1, \"stdout\": \"0123456789abcdef\", "
+                + "\"stderr\": \"error\"}}]}";
+        Assert.assertEquals(ImmutableMap.of("minion", "{\"retcode\":1,\"stdout\":\"0123456789a\",\"stderr\":\"\"}"),
+                read(response, ImmutableSet.of("minion")));
+    }
+
+    @Test
+    public void testReadReturnsSkipsNestedValuesPastMaximumOutput() throws Exception {
+        reader.maximumOutput = 10;
+        String response = "{\"return\": [{\"minion\": {\"first\": {\"a\": \"0123456789\", \"b\": \"skipped\"}, "
+                + "\"second\": [\"skipped\", {\"c\": 1}], \"third\": 3}}]}";
+        Assert.assertEquals(ImmutableMap.of("minion", "{\"first\":{\"a\":\"0123456789\"},\"second\":[],\"third\":3}"),
+                read(response, ImmutableSet.of("minion")));
+    }
+
+    @Test
+    public void testReadReturnsBudgetPerMinion() throws Exception {
+        reader.maximumOutput = 3;
+        String response = "{\"return\": [{\"minion1\": \"output\", \"minion2\": \"output\"}]}";
+        Assert.assertEquals(ImmutableMap.of("minion1", "\"outp\"", "minion2", "\"outp\""),
+                read(response, ImmutableSet.of("minion1", "minion2")));
+    }
+
+    @Test
+    public void testReadReturnsLenient() throws Exception {
+        Assert.assertEquals(ImmutableMap.of("minion", "\"response\""),
+                read("{\"return\":[{minion:\"response\"}]}", ImmutableSet.of("minion")));
+    }
+
+    @Test
+    public void testReadReturnsNoResponse() throws Exception {
+        Assert.assertTrue(read("{\"return\": []}", ImmutableSet.of("minion")).isEmpty());
+        Assert.assertTrue(read("{\"return\": [{}]}", ImmutableSet.of("minion")).isEmpty());
+        Assert.assertTrue(read("{}", ImmutableSet.of("minion")).isEmpty());
+    }
+
+    @Test(expected = SaltApiException.class)
+    public void testReadReturnsMultipleResponses() throws Exception {
+        read("{\"return\": [{}, {}]}", ImmutableSet.of("minion"));
+    }
+
+    @Test(expected = SaltApiException.class)
+    public void testReadReturnsMalformed() throws Exception {
+        read("{\"return\": [{\"minion\": [1,}", ImmutableSet.of("minion"));
+    }
+
+    @Test(expected = SaltApiException.class)
+    public void testReadReturnsCutOff() throws Exception {
+        read("{\"return\": [{\"minion\": [1, ", ImmutableSet.of("minion"));
+    }
+
+    @Test(expected = SaltApiException.class)
+    public void testReadReturnsUnexpectedStructure() throws Exception {
+        read("[]", ImmutableSet.of("minion"));
+    }
+
+    @Test
+    public void testReadChunkReturns() throws Exception {
+        String response = "{\"return\": [{\"minion\": true, \"other\": false}, {}, {\"minion\": \"output\"}]}";
+        List<Map<String, JsonElement>> returns = reader.readChunkReturns(new JsonReader(new StringReader(response)),
+                ImmutableSet.of("minion"));
+        Assert.assertEquals(3, returns.size());
+        Assert.assertEquals(ImmutableMap.of("minion", new JsonPrimitive(true)), returns.get(0));
+        Assert.assertTrue(returns.get(1).isEmpty());
+        Assert.assertEquals(ImmutableMap.of("minion", new JsonPrimitive("output")), returns.get(2));
+    }
+
+    @Test
+    public void testReadChunkReturnsNoResponse() throws Exception {
+        Assert.assertTrue(reader.readChunkReturns(new JsonReader(new StringReader("{}")),
+                ImmutableSet.of("minion")).isEmpty());
+    }
+
+    protected Map<String, String> read(String response, Set<String> minionIds) throws Exception {
+        return Maps.transformValues(reader.readReturns(new JsonReader(new StringReader(response)), minionIds),
+                Functions.toStringFunction());
+    }
+}
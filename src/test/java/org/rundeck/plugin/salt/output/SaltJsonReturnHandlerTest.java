@@ -26,12 +26,14 @@
 
 package org.rundeck.plugin.salt.output;
 
-import java.util.Map;
-
 import org.junit.Assert;
 import org.junit.Test;
+import org.mockito.Mockito;
 
-import com.google.common.collect.Maps;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
 
 public class SaltJsonReturnHandlerTest {
 
@@ -116,20 +118,75 @@ public class SaltJsonReturnHandlerTest {
         handler.extractResponse(json);
     }
 
+    @Test
+    public void testExtractResponseFromJson() {
+        SaltJsonReturnHandler handler = new SaltJsonReturnHandler();
+        handler.setExitCodeKey(EXIT_CODE_KEY);
+        handler.setStandardOutputKey(OUT_KEY);
+        handler.setStandardErrorKey(ERR_KEY);
+
+        JsonObject json = new JsonObject();
+        json.addProperty(EXIT_CODE_KEY, 2.0);
+        json.addProperty(OUT_KEY, "some output");
+        json.add(ERR_KEY, JsonNull.INSTANCE);
+        json.add("ignored", new JsonObject());
+        SaltReturnResponse response = handler.extractResponse(json);
+        Assert.assertEquals("Expected passed in exit code", Integer.valueOf(2), response.getExitCode());
+        Assert.assertEquals("Expected passed in stdout line", "some output", response.getStandardOutput().get(0));
+        Assert.assertTrue("Expected null stderr to be dropped", response.getStandardError().isEmpty());
+    }
+
+    @Test(expected = SaltReturnResponseParseException.class)
+    public void testExtractResponseFromJsonNotAnObject() {
+        SaltJsonReturnHandler handler = new SaltJsonReturnHandler();
+        handler.extractResponse(new JsonPrimitive("some output"));
+    }
+
+    @Test(expected = SaltReturnResponseParseException.class)
+    public void testExtractResponseFromJsonNestedValue() {
+        SaltJsonReturnHandler handler = new SaltJsonReturnHandler();
+        handler.setStandardOutputKey(OUT_KEY);
+        JsonObject json = new JsonObject();
+        json.add(OUT_KEY, new JsonObject());
+        handler.extractResponse(json);
+    }
+
+    @Test(expected = SaltReturnResponseParseException.class)
+    public void testExtractResponseMalformed() {
+        SaltJsonReturnHandler handler = new SaltJsonReturnHandler();
+        handler.extractResponse("{\"key\": ");
+    }
+
     @Test
     public void testExtractOrDieExtractsProperly() {
         SaltJsonReturnHandler handler = new SaltJsonReturnHandler();
-        Map<String, String> data = Maps.newHashMap();
+        JsonObject data = new JsonObject();
         String key = "key";
         String value = "value";
-        data.put(key, value);
+        data.addProperty(key, value);
         Assert.assertEquals("Expected handler to extract keyed value", value, handler.extractOrDie(key, data));
     }
 
     @Test(expected = SaltReturnResponseParseException.class)
     public void testExtractOrDieDies() {
         SaltJsonReturnHandler handler = new SaltJsonReturnHandler();
-        Map<String, String> data = Maps.newHashMap();
-        handler.extractOrDie("key", data);
+        handler.extractOrDie("key", new JsonObject());
+    }
+
+    @Test
+    public void testExtractResponseLogsOutput() {
+        SaltJsonReturnHandler handler = new SaltJsonReturnHandler();
+        handler.setExitCodeKey(EXIT_CODE_KEY);
+        handler.setStandardOutputKey(OUT_KEY);
+        handler.setStandardErrorKey(ERR_KEY);
+        SaltOutputLogger output = Mockito.mock(SaltOutputLogger.class);
+
+        String json = String.format(SAMPLE_JSON_TEMPLATE, 0, "some output", "some error");
+        SaltReturnResponse response = handler.extractResponse(JsonParser.parseString(json), output);
+        Assert.assertEquals("Expected passed in exit code", Integer.valueOf(0), response.getExitCode());
+        Assert.assertTrue("Expected stdout to be logged", response.getStandardOutput().isEmpty());
+        Assert.assertTrue("Expected stderr to be logged", response.getStandardError().isEmpty());
+        Mockito.verify(output, Mockito.times(1)).logOutput("some output");
+        Mockito.verify(output, Mockito.times(1)).logError("some error");
     }
 }
@@ -0,0 +1,160 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.output;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mockito;
+import org.rundeck.plugin.salt.util.LogWrapper;
+import org.rundeck.plugin.salt.util.SecureDataMasker;
+
+import com.google.common.collect.ImmutableSet;
+
+public class SaltOutputLoggerTest {
+
+    protected LogWrapper log;
+
+    @Before
+    public void setup() {
+        log = Mockito.mock(LogWrapper.class);
+    }
+
+    @Test
+    public void testLogsLineByLine() {
+        SaltOutputLogger output = new SaltOutputLogger(log, 100, 1000);
+        output.logOutput("line 1\r\nline 2\n\nline 3");
+        output.logError("error");
+        output.close();
+
+        InOrder ordering = Mockito.inOrder(log);
+        ordering.verify(log).info("line 1");
+        ordering.verify(log).info("line 2");
+        ordering.verify(log).info("");
+        ordering.verify(log).info("line 3");
+        ordering.verify(log).error("error");
+        Mockito.verifyNoMoreInteractions(log);
+        Assert.assertFalse(output.isTruncated());
+    }
+
+    @Test
+    public void testIgnoresBlankOutput() {
+        SaltOutputLogger output = new SaltOutputLogger(log, 100, 1000);
+        output.logOutput(null);
+        output.logOutput(" \n ");
+        output.logError("");
+        output.close();
+
+        Mockito.verifyNoMoreInteractions(log);
+    }
+
+    @Test
+    public void testLogsLongLinesInChunks() {
+        SaltOutputLogger output = new SaltOutputLogger(log, 4, 1000);
+        output.logOutput("abcdefgh\nijklm");
+        output.close();
+
+        InOrder ordering = Mockito.inOrder(log);
+        ordering.verify(log).info("abcd");
+        ordering.verify(log).info("efgh");
+        ordering.verify(log).info("ijkl");
+        ordering.verify(log).info("m");
+        Mockito.verifyNoMoreInteractions(log);
+    }
+
+    @Test
+    public void testWriterLinesCompletedOnFlush() throws Exception {
+        SaltOutputLogger output = new SaltOutputLogger(log, 100, 1000);
+        output.getOutput().write("part");
+        output.getOutput().write(" of a line");
+        Mockito.verifyNoMoreInteractions(log);
+
+        output.getOutput().flush();
+        Mockito.verify(log).info("part of a line");
+    }
+
+    @Test
+    public void testTruncatesOutput() {
+        SaltOutputLogger output = new SaltOutputLogger(log, 100, 10);
+        output.logOutput("12345\n67890abc\nmore");
+        output.logError("error");
+        output.close();
+
+        InOrder ordering = Mockito.inOrder(log);
+        ordering.verify(log).info("12345");
+        ordering.verify(log).info("67890");
+        ordering.verify(log).warn(SaltOutputLogger.TRUNCATION_MARKER, 10L);
+        ordering.verify(log).warn(SaltOutputLogger.TRUNCATION_SUMMARY, 12L);
+        Mockito.verifyNoMoreInteractions(log);
+        Assert.assertTrue(output.isTruncated());
+    }
+
+    @Test
+    public void testChunksNotCutWithinSecureData() {
+        SaltOutputLogger output = new SaltOutputLogger(log, new SecureDataMasker(ImmutableSet.of("secret")), 4, 1000);
+        output.logOutput("abcsecretdefghij");
+        output.close();
+
+        InOrder ordering = Mockito.inOrder(log);
+        ordering.verify(log).info("abc");
+        ordering.verify(log).info("secret");
+        ordering.verify(log).info("defg");
+        ordering.verify(log).info("hij");
+        Mockito.verifyNoMoreInteractions(log);
+    }
+
+    @Test
+    public void testTruncationNotCutWithinSecureData() {
+        SaltOutputLogger output = new SaltOutputLogger(log, new SecureDataMasker(ImmutableSet.of("secret")), 100, 5);
+        output.logOutput("abcsecret");
+        output.close();
+
+        InOrder ordering = Mockito.inOrder(log);
+        ordering.verify(log).info("abc");
+        ordering.verify(log).warn(SaltOutputLogger.TRUNCATION_MARKER, 5L);
+        ordering.verify(log).warn(SaltOutputLogger.TRUNCATION_SUMMARY, 6L);
+        Mockito.verifyNoMoreInteractions(log);
+    }
+
+    @Test
+    public void testTruncationDropsLeadingSecureData() {
+        SaltOutputLogger output = new SaltOutputLogger(log, new SecureDataMasker(ImmutableSet.of("secret")), 100, 3);
+        output.logOutput("secretabc");
+        output.close();
+
+        InOrder ordering = Mockito.inOrder(log);
+        ordering.verify(log).warn(SaltOutputLogger.TRUNCATION_MARKER, 3L);
+        ordering.verify(log).warn(SaltOutputLogger.TRUNCATION_SUMMARY, 9L);
+        Mockito.verifyNoMoreInteractions(log);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidChunkSize() {
+        new SaltOutputLogger(log, 0, 10);
+    }
+}
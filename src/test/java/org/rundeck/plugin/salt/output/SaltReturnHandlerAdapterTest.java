@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.output;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+
+public class SaltReturnHandlerAdapterTest {
+
+    @Test
+    public void testAdaptReturnsJsonHandler() {
+        JsonSaltReturnHandler handler = new DefaultSaltReturnHandler();
+        Assert.assertSame("Expected json handler not to be wrapped", handler, SaltReturnHandlerAdapter.adapt(handler));
+    }
+
+    @Test
+    public void testExtractResponsePassesJsonString() {
+        SaltReturnHandler handler = Mockito.mock(SaltReturnHandler.class);
+        SaltReturnResponse response = new SaltReturnResponse();
+        Mockito.when(handler.extractResponse("{\"retcode\":0}")).thenReturn(response);
+
+        Assert.assertSame(response,
+                SaltReturnHandlerAdapter.adapt(handler).extractResponse(JsonParser.parseString("{\"retcode\": 0}")));
+    }
+
+    @Test
+    public void testExtractResponsePassesNull() {
+        SaltReturnHandler handler = Mockito.mock(SaltReturnHandler.class);
+        SaltReturnHandlerAdapter.adapt(handler).extractResponse((JsonElement) null);
+        Mockito.verify(handler, Mockito.times(1)).extractResponse((String) null);
+    }
+
+    @Test
+    public void testExtractResponseFromString() {
+        SaltReturnHandler handler = Mockito.mock(SaltReturnHandler.class);
+        SaltReturnHandlerAdapter.adapt(handler).extractResponse("raw");
+        Mockito.verify(handler, Mockito.times(1)).extractResponse("raw");
+    }
+
+    @Test
+    public void testExtractResponseCollectsOutput() {
+        SaltReturnHandler handler = Mockito.mock(SaltReturnHandler.class);
+        SaltReturnResponse response = new SaltReturnResponse();
+        Mockito.when(handler.extractResponse("true")).thenReturn(response);
+        SaltOutputLogger output = Mockito.mock(SaltOutputLogger.class);
+
+        Assert.assertSame(response,
+                SaltReturnHandlerAdapter.adapt(handler).extractResponse(JsonParser.parseString("true"), output));
+        Mockito.verifyNoMoreInteractions(output);
+    }
+}
@@ -129,6 +129,27 @@ public class SaltReturnHandlerRegistryTest {
         Assert.assertSame("Expected default handler to be returned", handler3, registry.getHandlerFor("module2.function", handler3));
     }
 
+    @Test
+    public void testGetJsonHandlerReturnsNativeHandler() {
+        SaltReturnHandlerRegistry registry = new SaltReturnHandlerRegistry(null);
+        SaltReturnHandler handler = new DefaultSaltReturnHandler();
+        registry.handlerMap.put("module", handler);
+
+        Assert.assertSame("Expected json handler to be returned as is", handler,
+                registry.getJsonHandlerFor("module.function", new DefaultSaltReturnHandler()));
+    }
+
+    @Test
+    public void testGetJsonHandlerAdaptsStringHandler() {
+        SaltReturnHandlerRegistry registry = new SaltReturnHandlerRegistry(null);
+        SaltReturnHandler handler = Mockito.mock(SaltReturnHandler.class);
+        registry.handlerMap.put("module", handler);
+
+        JsonSaltReturnHandler jsonHandler = registry.getJsonHandlerFor("module.function", new DefaultSaltReturnHandler());
+        Assert.assertTrue("Expected string handler to be adapted", jsonHandler instanceof SaltReturnHandlerAdapter);
+        Assert.assertSame(handler, ((SaltReturnHandlerAdapter) jsonHandler).delegate);
+    }
+
     @Test
     public void testConfigureFromResource() throws IOException {
         SaltReturnHandlerRegistry registry = new SaltReturnHandlerRegistry(null);
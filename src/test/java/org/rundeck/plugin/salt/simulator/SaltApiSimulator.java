@@ -0,0 +1,616 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpStatus;
+import org.rundeck.plugin.salt.version.LatestSaltInteractionHandler;
+import org.rundeck.plugin.salt.version.SaltApiCapability;
+import org.rundeck.plugin.salt.version.SaltApiVersionCapabilityRegistry;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded stand-in for salt-api, serving /, /login, /minions, /jobs/&lt;jid&gt;, /logout and
+ * /events over http on the loopback interface.
+ * 
+ * Responses follow the quirks of the simulated {@link SaltApiCapability} (login response codes,
+ * job submission format, logout and event support). Every response can be delayed, jobs complete
+ * after a configurable duration with outputs of a configurable size and failures can be injected.
+ */
+public class SaltApiSimulator {
+
+    public static final String ROOT_RESOURCE = "/";
+    public static final String LOGIN_RESOURCE = "/login";
+    public static final String MINIONS_RESOURCE = "/minions";
+    public static final String JOBS_RESOURCE = "/jobs";
+    public static final String LOGOUT_RESOURCE = "/logout";
+    public static final String EVENTS_RESOURCE = "/events";
+
+    protected static final String AUTH_TOKEN_HEADER = "X-Auth-Token";
+    protected static final String OUTPUT_LINE = "simulated output line ";
+
+    /**
+     * Configures a {@link SaltApiSimulator}.
+     */
+    public static class Builder {
+        protected SaltApiCapability version = SaltApiVersionCapabilityRegistry.VERSION_0_8_2;
+        protected long latency;
+        protected long jobDuration = 100;
+        protected int outputBytes = 64;
+        protected double failureRate;
+        protected double jobFailureRate;
+        protected long tokenLifetime = TimeUnit.HOURS.toMillis(12);
+        protected String user;
+        protected String password;
+
+        public Builder withVersion(SaltApiCapability version) {
+            this.version = version;
+            return this;
+        }
+
+        /**
+         * @param latency
+         *            ms every response is delayed by
+         */
+        public Builder withLatency(long latency) {
+            this.latency = latency;
+            return this;
+        }
+
+        /**
+         * @param jobDuration
+         *            ms after submission until minions return
+         */
+        public Builder withJobDuration(long jobDuration) {
+            this.jobDuration = jobDuration;
+            return this;
+        }
+
+        /**
+         * @param outputBytes
+         *            size of each minion's standard output
+         */
+        public Builder withOutputBytes(int outputBytes) {
+            this.outputBytes = outputBytes;
+            return this;
+        }
+
+        /**
+         * @param failureRate
+         *            share of requests (0 to 1) answered with an internal server error
+         */
+        public Builder withFailureRate(double failureRate) {
+            this.failureRate = failureRate;
+            return this;
+        }
+
+        /**
+         * @param jobFailureRate
+         *            share of minion returns (0 to 1) reporting a non zero exit code
+         */
+        public Builder withJobFailureRate(double jobFailureRate) {
+            this.jobFailureRate = jobFailureRate;
+            return this;
+        }
+
+        /**
+         * @param tokenLifetime
+         *            ms auth tokens are valid for
+         */
+        public Builder withTokenLifetime(long tokenLifetime) {
+            this.tokenLifetime = tokenLifetime;
+            return this;
+        }
+
+        /**
+         * Only accepts the given credentials, any are accepted otherwise.
+         */
+        public Builder withCredentials(String user, String password) {
+            this.user = user;
+            this.password = password;
+            return this;
+        }
+
+        public SaltApiSimulator build() {
+            return new SaltApiSimulator(this);
+        }
+    }
+
+    protected final SaltApiCapability version;
+    protected final long latency;
+    protected final long jobDuration;
+    protected final double failureRate;
+    protected final double jobFailureRate;
+    protected final long tokenLifetime;
+    protected final String user;
+    protected final String password;
+    protected final String output;
+
+    protected final Map<String, Long> tokens = Maps.newConcurrentMap();
+    protected final ConcurrentMap<String, Job> jobs = Maps.newConcurrentMap();
+    protected final Set<BlockingQueue<String>> eventSubscribers = Sets.newConcurrentHashSet();
+    protected final ConcurrentMap<String, AtomicLong> requests = Maps.newConcurrentMap();
+    protected final AtomicLong jidSequence = new AtomicLong();
+
+    protected HttpServer server;
+    protected ExecutorService handlers;
+    protected ScheduledExecutorService completions;
+    protected volatile boolean running;
+
+    protected SaltApiSimulator(Builder builder) {
+        this.version = builder.version;
+        this.latency = builder.latency;
+        this.jobDuration = builder.jobDuration;
+        this.failureRate = builder.failureRate;
+        this.jobFailureRate = builder.jobFailureRate;
+        this.tokenLifetime = builder.tokenLifetime;
+        this.user = builder.user;
+        this.password = builder.password;
+        this.output = generateOutput(builder.outputBytes);
+    }
+
+    public void start() throws IOException {
+        handlers = Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("salt-api-simulator-%d").build());
+        completions = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setDaemon(true)
+                .setNameFormat("salt-api-simulator-jobs-%d").build());
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096);
+        server.setExecutor(handlers);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    dispatch(exchange);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        running = true;
+        server.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (server != null) {
+            server.stop(0);
+            handlers.shutdownNow();
+            completions.shutdownNow();
+        }
+    }
+
+    /**
+     * @return the url of the simulated endpoint (e.g. http://127.0.0.1:12345)
+     */
+    public String getEndpoint() {
+        return String.format("http://%s:%d", server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+
+    public SaltApiCapability getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the number of requests received per resource (e.g. /jobs)
+     */
+    public Map<String, Long> getRequestCounts() {
+        ImmutableSortedMap.Builder<String, Long> counts = ImmutableSortedMap.naturalOrder();
+        for (Map.Entry<String, AtomicLong> entry : requests.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts.build();
+    }
+
+    public long getRequestCount() {
+        long total = 0;
+        for (AtomicLong count : requests.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    public void resetRequestCounts() {
+        requests.clear();
+    }
+
+    protected void dispatch(HttpExchange exchange) throws IOException, InterruptedException {
+        String path = exchange.getRequestURI().getPath();
+        String resource = path.startsWith(JOBS_RESOURCE + "/") ? JOBS_RESOURCE : path;
+        AtomicLong count = requests.get(resource);
+        if (count == null) {
+            requests.putIfAbsent(resource, new AtomicLong());
+            count = requests.get(resource);
+        }
+        count.incrementAndGet();
+
+        if (latency > 0) {
+            Thread.sleep(latency);
+        }
+        if (!EVENTS_RESOURCE.equals(resource) && failureRate > 0
+                && ThreadLocalRandom.current().nextDouble() < failureRate) {
+            respond(exchange, HttpStatus.SC_INTERNAL_SERVER_ERROR, null);
+            return;
+        }
+
+        String method = exchange.getRequestMethod();
+        if (ROOT_RESOURCE.equals(resource) && "GET".equals(method)) {
+            welcome(exchange);
+        } else if (LOGIN_RESOURCE.equals(resource) && "POST".equals(method)) {
+            login(exchange);
+        } else if (MINIONS_RESOURCE.equals(resource) && "POST".equals(method)) {
+            submitJob(exchange);
+        } else if (JOBS_RESOURCE.equals(resource) && "GET".equals(method)) {
+            lookupJob(exchange, path.substring(JOBS_RESOURCE.length() + 1));
+        } else if (LOGOUT_RESOURCE.equals(resource) && version.getSupportsLogout()) {
+            logout(exchange);
+        } else if (EVENTS_RESOURCE.equals(resource) && "GET".equals(method) && version.getSupportsEvents()) {
+            streamEvents(exchange);
+        } else {
+            respond(exchange, HttpStatus.SC_NOT_FOUND, null);
+        }
+    }
+
+    /**
+     * Answers the root resource the way the simulated version does: releases before 0.8.0
+     * redirect to the login page, 0.8.0 welcomes and 0.8.2 also lists the available clients.
+     */
+    protected void welcome(HttpExchange exchange) throws IOException {
+        if (version.getLoginSuccessResponseCode() == HttpStatus.SC_MOVED_TEMPORARILY) {
+            exchange.getResponseHeaders().set("Location", LOGIN_RESOURCE);
+            respond(exchange, HttpStatus.SC_MOVED_TEMPORARILY, null);
+            return;
+        }
+        JsonObject welcome = new JsonObject();
+        welcome.addProperty("return", "Welcome");
+        if (version.getSupportsEvents()) {
+            JsonArray clients = new JsonArray();
+            clients.add("local");
+            clients.add("local_async");
+            clients.add("runner");
+            clients.add("wheel");
+            welcome.add("clients", clients);
+        }
+        respond(exchange, HttpStatus.SC_OK, welcome);
+    }
+
+    protected void login(HttpExchange exchange) throws IOException {
+        Map<String, List<String>> form = readForm(exchange);
+        String requestUser = first(form, "username");
+        String requestPassword = first(form, "password");
+        if (requestUser == null || requestPassword == null || first(form, "eauth") == null
+                || (user != null && (!user.equals(requestUser) || !password.equals(requestPassword)))) {
+            respond(exchange, version.getLoginFailureResponseCode(), null);
+            return;
+        }
+
+        String token = UUID.randomUUID().toString().replace("-", "");
+        long now = System.currentTimeMillis();
+        tokens.put(token, now + tokenLifetime);
+        exchange.getResponseHeaders().set(AUTH_TOKEN_HEADER, token);
+        if (version.getLoginSuccessResponseCode() == HttpStatus.SC_MOVED_TEMPORARILY) {
+            exchange.getResponseHeaders().set("Location", "/");
+            respond(exchange, HttpStatus.SC_MOVED_TEMPORARILY, null);
+            return;
+        }
+        JsonObject login = new JsonObject();
+        login.addProperty("token", token);
+        login.addProperty("start", now / 1000.0);
+        login.addProperty("expire", (now + tokenLifetime) / 1000.0);
+        login.addProperty("user", requestUser);
+        login.addProperty("eauth", first(form, "eauth"));
+        JsonArray perms = new JsonArray();
+        perms.add(".*");
+        login.add("perms", perms);
+        respond(exchange, version.getLoginSuccessResponseCode(), wrapReturn(login));
+    }
+
+    protected void submitJob(HttpExchange exchange) throws IOException {
+        if (!isAuthenticated(exchange)) {
+            respond(exchange, HttpStatus.SC_UNAUTHORIZED, null);
+            return;
+        }
+        Map<String, List<String>> form = readForm(exchange);
+        String function = first(form, "fun");
+        String target = first(form, "tgt");
+        if (function == null || target == null) {
+            respond(exchange, HttpStatus.SC_BAD_REQUEST, null);
+            return;
+        }
+        List<String> minions = "list".equals(first(form, "tgt_type")) ? Lists.newArrayList(target.split(","))
+                : Lists.newArrayList(target);
+        String jid = String.format("201309032%011d", jidSequence.incrementAndGet());
+        final Job job = new Job(jid, function, minions, System.currentTimeMillis() + jobDuration);
+        for (String minion : minions) {
+            job.exitCodes.put(minion, ThreadLocalRandom.current().nextDouble() < jobFailureRate ? 1 : 0);
+        }
+        jobs.put(jid, job);
+        completions.schedule(new Runnable() {
+            @Override
+            public void run() {
+                publishReturns(job);
+            }
+        }, jobDuration, TimeUnit.MILLISECONDS);
+
+        JsonObject submission = new JsonObject();
+        submission.addProperty("jid", jid);
+        JsonArray minionIds = new JsonArray();
+        for (String minion : minions) {
+            minionIds.add(minion);
+        }
+        submission.add("minions", minionIds);
+        if (version.getSaltInteractionHandler() instanceof LatestSaltInteractionHandler) {
+            JsonObject response = wrapReturn(submission);
+            JsonObject href = new JsonObject();
+            href.addProperty("href", JOBS_RESOURCE + "/" + jid);
+            JsonArray jobLinks = new JsonArray();
+            jobLinks.add(href);
+            JsonObject links = new JsonObject();
+            links.add("jobs", jobLinks);
+            response.add("_links", links);
+            respond(exchange, HttpStatus.SC_ACCEPTED, response);
+        } else {
+            // Before 0.8.2: [{"return": {"jid": ..., "minions": [...]}}]
+            JsonObject response = new JsonObject();
+            response.add("return", submission);
+            JsonArray responses = new JsonArray();
+            responses.add(response);
+            respond(exchange, HttpStatus.SC_ACCEPTED, responses);
+        }
+    }
+
+    protected void lookupJob(HttpExchange exchange, String jid) throws IOException {
+        if (!isAuthenticated(exchange)) {
+            respond(exchange, HttpStatus.SC_UNAUTHORIZED, null);
+            return;
+        }
+        JsonObject returns = new JsonObject();
+        JsonObject response = new JsonObject();
+        Job job = jobs.get(jid);
+        if (job != null) {
+            JsonObject info = new JsonObject();
+            info.addProperty("Function", job.function);
+            info.addProperty("jid", job.jid);
+            JsonArray infos = new JsonArray();
+            infos.add(info);
+            response.add("info", infos);
+            if (System.currentTimeMillis() >= job.completeAt) {
+                for (String minion : job.minions) {
+                    returns.add(minion, minionReturn(job, minion));
+                }
+            }
+        }
+        JsonArray returnList = new JsonArray();
+        returnList.add(returns);
+        response.add("return", returnList);
+        respond(exchange, HttpStatus.SC_OK, response);
+    }
+
+    protected void logout(HttpExchange exchange) throws IOException {
+        String token = exchange.getRequestHeaders().getFirst(AUTH_TOKEN_HEADER);
+        if (token != null) {
+            tokens.remove(token);
+        }
+        respond(exchange, HttpStatus.SC_OK, wrapReturn(new JsonPrimitive("Your token has been cleared")));
+    }
+
+    protected void streamEvents(HttpExchange exchange) throws IOException, InterruptedException {
+        if (!isAuthenticated(exchange)) {
+            respond(exchange, HttpStatus.SC_UNAUTHORIZED, null);
+            return;
+        }
+        BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        eventSubscribers.add(events);
+        try {
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(HttpStatus.SC_OK, 0);
+            OutputStream body = exchange.getResponseBody();
+            body.write("retry: 400\n\n".getBytes(StandardCharsets.UTF_8));
+            body.flush();
+            while (running) {
+                String event = events.poll(100, TimeUnit.MILLISECONDS);
+                if (event != null) {
+                    body.write(event.getBytes(StandardCharsets.UTF_8));
+                    body.flush();
+                }
+            }
+        } catch (IOException e) {
+            // Client went away.
+        } finally {
+            eventSubscribers.remove(events);
+        }
+    }
+
+    protected void publishReturns(Job job) {
+        if (eventSubscribers.isEmpty()) {
+            return;
+        }
+        for (String minion : job.minions) {
+            String tag = String.format("salt/job/%s/ret/%s", job.jid, minion);
+            JsonObject data = new JsonObject();
+            data.addProperty("jid", job.jid);
+            data.addProperty("id", minion);
+            data.addProperty("fun", job.function);
+            data.addProperty("retcode", job.exitCodes.get(minion));
+            data.add("return", minionReturn(job, minion));
+            JsonObject event = new JsonObject();
+            event.addProperty("tag", tag);
+            event.add("data", data);
+            String message = String.format("tag: %s\ndata: %s\n\n", tag, event);
+            for (BlockingQueue<String> subscriber : eventSubscribers) {
+                subscriber.add(message);
+            }
+        }
+    }
+
+    /**
+     * @return what the minion returns for the job's function, shaped like salt's returns
+     */
+    protected JsonElement minionReturn(Job job, String minion) {
+        int exitCode = job.exitCodes.get(minion);
+        if (job.function.startsWith("test.ping")) {
+            return new JsonPrimitive(exitCode == 0);
+        } else if (job.function.startsWith("cmd.run_all")) {
+            JsonObject result = new JsonObject();
+            result.addProperty("pid", 18347);
+            result.addProperty("retcode", exitCode);
+            result.addProperty("stdout", output);
+            result.addProperty("stderr", exitCode == 0 ? "" : "simulated failure");
+            return result;
+        } else {
+            return new JsonPrimitive(output);
+        }
+    }
+
+    protected boolean isAuthenticated(HttpExchange exchange) {
+        String token = exchange.getRequestHeaders().getFirst(AUTH_TOKEN_HEADER);
+        if (token == null) {
+            return false;
+        }
+        Long expiry = tokens.get(token);
+        return expiry != null && expiry > System.currentTimeMillis();
+    }
+
+    protected JsonObject wrapReturn(JsonElement element) {
+        JsonArray returns = new JsonArray();
+        returns.add(element);
+        JsonObject response = new JsonObject();
+        response.add("return", returns);
+        return response;
+    }
+
+    protected void respond(HttpExchange exchange, int status, JsonElement body) throws IOException {
+        if (body == null) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+            // Like salt-api's cherrypy gzip tool.
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(bytes);
+            gzip.close();
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream responseBody = exchange.getResponseBody();
+        responseBody.write(bytes);
+        responseBody.flush();
+    }
+
+    protected Map<String, List<String>> readForm(HttpExchange exchange) throws IOException {
+        InputStream is = exchange.getRequestBody();
+        String body = IOUtils.toString(is, StandardCharsets.UTF_8);
+        Map<String, List<String>> form = Maps.newHashMap();
+        for (String pair : body.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            String[] keyValue = pair.split("=", 2);
+            String key = URLDecoder.decode(keyValue[0], StandardCharsets.UTF_8);
+            String value = keyValue.length > 1 ? URLDecoder.decode(keyValue[1], StandardCharsets.UTF_8) : "";
+            if (!form.containsKey(key)) {
+                form.put(key, Lists.<String> newArrayList());
+            }
+            form.get(key).add(value);
+        }
+        return ImmutableMap.copyOf(form);
+    }
+
+    protected String first(Map<String, List<String>> form, String key) {
+        List<String> values = form.get(key);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    protected static String generateOutput(int bytes) {
+        StringBuilder output = new StringBuilder(bytes + OUTPUT_LINE.length() + 12);
+        for (int line = 0; output.length() < bytes; line++) {
+            output.append(OUTPUT_LINE).append(line).append('\n');
+        }
+        output.setLength(bytes);
+        return output.toString();
+    }
+
+    /**
+     * A submitted job and when its minions return.
+     */
+    protected static class Job {
+        protected final String jid;
+        protected final String function;
+        protected final List<String> minions;
+        protected final long completeAt;
+        protected final Map<String, Integer> exitCodes = Maps.newConcurrentMap();
+
+        protected Job(String jid, String function, List<String> minions, long completeAt) {
+            this.jid = jid;
+            this.function = function;
+            this.minions = minions;
+            this.completeAt = completeAt;
+        }
+    }
+}
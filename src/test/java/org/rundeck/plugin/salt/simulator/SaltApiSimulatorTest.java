@@ -0,0 +1,246 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpStatus;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rundeck.plugin.salt.version.SaltApiVersionCapabilityRegistry;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+public class SaltApiSimulatorTest {
+
+    protected SaltApiSimulator simulator;
+
+    @After
+    public void tearDown() {
+        if (simulator != null) {
+            simulator.stop();
+        }
+    }
+
+    protected SaltApiSimulator start(SaltApiSimulator.Builder builder) throws IOException {
+        simulator = builder.withCredentials("user", "password").build();
+        simulator.start();
+        return simulator;
+    }
+
+    @Test
+    public void testLatestLoginReturnsTokenInBody() throws Exception {
+        start(new SaltApiSimulator.Builder());
+
+        HttpURLConnection connection = post("/login", null, "username=user&password=password&eauth=pam");
+        Assert.assertEquals(HttpStatus.SC_OK, connection.getResponseCode());
+        String token = connection.getHeaderField("X-Auth-Token");
+        Assert.assertNotNull("Expected auth token header", token);
+        JsonObject login = JsonParser.parseString(read(connection)).getAsJsonObject().getAsJsonArray("return").get(0)
+                .getAsJsonObject();
+        Assert.assertEquals(token, login.get("token").getAsString());
+        Assert.assertTrue(login.get("expire").getAsDouble() > login.get("start").getAsDouble());
+    }
+
+    @Test
+    public void testPre080LoginRedirects() throws Exception {
+        start(new SaltApiSimulator.Builder().withVersion(SaltApiVersionCapabilityRegistry.VERSION_0_7_5));
+
+        HttpURLConnection connection = post("/login", null, "username=user&password=password&eauth=pam");
+        Assert.assertEquals(HttpStatus.SC_MOVED_TEMPORARILY, connection.getResponseCode());
+        Assert.assertNotNull("Expected auth token header", connection.getHeaderField("X-Auth-Token"));
+    }
+
+    @Test
+    public void testLoginFailureResponseCodeMatchesVersion() throws Exception {
+        start(new SaltApiSimulator.Builder().withVersion(SaltApiVersionCapabilityRegistry.VERSION_0_7_5));
+        Assert.assertEquals(HttpStatus.SC_INTERNAL_SERVER_ERROR,
+                post("/login", null, "username=user&password=wrong&eauth=pam").getResponseCode());
+        simulator.stop();
+
+        start(new SaltApiSimulator.Builder().withVersion(SaltApiVersionCapabilityRegistry.VERSION_0_8_0));
+        Assert.assertEquals(HttpStatus.SC_UNAUTHORIZED,
+                post("/login", null, "username=user&password=wrong&eauth=pam").getResponseCode());
+    }
+
+    @Test
+    public void testSubmitRequiresToken() throws Exception {
+        start(new SaltApiSimulator.Builder());
+
+        Assert.assertEquals(HttpStatus.SC_UNAUTHORIZED,
+                post("/minions", "unknown", "fun=test.ping&tgt=minion").getResponseCode());
+    }
+
+    @Test
+    public void testLatestJobLifecycle() throws Exception {
+        start(new SaltApiSimulator.Builder().withJobDuration(50).withOutputBytes(10));
+        String token = login();
+
+        HttpURLConnection submission = post("/minions", token, "fun=cmd.run_all&tgt=minion1,minion2&tgt_type=list");
+        Assert.assertEquals(HttpStatus.SC_ACCEPTED, submission.getResponseCode());
+        JsonObject response = JsonParser.parseString(read(submission)).getAsJsonObject();
+        Assert.assertTrue("Expected links", response.has("_links"));
+        JsonObject job = response.getAsJsonArray("return").get(0).getAsJsonObject();
+        String jid = job.get("jid").getAsString();
+        Assert.assertEquals(2, job.getAsJsonArray("minions").size());
+
+        Assert.assertEquals("Expected no returns before the job completes", 0, jobReturns(token, jid).size());
+        Thread.sleep(100);
+        JsonObject returns = jobReturns(token, jid);
+        Assert.assertEquals(2, returns.size());
+        JsonObject minionReturn = returns.getAsJsonObject("minion1");
+        Assert.assertEquals(0, minionReturn.get("retcode").getAsInt());
+        Assert.assertEquals(10, minionReturn.get("stdout").getAsString().length());
+    }
+
+    @Test
+    public void testPre082SubmissionFormat() throws Exception {
+        start(new SaltApiSimulator.Builder().withVersion(SaltApiVersionCapabilityRegistry.VERSION_0_8_0));
+        String token = login();
+
+        HttpURLConnection submission = post("/minions", token, "fun=test.ping&tgt=minion");
+        Assert.assertEquals(HttpStatus.SC_ACCEPTED, submission.getResponseCode());
+        JsonElement response = JsonParser.parseString(read(submission));
+        Assert.assertTrue("Expected a list of returns", response.isJsonArray());
+        Assert.assertEquals("minion", response.getAsJsonArray().get(0).getAsJsonObject().getAsJsonObject("return")
+                .getAsJsonArray("minions").get(0).getAsString());
+    }
+
+    @Test
+    public void testJobFailureInjection() throws Exception {
+        start(new SaltApiSimulator.Builder().withJobDuration(0).withJobFailureRate(1));
+        String token = login();
+
+        JsonObject job = JsonParser.parseString(read(post("/minions", token, "fun=cmd.run_all&tgt=minion")))
+                .getAsJsonObject().getAsJsonArray("return").get(0).getAsJsonObject();
+        Assert.assertEquals(1, jobReturns(token, job.get("jid").getAsString()).getAsJsonObject("minion")
+                .get("retcode").getAsInt());
+    }
+
+    @Test
+    public void testFailureInjection() throws Exception {
+        start(new SaltApiSimulator.Builder().withFailureRate(1));
+
+        Assert.assertEquals(HttpStatus.SC_INTERNAL_SERVER_ERROR,
+                post("/login", null, "username=user&password=password&eauth=pam").getResponseCode());
+    }
+
+    @Test
+    public void testLogoutSupportMatchesVersion() throws Exception {
+        start(new SaltApiSimulator.Builder().withVersion(SaltApiVersionCapabilityRegistry.VERSION_0_7_5));
+        Assert.assertEquals(HttpStatus.SC_NOT_FOUND, post("/logout", login(), "").getResponseCode());
+        simulator.stop();
+
+        start(new SaltApiSimulator.Builder().withVersion(SaltApiVersionCapabilityRegistry.VERSION_0_8_0));
+        String token = login();
+        Assert.assertEquals(HttpStatus.SC_OK, post("/logout", token, "").getResponseCode());
+        Assert.assertEquals("Expected token to be cleared", HttpStatus.SC_UNAUTHORIZED,
+                post("/minions", token, "fun=test.ping&tgt=minion").getResponseCode());
+    }
+
+    @Test
+    public void testRootResponseMatchesVersion() throws Exception {
+        start(new SaltApiSimulator.Builder().withVersion(SaltApiVersionCapabilityRegistry.VERSION_0_7_5));
+        HttpURLConnection connection = open("/", null);
+        Assert.assertEquals(HttpStatus.SC_MOVED_TEMPORARILY, connection.getResponseCode());
+        Assert.assertEquals("/login", connection.getHeaderField("Location"));
+        simulator.stop();
+
+        start(new SaltApiSimulator.Builder().withVersion(SaltApiVersionCapabilityRegistry.VERSION_0_8_0));
+        JsonObject welcome = JsonParser.parseString(read(open("/", null))).getAsJsonObject();
+        Assert.assertFalse(welcome.has("clients"));
+        simulator.stop();
+
+        start(new SaltApiSimulator.Builder());
+        welcome = JsonParser.parseString(read(open("/", null))).getAsJsonObject();
+        Assert.assertTrue(welcome.has("clients"));
+    }
+
+    @Test
+    public void testCountsRequestsPerResource() throws Exception {
+        start(new SaltApiSimulator.Builder());
+        String token = login();
+        jobReturns(token, "20130903200000000001");
+        jobReturns(token, "20130903200000000002");
+
+        Assert.assertEquals(Long.valueOf(1), simulator.getRequestCounts().get("/login"));
+        Assert.assertEquals(Long.valueOf(2), simulator.getRequestCounts().get("/jobs"));
+        Assert.assertEquals(3, simulator.getRequestCount());
+    }
+
+    protected String login() throws IOException {
+        return post("/login", null, "username=user&password=password&eauth=pam").getHeaderField("X-Auth-Token");
+    }
+
+    protected JsonObject jobReturns(String token, String jid) throws IOException {
+        HttpURLConnection connection = open("/jobs/" + jid, token);
+        Assert.assertEquals(HttpStatus.SC_OK, connection.getResponseCode());
+        return JsonParser.parseString(read(connection)).getAsJsonObject().getAsJsonArray("return").get(0)
+                .getAsJsonObject();
+    }
+
+    protected HttpURLConnection post(String resource, String token, String body) throws IOException {
+        HttpURLConnection connection = open(resource, token);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        OutputStream os = connection.getOutputStream();
+        try {
+            os.write(body.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            os.close();
+        }
+        return connection;
+    }
+
+    protected HttpURLConnection open(String resource, String token) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(simulator.getEndpoint() + resource)
+                .openConnection();
+        connection.setInstanceFollowRedirects(false);
+        if (token != null) {
+            connection.setRequestProperty("X-Auth-Token", token);
+        }
+        return connection;
+    }
+
+    protected String read(HttpURLConnection connection) throws IOException {
+        InputStream is = connection.getInputStream();
+        try {
+            return IOUtils.toString(is, StandardCharsets.UTF_8);
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class AdaptivePollingTimerTest {
+
+    @Test
+    public void testPollsAroundExpectedCompletion() {
+        AdaptivePollingTimer timer = new AdaptivePollingTimer(10000, 20000, 500, 15000);
+
+        Assert.assertEquals(10000L, timer.firstDelay());
+        List<Long> delays = Lists.newArrayList();
+        for (int i = 0; i < 9; i++) {
+            delays.add(timer.nextDelay());
+        }
+        Assert.assertEquals("Expected tight polls until latest completion, then exponential backoff",
+                Lists.newArrayList(2500L, 2500L, 2500L, 2500L, 500L, 1750L, 3750L, 7750L, 15000L), delays);
+    }
+
+    @Test
+    public void testFirstPollWaitsForEarliestCompletionWithoutFirstDelay() {
+        AdaptivePollingTimer timer = new AdaptivePollingTimer(10000, 20000, 500, 15000);
+
+        Assert.assertEquals(10000L, timer.nextDelay());
+        Assert.assertEquals(2500L, timer.nextDelay());
+    }
+
+    @Test
+    public void testIntervalNotShorterThanDelayStep() {
+        AdaptivePollingTimer timer = new AdaptivePollingTimer(1000, 1200, 500, 15000);
+
+        Assert.assertEquals(1000L, timer.firstDelay());
+        Assert.assertEquals(500L, timer.nextDelay());
+        Assert.assertEquals(500L, timer.nextDelay());
+        Assert.assertEquals(1750L, timer.nextDelay());
+    }
+
+    @Test
+    public void testIntervalNotLongerThanMaximumDelay() {
+        AdaptivePollingTimer timer = new AdaptivePollingTimer(0, 600000, 500, 15000);
+
+        Assert.assertEquals(0L, timer.firstDelay());
+        Assert.assertEquals(15000L, timer.nextDelay());
+    }
+}
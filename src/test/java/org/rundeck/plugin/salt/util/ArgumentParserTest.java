@@ -26,11 +26,16 @@
 
 package org.rundeck.plugin.salt.util;
 
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.google.common.base.Ticker;
+
 public class ArgumentParserTest {
 
     @Test
@@ -202,4 +207,90 @@ public class ArgumentParserTest {
         Assert.assertEquals('\'', quoteCharacters[1]);
         Assert.assertEquals('\\', ArgumentParser.DEFAULT_ARGUMENT_SPLITTER.escapeCharacter);
     }
+
+    @Test
+    public void testParseWithNonLatinSeparator() {
+        List<String> args = new ArgumentParser("[\\s\u3000]").parse("1\u30002 3");
+        Assert.assertEquals(3, args.size());
+        Assert.assertEquals("2", args.get(1));
+    }
+
+    @Test
+    public void testParseReturnsModifiableList() {
+        List<String> args = new ArgumentParser("\\s").parse("1 2");
+        args.add("3");
+        Assert.assertEquals(3, args.size());
+    }
+
+    @Test
+    public void testParseCached() {
+        ArgumentParser parser = new ArgumentParser("\\s", new char[] { '"' });
+        List<String> args = parser.parseCached("cmd.run \"echo 1\"");
+        Assert.assertEquals(2, args.size());
+        Assert.assertEquals("cmd.run", args.get(0));
+        Assert.assertEquals("echo 1", args.get(1));
+        Assert.assertSame("Expected cached parse result", args, parser.parseCached("cmd.run \"echo 1\""));
+    }
+
+    @Test
+    public void testParseCachedForgetsUnusedLines() {
+        final AtomicLong nanos = new AtomicLong();
+        ArgumentParser parser = new ArgumentParser("\\s", new char[] { '"' }, '\\', new Ticker() {
+            @Override
+            public long read() {
+                return nanos.get();
+            }
+        });
+        List<String> args = parser.parseCached("cmd.run \"echo 1\"");
+
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        Assert.assertSame("Expected cached parse result", args, parser.parseCached("cmd.run \"echo 1\""));
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(30));
+        Assert.assertSame("Expected access to keep the result", args, parser.parseCached("cmd.run \"echo 1\""));
+        nanos.addAndGet(TimeUnit.MINUTES.toNanos(1));
+        Assert.assertNotSame("Expected unused result to expire", args, parser.parseCached("cmd.run \"echo 1\""));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testParseCachedReturnsImmutableList() {
+        new ArgumentParser("\\s").parseCached("1 2").add("3");
+    }
+
+    @Test
+    public void testParseCachedUnbalancedStringFailsEveryTime() {
+        ArgumentParser parser = new ArgumentParser("\\s", new char[] { '"' });
+        for (int i = 0; i < 2; i++) {
+            try {
+                parser.parseCached("\"1 2");
+                Assert.fail("Expected unbalanced quotes to be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testSplitLines() {
+        ArgumentParser parser = new ArgumentParser("\\s", new char[] { '"', '\'' });
+        Assert.assertEquals(Arrays.asList("test.ping", "cmd.run 'echo 1'", "pkg.version \"vim\""),
+                parser.splitLines("test.ping\r\n\n  cmd.run 'echo 1'  \npkg.version \"vim\"\n"));
+    }
+
+    @Test
+    public void testSplitLinesKeepsQuotedLineBreaks() {
+        ArgumentParser parser = new ArgumentParser("\\s", new char[] { '"', '\'' });
+        Assert.assertEquals(Arrays.asList("cmd.run 'echo 1\necho \"2\"'", "cmd.run \"it\\\"s\n\""),
+                parser.splitLines("cmd.run 'echo 1\necho \"2\"'\ncmd.run \"it\\\"s\n\""));
+    }
+
+    @Test
+    public void testSplitLinesSingleLine() {
+        Assert.assertEquals(Arrays.asList("test.ping"), new ArgumentParser("\\s").splitLines("test.ping"));
+        Assert.assertTrue(new ArgumentParser("\\s").splitLines(" \n ").isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSplitLinesUnbalanced() {
+        new ArgumentParser("\\s", new char[] { '"' }).splitLines("cmd.run \"echo\ntest.ping");
+    }
 }
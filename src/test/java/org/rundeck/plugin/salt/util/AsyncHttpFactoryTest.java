@@ -0,0 +1,332 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateInputStreamFactory;
+import org.apache.http.client.entity.InputStreamFactory;
+import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class AsyncHttpFactoryTest {
+
+    protected HttpServer server;
+    protected AsyncHttpFactory factory;
+    protected List<String> received;
+
+    @Before
+    public void setup() throws Exception {
+        received = Lists.newCopyOnWriteArrayList();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    String body = IOUtils.toString(exchange.getRequestBody(), StandardCharsets.UTF_8);
+                    received.add(String.format("%s %s %s %s %s", exchange.getRequestMethod(),
+                            exchange.getRequestURI(), exchange.getRequestHeaders().getFirst("X-Auth-Token"),
+                            exchange.getRequestHeaders().getFirst("Content-Type"), body));
+                    byte[] response = "{\"return\": []}".getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().add("Content-Type", "application/json");
+                    exchange.getResponseHeaders().add("X-Auth-Token", "token");
+                    exchange.sendResponseHeaders(exchange.getRequestURI().getPath().equals("/login") ? 200 : 202,
+                            response.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(response);
+                    out.close();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/compressed", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    // Echoes the accepted encodings, compressed with the encoding asked for.
+                    String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+                    String encoding = exchange.getRequestURI().getQuery();
+                    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+                    OutputStream out = encoding.equals("gzip") ? new GZIPOutputStream(compressed)
+                            : new DeflaterOutputStream(compressed);
+                    out.write(String.valueOf(acceptEncoding).getBytes(StandardCharsets.UTF_8));
+                    out.close();
+                    exchange.getResponseHeaders().add("Content-Type", "text/plain");
+                    exchange.getResponseHeaders().add("Content-Encoding", encoding);
+                    exchange.sendResponseHeaders(200, compressed.size());
+                    exchange.getResponseBody().write(compressed.toByteArray());
+                    exchange.getResponseBody().close();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext("/slow", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    Thread.sleep(2000);
+                    exchange.sendResponseHeaders(200, -1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+
+        factory = new AsyncHttpFactory();
+        factory.threads = 1;
+        factory.version = "HTTP_1_1";
+        factory.connectTimeout = 10000;
+        factory.requestTimeout = 300000;
+        factory.compression = true;
+        factory.initialize();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        factory.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void testIsAsync() {
+        Assert.assertTrue(factory.isAsync());
+        Assert.assertFalse(new HttpFactory().isAsync());
+    }
+
+    @Test
+    public void testExecuteAsync() throws Exception {
+        HttpGet get = factory.createHttpGet(endpoint() + "/jobs/1");
+        get.setHeader("X-Auth-Token", "token");
+        HttpResponse response = factory.executeAsync(get).get();
+
+        Assert.assertEquals(202, response.getStatusLine().getStatusCode());
+        Assert.assertEquals("Accepted", response.getStatusLine().getReasonPhrase());
+        Assert.assertEquals("application/json", response.getFirstHeader("Content-Type").getValue());
+        Assert.assertEquals("application/json", response.getEntity().getContentType().getValue());
+        Assert.assertEquals("{\"return\": []}", EntityUtils.toString(response.getEntity()));
+        Assert.assertEquals(ImmutableList.of("GET /jobs/1 token null "), received);
+    }
+
+    @Test
+    public void testExecuteAsyncSendsEntity() throws Exception {
+        List<NameValuePair> params = ImmutableList.<NameValuePair> of(new BasicNameValuePair("username", "user"),
+                new BasicNameValuePair("eauth", "pam"));
+        UrlEncodedFormEntity entity = new UrlEncodedFormEntity(params, "UTF-8");
+        entity.setContentType("application/x-www-form-urlencoded");
+        HttpPost post = factory.createHttpPost(endpoint() + "/login");
+        post.setEntity(entity);
+        HttpResponse response = factory.executeAsync(post).get();
+
+        Assert.assertEquals(200, response.getStatusLine().getStatusCode());
+        Assert.assertEquals("token", response.getFirstHeader("X-Auth-Token").getValue());
+        EntityUtils.consume(response.getEntity());
+        Assert.assertEquals(ImmutableList.of("POST /login null application/x-www-form-urlencoded username=user&eauth=pam"),
+                received);
+    }
+
+    @Test
+    public void testExecuteAsyncDecodesGzip() throws Exception {
+        HttpResponse response = factory.executeAsync(factory.createHttpGet(endpoint() + "/compressed?gzip")).get();
+
+        Assert.assertNull(response.getFirstHeader("Content-Encoding"));
+        Assert.assertNull(response.getFirstHeader("Content-Length"));
+        Assert.assertEquals("text/plain", response.getEntity().getContentType().getValue());
+        Assert.assertEquals(factory.getAcceptEncoding(), EntityUtils.toString(response.getEntity()));
+        Assert.assertTrue(factory.getAcceptEncoding().contains("gzip"));
+    }
+
+    @Test
+    public void testExecuteAsyncDecodesDeflate() throws Exception {
+        HttpResponse response = factory.executeAsync(factory.createHttpGet(endpoint() + "/compressed?deflate"))
+                .get();
+
+        Assert.assertEquals(factory.getAcceptEncoding(), EntityUtils.toString(response.getEntity()));
+    }
+
+    @Test
+    public void testExecuteAsyncKeepsAcceptEncoding() throws Exception {
+        HttpGet get = factory.createHttpGet(endpoint() + "/compressed?gzip");
+        get.setHeader("Accept-Encoding", "gzip");
+        HttpResponse response = factory.executeAsync(get).get();
+
+        Assert.assertEquals("gzip", EntityUtils.toString(response.getEntity()));
+    }
+
+    @Test
+    public void testExecuteAsyncRejectsUnsupportedEncoding() throws Exception {
+        factory.contentDecoders = ImmutableMap.<String, InputStreamFactory> of("deflate",
+                DeflateInputStreamFactory.getInstance());
+        try {
+            factory.executeAsync(factory.createHttpGet(endpoint() + "/compressed?gzip")).get();
+            Assert.fail("Expected exception.");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ClientProtocolException);
+        }
+    }
+
+    @Test
+    public void testExecuteAsyncWithCompressionDisabled() throws Exception {
+        factory.contentDecoders = ImmutableMap.of();
+        HttpResponse response = factory.executeAsync(factory.createHttpGet(endpoint() + "/jobs/1")).get();
+
+        Assert.assertNull(factory.getAcceptEncoding());
+        Assert.assertEquals("{\"return\": []}", EntityUtils.toString(response.getEntity()));
+    }
+
+    @Test
+    public void testHttp2() throws Exception {
+        factory.close();
+        factory.version = "HTTP_2";
+        factory.initialize();
+        HttpResponse response = factory.executeAsync(factory.createHttpGet(endpoint() + "/jobs/1")).get();
+
+        // The test server only speaks HTTP/1.1, the client falls back to it.
+        Assert.assertEquals(202, response.getStatusLine().getStatusCode());
+        Assert.assertEquals("{\"return\": []}", EntityUtils.toString(response.getEntity()));
+    }
+
+    @Test
+    public void testConnectTimeout() {
+        Assert.assertEquals(Duration.ofMillis(10000), factory.asyncClient.connectTimeout().get());
+    }
+
+    @Test
+    public void testToJdkRequestTimeoutFromRequestConfig() throws Exception {
+        HttpGet get = factory.createHttpGet(endpoint() + "/jobs/1");
+        get.setConfig(RequestConfig.custom().setConnectTimeout(5000).setSocketTimeout(5000).build());
+
+        Assert.assertEquals(Duration.ofMillis(10000), factory.toJdkRequest(get).timeout().get());
+    }
+
+    @Test
+    public void testToJdkRequestDefaultTimeout() throws Exception {
+        HttpGet get = factory.createHttpGet(endpoint() + "/jobs/1");
+        Assert.assertEquals(Duration.ofMillis(300000), factory.toJdkRequest(get).timeout().get());
+
+        get.setConfig(RequestConfig.custom().setRedirectsEnabled(false).build());
+        Assert.assertEquals(Duration.ofMillis(300000), factory.toJdkRequest(get).timeout().get());
+    }
+
+    @Test
+    public void testToJdkRequestWithoutTimeout() throws Exception {
+        factory.requestTimeout = 0;
+
+        Assert.assertFalse(factory.toJdkRequest(factory.createHttpGet(endpoint() + "/jobs/1")).timeout().isPresent());
+    }
+
+    @Test
+    public void testExecuteAsyncTimesOut() throws Exception {
+        HttpGet get = factory.createHttpGet(endpoint() + "/slow");
+        get.setConfig(RequestConfig.custom().setConnectTimeout(100).setSocketTimeout(100).build());
+        try {
+            factory.executeAsync(get).get();
+            Assert.fail("Expected exception.");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof HttpTimeoutException);
+        }
+    }
+
+    @Test
+    public void testExecuteAsyncFailure() throws Exception {
+        server.stop(0);
+        try {
+            factory.executeAsync(factory.createHttpGet(endpoint() + "/jobs/1")).get();
+            Assert.fail("Expected exception.");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testBlockingClient() throws Exception {
+        HttpResponse response = factory.createHttpClient().execute(factory.createHttpGet(endpoint() + "/jobs/1"));
+
+        Assert.assertEquals(202, response.getStatusLine().getStatusCode());
+        Assert.assertEquals("{\"return\": []}", EntityUtils.toString(response.getEntity()));
+    }
+
+    @SuppressWarnings("deprecation")
+    @Test
+    public void testBlockingClientDeprecatedAccessors() throws Exception {
+        HttpClient client = factory.createHttpClient();
+
+        Assert.assertNotNull(client.getParams());
+        Assert.assertNotNull(client.getConnectionManager());
+        Assert.assertSame(client.getConnectionManager(), client.getConnectionManager());
+    }
+
+    @Test
+    public void testBlockingClientFailure() throws Exception {
+        server.stop(0);
+        try {
+            factory.createHttpClient().execute(factory.createHttpGet(endpoint() + "/jobs/1"));
+            Assert.fail("Expected exception.");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    protected String endpoint() {
+        return String.format("http://%s:%d", server.getAddress().getHostString(), server.getAddress().getPort());
+    }
+}
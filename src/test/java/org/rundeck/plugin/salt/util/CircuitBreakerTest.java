@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.rundeck.plugin.salt.util.CircuitBreaker.State;
+
+public class CircuitBreakerTest {
+
+    protected static final String ENDPOINT = "https://localhost:8000";
+
+    protected CircuitBreaker breaker;
+    protected long now;
+
+    @Before
+    public void setup() {
+        breaker = new CircuitBreaker() {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+        breaker.enabled = true;
+        breaker.window = 4;
+        breaker.minimumRequests = 4;
+        breaker.failureRate = 0.5;
+        breaker.openDuration = 1000;
+    }
+
+    @Test
+    public void testStaysClosedBelowMinimumRequests() {
+        record(false, false, false);
+        Assert.assertEquals(State.CLOSED, breaker.getState(ENDPOINT));
+    }
+
+    @Test
+    public void testStaysClosedBelowFailureRate() {
+        record(true, true, false, true, true, true);
+        Assert.assertEquals(State.CLOSED, breaker.getState(ENDPOINT));
+    }
+
+    @Test
+    public void testOpensAtFailureRate() {
+        record(true, false, true, false);
+        Assert.assertEquals(State.OPEN, breaker.getState(ENDPOINT));
+        Assert.assertNull(breaker.tryAcquire(ENDPOINT));
+    }
+
+    @Test
+    public void testOnlyRecentRequestsCount() {
+        record(false, true, true, true, true);
+        Assert.assertEquals(State.CLOSED, breaker.getState(ENDPOINT));
+        record(false, false);
+        Assert.assertEquals(State.OPEN, breaker.getState(ENDPOINT));
+    }
+
+    @Test
+    public void testSingleProbeOnceOpenDurationElapsed() {
+        record(false, false, false, false);
+        now += 999;
+        Assert.assertNull(breaker.tryAcquire(ENDPOINT));
+
+        now += 1;
+        CircuitBreaker.Permit probe = breaker.tryAcquire(ENDPOINT);
+        Assert.assertTrue(probe.isProbe());
+        Assert.assertEquals(State.HALF_OPEN, breaker.getState(ENDPOINT));
+        Assert.assertNull(breaker.tryAcquire(ENDPOINT));
+    }
+
+    @Test
+    public void testSuccessfulProbeClosesCircuit() {
+        record(false, false, false, false);
+        now += 1000;
+        breaker.record(breaker.tryAcquire(ENDPOINT), true);
+
+        Assert.assertEquals(State.CLOSED, breaker.getState(ENDPOINT));
+        CircuitBreaker.Permit permit = breaker.tryAcquire(ENDPOINT);
+        Assert.assertFalse(permit.isProbe());
+
+        // Failures from before the circuit opened are forgotten.
+        record(false, false, false);
+        Assert.assertEquals(State.CLOSED, breaker.getState(ENDPOINT));
+    }
+
+    @Test
+    public void testFailedProbeReopensCircuit() {
+        record(false, false, false, false);
+        now += 1000;
+        breaker.record(breaker.tryAcquire(ENDPOINT), false);
+
+        Assert.assertEquals(State.OPEN, breaker.getState(ENDPOINT));
+        now += 999;
+        Assert.assertNull(breaker.tryAcquire(ENDPOINT));
+        now += 1;
+        Assert.assertNotNull(breaker.tryAcquire(ENDPOINT));
+    }
+
+    @Test
+    public void testOutdatedOutcomesIgnored() {
+        CircuitBreaker.Permit straggler = breaker.tryAcquire(ENDPOINT);
+        record(false, false, false, false);
+        now += 1000;
+        CircuitBreaker.Permit probe = breaker.tryAcquire(ENDPOINT);
+
+        breaker.record(straggler, true);
+        Assert.assertEquals(State.HALF_OPEN, breaker.getState(ENDPOINT));
+        breaker.record(probe, false);
+        Assert.assertEquals(State.OPEN, breaker.getState(ENDPOINT));
+    }
+
+    @Test
+    public void testEndpointsHaveSeparateCircuits() {
+        record(false, false, false, false);
+        Assert.assertNotNull(breaker.tryAcquire("https://other:8000"));
+    }
+
+    @Test
+    public void testDisabled() {
+        breaker.enabled = false;
+        record(false, false, false, false);
+        Assert.assertNotNull(breaker.tryAcquire(ENDPOINT));
+    }
+
+    protected void record(boolean... outcomes) {
+        for (boolean success : outcomes) {
+            breaker.record(breaker.tryAcquire(ENDPOINT), success);
+        }
+    }
+}
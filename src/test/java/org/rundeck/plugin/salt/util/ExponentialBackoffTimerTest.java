@@ -85,6 +85,18 @@ public class ExponentialBackoffTimerTest {
                 sleepValues);
     }
 
+    @Test
+    public void testNextDelay() {
+        List<Long> expectedBackoff = Lists.newArrayList(1L, 3L, 7L, 15L, 31L, 63L, 127L, 255L, 300L, 300L);
+        ExponentialBackoffTimer timer = new ExponentialBackoffTimer(1, 300);
+
+        List<Long> delays = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            delays.add(timer.nextDelay());
+        }
+        Assert.assertEquals("Delay values don't match expected exponential backoff values.", expectedBackoff, delays);
+    }
+
     @Test
     public void testInterrupted() throws Exception {
         ExponentialBackoffTimer timer = new ExponentialBackoffTimer(1, 300);
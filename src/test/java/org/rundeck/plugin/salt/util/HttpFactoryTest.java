@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.client.methods.HttpGet;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpFactoryTest {
+
+    protected HttpFactory factory;
+
+    @Before
+    public void setup() {
+        factory = new HttpFactory();
+        factory.maxTotal = 10;
+        factory.maxPerRoute = 4;
+        factory.idleTimeout = 30000;
+        factory.validateAfterInactivity = 2000;
+        factory.compression = true;
+        factory.initialize();
+    }
+
+    @After
+    public void teardown() throws Exception {
+        factory.close();
+    }
+
+    @Test
+    public void testCreateHttpClientReturnsSharedClient() {
+        Assert.assertNotNull(factory.createHttpClient());
+        Assert.assertSame("Expected a single pooled client", factory.createHttpClient(), factory.createHttpClient());
+    }
+
+    @Test
+    public void testConnectionPoolLimits() {
+        Assert.assertEquals(10, factory.connectionManager.getMaxTotal());
+        Assert.assertEquals(4, factory.connectionManager.getDefaultMaxPerRoute());
+        Assert.assertEquals(4, factory.connectionManager.getMaxPerRoute(new HttpRoute(new HttpHost("localhost", 443,
+                "https"))));
+        Assert.assertEquals(2000, factory.connectionManager.getValidateAfterInactivity());
+    }
+
+    @Test
+    public void testCloseShutsDownPool() throws Exception {
+        factory.close();
+        try {
+            factory.createHttpClient().execute(new HttpGet("http://localhost:1/"));
+            Assert.fail("Expected closed client to reject requests");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCloseWithoutInitialize() throws Exception {
+        new HttpFactory().close();
+    }
+
+    @Test
+    public void testCreateMethods() {
+        Assert.assertEquals("https://localhost/login", factory.createHttpPost("https://localhost/login").getURI()
+                .toString());
+        Assert.assertEquals("https://localhost/logout", factory.createHttpGet("https://localhost/logout").getURI()
+                .toString());
+    }
+
+    @Test
+    public void testContentDecoders() {
+        Assert.assertTrue(factory.contentDecoders.containsKey("gzip"));
+        Assert.assertTrue(factory.contentDecoders.containsKey("deflate"));
+        Assert.assertEquals("Brotli is only decoded if its decoder is on the classpath",
+                HttpFactory.BrotliInputStreamFactory.load() != null, factory.contentDecoders.containsKey("br"));
+        Assert.assertTrue(factory.getAcceptEncoding().startsWith("gzip,x-gzip,deflate"));
+    }
+
+    @Test
+    public void testContentDecodersWithCompressionDisabled() throws Exception {
+        HttpFactory uncompressed = new HttpFactory();
+        uncompressed.maxTotal = 10;
+        uncompressed.maxPerRoute = 4;
+        uncompressed.initialize();
+        try {
+            Assert.assertTrue(uncompressed.contentDecoders.isEmpty());
+            Assert.assertNull(uncompressed.getAcceptEncoding());
+        } finally {
+            uncompressed.close();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.rundeck.plugin.salt.util.ExponentialBackoffTimer.Factory;
+import org.rundeck.plugin.salt.util.ExponentialBackoffTimer.Jitter;
+
+public class JitteredBackoffTimerTest {
+
+    @Test
+    public void testFactoryCreatesTimerForJitter() {
+        Assert.assertEquals(ExponentialBackoffTimer.class, new Factory().newTimer(1, 30, Jitter.NONE).getClass());
+        Assert.assertEquals(JitteredBackoffTimer.class, new Factory().newTimer(1, 30, Jitter.FULL).getClass());
+    }
+
+    @Test
+    public void testFullJitterStaysBelowExponentialDelay() {
+        for (int run = 0; run < 100; run++) {
+            ExponentialBackoffTimer regular = new ExponentialBackoffTimer(1, 300);
+            JitteredBackoffTimer timer = new JitteredBackoffTimer(1, 300, Jitter.FULL);
+            for (int i = 0; i < 10; i++) {
+                long delay = timer.nextDelay();
+                long maximum = regular.nextDelay();
+                Assert.assertTrue(String.format("Expected %d between 0 and %d", delay, maximum), delay >= 0
+                        && delay <= maximum);
+            }
+        }
+    }
+
+    @Test
+    public void testDecorrelatedJitterStaysWithinBounds() {
+        for (int run = 0; run < 100; run++) {
+            JitteredBackoffTimer timer = new JitteredBackoffTimer(10, 300, Jitter.DECORRELATED);
+            long previous = 10;
+            for (int i = 0; i < 10; i++) {
+                long delay = timer.nextDelay();
+                Assert.assertTrue(String.format("Expected %d between 10 and %d", delay, previous * 3), delay >= 10
+                        && delay <= Math.min(300, previous * 3));
+                previous = delay;
+            }
+        }
+    }
+
+    @Test
+    public void testDecorrelatedJitterGrowsFromPreviousDelay() {
+        JitteredBackoffTimer timer = new JitteredBackoffTimer(10, 300, Jitter.DECORRELATED) {
+            @Override
+            protected long random(long lower, long upper) {
+                return upper;
+            }
+        };
+
+        Assert.assertEquals(30, timer.nextDelay());
+        Assert.assertEquals(90, timer.nextDelay());
+        Assert.assertEquals(270, timer.nextDelay());
+        Assert.assertEquals(300, timer.nextDelay());
+    }
+}
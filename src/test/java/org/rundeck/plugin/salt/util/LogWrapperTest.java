@@ -34,6 +34,7 @@ import org.mockito.Mockito;
 import com.dtolabs.rundeck.core.Constants;
 import com.dtolabs.rundeck.plugins.PluginLogger;
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableSet;
 
 public class LogWrapperTest {
 
@@ -47,6 +48,15 @@ public class LogWrapperTest {
         log = Mockito.spy(log);
     }
 
+    @Test
+    public void testMasksSecureData() {
+        log = new LogWrapper(underlyingLogger, new SecureDataMasker(ImmutableSet.of("s3cr3t")));
+        log.info("password: %s", "s3cr3t");
+        log.error("s3cr3t");
+        Mockito.verify(underlyingLogger, Mockito.times(1)).log(Constants.INFO_LEVEL, "password: ****");
+        Mockito.verify(underlyingLogger, Mockito.times(1)).log(Constants.ERR_LEVEL, "****");
+    }
+
     @Test
     public void testDebug() {
         assertLineLoggedAt(new Function<String[], Void>() {
@@ -0,0 +1,99 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RetryBudgetTest {
+
+    protected RetryBudget budget;
+    protected long now;
+
+    @Before
+    public void setup() {
+        budget = new RetryBudget() {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+        budget.ratio = 0.5;
+        budget.minimumPerSecond = 1;
+        budget.capacity = 2;
+    }
+
+    @Test
+    public void testBucketsStartFull() {
+        Assert.assertTrue(budget.tryWithdraw("https://master1"));
+        Assert.assertTrue(budget.tryWithdraw("https://master1"));
+        Assert.assertFalse(budget.tryWithdraw("https://master1"));
+    }
+
+    @Test
+    public void testRequestsDepositShareOfRetry() {
+        drain("https://master1");
+        budget.deposit("https://master1");
+        Assert.assertFalse(budget.tryWithdraw("https://master1"));
+        budget.deposit("https://master1");
+        Assert.assertTrue(budget.tryWithdraw("https://master1"));
+    }
+
+    @Test
+    public void testRefillsOverTime() {
+        drain("https://master1");
+        now += 999;
+        Assert.assertFalse(budget.tryWithdraw("https://master1"));
+        now += 1;
+        Assert.assertTrue(budget.tryWithdraw("https://master1"));
+    }
+
+    @Test
+    public void testNeverExceedsCapacity() {
+        for (int i = 0; i < 100; i++) {
+            budget.deposit("https://master1");
+        }
+        now += 60000;
+        drain("https://master1");
+        Assert.assertEquals(0, budget.buckets.get("https://master1").tokens, 0.001);
+    }
+
+    @Test
+    public void testEndpointsHaveSeparateBudgets() {
+        drain("https://master1");
+        Assert.assertTrue(budget.tryWithdraw("https://master2"));
+    }
+
+    protected void drain(String endpoint) {
+        int withdrawn = 0;
+        while (budget.tryWithdraw(endpoint)) {
+            withdrawn++;
+        }
+        Assert.assertTrue(withdrawn <= budget.capacity);
+    }
+}
@@ -27,11 +27,22 @@
 package org.rundeck.plugin.salt.util;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.SocketException;
+import java.net.URI;
 import java.net.UnknownHostException;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executor;
 
 import javax.net.ssl.SSLException;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.StatusLine;
@@ -39,10 +50,13 @@ import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.message.BasicHeader;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.InOrder;
 import org.mockito.Mockito;
 import org.mockito.stubbing.OngoingStubbing;
 import org.rundeck.plugin.salt.util.ExponentialBackoffTimer;
@@ -51,9 +65,13 @@ import org.rundeck.plugin.salt.util.RetryingHttpClientExecutor;
 import org.rundeck.plugin.salt.util.ExponentialBackoffTimer.Factory;
 
 import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.collect.Lists;
 
 public class RetryingHttpClientExecutorTest {
 
+    protected static final Predicate<Integer> ALWAYS_TRUE = Predicates.<Integer> alwaysTrue();
+
     protected HttpClient client;
     protected HttpGet get;
     protected HttpResponse response;
@@ -61,10 +79,25 @@ public class RetryingHttpClientExecutorTest {
     protected ExponentialBackoffTimer timer;
     protected Factory timerFactory;
     protected LogWrapper logger;
+    protected CircuitBreaker.Permit permit;
+    protected HttpFactory httpFactory;
+    protected List<Long> scheduledDelays;
 
     @Before
     public void setup() {
-        executor = new RetryingHttpClientExecutor();
+        scheduledDelays = Lists.newArrayList();
+        executor = new RetryingHttpClientExecutor() {
+            @Override
+            protected Executor delayedExecutor(final long delay) {
+                return new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        scheduledDelays.add(delay);
+                        command.run();
+                    }
+                };
+            }
+        };
         
         logger = Mockito.mock(LogWrapper.class);
         client = Mockito.mock(HttpClient.class);
@@ -73,8 +106,288 @@ public class RetryingHttpClientExecutorTest {
         
         timerFactory = Mockito.mock(Factory.class);
         timer = Mockito.mock(ExponentialBackoffTimer.class);
-        Mockito.when(timerFactory.newTimer(Mockito.anyLong(), Mockito.anyLong())).thenReturn(timer);
+        Mockito.when(timerFactory.newTimer(Mockito.anyLong(), Mockito.anyLong(),
+                Mockito.any(ExponentialBackoffTimer.Jitter.class))).thenReturn(timer);
         executor.timerFactory = timerFactory;
+        executor.delayStep = 500;
+        executor.maximumRetryDelay = 15000;
+        executor.retryBudget = Mockito.mock(RetryBudget.class);
+        Mockito.when(executor.retryBudget.tryWithdraw(Mockito.anyString())).thenReturn(true);
+        permit = new CircuitBreaker.Permit("", 0, false);
+        executor.circuitBreaker = Mockito.mock(CircuitBreaker.class);
+        Mockito.when(executor.circuitBreaker.tryAcquire(Mockito.anyString())).thenReturn(permit);
+        executor.throttle = Mockito.mock(SaltApiThrottle.class);
+        Mockito.when(executor.throttle.acquireAsync(Mockito.anyString())).thenReturn(
+                CompletableFuture.completedFuture(0L));
+        httpFactory = Mockito.mock(HttpFactory.class);
+    }
+
+    @Test
+    public void testExecuteAsync() throws Exception {
+        setupResponseWithStatusLine(HttpStatus.SC_OK);
+        Mockito.when(httpFactory.executeAsync(get)).thenReturn(CompletableFuture.completedFuture(response));
+
+        Assert.assertSame(response, executor.executeAsync(logger, httpFactory, get, 3, ALWAYS_TRUE).get());
+        Mockito.verify(executor.throttle, Mockito.times(1)).release(Mockito.anyString());
+        Mockito.verify(executor.circuitBreaker).record(permit, true);
+        Mockito.verify(executor.retryBudget).deposit(Mockito.anyString());
+        Mockito.verifyNoInteractions(client);
+    }
+
+    @Test
+    public void testExecuteAsyncRetriesRecoverableStatusCodes() throws Exception {
+        Mockito.when(timer.nextDelay()).thenReturn(500L, 1500L);
+        setupResponseWithStatusLine(HttpStatus.SC_SERVICE_UNAVAILABLE, HttpStatus.SC_BAD_GATEWAY, HttpStatus.SC_OK);
+        Mockito.when(httpFactory.executeAsync(get)).thenReturn(CompletableFuture.completedFuture(response));
+
+        Assert.assertSame(response, executor.executeAsync(logger, httpFactory, get, 5, ALWAYS_TRUE).get());
+        Mockito.verify(httpFactory, Mockito.times(3)).executeAsync(get);
+        Assert.assertEquals(Lists.newArrayList(500L, 1500L), scheduledDelays);
+        Mockito.verify(executor.throttle, Mockito.times(3)).acquireAsync(Mockito.anyString());
+        Mockito.verify(executor.throttle, Mockito.times(3)).release(Mockito.anyString());
+    }
+
+    @Test
+    public void testExecuteAsyncReturnsLastResponse() throws Exception {
+        setupResponseWithStatusLine(HttpStatus.SC_SERVICE_UNAVAILABLE);
+        Mockito.when(httpFactory.executeAsync(get)).thenReturn(CompletableFuture.completedFuture(response));
+
+        Assert.assertSame(response, executor.executeAsync(logger, httpFactory, get, 3, ALWAYS_TRUE).get());
+        Mockito.verify(httpFactory, Mockito.times(3)).executeAsync(get);
+    }
+
+    @Test
+    public void testExecuteAsyncRetriesRecoverableExceptions() throws Exception {
+        setupResponseWithStatusLine(HttpStatus.SC_OK);
+        Mockito.when(httpFactory.executeAsync(get)).thenReturn(
+                CompletableFuture.<HttpResponse> failedFuture(new CompletionException(new SocketException())),
+                CompletableFuture.completedFuture(response));
+
+        Assert.assertSame(response, executor.executeAsync(logger, httpFactory, get, 3, ALWAYS_TRUE).get());
+        Mockito.verify(executor.circuitBreaker).record(permit, false);
+        Mockito.verify(executor.circuitBreaker).record(permit, true);
+    }
+
+    @Test
+    public void testExecuteAsyncDoesNotRetryUnrecoverableExceptions() throws Exception {
+        UnknownHostException failure = new UnknownHostException();
+        Mockito.when(httpFactory.executeAsync(get)).thenReturn(CompletableFuture.<HttpResponse> failedFuture(failure));
+
+        try {
+            executor.executeAsync(logger, httpFactory, get, 3, ALWAYS_TRUE).get();
+            Assert.fail("Expected exception.");
+        } catch (ExecutionException e) {
+            Assert.assertSame(failure, e.getCause());
+        }
+        Mockito.verify(httpFactory, Mockito.times(1)).executeAsync(get);
+    }
+
+    @Test
+    public void testExecuteAsyncWithOpenCircuit() throws Exception {
+        Mockito.when(executor.circuitBreaker.tryAcquire(Mockito.anyString())).thenReturn(null);
+
+        try {
+            executor.executeAsync(logger, httpFactory, get, 3, ALWAYS_TRUE).get();
+            Assert.fail("Expected exception.");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof CircuitOpenException);
+        }
+        Mockito.verifyNoInteractions(httpFactory);
+        Mockito.verify(executor.throttle, Mockito.times(1)).release(Mockito.anyString());
+    }
+
+    @Test
+    public void testExecuteAsyncWhenSendThrows() throws Exception {
+        IllegalStateException failure = new IllegalStateException("shut down");
+        Mockito.when(httpFactory.executeAsync(get)).thenThrow(failure);
+
+        try {
+            executor.executeAsync(logger, httpFactory, get, 3, ALWAYS_TRUE).get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected exception.");
+        } catch (ExecutionException e) {
+            Assert.assertSame(failure, e.getCause());
+        }
+        Mockito.verify(executor.circuitBreaker, Mockito.times(1)).record(permit, false);
+        Mockito.verify(executor.throttle, Mockito.times(1)).release(Mockito.anyString());
+    }
+
+    @Test
+    public void testExecuteAsyncWhenThrottleFails() throws Exception {
+        IllegalStateException failure = new IllegalStateException("shut down");
+        Mockito.when(executor.throttle.acquireAsync(Mockito.anyString())).thenReturn(
+                CompletableFuture.<Long> failedFuture(failure));
+
+        try {
+            executor.executeAsync(logger, httpFactory, get, 3, ALWAYS_TRUE).get(5, TimeUnit.SECONDS);
+            Assert.fail("Expected exception.");
+        } catch (ExecutionException e) {
+            Assert.assertSame(failure, e.getCause());
+        }
+        Mockito.verifyNoInteractions(httpFactory);
+    }
+
+    @Test
+    public void testExecuteAsyncStopsWhenBudgetExhausted() throws Exception {
+        Mockito.when(executor.retryBudget.tryWithdraw(Mockito.anyString())).thenReturn(false);
+        Mockito.when(httpFactory.executeAsync(get)).thenReturn(
+                CompletableFuture.<HttpResponse> failedFuture(new SocketException()));
+
+        try {
+            executor.executeAsync(logger, httpFactory, get, 3, ALWAYS_TRUE).get();
+            Assert.fail("Expected exception.");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof SocketException);
+        }
+        Mockito.verify(httpFactory, Mockito.times(1)).executeAsync(get);
+        Assert.assertTrue(scheduledDelays.isEmpty());
+    }
+
+    @Test
+    public void testThrottledPerAttempt() throws Exception {
+        setupResponseCodeAfter(get, HttpStatus.SC_SERVICE_UNAVAILABLE, HttpStatus.SC_OK);
+        Mockito.when(executor.throttle.acquire(Mockito.anyString())).thenReturn(0L, 250L);
+        executor.execute(logger, client, get, 3);
+
+        Mockito.verify(executor.throttle, Mockito.times(2)).acquire(Mockito.anyString());
+        Mockito.verify(executor.throttle, Mockito.times(2)).release(Mockito.anyString());
+        Mockito.verify(logger, Mockito.times(1)).debug(Mockito.startsWith("Waited"),
+                Mockito.eq(250L), Mockito.anyString());
+    }
+
+    @Test
+    public void testThrottleReleasedOnException() throws Exception {
+        setupDoThrowOnExecute(new UnknownHostException());
+
+        try {
+            executor.execute(logger, client, get, 5);
+            Assert.fail("Expected exception.");
+        } catch (UnknownHostException e) {
+            // expected
+        }
+
+        Mockito.verify(executor.throttle, Mockito.times(1)).acquire(Mockito.anyString());
+        Mockito.verify(executor.throttle, Mockito.times(1)).release(Mockito.anyString());
+    }
+
+    @Test
+    public void testThrottleReleasedWhenCircuitOpen() throws Exception {
+        Mockito.when(executor.circuitBreaker.tryAcquire(Mockito.anyString())).thenReturn(null);
+
+        try {
+            executor.execute(logger, client, get, 5);
+            Assert.fail("Expected exception.");
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+
+        Mockito.verify(executor.throttle, Mockito.times(1)).release(Mockito.anyString());
+    }
+
+    @Test
+    public void testOpenCircuitFailsFast() throws Exception {
+        Mockito.when(executor.circuitBreaker.tryAcquire(Mockito.anyString())).thenReturn(null);
+
+        try {
+            executor.execute(logger, client, get, 5);
+            Assert.fail("Expected exception.");
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+
+        Mockito.verifyNoInteractions(client, timer);
+    }
+
+    @Test
+    public void testCircuitOpeningStopsRetries() throws Exception {
+        setupDoThrowOnExecute(new IOException());
+        Mockito.when(executor.circuitBreaker.tryAcquire(Mockito.anyString())).thenReturn(permit, permit, null);
+
+        try {
+            executor.execute(logger, client, get, 5);
+            Assert.fail("Expected exception.");
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+
+        Mockito.verify(client, Mockito.times(2)).execute(Mockito.same(get));
+        Mockito.verify(executor.circuitBreaker, Mockito.times(2)).record(permit, false);
+    }
+
+    @Test
+    public void testServerErrorsRecordedAsFailures() throws Exception {
+        setupResponseCodeAfter(get, HttpStatus.SC_BAD_GATEWAY, HttpStatus.SC_BAD_REQUEST, HttpStatus.SC_OK);
+        executor.execute(logger, client, get, 3);
+
+        InOrder inOrder = Mockito.inOrder(executor.circuitBreaker);
+        inOrder.verify(executor.circuitBreaker).record(permit, false);
+        inOrder.verify(executor.circuitBreaker, Mockito.times(2)).record(permit, true);
+    }
+
+    @Test
+    public void testTimerUsesDelayStep() throws Exception {
+        executor.setJitter("decorrelated");
+        setupResponseCode(get, HttpStatus.SC_BAD_REQUEST);
+        executor.execute(logger, client, get, 2);
+
+        Mockito.verify(timerFactory, Mockito.times(1)).newTimer(500, 15000, ExponentialBackoffTimer.Jitter.DECORRELATED);
+    }
+
+    @Test
+    public void testRetryAfterSecondsDelaysRetry() throws Exception {
+        setupResponseCode(get, HttpStatus.SC_SERVICE_UNAVAILABLE);
+        setupRetryAfter("3");
+        Mockito.when(timer.nextDelay()).thenReturn(200L);
+
+        executor.execute(logger, client, get, 2);
+
+        Mockito.verify(timer, Mockito.times(1)).waitFor(3200L);
+        Mockito.verify(timer, Mockito.never()).waitForNext();
+    }
+
+    @Test
+    public void testRetryAfterDateDelaysRetry() throws Exception {
+        executor = Mockito.spy(executor);
+        Mockito.doReturn(1000000000000L).when(executor).currentTimeMillis();
+        setupResponseCode(get, HttpStatus.SC_SERVICE_UNAVAILABLE);
+        setupRetryAfter(DateUtils.formatDate(new Date(1000000000000L + 5000)));
+
+        executor.execute(logger, client, get, 2);
+
+        Mockito.verify(timer, Mockito.times(1)).waitFor(5000L);
+    }
+
+    @Test
+    public void testRetryAfterBeyondMaximumDelayIsNotRetried() throws Exception {
+        setupResponseCode(get, HttpStatus.SC_SERVICE_UNAVAILABLE);
+        setupRetryAfter("3600");
+
+        Assert.assertSame(response, executor.execute(logger, client, get, 5));
+
+        Mockito.verify(client, Mockito.times(1)).execute(Mockito.same(get));
+        Mockito.verifyNoInteractions(timer);
+    }
+
+    @Test
+    public void testExhaustedRetryBudgetIsNotRetried() throws Exception {
+        IOException someException = new IOException();
+        setupDoThrowOnExecute(someException);
+        Mockito.when(executor.retryBudget.tryWithdraw(Mockito.anyString())).thenReturn(true, false);
+
+        try {
+            executor.execute(logger, client, get, 5);
+            Assert.fail("Expected exception.");
+        } catch (IOException e) {
+            Assert.assertSame(someException, e);
+        }
+
+        Mockito.verify(client, Mockito.times(2)).execute(Mockito.same(get));
+        Mockito.verify(executor.retryBudget, Mockito.times(1)).deposit("");
+    }
+
+    @Test
+    public void testRetryBudgetPerEndpoint() throws Exception {
+        Mockito.when(get.getURI()).thenReturn(new URI("https://salt-master:8000/jobs/123"));
+        Assert.assertEquals("https://salt-master:8000", executor.endpointOf(get));
     }
     
     @Test(expected = IllegalArgumentException.class)
@@ -210,6 +523,26 @@ public class RetryingHttpClientExecutorTest {
         Mockito.verify(timer, Mockito.times(1)).waitForNext();
     }
 
+    @Test
+    public void testRetryConsumesRetriedResponse() throws Exception {
+        HttpEntity entity = Mockito.mock(HttpEntity.class);
+        InputStream content = Mockito.mock(InputStream.class);
+        Mockito.when(entity.isStreaming()).thenReturn(true);
+        Mockito.when(entity.getContent()).thenReturn(content);
+        Mockito.when(response.getEntity()).thenReturn(entity);
+        setupResponseCode(get, HttpStatus.SC_BAD_REQUEST);
+
+        executor.execute(logger, client, get, 3);
+
+        // The last response is handed back to the caller unconsumed.
+        Mockito.verify(content, Mockito.times(2)).close();
+    }
+
+    protected void setupRetryAfter(String value) {
+        Mockito.when(response.getFirstHeader(HttpHeaders.RETRY_AFTER)).thenReturn(
+                new BasicHeader(HttpHeaders.RETRY_AFTER, value));
+    }
+
     protected void setupResponseWithStatusLine(int... codes) {
         StatusLine line = Mockito.mock(StatusLine.class);
         OngoingStubbing<Integer> stub = Mockito.when(line.getStatusCode());
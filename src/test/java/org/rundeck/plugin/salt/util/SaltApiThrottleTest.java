@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class SaltApiThrottleTest {
+
+    protected static final String ENDPOINT = "https://localhost:8000";
+
+    protected SaltApiThrottle throttle;
+    protected long now;
+    protected List<Long> sleeps;
+    protected List<Runnable> scheduled;
+
+    @Before
+    public void setup() {
+        sleeps = Lists.newArrayList();
+        scheduled = Lists.newArrayList();
+        throttle = new SaltApiThrottle() {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+
+            @Override
+            protected void sleep(long delay) throws InterruptedException {
+                sleeps.add(delay);
+                now += delay;
+            }
+
+            @Override
+            protected Executor delayedExecutor(final long delay) {
+                return new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        sleeps.add(delay);
+                        scheduled.add(command);
+                    }
+                };
+            }
+        };
+        throttle.requestsPerSecond = 10;
+        throttle.burst = 2;
+    }
+
+    @Test
+    public void testBurstSentRightAway() throws Exception {
+        Assert.assertEquals(0, throttle.acquire(ENDPOINT));
+        Assert.assertEquals(0, throttle.acquire(ENDPOINT));
+        Assert.assertTrue(sleeps.isEmpty());
+    }
+
+    @Test
+    public void testWaitsForTokens() throws Exception {
+        throttle.acquire(ENDPOINT);
+        throttle.acquire(ENDPOINT);
+        Assert.assertEquals(100, throttle.acquire(ENDPOINT));
+        Assert.assertEquals(100, throttle.acquire(ENDPOINT));
+    }
+
+    @Test
+    public void testQueuedCallersWaitInTurn() throws Exception {
+        throttle.acquire(ENDPOINT);
+        throttle.acquire(ENDPOINT);
+        Assert.assertEquals(100, throttle.reserve(throttle.limitsFor(ENDPOINT)));
+        Assert.assertEquals(200, throttle.reserve(throttle.limitsFor(ENDPOINT)));
+    }
+
+    @Test
+    public void testTokensRefill() throws Exception {
+        throttle.acquire(ENDPOINT);
+        throttle.acquire(ENDPOINT);
+        now += 1000;
+        Assert.assertEquals(0, throttle.acquire(ENDPOINT));
+        Assert.assertEquals(0, throttle.acquire(ENDPOINT));
+        Assert.assertEquals(100, throttle.acquire(ENDPOINT));
+    }
+
+    @Test
+    public void testInterruptedWaitReturnsToken() throws Exception {
+        throttle = new SaltApiThrottle() {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+
+            @Override
+            protected void sleep(long delay) throws InterruptedException {
+                throw new InterruptedException();
+            }
+        };
+        throttle.requestsPerSecond = 10;
+        throttle.burst = 1;
+        throttle.acquire(ENDPOINT);
+        try {
+            throttle.acquire(ENDPOINT);
+            Assert.fail("Expected exception.");
+        } catch (InterruptedException e) {
+            // expected
+        }
+        Assert.assertEquals(100, throttle.reserve(throttle.limitsFor(ENDPOINT)));
+    }
+
+    @Test
+    public void testEndpointsLimitedSeparately() throws Exception {
+        throttle.acquire(ENDPOINT);
+        throttle.acquire(ENDPOINT);
+        Assert.assertEquals(0, throttle.acquire("https://other:8000"));
+    }
+
+    @Test
+    public void testNoRateLimit() throws Exception {
+        throttle.requestsPerSecond = 0;
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(0, throttle.acquire(ENDPOINT));
+        }
+    }
+
+    @Test
+    public void testInFlightLimit() throws Exception {
+        throttle.requestsPerSecond = 0;
+        throttle.maxInFlight = 2;
+        throttle.acquire(ENDPOINT);
+        throttle.acquire(ENDPOINT);
+        Assert.assertFalse(throttle.limitsFor(ENDPOINT).inFlight.tryAcquire());
+
+        throttle.release(ENDPOINT);
+        Assert.assertEquals(0, throttle.acquire(ENDPOINT));
+    }
+
+    @Test
+    public void testNoInFlightLimit() throws Exception {
+        throttle.release(ENDPOINT);
+        Assert.assertNull(throttle.limitsFor(ENDPOINT).inFlight);
+    }
+
+    @Test
+    public void testAcquireAsync() throws Exception {
+        Assert.assertEquals(Long.valueOf(0), throttle.acquireAsync(ENDPOINT).get());
+        Assert.assertEquals(Long.valueOf(0), throttle.acquireAsync(ENDPOINT).get());
+
+        CompletableFuture<Long> acquired = throttle.acquireAsync(ENDPOINT);
+        Assert.assertFalse(acquired.isDone());
+        Assert.assertEquals(Lists.newArrayList(100L), sleeps);
+
+        now += 100;
+        runScheduled();
+        Assert.assertEquals(Long.valueOf(100), acquired.get());
+    }
+
+    @Test
+    public void testAcquireAsyncWaitsForInFlightSlot() throws Exception {
+        throttle.requestsPerSecond = 0;
+        throttle.maxInFlight = 1;
+        throttle.acquire(ENDPOINT);
+
+        CompletableFuture<Long> acquired = throttle.acquireAsync(ENDPOINT);
+        runScheduled();
+        Assert.assertFalse(acquired.isDone());
+
+        throttle.release(ENDPOINT);
+        runScheduled();
+        Assert.assertTrue(acquired.isDone());
+        Assert.assertEquals(0, throttle.limitsFor(ENDPOINT).inFlight.availablePermits());
+    }
+
+    @Test
+    public void testCancelledAcquireAsyncTakesNoSlot() throws Exception {
+        throttle.requestsPerSecond = 0;
+        throttle.maxInFlight = 1;
+        throttle.acquire(ENDPOINT);
+
+        throttle.acquireAsync(ENDPOINT).cancel(true);
+        throttle.release(ENDPOINT);
+        runScheduled();
+
+        Assert.assertTrue(scheduled.isEmpty());
+        Assert.assertEquals(1, throttle.limitsFor(ENDPOINT).inFlight.availablePermits());
+    }
+
+    protected void runScheduled() {
+        List<Runnable> due = Lists.newArrayList(scheduled);
+        scheduled.clear();
+        for (Runnable runnable : due) {
+            runnable.run();
+        }
+    }
+}
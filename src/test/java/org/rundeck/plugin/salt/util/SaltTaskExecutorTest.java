@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SaltTaskExecutorTest {
+
+    protected SaltTaskExecutor executor;
+
+    @Before
+    public void setup() {
+        executor = new SaltTaskExecutor();
+        executor.virtualThreads = true;
+        executor.maxInFlightPerEndpoint = 2;
+        executor.threads = 4;
+        executor.start();
+    }
+
+    @After
+    public void tearDown() {
+        executor.stop();
+    }
+
+    @Test
+    public void testUsesVirtualThreadsOnlyIfAvailable() {
+        Assert.assertEquals(SaltTaskExecutor.newVirtualThreadExecutor() != null, executor.isVirtual());
+    }
+
+    @Test
+    public void testFallsBackToPlatformThreadsIfDisabled() throws Exception {
+        executor.stop();
+        executor.virtualThreads = false;
+        executor.start();
+
+        Assert.assertFalse(executor.isVirtual());
+        Assert.assertEquals("done", executor.submit("https://master1", new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        }).get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testLimitsTasksInFlightPerEndpoint() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maximum = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(6);
+        for (int i = 0; i < 6; i++) {
+            executor.execute("https://master1", new Runnable() {
+                @Override
+                public void run() {
+                    int now = running.incrementAndGet();
+                    synchronized (maximum) {
+                        maximum.set(Math.max(maximum.get(), now));
+                    }
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        running.decrementAndGet();
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        final CountDownLatch other = new CountDownLatch(1);
+        executor.execute("https://master2", new Runnable() {
+            @Override
+            public void run() {
+                other.countDown();
+            }
+        });
+
+        Assert.assertTrue("Expected other endpoint not to wait", other.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        release.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, maximum.get());
+        Assert.assertEquals(0, executor.queueFor("https://master1").getRunning());
+    }
+
+    @Test
+    public void testWaitingTasksDontHoldPlatformThreads() throws Exception {
+        executor.stop();
+        executor.virtualThreads = false;
+        executor.threads = 2;
+        executor.maxInFlightPerEndpoint = 1;
+        executor.start();
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(5);
+        for (int i = 0; i < 5; i++) {
+            executor.execute("https://master1", new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        final CountDownLatch other = new CountDownLatch(1);
+        executor.execute("https://master2", new Runnable() {
+            @Override
+            public void run() {
+                other.countDown();
+            }
+        });
+
+        Assert.assertTrue("Expected a free thread for the other endpoint", other.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testUnlimitedTasksDontTakeSlots() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch started = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.util;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+public class SecureDataMaskerTest {
+
+    @Test
+    public void testMask() {
+        SecureDataMasker masker = new SecureDataMasker(ImmutableSet.of("admin", "s3cr3t"));
+        Assert.assertEquals("Expected every secure value to be masked", "-u **** -p **** --host=db",
+                masker.mask("-u admin -p s3cr3t --host=db"));
+    }
+
+    @Test
+    public void testMaskRepeatedOccurrences() {
+        SecureDataMasker masker = new SecureDataMasker(ImmutableSet.of("s3cr3t"));
+        Assert.assertEquals("****:****", masker.mask("s3cr3t:s3cr3t"));
+    }
+
+    @Test
+    public void testMaskAdjacentOccurrencesSeparately() {
+        SecureDataMasker masker = new SecureDataMasker(ImmutableSet.of("admin", "s3cr3t"));
+        Assert.assertEquals("********", masker.mask("admins3cr3t"));
+    }
+
+    @Test
+    public void testMaskOverlappingOccurrencesAsOne() {
+        SecureDataMasker masker = new SecureDataMasker(ImmutableSet.of("abc", "bcd"));
+        Assert.assertEquals("x****y", masker.mask("xabcdy"));
+    }
+
+    @Test
+    public void testMaskNestedOccurrences() {
+        SecureDataMasker masker = new SecureDataMasker(ImmutableSet.of("b", "abc", "xabcy"));
+        Assert.assertEquals("**** ****", masker.mask("xabcy abc"));
+        Assert.assertEquals("a****", masker.mask("ab"));
+    }
+
+    @Test
+    public void testMaskWithCustomMask() {
+        SecureDataMasker masker = new SecureDataMasker(ImmutableSet.of("s3cr3t"), "[hidden]");
+        Assert.assertEquals("echo [hidden]", masker.mask("echo s3cr3t"));
+    }
+
+    @Test
+    public void testMaskNonLatinSecureData() {
+        SecureDataMasker masker = new SecureDataMasker(ImmutableSet.of("p\u00e4ss\u00f6rd\u4e2d"));
+        Assert.assertEquals("pw=****;", masker.mask("pw=p\u00e4ss\u00f6rd\u4e2d;"));
+    }
+
+    @Test
+    public void testMaskWithoutSecureDataReturnsValue() {
+        String value = "plain";
+        Assert.assertSame(value, new SecureDataMasker(ImmutableSet.of("s3cr3t")).mask(value));
+        Assert.assertSame(value, SecureDataMasker.NONE.mask(value));
+    }
+
+    @Test
+    public void testMaskIgnoresEmptySecureData() {
+        SecureDataMasker masker = new SecureDataMasker(Arrays.asList("", null, "s3cr3t"));
+        Assert.assertEquals("a ****", masker.mask("a s3cr3t"));
+    }
+
+    @Test
+    public void testMaskNull() {
+        Assert.assertNull(new SecureDataMasker(ImmutableSet.of("s3cr3t")).mask(null));
+    }
+
+    @Test
+    public void testMaximumLength() {
+        Assert.assertEquals(6, new SecureDataMasker(ImmutableSet.of("admin", "s3cr3t")).getMaximumLength());
+        Assert.assertEquals(0, SecureDataMasker.NONE.getMaximumLength());
+    }
+
+    @Test
+    public void testSplitPosition() {
+        SecureDataMasker masker = new SecureDataMasker(ImmutableSet.of("s3cr3t"));
+        Assert.assertEquals("Expected position outside of secure data to be kept", 2,
+                masker.splitPosition("ab s3cr3t", 2));
+        Assert.assertEquals("Expected position at the start of secure data to be kept", 3,
+                masker.splitPosition("ab s3cr3t", 3));
+        Assert.assertEquals("Expected position within secure data to move to its start", 3,
+                masker.splitPosition("ab s3cr3t cd", 5));
+        Assert.assertEquals("Expected position within leading secure data to move to its end", 6,
+                masker.splitPosition("s3cr3t cd", 4));
+        Assert.assertEquals("Expected partial secure data to be ignored", 5, masker.splitPosition("ab s3cr", 5));
+        Assert.assertEquals(5, SecureDataMasker.NONE.splitPosition("ab s3cr3t", 5));
+    }
+
+    @Test
+    public void testSplitPositionWithinOverlappingOccurrences() {
+        SecureDataMasker masker = new SecureDataMasker(ImmutableSet.of("abc", "bcd"));
+        Assert.assertEquals(1, masker.splitPosition("xabcdy", 4));
+    }
+}
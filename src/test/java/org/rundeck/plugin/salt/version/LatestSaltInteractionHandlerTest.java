@@ -35,4 +35,22 @@ public class LatestSaltInteractionHandlerTest {
         String response = "{\"_links\": {\"jobs\": [{\"href\": \"/jobs/123\"}]}, \"return\": [{}, {}]}";
         handler.extractOutputForJobSubmissionResponse(response);
     }
+
+    @Test
+    public void testExtractTokenLifetimeForLoginResponse() {
+        String response = "{\"return\": [{\"token\": \"123qwe\", \"start\": 1000.5, \"expire\": 1060.5}]}";
+        Assert.assertEquals(Long.valueOf(60000), handler.extractTokenLifetimeForLoginResponse(response));
+    }
+
+    @Test
+    public void testExtractTokenLifetimeForLoginResponseMissingExpiry() {
+        String response = "{\"return\": [{\"token\": \"123qwe\"}]}";
+        Assert.assertNull(handler.extractTokenLifetimeForLoginResponse(response));
+    }
+
+    @Test
+    public void testExtractTokenLifetimeForLoginResponseMalformed() {
+        Assert.assertNull(handler.extractTokenLifetimeForLoginResponse("{\"return\": "));
+        Assert.assertNull(handler.extractTokenLifetimeForLoginResponse(null));
+    }
 }
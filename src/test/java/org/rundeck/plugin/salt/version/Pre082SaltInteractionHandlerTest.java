@@ -34,4 +34,9 @@ public class Pre082SaltInteractionHandlerTest {
         String response = "[{}, {}]";
         handler.extractOutputForJobSubmissionResponse(response);
     }
+
+    @Test
+    public void testExtractTokenLifetimeForLoginResponse() {
+        Assert.assertNull(handler.extractTokenLifetimeForLoginResponse("{\"return\": [{\"token\": \"123qwe\"}]}"));
+    }
 }
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2013, salesforce.com, inc.
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without modification, are permitted provided
+ * that the following conditions are met:
+ *
+ *    Redistributions of source code must retain the above copyright notice, this list of conditions and the
+ *    following disclaimer.
+ *
+ *    Redistributions in binary form must reproduce the above copyright notice, this list of conditions and
+ *    the following disclaimer in the documentation and/or other materials provided with the distribution.
+ *
+ *    Neither the name of salesforce.com, inc. nor the names of its contributors may be used to endorse or
+ *    promote products derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A
+ * PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED
+ * TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION)
+ * HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.rundeck.plugin.salt.version;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.message.BasicHeader;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.rundeck.plugin.salt.simulator.SaltApiSimulator;
+import org.rundeck.plugin.salt.util.HttpFactory;
+import org.rundeck.plugin.salt.util.LogWrapper;
+
+public class SaltApiCapabilityDetectorTest {
+
+    protected SaltApiCapabilityDetector detector;
+    protected HttpFactory httpFactory;
+    protected CloseableHttpClient client;
+    protected SaltApiSimulator simulator;
+    protected LogWrapper log;
+
+    @Before
+    public void setup() {
+        client = HttpClients.createDefault();
+        httpFactory = Mockito.spy(new HttpFactory());
+        Mockito.doReturn(client).when(httpFactory).createHttpClient();
+
+        detector = new SaltApiCapabilityDetector();
+        detector.ttl = 60000;
+        detector.timeout = 5000;
+        detector.httpFactory = httpFactory;
+        detector.capabilityRegistry = new SaltApiVersionCapabilityRegistry();
+        detector.initialize();
+        log = Mockito.mock(LogWrapper.class);
+    }
+
+    @After
+    public void teardown() throws Exception {
+        if (simulator != null) {
+            simulator.stop();
+        }
+        client.close();
+    }
+
+    protected SaltApiCapability detect(SaltApiCapability version) throws Exception {
+        simulator = new SaltApiSimulator.Builder().withVersion(version).build();
+        simulator.start();
+        try {
+            return detector.detect(log, simulator.getEndpoint());
+        } finally {
+            simulator.stop();
+        }
+    }
+
+    @Test
+    public void testDetectPre080() throws Exception {
+        Assert.assertSame(SaltApiVersionCapabilityRegistry.VERSION_0_7_5,
+                detect(SaltApiVersionCapabilityRegistry.VERSION_0_7_5));
+    }
+
+    @Test
+    public void testDetect080() throws Exception {
+        Assert.assertSame(SaltApiVersionCapabilityRegistry.VERSION_0_8_0,
+                detect(SaltApiVersionCapabilityRegistry.VERSION_0_8_0));
+    }
+
+    @Test
+    public void testDetectLatest() throws Exception {
+        Assert.assertSame(SaltApiVersionCapabilityRegistry.VERSION_0_8_2,
+                detect(SaltApiVersionCapabilityRegistry.VERSION_0_8_2));
+    }
+
+    @Test
+    public void testDetectProbesEndpointOnce() throws Exception {
+        simulator = new SaltApiSimulator.Builder().build();
+        simulator.start();
+
+        detector.detect(log, simulator.getEndpoint());
+        Assert.assertSame(SaltApiVersionCapabilityRegistry.VERSION_0_8_2,
+                detector.detect(log, simulator.getEndpoint()));
+        Assert.assertEquals(1, simulator.getRequestCount());
+
+        detector.invalidate(simulator.getEndpoint());
+        detector.detect(log, simulator.getEndpoint());
+        Assert.assertEquals(2, simulator.getRequestCount());
+    }
+
+    @Test
+    public void testDetectCachesUnrecognizedEndpoint() throws Exception {
+        simulator = new SaltApiSimulator.Builder().withFailureRate(1).build();
+        simulator.start();
+
+        Assert.assertNull(detector.detect(log, simulator.getEndpoint()));
+        Assert.assertNull(detector.detect(log, simulator.getEndpoint()));
+        Assert.assertEquals(1, simulator.getRequestCount());
+    }
+
+    @Test
+    public void testDetectRetriesUnreachableEndpoint() throws Exception {
+        detector = Mockito.spy(detector);
+        Assert.assertNull(detector.detect(log, "http://127.0.0.1:1"));
+        Assert.assertNull(detector.detect(log, "http://127.0.0.1:1"));
+        Mockito.verify(detector, Mockito.times(2)).probe("http://127.0.0.1:1");
+    }
+
+    @Test
+    public void testInterpretServerHeader() {
+        Assert.assertSame(SaltApiVersionCapabilityRegistry.VERSION_0_8_0, detector.interpret(HttpStatus.SC_NOT_FOUND,
+                new BasicHeader(HttpHeaders.SERVER, "CherryPy/3.2.2 salt-api/0.8.1"), null, null));
+    }
+
+    @Test
+    public void testInterpretUnrecognizedResponses() {
+        Assert.assertNull(detector.interpret(HttpStatus.SC_OK, new BasicHeader(HttpHeaders.SERVER, "CherryPy/3.2.2"),
+                null, "<html></html>"));
+        Assert.assertNull(detector.interpret(HttpStatus.SC_OK, null, null, "[]"));
+        Assert.assertNull(detector.interpret(HttpStatus.SC_OK, null, null, "{}"));
+        Assert.assertNull(detector.interpret(HttpStatus.SC_UNAUTHORIZED, null, null, null));
+        Assert.assertNull(detector.interpret(HttpStatus.SC_MOVED_TEMPORARILY, null,
+                new BasicHeader(HttpHeaders.LOCATION, "/elsewhere"), null));
+    }
+}
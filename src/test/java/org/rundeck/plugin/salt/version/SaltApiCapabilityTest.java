@@ -57,4 +57,12 @@ public class SaltApiCapabilityTest {
         capability = Builder.from(capability).supportsLogout().build();
         Assert.assertTrue("Expected logout support to be turned on.", capability.getSupportsLogout());
     }
+
+    @Test
+    public void testWithSupportsEvents() {
+        SaltApiCapability capability = new SaltApiCapability.Builder().build();
+        Assert.assertFalse("Expected default event support to be off", capability.getSupportsEvents());
+        capability = Builder.from(capability).supportsEvents().build();
+        Assert.assertTrue("Expected event support to be turned on.", capability.getSupportsEvents());
+    }
 }